@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.util.concurrent.Futures;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends batches of already processed messages through {@link AsyncBatchMessageProcessorRoute},
+ * so what is measured is the route's own batch loop: parsing, waiting, and collecting failures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncBatchMessageProcessorRouteBenchmark {
+    @Param({"10", "100", "1000"})
+    int batchSize;
+
+    /** Every nth message fails. 0 for no failures. */
+    @Param({"0", "10"})
+    int failEvery;
+
+    CamelContext camel;
+    ProducerTemplate producer;
+    List<Message> batch;
+
+    @Setup(Level.Trial)
+    public void startRoute() throws Exception {
+        camel = new DefaultCamelContext();
+        camel.addRoutes(new AsyncBatchMessageProcessorRoute("direct:batches", "direct:failures",
+                Duration.ofMinutes(1), body -> (Message) body));
+        camel.addRoutes(new DiscardingRoute("direct:failures"));
+        camel.start();
+
+        producer = camel.createProducerTemplate();
+        batch = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(failEvery > 0 && i % failEvery == 0
+                    ? new ImmediateMessage(Futures.immediateFailedFuture(
+                            new Exception("Simulated failure")))
+                    : new ImmediateMessage(Futures.immediateFuture(null)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRoute() throws Exception {
+        producer.stop();
+        camel.stop();
+    }
+
+    @Benchmark
+    public void processBatch() {
+        producer.sendBody("direct:batches", batch);
+    }
+
+    static final class ImmediateMessage implements Message {
+        private final Future<Void> result;
+
+        ImmediateMessage(Future<Void> result) {
+            this.result = result;
+        }
+
+        @Override
+        public Future<Void> process() {
+            return result;
+        }
+    }
+
+    /**
+     * Fails with a new exception each time it is processed, since routes retrying failures attach
+     * previous failures to new ones.
+     */
+    static final class FailingMessage implements Message {
+        @Override
+        public Future<Void> process() {
+            return Futures.immediateFailedFuture(new Exception("Simulated failure"));
+        }
+    }
+
+    /**
+     * Consumes from an endpoint and does nothing else, so failures are not retained for the length
+     * of a trial as they would be by a mock endpoint.
+     */
+    static final class DiscardingRoute extends RouteBuilder {
+        private final String fromUri;
+
+        DiscardingRoute(String fromUri) {
+            this.fromUri = fromUri;
+        }
+
+        @Override
+        public void configure() throws Exception {
+            from(fromUri).stop();
+        }
+    }
+}
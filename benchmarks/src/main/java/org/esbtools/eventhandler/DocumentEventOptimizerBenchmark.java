@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimizes a batch of events which all share one hot identity, with and without optimization
+ * keys, comparing {@link DocumentEventOptimizer}'s index with comparing every pair of events.
+ *
+ * <p>Events of the same key supersede each other, and events of different keys never optimize,
+ * so {@code keys} events accumulate. With {@code distribution=uniform}, events are spread evenly
+ * over keys. With {@code distribution=skewed}, a few keys get most events, roughly following
+ * Zipf's law, as when a few entities of an identity change far more often than the rest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentEventOptimizerBenchmark {
+    @Param({"100", "1000"})
+    int events;
+
+    @Param({"1", "100", "1000"})
+    int keys;
+
+    @Param({"uniform", "skewed"})
+    String distribution;
+
+    @Param({"true", "false"})
+    boolean indexed;
+
+    KeyedEvent[] batch;
+
+    DocumentEventOptimizer.Listener<DocumentEvent> ignoringListener =
+            new DocumentEventOptimizer.Listener<DocumentEvent>() {
+                @Override
+                public void superseded(DocumentEvent superseded, DocumentEvent survivor) {
+                }
+
+                @Override
+                public void merged(DocumentEvent previous, DocumentEvent newOrMerger,
+                        DocumentEvent merger) {
+                }
+            };
+
+    @Setup
+    public void createBatch() {
+        Random random = new Random(1);
+        batch = new KeyedEvent[events];
+
+        for (int i = 0; i < events; i++) {
+            int key = "skewed".equals(distribution)
+                    // Log-uniform: key 0 is about twice as likely as key 1, and so on.
+                    ? (int) Math.pow(keys, random.nextDouble()) - 1
+                    : random.nextInt(keys);
+
+            batch[i] = new KeyedEvent(key, i, indexed);
+        }
+    }
+
+    @Benchmark
+    public DocumentEventOptimizer<DocumentEvent> optimize() {
+        DocumentEventOptimizer<DocumentEvent> optimizer =
+                new DocumentEventOptimizer<>(DocumentEvent::merge);
+
+        for (KeyedEvent event : batch) {
+            optimizer.add(event, ignoringListener);
+        }
+
+        return optimizer;
+    }
+
+    /**
+     * Superseded by later events with the same key. Never merges.
+     */
+    static final class KeyedEvent implements DocumentEvent {
+        final Integer key;
+        final int sequence;
+        final Optional<?> optimizationKey;
+
+        KeyedEvent(int key, int sequence, boolean indexed) {
+            this.key = key;
+            this.sequence = sequence;
+            this.optimizationKey = indexed ? Optional.of(this.key) : Optional.empty();
+        }
+
+        @Override
+        public Future<?> lookupDocument() {
+            return CompletableFuture.completedFuture(key);
+        }
+
+        @Override
+        public boolean isSupersededBy(DocumentEvent event) {
+            if (!(event instanceof KeyedEvent)) {
+                return false;
+            }
+
+            KeyedEvent other = (KeyedEvent) event;
+            return key.equals(other.key) && sequence < other.sequence;
+        }
+
+        @Override
+        public boolean couldMergeWith(DocumentEvent event) {
+            return false;
+        }
+
+        @Override
+        public DocumentEvent merge(DocumentEvent event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Optional<?> optimizationKey() {
+            return optimizationKey;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves chains of futures nested {@code depth} times, as built by chaining
+ * {@link TransformableFuture#transformAsync(FutureTransform)} on lazy lightblue requests: each
+ * level transforms its input into another future, which must be unwrapped on {@code get()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedTransformableFutureBenchmark {
+    @Param({"1", "4", "16"})
+    int depth;
+
+    @Benchmark
+    public Integer resolveNestedTransforms() throws Exception {
+        TransformableFuture<Integer> future = TransformableFuture.immediate(0);
+
+        for (int i = 0; i < depth; i++) {
+            future = new NestedTransformableFuture<>(
+                    future.transformSync(value -> TransformableFuture.immediate(value + 1)));
+        }
+
+        return future.get();
+    }
+
+    @Benchmark
+    public Integer resolveNestedTransformsWithCallbacks() throws Exception {
+        TransformableFuture<Integer> future = TransformableFuture.immediate(0);
+        int[] callbacks = new int[1];
+
+        for (int i = 0; i < depth; i++) {
+            future = new NestedTransformableFuture<>(
+                    future.transformSync(value -> TransformableFuture.immediate(value + 1)))
+                    .whenDoneOrCancelled(() -> callbacks[0]++);
+        }
+
+        return future.get() + callbacks[0];
+    }
+}
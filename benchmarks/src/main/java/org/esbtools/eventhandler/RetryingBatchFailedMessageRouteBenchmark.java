@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.util.concurrent.Futures;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.ExpressionBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.esbtools.eventhandler.AsyncBatchMessageProcessorRouteBenchmark.DiscardingRoute;
+import org.esbtools.eventhandler.AsyncBatchMessageProcessorRouteBenchmark.FailingMessage;
+import org.esbtools.eventhandler.AsyncBatchMessageProcessorRouteBenchmark.ImmediateMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends batches of failed messages through {@link RetryingBatchFailedMessageRoute} with no retry
+ * delay, so what is measured is the route's own retry loop. Messages which fail again are retried
+ * up to {@code maxRetryCount} times and then dead lettered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryingBatchFailedMessageRouteBenchmark {
+    @Param({"10", "100", "1000"})
+    int batchSize;
+
+    /** Every nth message fails every retry. 0 for all messages to succeed on first retry. */
+    @Param({"0", "10"})
+    int failEvery;
+
+    @Param({"3"})
+    int maxRetryCount;
+
+    CamelContext camel;
+    ProducerTemplate producer;
+    List<FailedMessage> batch;
+
+    @Setup(Level.Trial)
+    public void startRoute() throws Exception {
+        camel = new DefaultCamelContext();
+        camel.addRoutes(new RetryingBatchFailedMessageRoute("direct:failures",
+                ExpressionBuilder.constantExpression(0), maxRetryCount, Duration.ofMinutes(1),
+                "direct:deadLetters"));
+        camel.addRoutes(new DiscardingRoute("direct:deadLetters"));
+        camel.start();
+
+        producer = camel.createProducerTemplate();
+        batch = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            Message message = failEvery > 0 && i % failEvery == 0
+                    ? new FailingMessage()
+                    : new ImmediateMessage(Futures.immediateFuture(null));
+
+            batch.add(new FailedMessage(i, message, new Exception("Simulated original failure")));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRoute() throws Exception {
+        producer.stop();
+        camel.stop();
+    }
+
+    @Benchmark
+    public void retryBatch() {
+        producer.sendBody("direct:failures", batch);
+    }
+}
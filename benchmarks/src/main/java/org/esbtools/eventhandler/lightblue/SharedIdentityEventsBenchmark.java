@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import org.esbtools.eventhandler.lightblue.LightblueDocumentEventRepository.SharedIdentityEvents;
+import org.esbtools.eventhandler.lightblue.client.BulkLightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.LightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.StubLightblueClient;
+import org.esbtools.eventhandler.lightblue.locking.LockStrategy;
+import org.esbtools.eventhandler.lightblue.locking.LockedResource;
+import org.esbtools.eventhandler.lightblue.locking.LockedResources;
+import org.esbtools.eventhandler.lightblue.testing.MultiStringDocumentEvent;
+import org.esbtools.eventhandler.lightblue.testing.StringDocumentEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses, locks, and optimizes a retrieved batch of document events, as
+ * {@link LightblueDocumentEventRepository#retrievePriorityDocumentEventsUpTo(int)} does between
+ * its find and its updates.
+ *
+ * <p>Batches are shaped by two distributions. {@code identities} is how many different
+ * identities the non-mergeable events are spread over; events of the same identity supersede
+ * each other. {@code mergeablePercent} of events instead share one identity and merge with each
+ * other, which is the most expensive optimization.
+ *
+ * <p>Optimizing updates the entities, so each invocation gets new ones. Invocations take far longer
+ * than JMH's per invocation setup overhead at these batch sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedIdentityEventsBenchmark {
+    @Param({"100", "1000"})
+    int events;
+
+    @Param({"1", "10", "1000"})
+    int identities;
+
+    @Param({"0", "10"})
+    int mergeablePercent;
+
+    Clock clock = Clock.fixed(Instant.parse("2016-06-01T00:00:00Z"), ZoneOffset.UTC);
+    LightblueRequester requester = new BulkLightblueRequester(new StubLightblueClient());
+    LockStrategy lockStrategy = new UncontendedLockStrategy();
+    Map<String, DocumentEventFactory> documentEventFactoriesByType = ImmutableMap.of(
+            "String", StringDocumentEvent::new,
+            "MultiString", MultiStringDocumentEvent::new);
+
+    DocumentEventEntity[] entities;
+
+    @Setup(Level.Invocation)
+    public void retrieveEntities() {
+        entities = new DocumentEventEntity[events];
+        int mergeEvery = mergeablePercent == 0 ? 0 : 100 / mergeablePercent;
+
+        for (int i = 0; i < events; i++) {
+            LightblueDocumentEvent event = mergeEvery > 0 && i % mergeEvery == 0
+                    ? new MultiStringDocumentEvent(null, Collections.singleton("merge" + i), clock)
+                    : new StringDocumentEvent(null, "identity" + (i % identities), clock);
+
+            DocumentEventEntity entity = event.wrappedDocumentEventEntity();
+            entity.set_id(Integer.toString(i));
+            entities[i] = entity;
+        }
+    }
+
+    @Benchmark
+    public LockedResources<SharedIdentityEvents> parseAndOptimize() {
+        return SharedIdentityEvents.parseAndOptimizeLockableDocumentEventEntities(events,
+                entities, requester, documentEventFactoriesByType, lockStrategy, clock);
+    }
+
+    /** Every lock is available and never lost, as when only one instance is polling. */
+    static final class UncontendedLockStrategy implements LockStrategy {
+        @Override
+        public <T> LockedResource<T> tryAcquire(String resourceId, T resource) {
+            return new LockedResource<T>() {
+                @Override
+                public void ensureAcquiredOrThrow(String lostLockMessage) {
+                }
+
+                @Override
+                public T getResource() {
+                    return resource;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import org.esbtools.eventhandler.TransformableFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues a batch of finds on a new {@link BulkLightblueRequester}, as a batch of document events
+ * looking up their documents would, then resolves them all. Lightblue answers instantly; see
+ * {@link StubLightblueClient}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkLightblueRequesterBenchmark {
+    @Param({"10", "100", "1000"})
+    int batchSize;
+
+    /**
+     * How many different finds are in a batch. Finds are repeated round robin, so fewer distinct
+     * finds means more equivalent finds which are only sent once.
+     */
+    @Param({"1", "10", "1000"})
+    int distinctFinds;
+
+    StubLightblueClient lightblue;
+    List<DataFindRequest> finds;
+
+    @Setup
+    public void createFinds() {
+        lightblue = new StubLightblueClient();
+        finds = new ArrayList<>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            finds.add(findUser(i % distinctFinds));
+        }
+    }
+
+    @Benchmark
+    public int queueAndResolve() throws Exception {
+        BulkLightblueRequester requester = new BulkLightblueRequester(lightblue);
+        List<TransformableFuture<LightblueDataResponses>> futures = new ArrayList<>(batchSize);
+
+        for (DataFindRequest find : finds) {
+            futures.add(requester.request(find));
+        }
+
+        int resolved = 0;
+
+        for (TransformableFuture<LightblueDataResponses> future : futures) {
+            if (future.get() != null) {
+                resolved++;
+            }
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Each lookup needs a second find based on the result of the first, as documents with related
+     * entities do. All first finds go in one bulk request and all second finds in another.
+     */
+    @Benchmark
+    public int queueAndResolveChainedWithTransformAsync() throws Exception {
+        BulkLightblueRequester requester = new BulkLightblueRequester(lightblue);
+        List<TransformableFuture<LightblueDataResponses>> futures = new ArrayList<>(batchSize);
+
+        for (DataFindRequest find : finds) {
+            futures.add(requester.request(find)
+                    .transformAsync(responses -> requester.request(find)));
+        }
+
+        int resolved = 0;
+
+        for (TransformableFuture<LightblueDataResponses> future : futures) {
+            if (future.get() != null) {
+                resolved++;
+            }
+        }
+
+        return resolved;
+    }
+
+    private static DataFindRequest findUser(int id) {
+        DataFindRequest find = new DataFindRequest("user", "1.0.0");
+        find.where(Query.withValue("_id", Query.BinOp.eq, Integer.toString(id)));
+        find.select(Projection.includeFieldRecursively("*"));
+        return find;
+    }
+}
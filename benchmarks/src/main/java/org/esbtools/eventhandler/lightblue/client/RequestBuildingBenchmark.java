@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataUpdateRequest;
+import org.esbtools.eventhandler.lightblue.DocumentEventEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the finds and updates each document event poll makes, including serializing their
+ * bodies, which is what is actually sent to lightblue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+    @Param({"10", "100", "1000"})
+    int batchSize;
+
+    String[] types = {"String", "MultiString", "User", "Order"};
+    String[] ids;
+    Instant now = Instant.parse("2016-06-01T00:00:00Z");
+    ZonedDateTime originalProcessingDate = ZonedDateTime.ofInstant(now, ZoneOffset.UTC);
+    List<DocumentEventEntity> processedEntities;
+    List<DocumentEventEntity> claimedEntities;
+
+    @Setup
+    public void createEntities() {
+        ids = new String[batchSize];
+        processedEntities = new ArrayList<>(batchSize);
+        claimedEntities = new ArrayList<>(batchSize);
+
+        DocumentEventEntity.Status[] statuses = {
+                DocumentEventEntity.Status.published,
+                DocumentEventEntity.Status.superseded,
+                DocumentEventEntity.Status.failed};
+
+        for (int i = 0; i < batchSize; i++) {
+            ids[i] = Integer.toString(i);
+
+            DocumentEventEntity entity = DocumentEventEntity.newlyCreated(null, "String", 50,
+                    originalProcessingDate, new DocumentEventEntity.KeyAndValue("value", ids[i]));
+            entity.set_id(ids[i]);
+            entity.setStatus(statuses[i % statuses.length]);
+            entity.setProcessingDate(originalProcessingDate);
+            entity.setProcessedDate(originalProcessingDate.plusSeconds(1));
+            processedEntities.add(entity);
+
+            DocumentEventEntity claimed = DocumentEventEntity.newlyCreated(null, "String", 50,
+                    originalProcessingDate, new DocumentEventEntity.KeyAndValue("value", ids[i]));
+            claimed.set_id(ids[i]);
+            claimed.setStatus(DocumentEventEntity.Status.processing);
+            claimed.setProcessingDate(originalProcessingDate.plusSeconds(1));
+            claimedEntities.add(claimed);
+        }
+    }
+
+    @Benchmark
+    public String findPriorityDocumentEvents() {
+        DataFindRequest find =
+                FindRequests.priorityDocumentEventsForTypesUpTo(types, batchSize, now);
+        return find.getBody();
+    }
+
+    @Benchmark
+    public String findDocumentEventsById() {
+        return FindRequests.documentEventsById(ids).getBody();
+    }
+
+    @Benchmark
+    public void updateDocumentEventsStatusAndProcessedDate(Blackhole blackhole) {
+        for (DataUpdateRequest update
+                : UpdateRequests.documentEventsStatusAndProcessedDate(processedEntities)) {
+            blackhole.consume(update.getBody());
+        }
+    }
+
+    @Benchmark
+    public String updateDocumentEventsStatusAndDatesIfCurrent() {
+        return UpdateRequests.documentEventsStatusAndDatesIfCurrent(
+                claimedEntities, originalProcessingDate).getBody();
+    }
+}
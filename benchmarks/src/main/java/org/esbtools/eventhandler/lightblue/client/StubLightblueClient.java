@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.Locking;
+import com.redhat.lightblue.client.request.CRUDRequest;
+import com.redhat.lightblue.client.request.DataBulkRequest;
+import com.redhat.lightblue.client.request.LightblueDataRequest;
+import com.redhat.lightblue.client.request.LightblueMetadataRequest;
+import com.redhat.lightblue.client.response.LightblueBulkDataResponse;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
+import com.redhat.lightblue.client.response.LightblueMetadataResponse;
+
+/**
+ * Answers every bulk request immediately with the same successful response for every request in
+ * it, so benchmarks measure our side of a lightblue round trip and nothing else.
+ *
+ * <p>Responses are stub only mocks: they do not record invocations, so they do not accumulate
+ * garbage over the length of a benchmark.
+ */
+public class StubLightblueClient implements LightblueClient {
+    private final LightblueDataResponse dataResponse =
+            mock(LightblueDataResponse.class, withSettings().stubOnly());
+    private final LightblueBulkDataResponse bulkResponse =
+            mock(LightblueBulkDataResponse.class, withSettings().stubOnly());
+
+    public StubLightblueClient() {
+        when(bulkResponse.getResponse(any(CRUDRequest.class))).thenReturn(dataResponse);
+    }
+
+    @Override
+    public LightblueBulkDataResponse bulkData(DataBulkRequest request) {
+        return bulkResponse;
+    }
+
+    @Override
+    public LightblueDataResponse data(LightblueDataRequest request) {
+        return dataResponse;
+    }
+
+    @Override
+    public <T> T data(LightblueDataRequest request, Class<T> type) {
+        throw new UnsupportedOperationException("Not stubbed: " + request);
+    }
+
+    @Override
+    public Locking getLocking(String domain) {
+        throw new UnsupportedOperationException("Not stubbed: " + domain);
+    }
+
+    @Override
+    public LightblueMetadataResponse metadata(LightblueMetadataRequest request) {
+        throw new UnsupportedOperationException("Not stubbed: " + request);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Decides when a polling route should poll next, based on how much the previous poll found.
+ *
+ * <p>Intended to be checked on every tick of a timer firing at the minimum interval, and again
+ * right after each poll:
+ * <ul>
+ *     <li>While polls come back with a full batch, there is likely a backlog, so the next poll is
+ *     due right away, without waiting for the next tick.</li>
+ *     <li>While polls come back empty (or fail), the interval doubles with each poll, up to the
+ *     maximum interval.</li>
+ *     <li>Any other poll found some work, so the interval resets to the minimum.</li>
+ * </ul>
+ *
+ * <p>With equal minimum and maximum intervals, every tick polls, just like a fixed timer.
+ */
+@ThreadSafe
+public class AdaptivePollingSchedule {
+    private final Duration minInterval;
+    private final Duration maxInterval;
+    private final Clock clock;
+
+    private Duration currentInterval;
+    private Instant nextPoll;
+    private Instant roundStarted;
+    private boolean draining;
+
+    public AdaptivePollingSchedule(Duration minInterval, Duration maxInterval) {
+        this(minInterval, maxInterval, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock Determines when polls are due. Mainly here for testing purposes.
+     */
+    public AdaptivePollingSchedule(Duration minInterval, Duration maxInterval, Clock clock) {
+        this.minInterval = Objects.requireNonNull(minInterval, "minInterval");
+        this.maxInterval = Objects.requireNonNull(maxInterval, "maxInterval");
+        this.clock = Objects.requireNonNull(clock, "clock");
+
+        if (minInterval.isNegative() || minInterval.isZero()) {
+            throw new IllegalArgumentException("minInterval must be positive, but was: " +
+                    minInterval);
+        }
+
+        if (maxInterval.compareTo(minInterval) < 0) {
+            throw new IllegalArgumentException("maxInterval must be at least minInterval, but " +
+                    "was: " + maxInterval + ". minInterval was: " + minInterval);
+        }
+
+        this.currentInterval = minInterval;
+        this.nextPoll = clock.instant();
+        this.roundStarted = nextPoll;
+    }
+
+    /**
+     * The period of the timer which should consult this schedule.
+     */
+    public Duration minInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return True if a poll is due, in which case the caller should poll and then record the
+     * result with {@link #recordPoll(int, int)} or {@link #recordFailedPoll()}. Intervals are
+     * measured from the first poll of a round, rather than from the last poll of a backlog drained
+     * within the same tick, and a poll counts as due within half the minimum interval of when it
+     * is due. That way, a timer firing every minimum interval finds the next poll due on its next
+     * tick despite draining or latency within ticks.
+     */
+    public synchronized boolean startPollIfDue() {
+        Instant now = clock.instant();
+
+        if (now.isBefore(nextPoll.minus(minInterval.dividedBy(2)))) {
+            return false;
+        }
+
+        if (!draining) {
+            roundStarted = now;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param retrieved How many items the poll retrieved.
+     * @param batchSize The most items the poll could have retrieved.
+     */
+    public synchronized void recordPoll(int retrieved, int batchSize) {
+        if (retrieved == 0) {
+            backOff();
+            return;
+        }
+
+        currentInterval = minInterval;
+        draining = retrieved >= batchSize;
+        nextPoll = draining ? clock.instant() : roundStarted.plus(minInterval);
+    }
+
+    /**
+     * A failed poll is treated like an empty one, so we don't hammer a struggling repository.
+     */
+    public synchronized void recordFailedPoll() {
+        backOff();
+    }
+
+    private void backOff() {
+        draining = false;
+        nextPoll = roundStarted.plus(currentInterval);
+
+        Duration doubled = currentInterval.multipliedBy(2);
+        currentInterval = doubled.compareTo(maxInterval) > 0 ? maxInterval : doubled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptivePollingSchedule{" +
+                "minInterval=" + minInterval +
+                ", maxInterval=" + maxInterval +
+                ", currentInterval=" + currentInterval +
+                ", nextPoll=" + nextPoll +
+                '}';
+    }
+}
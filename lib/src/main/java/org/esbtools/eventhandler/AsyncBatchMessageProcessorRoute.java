@@ -20,23 +20,44 @@ package org.esbtools.eventhandler;
 
 import org.apache.camel.builder.RouteBuilder;
 
+import javax.annotation.Nullable;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
     private final String fromUri;
     private final String failureUri;
     private final Duration processTimeout;
     private final MessageFactory messageFactory;
+    private final @Nullable Semaphore inFlightPermits;
+    private final @Nullable Function<? super Message, CircuitBreaker> circuitBreakerFor;
+    private final EventHandlerMetrics metrics;
+    /**
+     * Waits on messages still processing when their batch is done, to release their permits once
+     * they are. Null if there are no {@link #inFlightPermits}.
+     */
+    private final @Nullable Executor permitReleaser;
 
     private final int idCount = idCounter.getAndIncrement();
     private final String routeId = "messageProcessor-" + idCount;
@@ -49,16 +70,91 @@ public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
      *                {@code messageFactory} to parse them into {@link Message}s.
      * @param failureUri Endpoint where failures will be sent to as a {@code Collection} of
      *                   {@link FailedMessage}s.
-     * @param processTimeout How to long to wait for a message process before timing out?
+     * @param processTimeout How to long to wait for a batch of messages to process before timing
+     *                       out those not yet processed?
      * @param messageFactory Accepts each element in the exchange body {@code Collection} and
      *                       parses them to create message implementations which will be processed.
      */
     public AsyncBatchMessageProcessorRoute(String fromUri, String failureUri,
             Duration processTimeout, MessageFactory messageFactory) {
+        this(fromUri, failureUri, processTimeout, messageFactory, EventHandlerMetrics.none());
+    }
+
+    /**
+     * Like {@link #AsyncBatchMessageProcessorRoute(String, String, Duration, MessageFactory)},
+     * recording metrics for each batch with the route id as their source.
+     */
+    public AsyncBatchMessageProcessorRoute(String fromUri, String failureUri,
+            Duration processTimeout, MessageFactory messageFactory, EventHandlerMetrics metrics) {
+        this(fromUri, failureUri, processTimeout, messageFactory, null, metrics);
+    }
+
+    /**
+     * Like {@link #AsyncBatchMessageProcessorRoute(String, String, Duration, MessageFactory)},
+     * processing at most {@code maxInFlight} messages at once.
+     */
+    public AsyncBatchMessageProcessorRoute(String fromUri, String failureUri,
+            Duration processTimeout, MessageFactory messageFactory, int maxInFlight) {
+        this(fromUri, failureUri, processTimeout, messageFactory, newInFlightPermits(maxInFlight),
+                EventHandlerMetrics.none());
+    }
+
+    /**
+     * Like {@link #AsyncBatchMessageProcessorRoute(String, String, Duration, MessageFactory,
+     * EventHandlerMetrics)}, but each message must acquire one of {@code inFlightPermits} before
+     * it is processed, and holds it until its processing completes. Messages are started in
+     * order as permits become available, and all within {@code processTimeout}: messages which
+     * could not start in time fail with a {@link TimeoutException}.
+     *
+     * <p>A permit is released as soon as processing completes if {@link Message#process()}
+     * returns a {@link TransformableFuture} or {@link CompletableFuture}. When permits run out, we
+     * wait on the oldest message of the batch still holding one. This also covers futures which
+     * cannot tell us when they complete, and futures which only complete once their result is
+     * asked for. Messages which time out keep their permit until they are actually done, so a
+     * batch never starts more than the permits allow, even while earlier messages linger.
+     *
+     * @param inFlightPermits Share one semaphore among several routes to limit them all
+     *                        together, or {@code null} for no limit.
+     */
+    public AsyncBatchMessageProcessorRoute(String fromUri, String failureUri,
+            Duration processTimeout, MessageFactory messageFactory,
+            @Nullable Semaphore inFlightPermits, EventHandlerMetrics metrics) {
+        this(fromUri, failureUri, processTimeout, messageFactory, inFlightPermits, null, metrics);
+    }
+
+    /**
+     * Like {@link #AsyncBatchMessageProcessorRoute(String, String, Duration, MessageFactory,
+     * Semaphore, EventHandlerMetrics)}, but each message must also be permitted by its
+     * {@link CircuitBreaker}. Messages whose breaker is open are not processed, and go straight
+     * to {@code failureUri} failed with a {@link CircuitBreakerOpenException}. The outcome of each
+     * message which is processed is reported to its breaker, with timeouts told apart from
+     * failures, and messages cancelled or interrupted on our side not counted at all. Outcomes
+     * of {@link TransformableFuture}s and {@link CompletableFuture}s are reported as soon as they
+     * complete, so a breaker may open partway through a batch, short circuiting the rest of it.
+     *
+     * @param circuitBreakerFor Returns the breaker guarding a message. Return the same breaker for
+     *                          every message to break per route, or see
+     *                          {@link CircuitBreaker#perKey(Function, Function)} to break per
+     *                          message type, or {@code null} for no breaker.
+     */
+    public AsyncBatchMessageProcessorRoute(String fromUri, String failureUri,
+            Duration processTimeout, MessageFactory messageFactory,
+            @Nullable Semaphore inFlightPermits,
+            @Nullable Function<? super Message, CircuitBreaker> circuitBreakerFor,
+            EventHandlerMetrics metrics) {
         this.fromUri = Objects.requireNonNull(fromUri, "fromUri");
         this.failureUri = Objects.requireNonNull(failureUri, "failureUri");
         this.processTimeout = Objects.requireNonNull(processTimeout, "processTimeout");
         this.messageFactory = Objects.requireNonNull(messageFactory, "messageFactory");
+        this.inFlightPermits = inFlightPermits;
+        this.circuitBreakerFor = circuitBreakerFor;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        // Each release waits for its message to be done, however long that takes, so releases
+        // must never queue behind one another.
+        this.permitReleaser = inFlightPermits == null
+                ? null
+                : DaemonThreadPools.newDaemonThreadPool(routeId + "-permit-releaser-",
+                        Integer.MAX_VALUE);
     }
 
     @Override
@@ -79,58 +175,127 @@ public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
 
             Collection originalMessages = (Collection) exchangeBody;
 
+            long processStart = System.nanoTime();
+            metrics.recordValue(routeId, EventHandlerMetrics.BATCH_SIZE, originalMessages.size());
+
+            long deadline = processStart + processTimeout.toNanos();
             List<ProcessingMessage> processingMessages = new ArrayList<>(originalMessages.size());
             List<FailedMessage> failures = new ArrayList<>();
+            int shortCircuited = 0;
+            BatchPermits permits = new BatchPermits(inFlightPermits, permitReleaser);
 
             log.debug("Received {} messages on route {}: {}",
                     originalMessages.size(), routeId, originalMessages);
 
-            // Start processing all of the messages in the batch in parallel.
-            for (Object originalMessage : originalMessages) {
-                final Message message;
+            BatchAwait.Results<ProcessingMessage, Void> results;
+
+            try {
+                // Start processing the messages in the batch in parallel, as many at once as we
+                // have permits for.
+                for (Object originalMessage : originalMessages) {
+                    final Message message;
+
+                    try {
+                        message = messageFactory.getMessageForBody(originalMessage);
+                    } catch (Exception e) {
+                        log.error("Failure parsing message. Body was: " + originalMessage, e);
+                        failures.add(new FailedMessage(originalMessage, e));
+                        continue;
+                    }
+
+                    if (!permits.tryAcquire(deadline)) {
+                        TimeoutException e = new TimeoutException("Timed out waiting for other " +
+                                "messages to finish processing before processing this one.");
+                        log.warn("Timed out processing message: " + message, e);
+                        failures.add(new FailedMessage(originalMessage, message, e));
+                        continue;
+                    }
 
-                try {
-                    message = messageFactory.getMessageForBody(originalMessage);
-                } catch (Exception e) {
-                    log.error("Failure parsing message. Body was: " + originalMessage, e);
-                    failures.add(new FailedMessage(originalMessage, e));
-                    continue;
+                    CircuitBreaker breaker = circuitBreakerFor == null
+                            ? null
+                            : circuitBreakerFor.apply(message);
+
+                    CircuitBreaker.Permission permission = breaker == null
+                            ? null
+                            : breaker.tryAcquirePermission();
+
+                    if (breaker != null && permission == null) {
+                        permits.releaseUnused();
+                        CircuitBreakerOpenException e = new CircuitBreakerOpenException(breaker);
+                        log.debug("Circuit breaker {} is open. Short circuited message: {}",
+                                breaker.name(), message);
+                        failures.add(new FailedMessage(originalMessage, message, e));
+                        shortCircuited++;
+                        continue;
+                    }
+
+                    final Future<Void> processingFuture;
+
+                    try {
+                        processingFuture = message.process();
+                    } catch (Exception e) {
+                        permits.releaseUnused();
+
+                        if (permission != null) {
+                            permission.onFailure();
+                        }
+
+                        log.error("Failed to process message: " + message, e);
+                        FailedMessage failure = new FailedMessage(originalMessage, message, e);
+                        failures.add(failure);
+                        continue;
+                    }
+
+                    permits.holdUntilDone(processingFuture);
+
+                    ProcessingMessage processing = new ProcessingMessage(
+                            originalMessage, message, processingFuture, permission);
+                    processing.reportOutcomeWhenDone();
+                    processingMessages.add(processing);
                 }
 
-                final Future<Void> processingFuture;
+                Map<ProcessingMessage, Future<Void>> processingFutures =
+                        new LinkedHashMap<>(processingMessages.size());
 
-                try {
-                    processingFuture = message.process();
-                } catch (Exception e) {
-                    log.error("Failed to process message: " + message, e);
-                    FailedMessage failure = new FailedMessage(originalMessage, message, e);
-                    failures.add(failure);
-                    continue;
+                for (ProcessingMessage processingMsg : processingMessages) {
+                    processingFutures.put(processingMsg, processingMsg.future);
                 }
 
-                ProcessingMessage processing = new ProcessingMessage(
-                        originalMessage, message, processingFuture);
-                processingMessages.add(processing);
+                // Wait for processing to complete, all within the same timeout.
+                results = BatchAwait.awaitAll(processingFutures,
+                        Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+            } finally {
+                permits.releaseWhenDone();
+            }
+
+            for (ProcessingMessage processingMsg : results.succeeded().keySet()) {
+                processingMsg.reportOutcome(CircuitBreaker.Permission::onSuccess);
             }
 
             List<Message> processedSuccessfully = log.isDebugEnabled()
-                    ? new ArrayList<>(processingMessages.size())
+                    ? results.succeeded().keySet().stream()
+                            .map(processingMsg -> processingMsg.parsedMessage)
+                            .collect(Collectors.toList())
                     : Collections.emptyList();
 
-            // Wait for processing to complete.
-            for (ProcessingMessage processingMsg : processingMessages) {
-                try {
-                    processingMsg.future.get(processTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            for (Map.Entry<ProcessingMessage, Exception> msgToFailure
+                    : results.failed().entrySet()) {
+                ProcessingMessage processingMsg = msgToFailure.getKey();
+                Exception e = msgToFailure.getValue();
+
+                if (e instanceof ExecutionException) {
+                    processingMsg.reportOutcome(CircuitBreaker.Permission::onFailure);
 
-                    if (log.isDebugEnabled()) {
-                        processedSuccessfully.add(processingMsg.parsedMessage);
-                    }
-                } catch (ExecutionException e) {
                     log.error("Failed to process message: " + processingMsg.parsedMessage, e);
                     FailedMessage failure = new FailedMessage(processingMsg.originalMessage,
                             processingMsg.parsedMessage, e.getCause());
                     failures.add(failure);
-                } catch (InterruptedException | TimeoutException e) {
+                } else {
+                    // Cancelled or interrupted on our side says nothing about downstream.
+                    processingMsg.reportOutcome(e instanceof TimeoutException
+                            ? CircuitBreaker.Permission::onTimeout
+                            : CircuitBreaker.Permission::onCancelled);
+
                     log.warn("Timed out processing message: " + processingMsg.parsedMessage, e);
                     FailedMessage failure = new FailedMessage(
                             processingMsg.originalMessage, processingMsg.parsedMessage, e);
@@ -138,6 +303,11 @@ public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
                 }
             }
 
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.PROCESS, processStart);
+            metrics.increment(routeId, EventHandlerMetrics.PROCESSED, results.succeeded().size());
+            metrics.increment(routeId, EventHandlerMetrics.PROCESS_FAILURES, failures.size());
+            metrics.increment(routeId, EventHandlerMetrics.SHORT_CIRCUITED, shortCircuited);
+
             log.debug("Processed {}/{} messages on route {}: {}",
                     processedSuccessfully.size(), originalMessages.size(),
                     routeId, processedSuccessfully);
@@ -148,6 +318,164 @@ public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
         .to(failureUri);
     }
 
+    private static Semaphore newInFlightPermits(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, but was: " +
+                    maxInFlight);
+        }
+
+        return new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Permits from a route's {@code inFlightPermits} held by messages of one batch. Not thread
+     * safe, except that permits may be released from any thread when processing completes.
+     */
+    private static final class BatchPermits {
+        private final @Nullable Semaphore permits;
+        private final @Nullable Executor permitReleaser;
+        private final List<Permit> held = new ArrayList<>();
+        /** Held by messages still processing, as far as we know, oldest first. */
+        private final Deque<Permit> heldUntilPolled = new ArrayDeque<>();
+
+        BatchPermits(@Nullable Semaphore permits, @Nullable Executor permitReleaser) {
+            this.permits = permits;
+            this.permitReleaser = permitReleaser;
+        }
+
+        /**
+         * Acquires a permit for the next message, waiting no later than {@code deadline} (per
+         * {@link System#nanoTime()}).
+         *
+         * <p>While out of permits, waits on the oldest message of this batch still holding one,
+         * rather than on the semaphore. Futures which only complete when their result is asked
+         * for would otherwise never give their permit back in time.
+         *
+         * @return {@code false} if no permit was acquired by the deadline, or we were
+         * interrupted. If interrupted, the thread's interrupt status is restored.
+         */
+        boolean tryAcquire(long deadline) {
+            if (permits == null) {
+                return true;
+            }
+
+            try {
+                while (!permits.tryAcquire()) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0) {
+                        return false;
+                    }
+
+                    Permit oldest = heldUntilPolled.pollFirst();
+
+                    if (oldest == null) {
+                        // Other routes sharing the semaphore hold the rest.
+                        return permits.tryAcquire(remaining, TimeUnit.NANOSECONDS);
+                    }
+
+                    if (oldest.isReleased()) {
+                        continue;
+                    }
+
+                    try {
+                        oldest.future.get(remaining, TimeUnit.NANOSECONDS);
+                    } catch (ExecutionException | CancellationException e) {
+                        // Done is all that matters here. Failure is handled with the batch.
+                    } catch (TimeoutException | InterruptedException e) {
+                        heldUntilPolled.addFirst(oldest);
+                        throw e;
+                    }
+
+                    oldest.release();
+                }
+
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /** Releases a permit acquired for a message which did not start processing. */
+        void releaseUnused() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+
+        void holdUntilDone(Future<?> processing) {
+            if (permits == null) {
+                return;
+            }
+
+            Permit permit = new Permit(permits, processing);
+            held.add(permit);
+            heldUntilPolled.add(permit);
+
+            if (processing instanceof TransformableFuture) {
+                ((TransformableFuture<?>) processing).whenDoneOrCancelled(permit::release);
+            } else if (processing instanceof CompletableFuture) {
+                ((CompletableFuture<?>) processing).whenComplete(
+                        (result, failure) -> permit.release());
+            }
+        }
+
+        /**
+         * Releases permits of messages which are done. The rest timed out, but are still
+         * processing, so they keep their permits until they are done. Unless their future will
+         * tell us when that is, we wait on it in the background.
+         */
+        void releaseWhenDone() {
+            for (Permit permit : held) {
+                if (permit.future.isDone()) {
+                    permit.release();
+                } else if (!(permit.future instanceof CompletableFuture)) {
+                    permitReleaser.execute(permit::releaseOnceDone);
+                }
+            }
+        }
+    }
+
+    private static final class Permit {
+        final Semaphore permits;
+        final Future<?> future;
+        final AtomicBoolean released = new AtomicBoolean(false);
+
+        Permit(Semaphore permits, Future<?> future) {
+            this.permits = permits;
+            this.future = future;
+        }
+
+        boolean isReleased() {
+            return released.get();
+        }
+
+        /** Only releases once, however many times it is called. */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+
+        /** Waits for {@link #future} to be done, however long that takes, then releases. */
+        void releaseOnceDone() {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Done is all that matters here.
+            } catch (InterruptedException e) {
+                // Only if the releaser is shut down with the JVM, so the permit no longer matters.
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            release();
+        }
+    }
+
     /**
      * Simple struct for storing a message and its future processing result.
      */
@@ -155,11 +483,55 @@ public class AsyncBatchMessageProcessorRoute extends RouteBuilder {
         final Object originalMessage;
         final Message parsedMessage;
         final Future<Void> future;
+        final @Nullable CircuitBreaker.Permission permission;
+        final AtomicBoolean outcomeReported = new AtomicBoolean(false);
 
-        ProcessingMessage(Object originalMessage, Message parsedMessage, Future<Void> future) {
+        ProcessingMessage(Object originalMessage, Message parsedMessage, Future<Void> future,
+                @Nullable CircuitBreaker.Permission permission) {
             this.originalMessage = originalMessage;
             this.parsedMessage = parsedMessage;
             this.future = future;
+            this.permission = permission;
+        }
+
+        /**
+         * Reports the outcome through {@link #permission} as soon as {@link #future} completes, if it can
+         * tell us when that is. Otherwise it is reported once the batch is done.
+         */
+        void reportOutcomeWhenDone() {
+            if (permission == null) {
+                return;
+            }
+
+            if (future instanceof TransformableFuture) {
+                ((TransformableFuture<?>) future).whenDoneOrCancelled(this::reportDoneOutcome);
+            } else if (future instanceof CompletableFuture) {
+                ((CompletableFuture<?>) future).whenComplete(
+                        (result, failure) -> reportDoneOutcome());
+            }
+        }
+
+        /** Reports through {@link #permission}, unless an outcome was already reported. */
+        void reportOutcome(Consumer<CircuitBreaker.Permission> outcome) {
+            if (permission != null && outcomeReported.compareAndSet(false, true)) {
+                outcome.accept(permission);
+            }
+        }
+
+        private void reportDoneOutcome() {
+            try {
+                // Done, so this does not wait.
+                future.get(0, TimeUnit.NANOSECONDS);
+                reportOutcome(CircuitBreaker.Permission::onSuccess);
+            } catch (ExecutionException e) {
+                reportOutcome(CircuitBreaker.Permission::onFailure);
+            } catch (CancellationException e) {
+                reportOutcome(CircuitBreaker.Permission::onCancelled);
+            } catch (TimeoutException e) {
+                // Not actually done. Reported once the batch is done instead.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 }
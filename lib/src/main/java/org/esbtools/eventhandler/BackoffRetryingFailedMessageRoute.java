@@ -0,0 +1,338 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.apache.camel.Predicate;
+import org.apache.camel.builder.RouteBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries collections of {@link FailedMessage}s like {@link RetryingBatchFailedMessageRoute}, but
+ * schedules each message on its own exponential backoff instead of holding the exchange in a
+ * delay loop.
+ *
+ * <p>Exchanges sent to {@code fromUri} return as soon as their messages are scheduled. Once per
+ * {@code tick}, a timer collects the messages which are due, from however many batches they
+ * failed in, and reprocesses them together as one wave. Messages which fail again are scheduled
+ * with a longer delay, until they have been retried {@code maxRetryCount} times, after which they
+ * are sent to {@code deadLetterUri}. No thread waits out a delay; the only thread this route
+ * blocks is the timer's, while it waits on a wave for up to {@code processTimeout}.
+ *
+ * <p>The delay before retry attempt {@code n} is {@code initialDelay * 2^(n-1)}, up to
+ * {@code maxDelay}, less a random fraction of up to {@code jitter} of it, so that messages which
+ * failed together do not all retry together.
+ *
+ * <p>Scheduled retries are kept in memory only. Messages still waiting when the route stops are
+ * lost, as they would be in a delayed exchange.
+ */
+public class BackoffRetryingFailedMessageRoute extends RouteBuilder {
+    private final String fromUri;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final double jitter;
+    private final int maxRetryCount;
+    private final int maxWaveSize;
+    private final Duration tick;
+    private final Duration processTimeout;
+    private final String deadLetterUri;
+    private final EventHandlerMetrics metrics;
+    private final TimerWheel<ScheduledRetry> scheduledRetries;
+
+    private final int idCount = idCounter.getAndIncrement();
+    private final String routeId = "failedMessageBackoffRetryer-" + idCount;
+
+    private static final AtomicInteger idCounter = new AtomicInteger(0);
+
+    private static final int FIRST_ATTEMPT_NUMBER = 1;
+    private static final int WHEEL_SIZE = 512;
+    private static final double DEFAULT_JITTER = 0.5;
+
+    /**
+     * Retries due messages once per a quarter of {@code initialDelay} (but no more often than
+     * every 10 milliseconds nor less often than every second), in waves of any size, with up to
+     * half of each delay as jitter.
+     */
+    public BackoffRetryingFailedMessageRoute(String fromUri, Duration initialDelay,
+            Duration maxDelay, int maxRetryCount, Duration processTimeout, String deadLetterUri) {
+        this(fromUri, initialDelay, maxDelay, DEFAULT_JITTER, maxRetryCount, Integer.MAX_VALUE,
+                defaultTickFor(initialDelay), processTimeout, deadLetterUri,
+                EventHandlerMetrics.none());
+    }
+
+    /**
+     * @param jitter Fraction of each delay, between 0 and 1, which may randomly be taken off it.
+     * @param maxWaveSize Most messages to reprocess in one tick. Any more that are due wait for
+     *                    the next tick, ahead of messages which become due later.
+     * @param tick How often to check for due messages. Delays are rounded up to a whole tick.
+     * @param metrics Counts retries, their failures, and dead lettered messages, and records the
+     *                size of each wave, with the route id as their source.
+     */
+    public BackoffRetryingFailedMessageRoute(String fromUri, Duration initialDelay,
+            Duration maxDelay, double jitter, int maxRetryCount, int maxWaveSize, Duration tick,
+            Duration processTimeout, String deadLetterUri, EventHandlerMetrics metrics) {
+        if (initialDelay.isNegative() || maxDelay.compareTo(initialDelay) < 0) {
+            throw new IllegalArgumentException("Delays must not be negative, and maxDelay must " +
+                    "be at least initialDelay, but initialDelay was " + initialDelay +
+                    " and maxDelay was " + maxDelay);
+        }
+
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1, but was: " +
+                    jitter);
+        }
+
+        if (maxWaveSize < 1) {
+            throw new IllegalArgumentException("maxWaveSize must be at least 1, but was: " +
+                    maxWaveSize);
+        }
+
+        this.fromUri = fromUri;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.maxRetryCount = maxRetryCount;
+        this.maxWaveSize = maxWaveSize;
+        this.tick = Objects.requireNonNull(tick, "tick");
+        this.processTimeout = processTimeout;
+        this.deadLetterUri = deadLetterUri;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.scheduledRetries = new TimerWheel<>(tick, WHEEL_SIZE, System.nanoTime());
+    }
+
+    /**
+     * @return How many messages are waiting to be retried.
+     */
+    public int pendingRetries() {
+        return scheduledRetries.size();
+    }
+
+    @Override
+    public void configure() throws Exception {
+        from(fromUri)
+        .routeId(routeId)
+        .process(exchange -> {
+            Collection failures = exchange.getIn().getMandatoryBody(Collection.class);
+            List<FailedMessage> unretryable = new ArrayList<>();
+            long now = System.nanoTime();
+
+            for (Object failureAsObject : failures) {
+                if (!(failureAsObject instanceof FailedMessage)) {
+                    throw new IllegalArgumentException("Messages sent to " +
+                            BackoffRetryingFailedMessageRoute.class + " route should be " +
+                            "collections of FailedMessage elements, but got collection " +
+                            "of " + failureAsObject.getClass());
+                }
+
+                FailedMessage failure = (FailedMessage) failureAsObject;
+
+                if (!failure.parsedMessage().isPresent()) {
+                    // See RetryingBatchFailedMessageRoute: parsing again is usually fruitless.
+                    log.warn("Failed message had no parsed message. There is no message " +
+                            "to retry without trying to parse again, which is usually " +
+                            "fruitless. Sending to dead letter URI {}.", deadLetterUri);
+                    unretryable.add(failure);
+                    continue;
+                }
+
+                if (maxRetryCount < FIRST_ATTEMPT_NUMBER) {
+                    unretryable.add(failure);
+                    continue;
+                }
+
+                scheduledRetries.schedule(new ScheduledRetry(failure, FIRST_ATTEMPT_NUMBER),
+                        delayBefore(FIRST_ATTEMPT_NUMBER), now);
+            }
+
+            log.debug("Scheduled {} messages for retry on route {}",
+                    failures.size() - unretryable.size(), routeId);
+
+            exchange.getIn().setBody(unretryable);
+        })
+        .filter(exchangeHasFailures())
+        .process(exchange -> metrics.increment(routeId, EventHandlerMetrics.DEAD_LETTERED,
+                exchange.getIn().getBody(Collection.class).size()))
+        .to(deadLetterUri);
+
+        from("timer:" + routeId + "?period=" + tick.toMillis())
+        .routeId(routeId + "-waves")
+        .process(exchange -> {
+            List<ScheduledRetry> due = scheduledRetries.pollDue(System.nanoTime(), maxWaveSize);
+            List<FailedMessage> deadLetters = new ArrayList<>();
+
+            exchange.getIn().setBody(deadLetters);
+
+            if (due.isEmpty()) {
+                return;
+            }
+
+            log.debug("About to retry wave of {} messages on route {}", due.size(), routeId);
+
+            metrics.recordValue(routeId, EventHandlerMetrics.BATCH_SIZE, due.size());
+            metrics.increment(routeId, EventHandlerMetrics.RETRIES, due.size());
+
+            Map<ScheduledRetry, Future<Void>> reprocessingFutures =
+                    new LinkedHashMap<>(due.size());
+            List<ScheduledRetry> failedAgain = new ArrayList<>();
+
+            // Begin processing all due messages again in parallel.
+            for (ScheduledRetry retry : due) {
+                Message message = retry.message();
+
+                try {
+                    reprocessingFutures.put(retry, message.process());
+                } catch (Exception e) {
+                    log.error("Failed to reprocess message (retry attempt #" +
+                            retry.attempt + "): " + message, e);
+                    failedAgain.add(retry.failedWith(e));
+                }
+            }
+
+            // Wait for reprocessing to complete, all within the same timeout.
+            BatchAwait.Results<ScheduledRetry, Void> results =
+                    BatchAwait.awaitAll(reprocessingFutures, processTimeout);
+
+            for (Map.Entry<ScheduledRetry, Exception> retryToFailure
+                    : results.failed().entrySet()) {
+                ScheduledRetry retry = retryToFailure.getKey();
+                Exception e = retryToFailure.getValue();
+
+                if (e instanceof ExecutionException) {
+                    log.error("Failed to reprocess message (retry attempt #" + retry.attempt +
+                            "): " + retry.message(), e);
+                    failedAgain.add(retry.failedWith(e.getCause()));
+                } else {
+                    log.warn("Timed out reprocessing message (retry attempt #" + retry.attempt +
+                            "): " + retry.message(), e);
+                    failedAgain.add(retry.failedWith(e));
+                }
+            }
+
+            log.debug("Wave successfully reprocessed {}/{} messages on route {}",
+                    results.succeeded().size(), due.size(), routeId);
+
+            metrics.increment(routeId, EventHandlerMetrics.RETRY_FAILURES, failedAgain.size());
+
+            // Give new failures another shot later or dead letter them.
+            long now = System.nanoTime();
+
+            for (ScheduledRetry failure : failedAgain) {
+                if (failure.attempt >= maxRetryCount) {
+                    deadLetters.add(failure.failure);
+                    continue;
+                }
+
+                int nextAttempt = failure.attempt + 1;
+                scheduledRetries.schedule(new ScheduledRetry(failure.failure, nextAttempt),
+                        delayBefore(nextAttempt), now);
+            }
+        })
+        .filter(exchangeHasFailures())
+        .process(exchange -> metrics.increment(routeId, EventHandlerMetrics.DEAD_LETTERED,
+                exchange.getIn().getBody(Collection.class).size()))
+        .to(deadLetterUri);
+    }
+
+    Duration delayBefore(int attempt) {
+        return backoff(initialDelay, maxDelay, jitter, attempt);
+    }
+
+    /**
+     * Exponential backoff, capped at {@code maxDelay}, less up to {@code jitter} of it.
+     */
+    static Duration backoff(Duration initialDelay, Duration maxDelay, double jitter,
+            int attempt) {
+        int doublings = attempt - FIRST_ATTEMPT_NUMBER;
+        long initialNanos = initialDelay.toNanos();
+        long maxNanos = maxDelay.toNanos();
+        long delayNanos = doublings >= Long.SIZE - 1 || initialNanos > maxNanos >> doublings
+                ? maxNanos
+                : initialNanos << doublings;
+
+        double jitterFraction = jitter * ThreadLocalRandom.current().nextDouble();
+
+        return Duration.ofNanos(delayNanos - (long) (delayNanos * jitterFraction));
+    }
+
+    static Duration defaultTickFor(Duration initialDelay) {
+        long quarterMillis = initialDelay.toMillis() / 4;
+        return Duration.ofMillis(Math.max(10, Math.min(1000, quarterMillis)));
+    }
+
+    private static Predicate exchangeHasFailures() {
+        return exchange -> {
+            Collection failures = exchange.getIn().getBody(Collection.class);
+            return failures != null && !failures.isEmpty();
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffRetryingFailedMessageRoute{" +
+                "routeId='" + routeId + '\'' +
+                ", fromUri='" + fromUri + '\'' +
+                ", initialDelay=" + initialDelay +
+                ", maxDelay=" + maxDelay +
+                ", maxRetryCount=" + maxRetryCount +
+                ", pendingRetries=" + pendingRetries() +
+                '}';
+    }
+
+    private static final class ScheduledRetry {
+        private final FailedMessage failure;
+        private final int attempt;
+
+        private ScheduledRetry(FailedMessage failure, int attempt) {
+            this.failure = failure;
+            this.attempt = attempt;
+        }
+
+        Message message() {
+            return failure.parsedMessage().get();
+        }
+
+        /**
+         * Replaces the failure to retry with a newer one, keeping the history of failures.
+         */
+        ScheduledRetry failedWith(Throwable exception) {
+            RetryingBatchFailedMessageRoute.suppressPreviousFailureInNewException(
+                    failure, exception);
+            return new ScheduledRetry(
+                    new FailedMessage(failure.originalMessage(), message(), exception), attempt);
+        }
+
+        @Override
+        public String toString() {
+            return "ScheduledRetry{" +
+                    "failure=" + failure +
+                    ", attempt=" + attempt +
+                    '}';
+        }
+    }
+}
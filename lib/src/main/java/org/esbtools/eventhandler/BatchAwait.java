@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Waits for a batch of futures to complete, with a single deadline shared by the whole batch.
+ *
+ * <p>Waiting on each future in turn with its own timeout means a batch of N slow futures may take
+ * up to N times that timeout. Instead, {@link #awaitAll(Map, Duration)} never waits longer than
+ * the timeout in total. Futures completed by then are collected regardless of how long the others
+ * took. Only those still incomplete at the deadline fail, with a {@link TimeoutException}.
+ */
+public abstract class BatchAwait {
+    /**
+     * Waits up to {@code timeout} for all of the futures to complete, and returns their results.
+     *
+     * <p>If the calling thread is interrupted while waiting, futures not yet complete fail with
+     * the {@link InterruptedException}, and the thread's interrupt status is restored before
+     * returning.
+     *
+     * @param futuresByKey The futures to wait for, keyed by whatever the caller needs to make
+     *                     sense of their results. Results are keyed the same way, and iterate in
+     *                     the same order.
+     * @param timeout How long to wait for the whole batch.
+     */
+    public static <K, V> Results<K, V> awaitAll(
+            Map<K, ? extends Future<? extends V>> futuresByKey, Duration timeout) {
+        Map<K, V> succeeded = new LinkedHashMap<>(futuresByKey.size());
+        Map<K, Exception> failed = new LinkedHashMap<>();
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        InterruptedException interrupted = null;
+
+        for (Map.Entry<K, ? extends Future<? extends V>> keyToFuture : futuresByKey.entrySet()) {
+            K key = keyToFuture.getKey();
+            Future<? extends V> future = keyToFuture.getValue();
+
+            try {
+                if (interrupted != null && !future.isDone()) {
+                    failed.put(key, interrupted);
+                    continue;
+                }
+
+                // Once interrupted, don't wait any longer, but don't throw away what's done.
+                long remaining = interrupted != null
+                        ? 0
+                        : Math.max(0, deadline - System.nanoTime());
+
+                succeeded.put(key, future.get(remaining, TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                interrupted = e;
+                failed.put(key, e);
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                failed.put(key, e);
+            }
+        }
+
+        if (interrupted != null) {
+            Thread.currentThread().interrupt();
+        }
+
+        return new Results<>(succeeded, failed);
+    }
+
+    public static final class Results<K, V> {
+        private final Map<K, V> succeeded;
+        private final Map<K, Exception> failed;
+
+        Results(Map<K, V> succeeded, Map<K, Exception> failed) {
+            this.succeeded = Collections.unmodifiableMap(succeeded);
+            this.failed = Collections.unmodifiableMap(failed);
+        }
+
+        /**
+         * Results of futures which completed successfully before the deadline.
+         */
+        public Map<K, V> succeeded() {
+            return succeeded;
+        }
+
+        /**
+         * Futures which failed or did not complete before the deadline, and why. Exceptions are
+         * those thrown by {@link Future#get(long, TimeUnit)}: an {@link ExecutionException} if
+         * the future failed, a {@link TimeoutException} if it did not complete in time, a
+         * {@link CancellationException} if it was cancelled, or an {@link InterruptedException}
+         * if we were interrupted while waiting for it.
+         */
+        public Map<K, Exception> failed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "Results{" +
+                    "succeeded=" + succeeded +
+                    ", failed=" + failed +
+                    '}';
+        }
+    }
+}
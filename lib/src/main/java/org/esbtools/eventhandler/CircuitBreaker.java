@@ -0,0 +1,353 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Stops sending work to a downstream system which is mostly failing, so that it is not loaded
+ * further while it recovers, and so that we do not spend processing time on work which will
+ * almost certainly fail.
+ *
+ * <p>The breaker starts {@link State#CLOSED closed}, and remembers the outcomes of the last
+ * {@code windowSize} calls. Once at least {@code minimumCalls} of those failed or timed out at a
+ * combined rate of {@code failureRateThreshold} or more, it {@link State#OPEN opens}: callers
+ * are denied {@link #tryAcquirePermission() permission} for {@code openDuration}. After that it
+ * is {@link State#HALF_OPEN half open}, and lets {@code halfOpenProbes} calls through. If they all
+ * succeed, it closes again with a fresh window. If any fails, or they have not all reported
+ * within {@code probeTimeout} of the last one starting, it opens again.
+ *
+ * <p>Every call which is given a {@link Permission} should report its outcome through it. Outcomes
+ * only count toward the state which permitted the call: a call permitted while closed which
+ * finishes after the breaker opened, for example, is ignored rather than taken for a probe.
+ *
+ * <p>Use one breaker per downstream dependency. To key breakers by something about the work, such
+ * as the type of a message, see {@link #perKey(Function, Function)}.
+ */
+@ThreadSafe
+public class CircuitBreaker {
+    private final String name;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final Duration openDuration;
+    private final int halfOpenProbes;
+    private final Duration probeTimeout;
+    private final Clock clock;
+
+    /** Outcomes of the most recent calls, as a ring buffer. */
+    private final Outcome[] window;
+    private int windowStart = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private int timeouts = 0;
+
+    private State state = State.CLOSED;
+    /** Changes with every change of state, so permissions know if they are out of date. */
+    private long generation = 0;
+    private Instant openedAt = Instant.MIN;
+    private int probesStarted = 0;
+    private int probesSucceeded = 0;
+    private Instant lastProbeStartedAt = Instant.MIN;
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        /** Calls are permitted, and their outcomes counted. */
+        CLOSED,
+        /** Calls are denied until {@code openDuration} has passed. */
+        OPEN,
+        /** A limited number of probe calls are permitted to test for recovery. */
+        HALF_OPEN
+    }
+
+    private enum Outcome {
+        SUCCESS, FAILURE, TIMEOUT
+    }
+
+    /**
+     * Remembers the last 100 calls, opens after at least 20 of them at a failure rate of
+     * {@code failureRateThreshold}, and probes with 3 calls once {@code openDuration} passes.
+     */
+    public CircuitBreaker(String name, double failureRateThreshold, Duration openDuration) {
+        this(name, 100, 20, failureRateThreshold, openDuration, 3, Clock.systemUTC());
+    }
+
+    /**
+     * Like {@link #CircuitBreaker(String, int, int, double, Duration, int, Duration, Clock)},
+     * with a {@code probeTimeout} of {@code openDuration}.
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls,
+            double failureRateThreshold, Duration openDuration, int halfOpenProbes, Clock clock) {
+        this(name, windowSize, minimumCalls, failureRateThreshold, openDuration, halfOpenProbes,
+                openDuration, clock);
+    }
+
+    /**
+     * @param failureRateThreshold Fraction of calls, greater than 0 and at most 1, which must
+     *                             fail or time out for the breaker to open.
+     * @param probeTimeout How long after the last probe call starts to wait for all probes to
+     *                     report before giving up on them, as if they timed out. Otherwise a
+     *                     probe whose outcome is never reported would keep the breaker half open,
+     *                     denying every call, forever.
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls,
+            double failureRateThreshold, Duration openDuration, int halfOpenProbes,
+            Duration probeTimeout, Clock clock) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("windowSize and minimumCalls must be at least 1, " +
+                    "and minimumCalls must be at most windowSize, but windowSize was " +
+                    windowSize + " and minimumCalls was " + minimumCalls);
+        }
+
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("failureRateThreshold must be greater than 0 " +
+                    "and at most 1, but was: " + failureRateThreshold);
+        }
+
+        if (halfOpenProbes < 1) {
+            throw new IllegalArgumentException("halfOpenProbes must be at least 1, but was: " +
+                    halfOpenProbes);
+        }
+
+        this.name = Objects.requireNonNull(name, "name");
+        this.window = new Outcome[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = Objects.requireNonNull(openDuration, "openDuration");
+        this.halfOpenProbes = halfOpenProbes;
+        this.probeTimeout = Objects.requireNonNull(probeTimeout, "probeTimeout");
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    /**
+     * Creates breakers lazily, one per distinct key of the things they guard, and always returns
+     * the same breaker for equal keys. For example, to break per type of message:
+     *
+     * <pre>{@code
+     * CircuitBreaker.perKey(Object::getClass,
+     *         type -> new CircuitBreaker(type.getName(), 0.5, Duration.ofSeconds(30)))
+     * }</pre>
+     */
+    public static <T, K> Function<T, CircuitBreaker> perKey(Function<? super T, K> keyOf,
+            Function<? super K, CircuitBreaker> newBreaker) {
+        ConcurrentMap<K, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+        return t -> breakers.computeIfAbsent(keyOf.apply(t), newBreaker);
+    }
+
+    /**
+     * @return Permission to make a call now, through which its outcome should be reported, or null
+     * if no call may be made now.
+     */
+    public synchronized @Nullable Permission tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (clock.instant().isBefore(openedAt.plus(openDuration))) {
+                return null;
+            }
+
+            log.info("Circuit breaker {} is half open after {}. Probing with {} calls.",
+                    name, openDuration, halfOpenProbes);
+
+            state = State.HALF_OPEN;
+            generation++;
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= halfOpenProbes) {
+                if (clock.instant().isBefore(lastProbeStartedAt.plus(probeTimeout))) {
+                    return null;
+                }
+
+                log.warn("Circuit breaker {} is open again; {} of {} probe calls did not report " +
+                        "an outcome within {}.", name, probesStarted - probesSucceeded,
+                        probesStarted, probeTimeout);
+                open();
+                return null;
+            }
+
+            probesStarted++;
+            lastProbeStartedAt = clock.instant();
+        }
+
+        return new Permission(generation);
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return Fraction of calls in the current window which failed, not counting timeouts.
+     */
+    public synchronized double failureRate() {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+
+    /**
+     * @return Fraction of calls in the current window which timed out.
+     */
+    public synchronized double timeoutRate() {
+        return calls == 0 ? 0 : (double) timeouts / calls;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    private synchronized void onSuccess(Permission permission) {
+        if (permission.generation != generation) {
+            return;
+        }
+
+        if (state == State.HALF_OPEN) {
+            probesSucceeded++;
+
+            if (probesSucceeded >= halfOpenProbes) {
+                log.info("Circuit breaker {} is closed; {} probe calls succeeded.",
+                        name, probesSucceeded);
+                state = State.CLOSED;
+                generation++;
+                clearWindow();
+            }
+
+            return;
+        }
+
+        record(Outcome.SUCCESS);
+    }
+
+    private synchronized void onUnsuccessful(Permission permission, Outcome outcome) {
+        if (permission.generation != generation) {
+            return;
+        }
+
+        if (state == State.HALF_OPEN) {
+            log.warn("Circuit breaker {} is open again; a probe call {}.", name,
+                    outcome == Outcome.TIMEOUT ? "timed out" : "failed");
+            open();
+            return;
+        }
+
+        record(outcome);
+
+        if (state == State.CLOSED && calls >= minimumCalls &&
+                (double) (failures + timeouts) / calls >= failureRateThreshold) {
+            log.warn("Circuit breaker {} is open for {}; {} of the last {} calls failed and {} " +
+                    "timed out.", name, openDuration, failures, calls, timeouts);
+            open();
+        }
+    }
+
+    private synchronized void onCancelled(Permission permission) {
+        if (permission.generation == generation && state == State.HALF_OPEN) {
+            probesStarted--;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        generation++;
+        openedAt = clock.instant();
+        clearWindow();
+    }
+
+    private void record(Outcome outcome) {
+        if (calls == window.length) {
+            Outcome evicted = window[windowStart];
+            window[windowStart] = outcome;
+            windowStart = (windowStart + 1) % window.length;
+            count(evicted, -1);
+        } else {
+            window[(windowStart + calls) % window.length] = outcome;
+            calls++;
+        }
+
+        count(outcome, 1);
+    }
+
+    private void count(Outcome outcome, int delta) {
+        if (outcome == Outcome.FAILURE) {
+            failures += delta;
+        } else if (outcome == Outcome.TIMEOUT) {
+            timeouts += delta;
+        }
+    }
+
+    private void clearWindow() {
+        windowStart = 0;
+        calls = 0;
+        failures = 0;
+        timeouts = 0;
+    }
+
+    /**
+     * Permission for one call, given while the breaker was in some state. Its outcome is ignored
+     * if the breaker has since changed state.
+     */
+    public final class Permission {
+        private final long generation;
+
+        private Permission(long generation) {
+            this.generation = generation;
+        }
+
+        public void onSuccess() {
+            CircuitBreaker.this.onSuccess(this);
+        }
+
+        public void onFailure() {
+            onUnsuccessful(this, Outcome.FAILURE);
+        }
+
+        public void onTimeout() {
+            onUnsuccessful(this, Outcome.TIMEOUT);
+        }
+
+        /**
+         * The call was cancelled or interrupted on our side, so says nothing about the downstream
+         * system. Not counted; if the call was a probe, another call may probe instead.
+         */
+        public void onCancelled() {
+            CircuitBreaker.this.onCancelled(this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "name='" + name + '\'' +
+                ", state=" + state +
+                ", calls=" + calls +
+                ", failures=" + failures +
+                ", timeouts=" + timeouts +
+                '}';
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools for work done in the background of a repository, route, or requester. Their threads
+ * are daemons which time out after a minute idle, so whatever owns a pool has nothing to shut
+ * down, and an idle pool holds no threads.
+ */
+public abstract class DaemonThreadPools {
+    /**
+     * @param threadNamePrefix Threads are named with this followed by a count.
+     * @param maxThreads Once this many threads are busy, further tasks queue until one is free.
+     *                   With {@link Integer#MAX_VALUE}, tasks never queue.
+     */
+    public static ExecutorService newDaemonThreadPool(String threadNamePrefix, int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger(0);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable,
+                            threadNamePrefix + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+}
@@ -18,6 +18,7 @@
 
 package org.esbtools.eventhandler;
 
+import java.util.Optional;
 import java.util.concurrent.Future;
 
 /**
@@ -87,4 +88,22 @@ public interface DocumentEvent {
      * events can be merged first by calling {@link #couldMergeWith(DocumentEvent)}.
      */
     DocumentEvent merge(DocumentEvent event);
+
+    /**
+     * Optionally narrows which events this event needs to be compared with when optimizing, so
+     * that they can be found in an index instead of by comparing with every other event. See
+     * {@link DocumentEventOptimizer}.
+     *
+     * <p>If this event and another both have keys, and their keys are not equal, then neither
+     * event may {@link #isSupersededBy(DocumentEvent) supersede} or
+     * {@link #couldMergeWith(DocumentEvent) merge with} the other. The result of a
+     * {@link #merge(DocumentEvent) merge} should have the same key as the merged events. Events
+     * without a key are compared with every other event. Keys must implement {@code equals} and
+     * {@code hashCode}.
+     *
+     * <p>By default, events have no key.
+     */
+    default Optional<?> optimizationKey() {
+        return Optional.empty();
+    }
 }
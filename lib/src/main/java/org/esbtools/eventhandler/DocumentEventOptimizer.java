@@ -0,0 +1,315 @@
+/*
+ *  Copyright 2015 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.BiFunction;
+
+/**
+ * Optimizes document events down to the fewest events which still publish every change, by
+ * dropping events {@link DocumentEvent#isSupersededBy(DocumentEvent) superseded} by others and
+ * {@link DocumentEvent#merge(DocumentEvent) merging} events which could be merged. Events are
+ * optimized one at a time as they are {@link #add(DocumentEvent, Listener) added}, among the
+ * events already kept.
+ *
+ * <p>Comparing every new event with every kept event is quadratic. Events which provide an
+ * {@link DocumentEvent#optimizationKey() optimization key} are indexed by it, and a new event
+ * with a key is only compared with kept events with an equal key or without a key. Events
+ * without a key are compared with every kept event, as before. Either way, events are compared in
+ * the order they were kept, so results are the same as comparing with every event. Kept events
+ * are compared in place rather than copied, and dropping one takes constant time, so adding an
+ * event costs no more than its comparisons.
+ *
+ * <p>Typically used for events which already share an identity or lock, such as all events of
+ * one entity retrieved in a batch.
+ *
+ * @param <E> Type of events optimized, such as a repository specific subtype of
+ *            {@link DocumentEvent}.
+ */
+@NotThreadSafe
+public class DocumentEventOptimizer<E extends DocumentEvent> {
+    private final BiFunction<? super E, ? super E, ? extends E> merge;
+
+    /** Kept events, in the order they were kept. */
+    private final Map<Long, Kept<E>> keptInOrder = new LinkedHashMap<>();
+    private final Map<E, Kept<E>> keptByEvent = new IdentityHashMap<>();
+    /** Kept events with a key, by key, in the order they were kept. */
+    private final Map<Object, Map<Long, Kept<E>>> keptByKey = new HashMap<>();
+    /** Kept events without a key, in the order they were kept. */
+    private final Map<Long, Kept<E>> keptWithoutKey = new LinkedHashMap<>();
+    private long nextSequence = 0;
+
+    /**
+     * @param merge Merges the first event with the second. For example,
+     *              {@code DocumentEvent::merge}.
+     */
+    public DocumentEventOptimizer(BiFunction<? super E, ? super E, ? extends E> merge) {
+        this.merge = Objects.requireNonNull(merge, "merge");
+    }
+
+    /**
+     * Optimizes {@code event} among the events kept so far.
+     *
+     * <p>If {@code event} is superseded by a kept event, it is dropped. Otherwise, kept events it
+     * supersedes are dropped, and kept events it could merge with are merged with it (or with the
+     * result of a previous merge). The new event or final merger is then kept. {@code listener}
+     * is told of each event dropped along the way.
+     *
+     * @return The event now kept in place of {@code event}: either {@code event} itself or a
+     * merger. Empty if {@code event} was superseded.
+     */
+    public Optional<E> add(E event, Listener<? super E> listener) {
+        E newOrMerger = event;
+        boolean superseded = false;
+        List<Kept<E>> dropped = new ArrayList<>(1);
+
+        for (Iterator<Kept<E>> candidates = candidatesFor(keyOf(event)); candidates.hasNext();) {
+            Kept<E> previous = candidates.next();
+
+            if (newOrMerger.isSupersededBy(previous.event)) {
+                listener.superseded(newOrMerger, previous.event);
+                superseded = true;
+                break;
+            }
+
+            if (previous.event.isSupersededBy(newOrMerger)) {
+                dropped.add(previous);
+                listener.superseded(previous.event, newOrMerger);
+            } else if (newOrMerger.couldMergeWith(previous.event)) {
+                E merger = merge.apply(newOrMerger, previous.event);
+                dropped.add(previous);
+                listener.merged(previous.event, newOrMerger, merger);
+                newOrMerger = merger;
+            }
+        }
+
+        // Candidates are iterated in place, so they can only be removed once done. Each is only
+        // compared once, so nothing is compared with an event already dropped.
+        for (Kept<E> previous : dropped) {
+            remove(previous);
+        }
+
+        if (superseded) {
+            return Optional.empty();
+        }
+
+        keep(newOrMerger);
+
+        return Optional.of(newOrMerger);
+    }
+
+    /**
+     * @return {@code true} if adding {@code event} would drop or merge at least one event, kept
+     * or new. Changes nothing.
+     */
+    public boolean wouldOptimize(E event) {
+        for (Iterator<Kept<E>> candidates = candidatesFor(keyOf(event)); candidates.hasNext();) {
+            Kept<E> previous = candidates.next();
+
+            if (event.isSupersededBy(previous.event)
+                    || previous.event.isSupersededBy(event)
+                    || event.couldMergeWith(previous.event)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops keeping {@code event}, so later events are no longer optimized with it.
+     *
+     * @return {@code false} if {@code event} was not kept.
+     */
+    public boolean remove(E event) {
+        Kept<E> kept = keptByEvent.get(event);
+
+        if (kept == null) {
+            return false;
+        }
+
+        remove(kept);
+        return true;
+    }
+
+    /**
+     * @return Events kept so far, in the order they were kept.
+     */
+    public List<E> optimized() {
+        List<E> optimized = new ArrayList<>(keptInOrder.size());
+
+        for (Kept<E> kept : keptInOrder.values()) {
+            optimized.add(kept.event);
+        }
+
+        return optimized;
+    }
+
+    public int size() {
+        return keptInOrder.size();
+    }
+
+    public boolean isEmpty() {
+        return keptInOrder.isEmpty();
+    }
+
+    private void keep(E event) {
+        Kept<E> kept = new Kept<>(event, keyOf(event), nextSequence++);
+
+        keptInOrder.put(kept.sequence, kept);
+        keptByEvent.put(event, kept);
+
+        if (kept.key == null) {
+            keptWithoutKey.put(kept.sequence, kept);
+        } else {
+            keptByKey.computeIfAbsent(kept.key, k -> new LinkedHashMap<>(2))
+                    .put(kept.sequence, kept);
+        }
+    }
+
+    private void remove(Kept<E> kept) {
+        keptInOrder.remove(kept.sequence);
+        keptByEvent.remove(kept.event);
+
+        if (kept.key == null) {
+            keptWithoutKey.remove(kept.sequence);
+        } else {
+            Map<Long, Kept<E>> withKey = keptByKey.get(kept.key);
+            withKey.remove(kept.sequence);
+
+            if (withKey.isEmpty()) {
+                keptByKey.remove(kept.key);
+            }
+        }
+    }
+
+    /**
+     * @return Kept events which could be optimized with an event with {@code key}, in the order
+     * they were kept. Kept events must not change until done iterating.
+     */
+    private Iterator<Kept<E>> candidatesFor(@Nullable Object key) {
+        if (key == null) {
+            return keptInOrder.values().iterator();
+        }
+
+        Map<Long, Kept<E>> withKey = keptByKey.get(key);
+
+        if (withKey == null) {
+            return keptWithoutKey.values().iterator();
+        }
+
+        if (keptWithoutKey.isEmpty()) {
+            return withKey.values().iterator();
+        }
+
+        return new InKeptOrder<>(withKey.values().iterator(), keptWithoutKey.values().iterator());
+    }
+
+    private static @Nullable Object keyOf(DocumentEvent event) {
+        return event.optimizationKey().orElse(null);
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentEventOptimizer{" +
+                "optimized=" + optimized() +
+                '}';
+    }
+
+    /**
+     * Told of events dropped while optimizing, so that whatever backs them can be updated. Must
+     * not add or remove events of the optimizer it is listening to.
+     */
+    public interface Listener<E> {
+        /**
+         * {@code superseded} was dropped, because {@code survivor} includes its changes.
+         * Either may be new, kept, or the result of a merge.
+         */
+        void superseded(E superseded, E survivor);
+
+        /**
+         * {@code previous}, which was kept, and {@code newOrMerger} were both dropped in favor of
+         * {@code merger}.
+         */
+        void merged(E previous, E newOrMerger, E merger);
+    }
+
+    /** Merges two iterators of kept events, each in the order kept, into the order kept. */
+    private static final class InKeptOrder<E> implements Iterator<Kept<E>> {
+        private final Iterator<Kept<E>> first;
+        private final Iterator<Kept<E>> second;
+        private @Nullable Kept<E> nextOfFirst;
+        private @Nullable Kept<E> nextOfSecond;
+
+        InKeptOrder(Iterator<Kept<E>> first, Iterator<Kept<E>> second) {
+            this.first = first;
+            this.second = second;
+            this.nextOfFirst = first.hasNext() ? first.next() : null;
+            this.nextOfSecond = second.hasNext() ? second.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextOfFirst != null || nextOfSecond != null;
+        }
+
+        @Override
+        public Kept<E> next() {
+            Kept<E> next;
+
+            if (nextOfSecond == null
+                    || (nextOfFirst != null && nextOfFirst.sequence < nextOfSecond.sequence)) {
+                next = nextOfFirst;
+                nextOfFirst = first.hasNext() ? first.next() : null;
+            } else {
+                next = nextOfSecond;
+                nextOfSecond = second.hasNext() ? second.next() : null;
+            }
+
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            return next;
+        }
+    }
+
+    private static final class Kept<E> {
+        final E event;
+        final @Nullable Object key;
+        final long sequence;
+
+        Kept(E event, @Nullable Object key, long sequence) {
+            this.event = event;
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import java.time.Duration;
+
+/**
+ * Receives numbers about processing from routes and repositories, so that batch sizes, polling
+ * intervals, and timeouts can be tuned against real load.
+ *
+ * <p>Every metric is recorded for a {@code source}, such as a route id, under one of the names
+ * below. Implementations must be thread safe and should be cheap: they are called from processing
+ * threads, several times per batch. {@link JmxEventHandlerMetrics} exposes metrics over JMX, and
+ * {@link #none()} ignores them.
+ */
+public interface EventHandlerMetrics {
+    /** Value: how many items a poll retrieved or a route received. */
+    String BATCH_SIZE = "batchSize";
+    /** Duration: retrieving a batch from a repository. */
+    String RETRIEVAL = "retrieval";
+    /** Duration: waiting on all documents or document events of a batch to be looked up. */
+    String LOOKUP = "lookup";
+    /** Count: items whose lookup failed or timed out. */
+    String LOOKUP_FAILURES = "lookupFailures";
+    /** Duration: persisting document events created from notifications. */
+    String PERSIST = "persist";
+    /** Duration: publishing one document to the document endpoint. */
+    String PUBLISH = "publish";
+    /** Count: documents published. */
+    String PUBLISHED = "published";
+    /** Count: documents which failed to publish. */
+    String PUBLISH_FAILURES = "publishFailures";
+    /** Duration: marking items processed, published, or failed in a repository. */
+    String MARK = "mark";
+    /** Duration: processing a whole batch, from retrieval through marking. */
+    String POLL_CYCLE = "pollCycle";
+    /** Duration: waiting on all messages of a batch to process. */
+    String PROCESS = "process";
+    /** Count: messages which were processed successfully. */
+    String PROCESSED = "processed";
+    /** Count: messages which failed or timed out processing. */
+    String PROCESS_FAILURES = "processFailures";
+    /** Count: messages not processed because their circuit breaker was open. */
+    String SHORT_CIRCUITED = "shortCircuited";
+    /** Count: failed messages retried. */
+    String RETRIES = "retries";
+    /** Count: retried messages which failed again. */
+    String RETRY_FAILURES = "retryFailures";
+    /** Count: messages given up on and sent to a dead letter endpoint. */
+    String DEAD_LETTERED = "deadLettered";
+    /** Count: document events superseded by another event. */
+    String SUPERSEDED = "superseded";
+    /** Count: document events merged into another event. */
+    String MERGED = "merged";
+    /** Count: queued requests not sent, because an equivalent request in the same batch was. */
+    String DEDUPLICATED = "deduplicated";
+    /** Duration: deleting one chunk of old entities. */
+    String DELETE = "delete";
+    /** Count: old entities deleted. */
+    String DELETED = "deleted";
+    /** Duration: moving one chunk of processed entities into their archive. */
+    String ARCHIVE = "archive";
+    /** Count: processed entities moved into their archive. */
+    String ARCHIVED = "archived";
+
+    void increment(String source, String metric, long delta);
+
+    void recordValue(String source, String metric, long value);
+
+    void recordDuration(String source, String metric, Duration duration);
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}.
+     */
+    default void recordDurationSince(String source, String metric, long startNanos) {
+        recordDuration(source, metric, Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Metrics which are simply ignored. Used when none are provided.
+     */
+    static EventHandlerMetrics none() {
+        return NoEventHandlerMetrics.INSTANCE;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ *  Copyright 2015 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link DocumentEventRepository} which keeps document events in memory, for deployments which
+ * run on a single node and do not need events to survive a restart. There is no remote I/O.
+ *
+ * <p>Events are optimized as they are added, rather than as they are retrieved. Events are
+ * indexed by identity, as determined by {@code identityOf}: events which share an identity are
+ * the only ones which may supersede or merge with each other, just like events sharing a lock in
+ * lightblue. A new event is optimized only with waiting events of its identity, by a
+ * {@link DocumentEventOptimizer}: it is dropped if superseded, replaces waiting events it
+ * supersedes, and merges with waiting events it could merge with. Coalesced events keep the highest priority and earliest position of the events they
+ * replaced, so an identity which changes constantly is not starved.
+ *
+ * <p>Waiting events are kept sorted by priority (highest first, per {@code priorityOf}) and then
+ * by when they were added, so retrieval takes events off the top without scanning. Only one event
+ * per identity is retrieved at a time: while an event is being processed, later events of its
+ * identity wait, and become retrievable again once it is marked published or failed, or its
+ * transaction times out. This keeps documents of the same entity from being published out of
+ * order by concurrent batches.
+ *
+ * <p>At most {@code capacity} events may be waiting or processing. Once full,
+ * {@link #addNewDocumentEvents(Collection)} blocks until events are published or failed, failing
+ * if there is still no room after {@code maxWaitForCapacity}. Events added before that failure
+ * are kept. Events which supersede or merge with a waiting event do not need room.
+ *
+ * <p>Failed events are dropped. Events whose transaction times out are retrievable again.
+ */
+@ThreadSafe
+public class InMemoryDocumentEventRepository implements DocumentEventRepository {
+    private final Function<? super DocumentEvent, ?> identityOf;
+    private final ToIntFunction<? super DocumentEvent> priorityOf;
+    private final int capacity;
+    private final long maxWaitForCapacityNanos;
+    private final Duration processingTimeout;
+    private final Clock clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    /** Events which are retrievable. Guarded by {@link #lock}. */
+    private final NavigableSet<Entry> waiting = new TreeSet<>(Entry.PRIORITY_ORDER);
+    /** Guarded by {@link #lock}. */
+    private final Map<Object, SharedIdentity> identities = new HashMap<>();
+    /** Guarded by {@link #lock}. */
+    private final Map<DocumentEvent, Entry> processing = new IdentityHashMap<>();
+    /**
+     * Processing entries in the order they were retrieved, which is the order they time out.
+     * Entries no longer processing are removed lazily. Guarded by {@link #lock}.
+     */
+    private final Deque<Entry> retrievalOrder = new ArrayDeque<>();
+    /** Guarded by {@link #lock}. */
+    private int size = 0;
+    /** Guarded by {@link #lock}. */
+    private long nextSequence = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(InMemoryDocumentEventRepository.class);
+
+    /**
+     * Waits up to a minute for capacity, and times out transactions after 10 minutes.
+     */
+    public InMemoryDocumentEventRepository(Function<? super DocumentEvent, ?> identityOf,
+            ToIntFunction<? super DocumentEvent> priorityOf, int capacity) {
+        this(identityOf, priorityOf, capacity, Duration.ofMinutes(1), Duration.ofMinutes(10),
+                Clock.systemUTC());
+    }
+
+    /**
+     * @param identityOf Events which could supersede or merge with each other must have equal
+     *                   identities. Identities must implement {@code equals} and
+     *                   {@code hashCode}.
+     * @param priorityOf Events with higher priority are retrieved first.
+     * @param capacity Maximum events waiting or processing at once.
+     * @param maxWaitForCapacity How long {@link #addNewDocumentEvents(Collection)} waits for room
+     *                           before failing.
+     * @param processingTimeout How long a retrieved event's transaction lasts before the event
+     *                          is retrievable again.
+     */
+    public InMemoryDocumentEventRepository(Function<? super DocumentEvent, ?> identityOf,
+            ToIntFunction<? super DocumentEvent> priorityOf, int capacity,
+            Duration maxWaitForCapacity, Duration processingTimeout, Clock clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, but was: " +
+                    capacity);
+        }
+
+        this.identityOf = Objects.requireNonNull(identityOf, "identityOf");
+        this.priorityOf = Objects.requireNonNull(priorityOf, "priorityOf");
+        this.capacity = capacity;
+        this.maxWaitForCapacityNanos = maxWaitForCapacity.toNanos();
+        this.processingTimeout = Objects.requireNonNull(processingTimeout, "processingTimeout");
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    @Override
+    public void addNewDocumentEvents(Collection<? extends DocumentEvent> documentEvents)
+            throws Exception {
+        long deadline = System.nanoTime() + maxWaitForCapacityNanos;
+
+        lock.lockInterruptibly();
+        try {
+            for (DocumentEvent event : documentEvents) {
+                Object identity = Objects.requireNonNull(identityOf.apply(event), "identity");
+
+                while (!tryAdd(event, identity)) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0) {
+                        throw new EventHandlerException("Repository at capacity of " + capacity +
+                                " events. Timed out waiting for room to add: " + event);
+                    }
+
+                    notFull.awaitNanos(remaining);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<? extends DocumentEvent> retrievePriorityDocumentEventsUpTo(int maxEvents)
+            throws Exception {
+        lock.lock();
+        try {
+            expireTransactions();
+
+            List<DocumentEvent> retrieved = new ArrayList<>(Math.min(maxEvents, waiting.size()));
+            Instant now = clock.instant();
+
+            while (retrieved.size() < maxEvents && !waiting.isEmpty()) {
+                Entry entry = waiting.pollFirst();
+                SharedIdentity shared = identities.get(entry.identity);
+
+                shared.waiting.remove(entry.event);
+                shared.optimizer.remove(entry.event);
+                shared.processing = entry;
+                // Later events of this identity wait until this one is done. Removed one by one,
+                // since removeAll may scan shared.waiting's values view for every entry waiting.
+                for (Entry later : shared.waiting.values()) {
+                    waiting.remove(later);
+                }
+
+                entry.retrieved = now;
+                processing.put(entry.event, entry);
+                retrievalOrder.add(entry);
+                retrieved.add(entry.event);
+            }
+
+            return retrieved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void ensureTransactionActive(DocumentEvent event) throws Exception {
+        lock.lock();
+        try {
+            expireTransactions();
+
+            if (!processing.containsKey(event)) {
+                throw new EventHandlerException("Document event is not being processed. It " +
+                        "was never retrieved, is already done, or its transaction timed out: " +
+                        event);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void markDocumentEventsPublishedOrFailed(Collection<? extends DocumentEvent> events,
+            Collection<FailedDocumentEvent> failures) throws Exception {
+        lock.lock();
+        try {
+            for (DocumentEvent event : events) {
+                finishProcessing(event);
+            }
+
+            for (FailedDocumentEvent failure : failures) {
+                finishProcessing(failure.documentEvent());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return How many events are waiting or processing.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Optimizes {@code event} among waiting events of the same identity and adds the result, if
+     * there is room for it.
+     *
+     * @return {@code false} if the repository is full and nothing was changed.
+     */
+    private boolean tryAdd(DocumentEvent event, Object identity) {
+        SharedIdentity shared = identities.get(identity);
+
+        if (shared == null) {
+            if (size >= capacity) {
+                return false;
+            }
+
+            shared = new SharedIdentity();
+            identities.put(identity, shared);
+        }
+
+        // Replacing at least one waiting event needs no room. Check before changing anything.
+        if (size >= capacity && !shared.optimizer.wouldOptimize(event)) {
+            return false;
+        }
+
+        add(event, identity, shared, priorityOf.applyAsInt(event), nextSequence++);
+
+        return true;
+    }
+
+    /**
+     * Optimizes {@code event} among waiting events of its identity, and makes the result
+     * retrievable unless another event of the identity is processing.
+     */
+    private void add(DocumentEvent event, Object identity, SharedIdentity shared, int priority,
+            long sequence) {
+        Coalescing coalescing = new Coalescing(shared, priority, sequence);
+        Optional<DocumentEvent> kept = shared.optimizer.add(event, coalescing);
+
+        if (!kept.isPresent()) {
+            return;
+        }
+
+        Entry entry = new Entry(kept.get(), identity, coalescing.priority, coalescing.sequence);
+        shared.waiting.put(entry.event, entry);
+        size++;
+
+        if (shared.processing == null) {
+            waiting.add(entry);
+        }
+    }
+
+    private void finishProcessing(DocumentEvent event) {
+        Entry entry = processing.remove(event);
+
+        if (entry == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Document event marked published or failed was not being processed. " +
+                        "Its transaction may have timed out: {}", event);
+            }
+            return;
+        }
+
+        size--;
+        release(entry);
+        notFull.signalAll();
+    }
+
+    /**
+     * Lets waiting events of {@code entry}'s identity be retrieved, now that it is no longer
+     * processing.
+     */
+    private void release(Entry entry) {
+        SharedIdentity shared = identities.get(entry.identity);
+        shared.processing = null;
+
+        if (shared.waiting.isEmpty()) {
+            identities.remove(entry.identity);
+        } else {
+            waiting.addAll(shared.waiting.values());
+        }
+    }
+
+    private void expireTransactions() {
+        Instant expiredIfRetrievedBefore = clock.instant().minus(processingTimeout);
+
+        while (!retrievalOrder.isEmpty()) {
+            Entry oldest = retrievalOrder.peekFirst();
+
+            if (processing.get(oldest.event) != oldest) {
+                retrievalOrder.pollFirst();
+                continue;
+            }
+
+            if (!oldest.retrieved.isBefore(expiredIfRetrievedBefore)) {
+                return;
+            }
+
+            log.warn("Document event transaction timed out after {}. Event will be retrieved " +
+                    "again: {}", processingTimeout, oldest.event);
+
+            retrievalOrder.pollFirst();
+            processing.remove(oldest.event);
+            size--;
+
+            SharedIdentity shared = identities.get(oldest.identity);
+            shared.processing = null;
+            // Optimize with events of the identity which were added meanwhile.
+            add(oldest.event, oldest.identity, shared, oldest.priority, oldest.sequence);
+            release(oldest);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryDocumentEventRepository{" +
+                "capacity=" + capacity +
+                ", processingTimeout=" + processingTimeout +
+                ", size=" + size() +
+                '}';
+    }
+
+    /** Events of one identity. Guarded by {@link #lock}. */
+    private static final class SharedIdentity {
+        final DocumentEventOptimizer<DocumentEvent> optimizer =
+                new DocumentEventOptimizer<>(DocumentEvent::merge);
+        final Map<DocumentEvent, Entry> waiting = new IdentityHashMap<>(1);
+        @Nullable Entry processing;
+    }
+
+    /**
+     * Removes waiting entries replaced by an event being added, which takes on their highest
+     * priority and earliest position. Guarded by {@link #lock}.
+     */
+    private final class Coalescing implements DocumentEventOptimizer.Listener<DocumentEvent> {
+        final SharedIdentity shared;
+        int priority;
+        long sequence;
+
+        Coalescing(SharedIdentity shared, int priority, long sequence) {
+            this.shared = shared;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void superseded(DocumentEvent superseded, DocumentEvent survivor) {
+            if (log.isDebugEnabled()) {
+                log.debug("Event {} superseded by event {}", superseded, survivor);
+            }
+
+            replaced(superseded);
+        }
+
+        @Override
+        public void merged(DocumentEvent previous, DocumentEvent newOrMerger,
+                DocumentEvent merger) {
+            if (log.isDebugEnabled()) {
+                log.debug("Events {} and {} merged into {}", previous, newOrMerger, merger);
+            }
+
+            replaced(previous);
+            priority = Math.max(priority, priorityOf.applyAsInt(merger));
+        }
+
+        /**
+         * Does nothing if {@code event} was not waiting, but is the new event or a merger.
+         */
+        private void replaced(DocumentEvent event) {
+            Entry previous = shared.waiting.remove(event);
+
+            if (previous == null) {
+                return;
+            }
+
+            waiting.remove(previous);
+            size--;
+            priority = Math.max(priority, previous.priority);
+            sequence = Math.min(sequence, previous.sequence);
+        }
+    }
+
+    private static final class Entry {
+        static final Comparator<Entry> PRIORITY_ORDER = Comparator
+                .comparingInt((Entry entry) -> entry.priority).reversed()
+                .thenComparingLong(entry -> entry.sequence);
+
+        final DocumentEvent event;
+        final Object identity;
+        final int priority;
+        /** Unique, so no two entries are equal in {@link #PRIORITY_ORDER}. */
+        final long sequence;
+        @Nullable Instant retrieved;
+
+        Entry(DocumentEvent event, Object identity, int priority, long sequence) {
+            this.event = event;
+            this.identity = identity;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exposes metrics as MBeans, one per source and metric, so they can be watched with any JMX
+ * client (such as jconsole) without any other service.
+ *
+ * <p>MBeans are registered the first time a metric is recorded, under
+ * {@code <domain>:type=EventHandlerMetrics,source=<source>,name=<metric>}. Counts are exposed as
+ * {@link CounterMXBean}s. Values and durations are exposed as {@link DistributionMXBean}s, with
+ * durations in milliseconds.
+ *
+ * <p>{@link #close() Closing} unregisters all MBeans registered by this instance.
+ */
+@ThreadSafe
+public class JmxEventHandlerMetrics implements EventHandlerMetrics, AutoCloseable {
+    public static final String DEFAULT_DOMAIN = "org.esbtools.eventhandler";
+
+    private final MBeanServer mBeanServer;
+    private final String domain;
+    private final ConcurrentMap<ObjectName, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ObjectName, Distribution> distributions = new ConcurrentHashMap<>();
+
+    private static final Logger log = LoggerFactory.getLogger(JmxEventHandlerMetrics.class);
+
+    /**
+     * Registers MBeans with the platform MBean server, under {@link #DEFAULT_DOMAIN}.
+     */
+    public JmxEventHandlerMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+    }
+
+    /**
+     * @param domain Distinguishes MBeans of this instance from those of any others registered
+     *               with the same server.
+     */
+    public JmxEventHandlerMetrics(MBeanServer mBeanServer, String domain) {
+        this.mBeanServer = Objects.requireNonNull(mBeanServer, "mBeanServer");
+        this.domain = Objects.requireNonNull(domain, "domain");
+    }
+
+    @Override
+    public void increment(String source, String metric, long delta) {
+        counters.computeIfAbsent(objectName(source, metric), this::register).add(delta);
+    }
+
+    @Override
+    public void recordValue(String source, String metric, long value) {
+        distributions.computeIfAbsent(objectName(source, metric),
+                name -> register(name, "count")).record(value);
+    }
+
+    @Override
+    public void recordDuration(String source, String metric, Duration duration) {
+        distributions.computeIfAbsent(objectName(source, metric),
+                name -> register(name, "milliseconds")).record(duration.toMillis());
+    }
+
+    /**
+     * Unregisters all MBeans registered by this instance.
+     */
+    @Override
+    public void close() {
+        for (ObjectName name : counters.keySet()) {
+            unregister(name);
+        }
+
+        for (ObjectName name : distributions.keySet()) {
+            unregister(name);
+        }
+
+        counters.clear();
+        distributions.clear();
+    }
+
+    private ObjectName objectName(String source, String metric) {
+        try {
+            return new ObjectName(domain + ":type=EventHandlerMetrics" +
+                    ",source=" + ObjectName.quote(source) +
+                    ",name=" + ObjectName.quote(metric));
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Cannot expose metric over JMX. Source was <" +
+                    source + ">, metric was <" + metric + ">, domain was <" + domain + ">.", e);
+        }
+    }
+
+    private Counter register(ObjectName name) {
+        Counter counter = new Counter();
+        tryRegister(counter, name);
+        return counter;
+    }
+
+    private Distribution register(ObjectName name, String unit) {
+        Distribution distribution = new Distribution(unit);
+        tryRegister(distribution, name);
+        return distribution;
+    }
+
+    /**
+     * Metrics are still recorded if they cannot be registered, they just can't be seen. Failing
+     * processing over metrics would be worse.
+     */
+    private void tryRegister(Object mBean, ObjectName name) {
+        try {
+            mBeanServer.registerMBean(mBean, name);
+        } catch (JMException e) {
+            log.warn("Failed to register metric MBean " + name + ". Metric will not be exposed.",
+                    e);
+        }
+    }
+
+    private void unregister(ObjectName name) {
+        try {
+            mBeanServer.unregisterMBean(name);
+        } catch (JMException e) {
+            log.debug("Failed to unregister metric MBean " + name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JmxEventHandlerMetrics{" +
+                "domain='" + domain + '\'' +
+                ", counters=" + counters.size() +
+                ", distributions=" + distributions.size() +
+                '}';
+    }
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface DistributionMXBean {
+        /** How many values were recorded. */
+        long getCount();
+
+        long getTotal();
+
+        long getMin();
+
+        long getMax();
+
+        double getMean();
+
+        /** The most recently recorded value. */
+        long getLast();
+
+        String getUnit();
+    }
+
+    static final class Counter implements CounterMXBean {
+        private final AtomicLong count = new AtomicLong();
+
+        void add(long delta) {
+            count.addAndGet(delta);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    static final class Distribution implements DistributionMXBean {
+        private final String unit;
+
+        private long count;
+        private long total;
+        private long min;
+        private long max;
+        private long last;
+
+        Distribution(String unit) {
+            this.unit = unit;
+        }
+
+        synchronized void record(long value) {
+            if (count == 0 || value < min) {
+                min = value;
+            }
+
+            if (count == 0 || value > max) {
+                max = value;
+            }
+
+            count++;
+            total += value;
+            last = value;
+        }
+
+        @Override
+        public synchronized long getCount() {
+            return count;
+        }
+
+        @Override
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        @Override
+        public synchronized long getMin() {
+            return min;
+        }
+
+        @Override
+        public synchronized long getMax() {
+            return max;
+        }
+
+        @Override
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        @Override
+        public synchronized long getLast() {
+            return last;
+        }
+
+        @Override
+        public String getUnit() {
+            return unit;
+        }
+    }
+}
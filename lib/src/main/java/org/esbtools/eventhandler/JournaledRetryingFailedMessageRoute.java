@@ -0,0 +1,358 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.apache.camel.Predicate;
+import org.apache.camel.builder.RouteBuilder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries collections of {@link FailedMessage}s with exponential backoff like
+ * {@link BackoffRetryingFailedMessageRoute}, but keeps failures waiting to be retried in a
+ * {@link MappedRetryJournal} instead of in memory. Retries survive restarts, and a growing backlog
+ * of them grows the journal's files rather than the heap.
+ *
+ * <p>Only original message bodies and attempt numbers are journaled. Each retry parses the body
+ * again with {@code messageFactory}, and dead lettered messages carry only the exception of their
+ * last attempt. Failures without a parsed message are dead lettered without being journaled, as
+ * in {@link RetryingBatchFailedMessageRoute}.
+ *
+ * <p>Journaled failures are only completed once they have succeeded or been sent to
+ * {@code deadLetterUri}, so if the process dies in between, they are retried again after a
+ * restart. If a wave fails partway, including failing to send its dead letters, its failures
+ * which were not yet rescheduled or completed are put back in the journal as they were, to be
+ * retried with the next wave.
+ */
+public class JournaledRetryingFailedMessageRoute extends RouteBuilder {
+    private final String fromUri;
+    private final MappedRetryJournal journal;
+    private final MessageFactory messageFactory;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final double jitter;
+    private final int maxRetryCount;
+    private final int maxWaveSize;
+    private final Duration tick;
+    private final Duration processTimeout;
+    private final String deadLetterUri;
+    private final EventHandlerMetrics metrics;
+
+    private final int idCount = idCounter.getAndIncrement();
+    private final String routeId = "failedMessageJournaledRetryer-" + idCount;
+
+    private static final AtomicInteger idCounter = new AtomicInteger(0);
+
+    private static final int FIRST_ATTEMPT_NUMBER = 1;
+    private static final double DEFAULT_JITTER = 0.5;
+    private static final String DEAD_LETTERED_ENTRIES_PROPERTY = "deadLetteredJournalEntries";
+    private static final String POLLED_ENTRIES_PROPERTY = "polledJournalEntries";
+
+    /**
+     * Uses the same defaults as
+     * {@link BackoffRetryingFailedMessageRoute#BackoffRetryingFailedMessageRoute(String, Duration,
+     * Duration, int, Duration, String)}.
+     */
+    public JournaledRetryingFailedMessageRoute(String fromUri, MappedRetryJournal journal,
+            MessageFactory messageFactory, Duration initialDelay, Duration maxDelay,
+            int maxRetryCount, Duration processTimeout, String deadLetterUri) {
+        this(fromUri, journal, messageFactory, initialDelay, maxDelay, DEFAULT_JITTER,
+                maxRetryCount, Integer.MAX_VALUE,
+                BackoffRetryingFailedMessageRoute.defaultTickFor(initialDelay), processTimeout,
+                deadLetterUri, EventHandlerMetrics.none());
+    }
+
+    /**
+     * @param journal Should not be shared with other routes. Recovered failures are retried as
+     *                soon as the route starts, if they are due.
+     * @param messageFactory Parses journaled original message bodies to retry them.
+     * @see BackoffRetryingFailedMessageRoute#BackoffRetryingFailedMessageRoute(String, Duration,
+     * Duration, double, int, int, Duration, Duration, String, EventHandlerMetrics)
+     */
+    public JournaledRetryingFailedMessageRoute(String fromUri, MappedRetryJournal journal,
+            MessageFactory messageFactory, Duration initialDelay, Duration maxDelay,
+            double jitter, int maxRetryCount, int maxWaveSize, Duration tick,
+            Duration processTimeout, String deadLetterUri, EventHandlerMetrics metrics) {
+        if (initialDelay.isNegative() || maxDelay.compareTo(initialDelay) < 0) {
+            throw new IllegalArgumentException("Delays must not be negative, and maxDelay must " +
+                    "be at least initialDelay, but initialDelay was " + initialDelay +
+                    " and maxDelay was " + maxDelay);
+        }
+
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1, but was: " +
+                    jitter);
+        }
+
+        if (maxWaveSize < 1) {
+            throw new IllegalArgumentException("maxWaveSize must be at least 1, but was: " +
+                    maxWaveSize);
+        }
+
+        this.fromUri = fromUri;
+        this.journal = Objects.requireNonNull(journal, "journal");
+        this.messageFactory = Objects.requireNonNull(messageFactory, "messageFactory");
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.maxRetryCount = maxRetryCount;
+        this.maxWaveSize = maxWaveSize;
+        this.tick = Objects.requireNonNull(tick, "tick");
+        this.processTimeout = processTimeout;
+        this.deadLetterUri = deadLetterUri;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+    }
+
+    @Override
+    public void configure() throws Exception {
+        from(fromUri)
+        .routeId(routeId)
+        .process(exchange -> {
+            Collection failures = exchange.getIn().getMandatoryBody(Collection.class);
+            List<FailedMessage> unretryable = new ArrayList<>();
+            Instant now = Instant.now();
+
+            for (Object failureAsObject : failures) {
+                if (!(failureAsObject instanceof FailedMessage)) {
+                    throw new IllegalArgumentException("Messages sent to " +
+                            JournaledRetryingFailedMessageRoute.class + " route should be " +
+                            "collections of FailedMessage elements, but got collection " +
+                            "of " + failureAsObject.getClass());
+                }
+
+                FailedMessage failure = (FailedMessage) failureAsObject;
+
+                if (!failure.parsedMessage().isPresent() || maxRetryCount < FIRST_ATTEMPT_NUMBER) {
+                    unretryable.add(failure);
+                    continue;
+                }
+
+                try {
+                    journal.append(failure.originalMessage(), FIRST_ATTEMPT_NUMBER,
+                            now.plus(delayBefore(FIRST_ATTEMPT_NUMBER)));
+                } catch (IOException e) {
+                    log.error("Failed to journal message for retry. Sending to dead letter " +
+                            "URI " + deadLetterUri + ". Message was: " +
+                            failure.originalMessage(), e);
+                    unretryable.add(failure);
+                }
+            }
+
+            // Accepted failures are not in the exchange any more; they must not be lost.
+            journal.flush();
+
+            log.debug("Journaled {} messages for retry on route {}",
+                    failures.size() - unretryable.size(), routeId);
+
+            exchange.getIn().setBody(unretryable);
+        })
+        .filter(exchangeHasFailures())
+        .process(exchange -> metrics.increment(routeId, EventHandlerMetrics.DEAD_LETTERED,
+                exchange.getIn().getBody(Collection.class).size()))
+        .to(deadLetterUri);
+
+        from("timer:" + routeId + "?period=" + tick.toMillis())
+        .routeId(routeId + "-waves")
+        .doTry()
+        .process(exchange -> {
+            List<MappedRetryJournal.Entry> due = journal.pollDue(Instant.now(), maxWaveSize);
+            List<FailedMessage> deadLetters = new ArrayList<>();
+            List<MappedRetryJournal.Entry> deadLetteredEntries = new ArrayList<>();
+
+            exchange.setProperty(POLLED_ENTRIES_PROPERTY, due);
+            exchange.getIn().setBody(deadLetters);
+            exchange.setProperty(DEAD_LETTERED_ENTRIES_PROPERTY, deadLetteredEntries);
+
+            if (due.isEmpty()) {
+                return;
+            }
+
+            log.debug("About to retry wave of {} journaled messages on route {}",
+                    due.size(), routeId);
+
+            metrics.recordValue(routeId, EventHandlerMetrics.BATCH_SIZE, due.size());
+            metrics.increment(routeId, EventHandlerMetrics.RETRIES, due.size());
+
+            Map<JournaledRetry, Future<Void>> reprocessingFutures =
+                    new LinkedHashMap<>(due.size());
+            Map<JournaledRetry, Throwable> failedAgain = new LinkedHashMap<>();
+
+            // Begin processing all due messages again in parallel.
+            for (MappedRetryJournal.Entry entry : due) {
+                final Object body;
+
+                try {
+                    body = entry.body();
+                } catch (IOException e) {
+                    log.error("Failed to read journaled message. Sending to dead letter URI " +
+                            deadLetterUri + ". Journal entry was: " + entry, e);
+                    deadLetters.add(new FailedMessage(entry.toString(), e));
+                    deadLetteredEntries.add(entry);
+                    continue;
+                }
+
+                final Message message;
+
+                try {
+                    message = messageFactory.getMessageForBody(body);
+                } catch (Exception e) {
+                    // Same as any failure without a parsed message: retrying is usually fruitless.
+                    log.error("Failure parsing journaled message. Sending to dead letter URI " +
+                            deadLetterUri + ". Body was: " + body, e);
+                    deadLetters.add(new FailedMessage(body, e));
+                    deadLetteredEntries.add(entry);
+                    continue;
+                }
+
+                JournaledRetry retry = new JournaledRetry(entry, body, message);
+
+                try {
+                    reprocessingFutures.put(retry, message.process());
+                } catch (Exception e) {
+                    log.error("Failed to reprocess message (retry attempt #" +
+                            entry.attempt() + "): " + message, e);
+                    failedAgain.put(retry, e);
+                }
+            }
+
+            // Wait for reprocessing to complete, all within the same timeout.
+            BatchAwait.Results<JournaledRetry, Void> results =
+                    BatchAwait.awaitAll(reprocessingFutures, processTimeout);
+
+            for (JournaledRetry succeeded : results.succeeded().keySet()) {
+                journal.complete(succeeded.entry);
+            }
+
+            for (Map.Entry<JournaledRetry, Exception> retryToFailure
+                    : results.failed().entrySet()) {
+                JournaledRetry retry = retryToFailure.getKey();
+                Exception e = retryToFailure.getValue();
+
+                if (e instanceof ExecutionException) {
+                    log.error("Failed to reprocess message (retry attempt #" +
+                            retry.entry.attempt() + "): " + retry.message, e);
+                    failedAgain.put(retry, e.getCause());
+                } else {
+                    log.warn("Timed out reprocessing message (retry attempt #" +
+                            retry.entry.attempt() + "): " + retry.message, e);
+                    failedAgain.put(retry, e);
+                }
+            }
+
+            log.debug("Wave successfully reprocessed {}/{} journaled messages on route {}",
+                    results.succeeded().size(), due.size(), routeId);
+
+            metrics.increment(routeId, EventHandlerMetrics.RETRY_FAILURES, failedAgain.size());
+
+            // Give new failures another shot later or dead letter them.
+            Instant now = Instant.now();
+
+            for (Map.Entry<JournaledRetry, Throwable> retryToFailure : failedAgain.entrySet()) {
+                JournaledRetry retry = retryToFailure.getKey();
+                int attempt = retry.entry.attempt();
+
+                if (attempt >= maxRetryCount) {
+                    deadLetters.add(new FailedMessage(
+                            retry.body, retry.message, retryToFailure.getValue()));
+                    deadLetteredEntries.add(retry.entry);
+                    continue;
+                }
+
+                journal.reschedule(retry.entry, attempt + 1, now.plus(delayBefore(attempt + 1)));
+            }
+
+            try {
+                journal.compact();
+            } catch (IOException e) {
+                log.warn("Failed to compact retry journal " + journal, e);
+            }
+        })
+        .filter(exchangeHasFailures())
+            .process(exchange -> metrics.increment(routeId, EventHandlerMetrics.DEAD_LETTERED,
+                    exchange.getIn().getBody(Collection.class).size()))
+            .to(deadLetterUri)
+        .end()
+        // Only once they are safely dead lettered.
+        .process(exchange -> {
+            List<MappedRetryJournal.Entry> deadLetteredEntries = exchange.getProperty(
+                    DEAD_LETTERED_ENTRIES_PROPERTY, Collections.emptyList(), List.class);
+
+            for (MappedRetryJournal.Entry entry : deadLetteredEntries) {
+                journal.complete(entry);
+            }
+        })
+        .endDoTry()
+        .doFinally()
+            // Whatever was not rescheduled or completed because the wave failed is retried.
+            .process(exchange -> {
+                List<MappedRetryJournal.Entry> polledEntries = exchange.getProperty(
+                        POLLED_ENTRIES_PROPERTY, Collections.emptyList(), List.class);
+
+                for (MappedRetryJournal.Entry entry : polledEntries) {
+                    journal.putBack(entry);
+                }
+            })
+        .end();
+    }
+
+    private Duration delayBefore(int attempt) {
+        return BackoffRetryingFailedMessageRoute.backoff(initialDelay, maxDelay, jitter, attempt);
+    }
+
+    private static Predicate exchangeHasFailures() {
+        return exchange -> {
+            Collection failures = exchange.getIn().getBody(Collection.class);
+            return failures != null && !failures.isEmpty();
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "JournaledRetryingFailedMessageRoute{" +
+                "routeId='" + routeId + '\'' +
+                ", fromUri='" + fromUri + '\'' +
+                ", journal=" + journal +
+                ", maxRetryCount=" + maxRetryCount +
+                '}';
+    }
+
+    private static final class JournaledRetry {
+        final MappedRetryJournal.Entry entry;
+        final Object body;
+        final Message message;
+
+        JournaledRetry(MappedRetryJournal.Entry entry, Object body, Message message) {
+            this.entry = entry;
+            this.body = body;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An append-only journal of message bodies waiting to be retried, kept in memory-mapped segment
+ * files in a local directory, so that retries survive a restart and a large backlog of them does
+ * not fill the heap.
+ *
+ * <p>Each {@link #append(Object, int, Instant) appended} body is encoded with a {@link BodyCodec}
+ * and written to the newest segment, alongside its attempt number and when it is due. Only a
+ * small {@link Entry} per body is kept on the heap; bodies are decoded from the segment when
+ * {@link Entry#body() asked for}. Rescheduling and completing an entry update its record in
+ * place. When a segment fills, a new one is started. Segments whose entries are all complete are
+ * deleted, and {@link #compact()} moves the remaining entries out of mostly complete segments so
+ * that those can be deleted too.
+ *
+ * <p>On opening, the journal recovers all incomplete entries from its directory, including those
+ * which were {@link #pollDue(Instant, int) polled} but neither rescheduled nor completed before
+ * the journal was closed. Retries are therefore at least once.
+ *
+ * <p>Writes reach the operating system as soon as they are made, so survive the process dying.
+ * To also survive the operating system dying, call {@link #flush()}.
+ */
+@ThreadSafe
+public class MappedRetryJournal implements AutoCloseable {
+    private final Path directory;
+    private final int segmentSize;
+    private final BodyCodec codec;
+
+    @GuardedBy("this")
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    @GuardedBy("this")
+    private final PriorityQueue<Entry> due = new PriorityQueue<>(
+            Comparator.comparingLong((Entry e) -> e.dueAtMillis).thenComparingLong(e -> e.sequence));
+    @GuardedBy("this")
+    private final Set<Entry> live = new HashSet<>();
+    @GuardedBy("this")
+    private long nextSequence = 0;
+    @GuardedBy("this")
+    private long nextSegmentSequence = 0;
+    @GuardedBy("this")
+    private boolean closed = false;
+
+    private static final String SEGMENT_PREFIX = "retry-journal-";
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    /** Marks the end of a segment: nothing has been written here yet. */
+    private static final byte EMPTY = 0;
+    private static final byte INCOMPLETE = 1;
+    private static final byte COMPLETE = 2;
+
+    private static final int STATUS_OFFSET = 0;
+    private static final int ATTEMPT_OFFSET = 1;
+    private static final int DUE_AT_OFFSET = 5;
+    private static final int LENGTH_OFFSET = 13;
+    private static final int HEADER_SIZE = 17;
+
+    /** Segments with less than this fraction of their bytes incomplete are compacted. */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final Logger log = LoggerFactory.getLogger(MappedRetryJournal.class);
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, and recovers any incomplete
+     * entries from segments already there.
+     *
+     * @param segmentSize Bytes per segment file. Each encoded body, plus 17 bytes, must fit in
+     *                    one segment.
+     */
+    public MappedRetryJournal(Path directory, int segmentSize, BodyCodec codec)
+            throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be greater than " + HEADER_SIZE +
+                    ", but was: " + segmentSize);
+        }
+
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.segmentSize = segmentSize;
+        this.codec = Objects.requireNonNull(codec, "codec");
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Writes {@code body} to the journal, to be {@link #pollDue(Instant, int) polled} once
+     * {@code dueAt} has passed.
+     *
+     * @throws IOException If the body could not be encoded or written, or is too large for a
+     * segment.
+     */
+    public synchronized Entry append(Object body, int attempt, Instant dueAt) throws IOException {
+        checkOpen();
+
+        byte[] encoded = codec.encode(body);
+
+        if (encoded.length > segmentSize - HEADER_SIZE) {
+            throw new IOException("Encoded body of " + encoded.length + " bytes does not fit in " +
+                    "segments of " + segmentSize + " bytes. Body was: " + body);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + encoded.length);
+        record.put(STATUS_OFFSET, EMPTY);
+        record.putInt(ATTEMPT_OFFSET, attempt);
+        record.putLong(DUE_AT_OFFSET, dueAt.toEpochMilli());
+        record.putInt(LENGTH_OFFSET, encoded.length);
+        slice(record, HEADER_SIZE, encoded.length).put(encoded);
+
+        Entry entry = write(record);
+        due.add(entry);
+
+        return entry;
+    }
+
+    /**
+     * Removes and returns up to {@code max} entries due at {@code now}, soonest due first. Each
+     * should then be {@link #reschedule(Entry, int, Instant) rescheduled} or
+     * {@link #complete(Entry) completed}.
+     */
+    public synchronized List<Entry> pollDue(Instant now, int max) {
+        checkOpen();
+
+        long nowMillis = now.toEpochMilli();
+        List<Entry> polled = new ArrayList<>(Math.min(max, due.size()));
+
+        while (polled.size() < max && !due.isEmpty() && due.peek().dueAtMillis <= nowMillis) {
+            Entry entry = due.poll();
+            entry.polled = true;
+            polled.add(entry);
+        }
+
+        return polled;
+    }
+
+    /**
+     * Updates the attempt number of a polled entry and makes it due again at {@code dueAt}.
+     */
+    public synchronized void reschedule(Entry entry, int attempt, Instant dueAt) {
+        checkLive(entry);
+
+        ByteBuffer buffer = entry.segment.buffer;
+        buffer.putInt(entry.offset + ATTEMPT_OFFSET, attempt);
+        buffer.putLong(entry.offset + DUE_AT_OFFSET, dueAt.toEpochMilli());
+
+        unqueue(entry);
+        entry.attempt = attempt;
+        entry.dueAtMillis = dueAt.toEpochMilli();
+        due.add(entry);
+    }
+
+    /**
+     * Puts a polled entry back in line, as it was, so it is polled again once due. Does nothing
+     * if it was already rescheduled or completed, so may be called on every polled entry once
+     * done with them, however that went.
+     */
+    public synchronized void putBack(Entry entry) {
+        checkOpen();
+
+        if (entry.polled && live.contains(entry)) {
+            entry.polled = false;
+            due.add(entry);
+        }
+    }
+
+    /**
+     * Marks an entry complete, so it is never polled again, including after a restart.
+     */
+    public synchronized void complete(Entry entry) {
+        checkLive(entry);
+
+        unqueue(entry);
+        markComplete(entry);
+        live.remove(entry);
+
+        deleteIfDone(entry.segment);
+    }
+
+    /**
+     * Moves incomplete entries out of segments which are mostly complete, to the newest segment,
+     * and deletes those segments. Entries keep their place in line. If the process dies midway,
+     * an entry may be recovered twice.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+
+        Segment head = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        List<Segment> sparse = new ArrayList<>();
+
+        for (Segment segment : segments.values()) {
+            if (segment != head &&
+                    segment.incompleteBytes < segment.writePosition * COMPACTION_THRESHOLD) {
+                sparse.add(segment);
+            }
+        }
+
+        if (sparse.isEmpty()) {
+            return;
+        }
+
+        List<Entry> toMove = new ArrayList<>();
+
+        for (Entry entry : live) {
+            if (sparse.contains(entry.segment)) {
+                toMove.add(entry);
+            }
+        }
+
+        toMove.sort(Comparator.comparingLong(e -> e.sequence));
+
+        for (Entry entry : toMove) {
+            ByteBuffer copy = ByteBuffer.allocate(entry.recordSize);
+            copy.put(slice(entry.segment.buffer, entry.offset, entry.recordSize));
+            copy.put(STATUS_OFFSET, EMPTY);
+
+            Entry moved = write(copy);
+            markComplete(entry);
+
+            // Keep the same entry object, which callers may be holding, at its new location.
+            live.remove(moved);
+            entry.segment = moved.segment;
+            entry.offset = moved.offset;
+        }
+
+        log.debug("Compacted {} entries out of {} segments in {}",
+                toMove.size(), sparse.size(), directory);
+
+        for (Segment segment : sparse) {
+            deleteIfDone(segment);
+        }
+    }
+
+    /**
+     * @return How many entries are incomplete, whether due, polled, or not yet due.
+     */
+    public synchronized int size() {
+        return live.size();
+    }
+
+    /**
+     * Forces all writes to storage.
+     */
+    public synchronized void flush() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        flush();
+        closed = true;
+        segments.clear();
+        due.clear();
+        live.clear();
+    }
+
+    private void recover() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+
+        try (DirectoryStream<Path> files =
+                     Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                sequences.add(Long.parseLong(name.substring(
+                        SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+
+        sequences.sort(Comparator.naturalOrder());
+
+        for (long sequence : sequences) {
+            Segment segment = map(sequence, false);
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                byte status = buffer.get(position + STATUS_OFFSET);
+
+                if (status == EMPTY) {
+                    break;
+                }
+
+                int recordSize = HEADER_SIZE + buffer.getInt(position + LENGTH_OFFSET);
+
+                if (status == INCOMPLETE) {
+                    Entry entry = new Entry(segment, position, recordSize, nextSequence++,
+                            buffer.getInt(position + ATTEMPT_OFFSET),
+                            buffer.getLong(position + DUE_AT_OFFSET));
+                    live.add(entry);
+                    due.add(entry);
+                    segment.incompleteBytes += recordSize;
+                }
+
+                position += recordSize;
+            }
+
+            segment.writePosition = position;
+            segments.put(sequence, segment);
+            nextSegmentSequence = sequence + 1;
+        }
+
+        // Start fresh segments after those recovered, rather than filling the gaps they left.
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            segment.sealed = true;
+            deleteIfDone(segment);
+        }
+
+        log.info("Recovered {} incomplete retries from {} segments in {}",
+                live.size(), segments.size(), directory);
+    }
+
+    /**
+     * Writes a record, whose status is {@link #EMPTY}, to the newest segment or a new one if it
+     * does not fit. The status is set to {@link #INCOMPLETE} only once the rest of the record is
+     * written, so a record torn by a crash is never recovered.
+     */
+    private Entry write(ByteBuffer record) throws IOException {
+        int recordSize = record.capacity();
+        Segment head = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+        if (head == null || head.sealed || head.writePosition + recordSize > segmentSize) {
+            if (head != null) {
+                head.sealed = true;
+                head.buffer.force();
+                deleteIfDone(head);
+            }
+
+            head = map(nextSegmentSequence++, true);
+            segments.put(head.sequence, head);
+        }
+
+        int offset = head.writePosition;
+        slice(head.buffer, offset, recordSize).put(slice(record, 0, recordSize));
+        head.buffer.put(offset + STATUS_OFFSET, INCOMPLETE);
+
+        head.writePosition += recordSize;
+        head.incompleteBytes += recordSize;
+
+        Entry entry = new Entry(head, offset, recordSize, nextSequence++,
+                head.buffer.getInt(offset + ATTEMPT_OFFSET),
+                head.buffer.getLong(offset + DUE_AT_OFFSET));
+        live.add(entry);
+
+        return entry;
+    }
+
+    /**
+     * Takes an entry out of line to be polled, if it is in line.
+     */
+    private void unqueue(Entry entry) {
+        if (entry.polled) {
+            entry.polled = false;
+        } else {
+            due.remove(entry);
+        }
+    }
+
+    private void markComplete(Entry entry) {
+        entry.segment.buffer.put(entry.offset + STATUS_OFFSET, COMPLETE);
+        entry.segment.incompleteBytes -= entry.recordSize;
+    }
+
+    private void deleteIfDone(Segment segment) {
+        if (!segment.sealed || segment.incompleteBytes > 0) {
+            return;
+        }
+
+        segments.remove(segment.sequence);
+
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Failed to delete completed retry journal segment " + segment.path, e);
+        }
+    }
+
+    private Segment map(long sequence, boolean create) throws IOException {
+        Path path = directory.resolve(SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+
+        try (FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = create ? segmentSize : channel.size();
+            // The mapping stays valid after the channel is closed.
+            return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * A view of {@code length} bytes of {@code buffer} from {@code offset}, leaving
+     * {@code buffer} itself alone.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        // Through Buffer, so that this still runs on Java 8 if compiled by a later JDK, where
+        // ByteBuffer overrides these methods.
+        Buffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return ((ByteBuffer) view).slice();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Retry journal in " + directory + " is closed.");
+        }
+    }
+
+    private void checkLive(Entry entry) {
+        checkOpen();
+
+        if (!live.contains(entry)) {
+            throw new IllegalArgumentException("Entry is already complete or is not from this " +
+                    "journal: " + entry);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MappedRetryJournal{" +
+                "directory=" + directory +
+                ", segmentSize=" + segmentSize +
+                ", segments=" + segments.size() +
+                ", size=" + live.size() +
+                '}';
+    }
+
+    /**
+     * A body in the journal, with its attempt number. The body itself stays in the journal
+     * until {@link #body()} is called.
+     */
+    public final class Entry {
+        private Segment segment;
+        private int offset;
+        private final int recordSize;
+        private final long sequence;
+        private int attempt;
+        private long dueAtMillis;
+        /** Polled, so no longer in line to be polled. */
+        private boolean polled = false;
+
+        private Entry(Segment segment, int offset, int recordSize, long sequence, int attempt,
+                long dueAtMillis) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordSize = recordSize;
+            this.sequence = sequence;
+            this.attempt = attempt;
+            this.dueAtMillis = dueAtMillis;
+        }
+
+        /**
+         * Reads and decodes the body from the journal.
+         */
+        public Object body() throws IOException {
+            byte[] encoded;
+
+            synchronized (MappedRetryJournal.this) {
+                checkLive(this);
+
+                encoded = new byte[recordSize - HEADER_SIZE];
+                slice(segment.buffer, offset + HEADER_SIZE, encoded.length).get(encoded);
+            }
+
+            return codec.decode(encoded);
+        }
+
+        public int attempt() {
+            synchronized (MappedRetryJournal.this) {
+                return attempt;
+            }
+        }
+
+        public Instant dueAt() {
+            synchronized (MappedRetryJournal.this) {
+                return Instant.ofEpochMilli(dueAtMillis);
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (MappedRetryJournal.this) {
+                return "Entry{" +
+                        "segment=" + segment.sequence +
+                        ", offset=" + offset +
+                        ", attempt=" + attempt +
+                        ", dueAt=" + Instant.ofEpochMilli(dueAtMillis) +
+                        '}';
+            }
+        }
+    }
+
+    /**
+     * Turns bodies into bytes to be journaled, and back.
+     */
+    public interface BodyCodec {
+        byte[] encode(Object body) throws IOException;
+
+        Object decode(byte[] encoded) throws IOException;
+
+        /**
+         * Uses Java serialization, so bodies must be {@link java.io.Serializable}.
+         */
+        static BodyCodec javaSerialization() {
+            return JavaSerializationCodec.INSTANCE;
+        }
+    }
+
+    private enum JavaSerializationCodec implements BodyCodec {
+        INSTANCE;
+
+        @Override
+        public byte[] encode(Object body) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(body);
+            }
+
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(byte[] encoded) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+                return in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not decode journaled body.", e);
+            }
+        }
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        int writePosition = 0;
+        int incompleteBytes = 0;
+        /** No more records will be written to this segment. */
+        boolean sealed = false;
+
+        Segment(long sequence, Path path, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -25,58 +25,134 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.Objects;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ServiceStatus;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.processor.aggregate.CompletionAwareAggregationStrategy;
 
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 
 public class PollingDocumentEventProcessorRoute extends RouteBuilder {
     private final DocumentEventRepository documentEventRepository;
-    private final Duration pollingInterval;
+    private final AdaptivePollingSchedule pollingSchedule;
     private final int batchSize;
+    private final int maxPublishedEventsPerUpdate;
     private final Duration processTimeout;
     private final String documentEndpoint;
     private final String failureEndpoint;
     private final String routeId;
+    private final EventHandlerMetrics metrics;
 
     private static final AtomicInteger idCounter = new AtomicInteger(1);
 
+    private static final String ORIGINAL_EVENT_PROPERTY = "originalEvent";
+    private static final String PUBLISHED_EVENT_PROPERTY = "publishedEvent";
+    private static final String PUBLISHED_EVENTS_PROPERTY = "publishedEvents";
+    private static final String POLL_STARTED_PROPERTY = "pollStartedNanos";
+    private static final String PUBLISH_STARTED_PROPERTY = "publishStartedNanos";
+
     public PollingDocumentEventProcessorRoute(DocumentEventRepository documentEventRepository,
             Duration pollingInterval, Duration processTimeout,int batchSize, String documentEndpoint,
             String failureEndpoint) {
-        this.documentEventRepository = documentEventRepository;
-        this.pollingInterval = pollingInterval;
-        this.processTimeout = processTimeout;
-        this.batchSize = batchSize;
-        this.documentEndpoint = documentEndpoint;
-        this.failureEndpoint = failureEndpoint;
-        this.routeId = "documentEventProcessor-" + idCounter.getAndIncrement();
+        this(documentEventRepository, pollingInterval, processTimeout, batchSize, documentEndpoint,
+                failureEndpoint, "documentEventProcessor-" + idCounter.getAndIncrement());
     }
 
     public PollingDocumentEventProcessorRoute(DocumentEventRepository documentEventRepository,
             Duration pollingInterval, Duration processTimeout, int batchSize, String documentEndpoint,
             String failureEndpoint, String routeId) {
+        this(documentEventRepository, pollingInterval, processTimeout, batchSize, documentEndpoint,
+                failureEndpoint, routeId, batchSize);
+    }
+
+    /**
+     * @param maxPublishedEventsPerUpdate Successfully published events are marked as published
+     *                                    together, in one repository update per batch. If a batch
+     *                                    publishes more than this many events, they are marked in
+     *                                    updates of at most this many events as they are published,
+     *                                    which narrows how many events would be published again if
+     *                                    the batch were interrupted.
+     */
+    public PollingDocumentEventProcessorRoute(DocumentEventRepository documentEventRepository,
+            Duration pollingInterval, Duration processTimeout, int batchSize, String documentEndpoint,
+            String failureEndpoint, String routeId, int maxPublishedEventsPerUpdate) {
+        this(documentEventRepository, pollingInterval, pollingInterval, processTimeout, batchSize,
+                documentEndpoint, failureEndpoint, routeId, maxPublishedEventsPerUpdate);
+    }
+
+    /**
+     * Polls adaptively: immediately again after a full batch, backing off exponentially from
+     * {@code minPollingInterval} up to {@code maxPollingInterval} while there is nothing to do.
+     *
+     * @see AdaptivePollingSchedule
+     * @see #PollingDocumentEventProcessorRoute(DocumentEventRepository, Duration, Duration, int, String, String, String, int)
+     */
+    public PollingDocumentEventProcessorRoute(DocumentEventRepository documentEventRepository,
+            Duration minPollingInterval, Duration maxPollingInterval, Duration processTimeout,
+            int batchSize, String documentEndpoint, String failureEndpoint, String routeId,
+            int maxPublishedEventsPerUpdate) {
+        this(documentEventRepository, minPollingInterval, maxPollingInterval, processTimeout,
+                batchSize, documentEndpoint, failureEndpoint, routeId, maxPublishedEventsPerUpdate,
+                EventHandlerMetrics.none());
+    }
+
+    /**
+     * Like {@link #PollingDocumentEventProcessorRoute(DocumentEventRepository, Duration, Duration,
+     * Duration, int, String, String, String, int)}, recording metrics for each poll and each
+     * published document with {@code routeId} as their source.
+     */
+    public PollingDocumentEventProcessorRoute(DocumentEventRepository documentEventRepository,
+            Duration minPollingInterval, Duration maxPollingInterval, Duration processTimeout,
+            int batchSize, String documentEndpoint, String failureEndpoint, String routeId,
+            int maxPublishedEventsPerUpdate, EventHandlerMetrics metrics) {
+        if (maxPublishedEventsPerUpdate < 1) {
+            throw new IllegalArgumentException("maxPublishedEventsPerUpdate must be at least 1, " +
+                    "but was: " + maxPublishedEventsPerUpdate);
+        }
+
         this.documentEventRepository = documentEventRepository;
-        this.pollingInterval = pollingInterval;
+        this.pollingSchedule = new AdaptivePollingSchedule(minPollingInterval, maxPollingInterval);
         this.processTimeout = processTimeout;
         this.batchSize = batchSize;
         this.documentEndpoint = documentEndpoint;
         this.failureEndpoint = failureEndpoint;
         this.routeId = routeId;
+        this.maxPublishedEventsPerUpdate = maxPublishedEventsPerUpdate;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
     }
     
     @Override
     public void configure() throws Exception {
-        from("timer:pollForDocumentEvents-" + routeId + "?period=" + pollingInterval.toMillis())
+        from("timer:pollForDocumentEvents-" + routeId + "?period=" +
+                pollingSchedule.minInterval().toMillis())
         .routeId(routeId)
+        // Poll again right away, without waiting for the next tick, while polls are full.
+        .loopDoWhile(exchange -> isRunAllowed(exchange) && pollingSchedule.startPollIfDue())
         .process(exchange -> {
-            List<? extends DocumentEvent> documentEvents = documentEventRepository
-                    .retrievePriorityDocumentEventsUpTo(batchSize);
+            long pollStart = System.nanoTime();
+            exchange.setProperty(POLL_STARTED_PROPERTY, pollStart);
+
+            List<? extends DocumentEvent> documentEvents;
+
+            try {
+                documentEvents = documentEventRepository.retrievePriorityDocumentEventsUpTo(batchSize);
+            } catch (Exception e) {
+                pollingSchedule.recordFailedPoll();
+                throw e;
+            }
+
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.RETRIEVAL, pollStart);
+            metrics.recordValue(routeId, EventHandlerMetrics.BATCH_SIZE, documentEvents.size());
+            pollingSchedule.recordPoll(documentEvents.size(), batchSize);
+
+            long lookupStart = System.nanoTime();
+
             Map<DocumentEvent, Future<?>> eventsToFutureDocuments =
                     new HashMap<>(documentEvents.size());
 
@@ -90,20 +166,21 @@ public class PollingDocumentEventProcessorRoute extends RouteBuilder {
                 }
             }
 
-            Map<DocumentEvent, Object> eventsToDocuments = new HashMap<>(documentEvents.size());
-            List<FailedDocumentEvent> failedEvents = new ArrayList<>();
+            BatchAwait.Results<DocumentEvent, Object> results =
+                    BatchAwait.awaitAll(eventsToFutureDocuments, processTimeout);
 
-            for (Map.Entry<DocumentEvent, Future<?>> eventToFutureDocument
-                    : eventsToFutureDocuments.entrySet()) {
-                DocumentEvent event = eventToFutureDocument.getKey();
-                Future<?> futureDoc = eventToFutureDocument.getValue();
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.LOOKUP, lookupStart);
+            metrics.increment(routeId, EventHandlerMetrics.LOOKUP_FAILURES,
+                    results.failed().size());
 
-                try {
-                    eventsToDocuments.put(event, futureDoc.get(processTimeout.toMillis(), TimeUnit.MILLISECONDS));
-                } catch (ExecutionException | InterruptedException e) {
-                    log.error("Failed to get document for document event: " + event, e);
-                    failedEvents.add(new FailedDocumentEvent(event, e));
-                }
+            Map<DocumentEvent, Object> eventsToDocuments = new HashMap<>(results.succeeded());
+            List<FailedDocumentEvent> failedEvents = new ArrayList<>();
+
+            for (Map.Entry<DocumentEvent, Exception> eventToFailure : results.failed().entrySet()) {
+                DocumentEvent event = eventToFailure.getKey();
+                Exception e = eventToFailure.getValue();
+                log.error("Failed to get document for document event: " + event, e);
+                failedEvents.add(new FailedDocumentEvent(event, e));
             }
 
             try {
@@ -136,7 +213,7 @@ public class PollingDocumentEventProcessorRoute extends RouteBuilder {
 
             exchange.getIn().setBody(Iterables.concat(eventsToDocuments.entrySet(), failedEvents));
         })
-        .split(body())
+        .split(body(), new PublishedEventsAggregationStrategy())
         .streaming()
         .choice()
             .when(e -> e.getIn().getBody() instanceof FailedDocumentEvent).to(failureEndpoint)
@@ -144,17 +221,16 @@ public class PollingDocumentEventProcessorRoute extends RouteBuilder {
                 .process(exchange -> {
                     Map.Entry<DocumentEvent, Object> eventToDocument =
                             exchange.getIn().getBody(Map.Entry.class);
-                    exchange.setProperty("originalEvent", eventToDocument.getKey());
+                    exchange.setProperty(ORIGINAL_EVENT_PROPERTY, eventToDocument.getKey());
                     exchange.getIn().setBody(eventToDocument.getValue());
+                    exchange.setProperty(PUBLISH_STARTED_PROPERTY, System.nanoTime());
                 })
                 .to(documentEndpoint)
-                // If producing to documentEndpoint succeeded, update original event status...
-                // TODO(ahenning): This updates event status one at a time. We could consider using
-                // aggregation strategy with splitter to update all in bulk which would take
-                // advantage of repository implementations which can update many statuses in one
-                // call.
+                // If producing to documentEndpoint succeeded, remember original event so its
+                // status is updated along with the rest of the batch's. See
+                // PublishedEventsAggregationStrategy.
                 .process(exchange -> {
-                    DocumentEvent event = exchange.getProperty("originalEvent", DocumentEvent.class);
+                    DocumentEvent event = exchange.getProperty(ORIGINAL_EVENT_PROPERTY, DocumentEvent.class);
 
                     if (event == null) {
                         throw new IllegalStateException("Could not get original event from " +
@@ -162,8 +238,124 @@ public class PollingDocumentEventProcessorRoute extends RouteBuilder {
                                 exchange);
                     }
 
-                    documentEventRepository.markDocumentEventsPublishedOrFailed(
-                            Collections.singleton(event), Collections.emptyList());
-                });
+                    exchange.setProperty(PUBLISHED_EVENT_PROPERTY, event);
+                    metrics.recordDurationSince(routeId, EventHandlerMetrics.PUBLISH,
+                            exchange.getProperty(PUBLISH_STARTED_PROPERTY, Long.class));
+                })
+            .end()
+        .end()
+        .process(exchange -> {
+            Long pollStart = exchange.getProperty(POLL_STARTED_PROPERTY, Long.class);
+
+            if (pollStart != null) {
+                metrics.recordDurationSince(routeId, EventHandlerMetrics.POLL_CYCLE, pollStart);
+            }
+        })
+        .end();
+    }
+
+    /**
+     * Stops polling back to back once the route or context is stopping, so a backlog does not
+     * hold up shutdown.
+     */
+    private boolean isRunAllowed(Exchange exchange) {
+        CamelContext context = exchange.getContext();
+        ServiceStatus routeStatus = context.getRouteStatus(routeId);
+
+        return context.getStatus().isStarted() && routeStatus != null && routeStatus.isStarted();
+    }
+
+    private void markPublished(List<DocumentEvent> publishedEvents) {
+        if (publishedEvents.isEmpty()) {
+            return;
+        }
+
+        long markStart = System.nanoTime();
+
+        try {
+            documentEventRepository.markDocumentEventsPublishedOrFailed(
+                    publishedEvents, Collections.emptyList());
+        } catch (Exception e) {
+            if (log.isErrorEnabled()) {
+                log.error("Failed to update published events. They will be reprocessed. " +
+                        "Published events were: " + publishedEvents, e);
+            }
+        }
+
+        metrics.recordDurationSince(routeId, EventHandlerMetrics.MARK, markStart);
+    }
+
+    /**
+     * Collects events whose documents were successfully published by the splitter, and marks
+     * them as published in bulk: whenever {@link #maxPublishedEventsPerUpdate} are collected, and
+     * once more for the remainder when the batch is done.
+     *
+     * <p>Events are only ever marked after they are published. If the batch is interrupted before
+     * they are marked, they are left as they were in the repository and will be reprocessed, so
+     * delivery remains at least once.
+     *
+     * <p>A failure to publish one document does not stop the others from being published or
+     * marked, so failures are logged here rather than propagated to the polling exchange.
+     */
+    private final class PublishedEventsAggregationStrategy
+            implements CompletionAwareAggregationStrategy {
+        @Override
+        public Exchange aggregate(Exchange aggregate, Exchange splitExchange) {
+            if (aggregate == null) {
+                aggregate = splitExchange;
+                aggregate.setProperty(PUBLISHED_EVENTS_PROPERTY, new ArrayList<DocumentEvent>());
+            }
+
+            Exception exception = splitExchange.getException();
+
+            if (exception != null) {
+                if (log.isErrorEnabled()) {
+                    log.error("Failed to publish document event. It will be reprocessed. " +
+                            "Event was: " + splitExchange.getProperty(ORIGINAL_EVENT_PROPERTY),
+                            exception);
+                }
+                splitExchange.setException(null);
+                metrics.increment(routeId, EventHandlerMetrics.PUBLISH_FAILURES, 1);
+                return aggregate;
+            }
+
+            DocumentEvent published =
+                    splitExchange.getProperty(PUBLISHED_EVENT_PROPERTY, DocumentEvent.class);
+
+            if (published == null) {
+                return aggregate;
+            }
+
+            metrics.increment(routeId, EventHandlerMetrics.PUBLISHED, 1);
+
+            List<DocumentEvent> publishedEvents = publishedEventsOf(aggregate);
+            publishedEvents.add(published);
+
+            if (publishedEvents.size() >= maxPublishedEventsPerUpdate) {
+                aggregate.setProperty(PUBLISHED_EVENTS_PROPERTY, new ArrayList<DocumentEvent>());
+                markPublished(publishedEvents);
+            }
+
+            return aggregate;
+        }
+
+        @Override
+        public void onCompletion(Exchange aggregate) {
+            if (aggregate == null) {
+                return;
+            }
+
+            List<DocumentEvent> publishedEvents = publishedEventsOf(aggregate);
+
+            if (publishedEvents != null) {
+                aggregate.removeProperty(PUBLISHED_EVENTS_PROPERTY);
+                markPublished(publishedEvents);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<DocumentEvent> publishedEventsOf(Exchange aggregate) {
+            return aggregate.getProperty(PUBLISHED_EVENTS_PROPERTY, List.class);
+        }
     }
 }
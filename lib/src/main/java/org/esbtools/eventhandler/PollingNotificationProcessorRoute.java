@@ -27,12 +27,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ServiceStatus;
 import org.apache.camel.builder.RouteBuilder;
 
 import com.google.common.util.concurrent.Futures;
@@ -40,9 +41,10 @@ import com.google.common.util.concurrent.Futures;
 public class PollingNotificationProcessorRoute extends RouteBuilder {
     private final NotificationRepository notificationRepository;
     private final DocumentEventRepository documentEventRepository;
-    private final Duration pollingInterval;
+    private final AdaptivePollingSchedule pollingSchedule;
     private final Duration processTimeout;
     private final int batchSize;
+    private final EventHandlerMetrics metrics;
 
     private static final AtomicInteger idCounter = new AtomicInteger(1);
     private final int id = idCounter.getAndIncrement();
@@ -50,21 +52,68 @@ public class PollingNotificationProcessorRoute extends RouteBuilder {
     public PollingNotificationProcessorRoute(NotificationRepository notificationRepository,
             DocumentEventRepository documentEventRepository, Duration pollingInterval,
             Duration processTimeout, int batchSize) {
+        this(notificationRepository, documentEventRepository, pollingInterval, pollingInterval,
+                processTimeout, batchSize);
+    }
+
+    /**
+     * Polls adaptively: immediately again after a full batch, backing off exponentially from
+     * {@code minPollingInterval} up to {@code maxPollingInterval} while there is nothing to do.
+     *
+     * @see AdaptivePollingSchedule
+     */
+    public PollingNotificationProcessorRoute(NotificationRepository notificationRepository,
+            DocumentEventRepository documentEventRepository, Duration minPollingInterval,
+            Duration maxPollingInterval, Duration processTimeout, int batchSize) {
+        this(notificationRepository, documentEventRepository, minPollingInterval,
+                maxPollingInterval, processTimeout, batchSize, EventHandlerMetrics.none());
+    }
+
+    /**
+     * Like {@link #PollingNotificationProcessorRoute(NotificationRepository,
+     * DocumentEventRepository, Duration, Duration, Duration, int)}, recording metrics for each
+     * poll with the route id as their source.
+     */
+    public PollingNotificationProcessorRoute(NotificationRepository notificationRepository,
+            DocumentEventRepository documentEventRepository, Duration minPollingInterval,
+            Duration maxPollingInterval, Duration processTimeout, int batchSize,
+            EventHandlerMetrics metrics) {
         this.notificationRepository = notificationRepository;
         this.documentEventRepository = documentEventRepository;
-        this.pollingInterval = pollingInterval;
+        this.pollingSchedule = new AdaptivePollingSchedule(minPollingInterval, maxPollingInterval);
         this.batchSize = batchSize;
         this.processTimeout = Objects.requireNonNull(processTimeout,
                 "notificationProcessTimeout");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
     }
 
     @Override
     public void configure() throws Exception {
-        from("timer:pollForNotifications" + id + "?period=" + pollingInterval.toMillis())
-        .routeId("notificationProcessor-" + id)
+        String routeId = "notificationProcessor-" + id;
+
+        from("timer:pollForNotifications" + id + "?period=" +
+                pollingSchedule.minInterval().toMillis())
+        .routeId(routeId)
+        // Poll again right away, without waiting for the next tick, while polls are full.
+        .loopDoWhile(exchange -> isRunAllowed(exchange, routeId) &&
+                pollingSchedule.startPollIfDue())
         .process(exchange -> {
-            List<? extends Notification> notifications =
-                    notificationRepository.retrieveOldestNotificationsUpTo(batchSize);
+            long pollStart = System.nanoTime();
+            List<? extends Notification> notifications;
+
+            try {
+                notifications = notificationRepository.retrieveOldestNotificationsUpTo(batchSize);
+            } catch (Exception e) {
+                pollingSchedule.recordFailedPoll();
+                throw e;
+            }
+
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.RETRIEVAL, pollStart);
+            metrics.recordValue(routeId, EventHandlerMetrics.BATCH_SIZE, notifications.size());
+            pollingSchedule.recordPoll(notifications.size(), batchSize);
+
+            long lookupStart = System.nanoTime();
+
             Map<Notification, Future<Collection<DocumentEvent>>> notificationsToFutureEvents =
                     new HashMap<>(notifications.size());
 
@@ -80,22 +129,23 @@ public class PollingNotificationProcessorRoute extends RouteBuilder {
                 }
             }
 
+            BatchAwait.Results<Notification, Collection<DocumentEvent>> results =
+                    BatchAwait.awaitAll(notificationsToFutureEvents, processTimeout);
+
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.LOOKUP, lookupStart);
+            metrics.increment(routeId, EventHandlerMetrics.LOOKUP_FAILURES,
+                    results.failed().size());
+
             Map<Notification, Collection<DocumentEvent>> notificationsToDocumentEvents =
-                    new HashMap<>();
+                    new HashMap<>(results.succeeded());
             List<FailedNotification> failedNotifications = new ArrayList<>();
 
-            for (Entry<Notification, Future<Collection<DocumentEvent>>> notificationToFutureEvents
-                    : notificationsToFutureEvents.entrySet()) {
-                Notification notification = notificationToFutureEvents.getKey();
-                Future<Collection<DocumentEvent>> futureEvents =
-                        notificationToFutureEvents.getValue();
-                try {
-                    Collection<DocumentEvent> events = futureEvents.get(processTimeout.toMillis(), TimeUnit.MILLISECONDS);
-                    notificationsToDocumentEvents.put(notification, events);
-                } catch (ExecutionException | InterruptedException e) {
-                    log.error("Failed to get document events for notification: " + notification, e);
-                    failedNotifications.add(new FailedNotification(notification, e));
-                }
+            for (Entry<Notification, Exception> notificationToFailure
+                    : results.failed().entrySet()) {
+                Notification notification = notificationToFailure.getKey();
+                Exception e = notificationToFailure.getValue();
+                log.error("Failed to get document events for notification: " + notification, e);
+                failedNotifications.add(new FailedNotification(notification, e));
             }
 
             Iterator<Entry<Notification, Collection<DocumentEvent>>> notificationsToEventsIterator =
@@ -122,6 +172,8 @@ public class PollingNotificationProcessorRoute extends RouteBuilder {
             log.debug("Persisting {} document events via route {}: {}",
                     documentEvents.size(), exchange.getFromRouteId(), documentEvents);
 
+            long persistStart = System.nanoTime();
+
             try {
                 documentEventRepository.addNewDocumentEvents(documentEvents);
             } catch (Exception e) {
@@ -130,8 +182,27 @@ public class PollingNotificationProcessorRoute extends RouteBuilder {
                 notificationsToDocumentEvents.clear();
             }
 
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.PERSIST, persistStart);
+
+            long markStart = System.nanoTime();
+
             notificationRepository.markNotificationsProcessedOrFailed(
                     notificationsToDocumentEvents.keySet(), failedNotifications);
-        });
+
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.MARK, markStart);
+            metrics.recordDurationSince(routeId, EventHandlerMetrics.POLL_CYCLE, pollStart);
+        })
+        .end();
+    }
+
+    /**
+     * Stops polling back to back once the route or context is stopping, so a backlog does not
+     * hold up shutdown.
+     */
+    private static boolean isRunAllowed(Exchange exchange, String routeId) {
+        CamelContext context = exchange.getContext();
+        ServiceStatus routeStatus = context.getRouteStatus(routeId);
+
+        return context.getStatus().isStarted() && routeStatus != null && routeStatus.isStarted();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps another {@link DocumentEventRepository}, retrieving the next batches of document events
+ * in the background while the current batch is being processed. Used with
+ * {@link PollingDocumentEventProcessorRoute}, this overlaps retrieving (and locking) events with
+ * looking up and publishing documents of the batch before.
+ *
+ * <p>Each call to {@link #retrievePriorityDocumentEventsUpTo(int)} returns the oldest prefetched
+ * batch (retrieving it first if none was prefetched). If that batch was full, it then tops up
+ * prefetching to at most {@code maxPrefetchedBatches} batches, retrieved one at a time in the
+ * background with the same {@code maxEvents}. After an empty or partial batch, nothing is
+ * prefetched, so an idle repository is only polled as often as the caller polls.
+ *
+ * <p>Prefetched events have already begun their transaction, so they may time out while waiting.
+ * Before a prefetched batch is returned, events whose transactions are no longer active are
+ * dropped per {@link #ensureTransactionActive(DocumentEvent)}. Similarly, prefetched events may
+ * have been retrieved before higher priority events were added. Keep {@code maxPrefetchedBatches}
+ * small.
+ *
+ * <p>Batches still prefetched when the application stops are not lost; their transactions simply
+ * time out and they are retrieved again.
+ */
+@ThreadSafe
+public class PrefetchingDocumentEventRepository implements DocumentEventRepository {
+    private final DocumentEventRepository delegate;
+    private final int maxPrefetchedBatches;
+    private final ExecutorService prefetchExecutor;
+    private final Deque<Future<List<? extends DocumentEvent>>> prefetched = new ArrayDeque<>();
+
+    private static final AtomicInteger idCounter = new AtomicInteger(1);
+    private static final Logger log = LoggerFactory.getLogger(PrefetchingDocumentEventRepository.class);
+
+    public PrefetchingDocumentEventRepository(DocumentEventRepository delegate) {
+        this(delegate, 1);
+    }
+
+    /**
+     * @param maxPrefetchedBatches How many batches to retrieve ahead of the batch being processed.
+     */
+    public PrefetchingDocumentEventRepository(DocumentEventRepository delegate,
+            int maxPrefetchedBatches) {
+        if (maxPrefetchedBatches < 1) {
+            throw new IllegalArgumentException("maxPrefetchedBatches must be at least 1, but " +
+                    "was: " + maxPrefetchedBatches);
+        }
+
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.maxPrefetchedBatches = maxPrefetchedBatches;
+        // One thread, so batches are retrieved in order.
+        this.prefetchExecutor = DaemonThreadPools.newDaemonThreadPool(
+                "document-event-prefetch-" + idCounter.getAndIncrement() + "-", 1);
+    }
+
+    @Override
+    public void addNewDocumentEvents(Collection<? extends DocumentEvent> documentEvents)
+            throws Exception {
+        delegate.addNewDocumentEvents(documentEvents);
+    }
+
+    @Override
+    public List<? extends DocumentEvent> retrievePriorityDocumentEventsUpTo(int maxEvents)
+            throws Exception {
+        Future<List<? extends DocumentEvent>> nextBatch;
+
+        synchronized (prefetched) {
+            nextBatch = prefetched.isEmpty() ? prefetch(maxEvents) : prefetched.poll();
+        }
+
+        List<? extends DocumentEvent> batch;
+
+        try {
+            batch = nextBatch.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+
+            throw e;
+        }
+
+        // Only a full batch suggests more events are waiting. Otherwise, prefetching would keep
+        // polling the delegate while idle, defeating the polling route's backoff.
+        if (batch.size() >= maxEvents) {
+            synchronized (prefetched) {
+                while (prefetched.size() < maxPrefetchedBatches) {
+                    prefetched.add(prefetch(maxEvents));
+                }
+            }
+        }
+
+        List<DocumentEvent> active = new ArrayList<>(batch.size());
+
+        for (DocumentEvent event : batch) {
+            try {
+                delegate.ensureTransactionActive(event);
+                active.add(event);
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Prefetched event transaction no longer active, dropping: " +
+                            event, e);
+                }
+            }
+        }
+
+        return active;
+    }
+
+    @Override
+    public void ensureTransactionActive(DocumentEvent event) throws Exception {
+        delegate.ensureTransactionActive(event);
+    }
+
+    @Override
+    public void markDocumentEventsPublishedOrFailed(Collection<? extends DocumentEvent> events,
+            Collection<FailedDocumentEvent> failures) throws Exception {
+        delegate.markDocumentEventsPublishedOrFailed(events, failures);
+    }
+
+    private Future<List<? extends DocumentEvent>> prefetch(int maxEvents) {
+        return prefetchExecutor.submit(() -> delegate.retrievePriorityDocumentEventsUpTo(maxEvents));
+    }
+}
@@ -32,14 +32,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class RetryingBatchFailedMessageRoute extends RouteBuilder {
     private final String fromUri;
@@ -47,6 +48,7 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
     private final int maxRetryCount;
     private final Duration processTimeout;
     private final String deadLetterUri;
+    private final EventHandlerMetrics metrics;
 
     private final int idCount = idCounter.getAndIncrement();
     private final String routeId = "failedMessageRetryer-" + idCount;
@@ -58,11 +60,24 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
 
     public RetryingBatchFailedMessageRoute(String fromUri, Expression retryDelayMillis,
             int maxRetryCount, Duration processTimeout, String deadLetterUri) {
+        this(fromUri, retryDelayMillis, maxRetryCount, processTimeout, deadLetterUri,
+                EventHandlerMetrics.none());
+    }
+
+    /**
+     * Like {@link #RetryingBatchFailedMessageRoute(String, Expression, int, Duration, String)},
+     * counting retries, their failures, and dead lettered messages with the route id as their
+     * source.
+     */
+    public RetryingBatchFailedMessageRoute(String fromUri, Expression retryDelayMillis,
+            int maxRetryCount, Duration processTimeout, String deadLetterUri,
+            EventHandlerMetrics metrics) {
         this.fromUri = fromUri;
         this.retryDelayMillis = retryDelayMillis;
         this.maxRetryCount = maxRetryCount;
         this.processTimeout = processTimeout;
         this.deadLetterUri = deadLetterUri;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
     }
 
     @Override
@@ -94,6 +109,8 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
                     log.debug("About to retry {} messages on route {}, attempt #{}: {}",
                             oldFailures.size(), routeId, retryAttempt, oldFailures);
 
+                    metrics.increment(routeId, EventHandlerMetrics.RETRIES, oldFailures.size());
+
                     // Begin processing all failed messages again in parallel.
                     for (Object failureAsObject : oldFailures) {
                         if (!(failureAsObject instanceof FailedMessage)) {
@@ -134,23 +151,31 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
                         reprocessingFailures.add(new ReprocessingFailure(failure, reprocessingFuture));
                     }
 
-                    List<Message> reprocessedSuccessfully = log.isDebugEnabled()
-                            ? new ArrayList<>(reprocessingFailures.size())
-                            : Collections.emptyList();
+                    Map<ReprocessingFailure, Future<Void>> reprocessingFutures =
+                            new LinkedHashMap<>(reprocessingFailures.size());
 
                     for (ReprocessingFailure reprocessingFailure : reprocessingFailures) {
-                        FailedMessage originalFailure = reprocessingFailure.originalFailure;
+                        reprocessingFutures.put(
+                                reprocessingFailure, reprocessingFailure.reprocessingFuture);
+                    }
 
-                        try {
-                            reprocessingFailure.reprocessingFuture
-                                    .get(processTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                    // Wait for reprocessing to complete, all within the same timeout.
+                    BatchAwait.Results<ReprocessingFailure, Void> results =
+                            BatchAwait.awaitAll(reprocessingFutures, processTimeout);
 
-                            if (log.isDebugEnabled()) {
-                                reprocessedSuccessfully.add(originalFailure.parsedMessage().get());
-                            }
-                        } catch (ExecutionException e) {
-                            Message parsedMessage = originalFailure.parsedMessage().get();
+                    List<Message> reprocessedSuccessfully = log.isDebugEnabled()
+                            ? results.succeeded().keySet().stream()
+                                    .map(reprocessed -> reprocessed.originalFailure.parsedMessage().get())
+                                    .collect(Collectors.toList())
+                            : Collections.emptyList();
 
+                    for (Map.Entry<ReprocessingFailure, Exception> reprocessingToFailure
+                            : results.failed().entrySet()) {
+                        FailedMessage originalFailure = reprocessingToFailure.getKey().originalFailure;
+                        Message parsedMessage = originalFailure.parsedMessage().get();
+                        Exception e = reprocessingToFailure.getValue();
+
+                        if (e instanceof ExecutionException) {
                             log.error("Failed to reprocess message (retry attempt #" + retryAttempt +
                                     "): " + parsedMessage, e);
 
@@ -160,9 +185,7 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
                             FailedMessage failure = new FailedMessage(
                                     originalFailure.originalMessage(), parsedMessage, realException);
                             newFailures.add(failure);
-                        } catch (InterruptedException | TimeoutException e) {
-                            Message parsedMessage = originalFailure.parsedMessage().get();
-
+                        } else {
                             log.warn("Timed out reprocessing message (retry attempt #" + retryAttempt +
                                     "): " + parsedMessage, e);
 
@@ -178,6 +201,9 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
                             retryAttempt, reprocessedSuccessfully.size(), oldFailures.size(),
                             routeId, reprocessedSuccessfully);
 
+                    metrics.increment(routeId, EventHandlerMetrics.RETRY_FAILURES,
+                            newFailures.size());
+
                     // Give new failures another shot or dead letter them.
                     exchange.getIn().setBody(newFailures);
                 })
@@ -185,6 +211,8 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
         .end() // end loop
         // If we still have failures, dead letter them.
         .filter(exchangeHasFailures())
+        .process(exchange -> metrics.increment(routeId, EventHandlerMetrics.DEAD_LETTERED,
+                exchange.getIn().getBody(Collection.class).size()))
         .to(deadLetterUri);
     }
 
@@ -195,7 +223,7 @@ public class RetryingBatchFailedMessageRoute extends RouteBuilder {
      * <p>Makes sure the exceptions are not referring to the same object to avoid a infinite
      * recursion.
      */
-    private void suppressPreviousFailureInNewException(FailedMessage previousMsg, Throwable _new) {
+    static void suppressPreviousFailureInNewException(FailedMessage previousMsg, Throwable _new) {
         Throwable previous = previousMsg.exception();
 
         if (areExceptionsEqual(_new, previous)) {
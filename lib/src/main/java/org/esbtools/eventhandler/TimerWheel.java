@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: schedules items to become due after a delay, at a resolution of one tick,
+ * without a thread per delay. Scheduling is O(1). Polling visits only the buckets of ticks which
+ * have passed since the last poll, and each item in those buckets, so it is cheap to poll every
+ * tick.
+ *
+ * <p>The wheel has no thread of its own. Something else, such as a Camel timer, must
+ * {@link #pollDue(long, int) poll} it, usually once per tick. Time is given explicitly, in the
+ * same units as {@link System#nanoTime()}.
+ */
+@ThreadSafe
+final class TimerWheel<T> {
+    private final long tickNanos;
+    private final long startNanos;
+    private final List<List<Scheduled<T>>> buckets;
+    /** Items found due by a poll, but not yet returned because of its {@code max}. */
+    private final Deque<T> due = new ArrayDeque<>();
+
+    /** The next tick whose bucket has not been visited. */
+    private long nextTick = 0;
+    private int size = 0;
+
+    /**
+     * @param wheelSize How many buckets. Items scheduled more than {@code tick * wheelSize} ahead
+     *                  go around the wheel, and are passed over until their tick comes.
+     */
+    TimerWheel(Duration tick, int wheelSize, long startNanos) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive, but was: " + tick);
+        }
+
+        if (wheelSize < 1) {
+            throw new IllegalArgumentException("wheelSize must be at least 1, but was: " +
+                    wheelSize);
+        }
+
+        this.tickNanos = tick.toNanos();
+        this.startNanos = startNanos;
+        this.buckets = new ArrayList<>(wheelSize);
+
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedules {@code item} to be due once {@code delay} has passed since {@code nowNanos},
+     * rounded up to the next tick.
+     */
+    synchronized void schedule(T item, Duration delay, long nowNanos) {
+        long dueNanos = nowNanos - startNanos + Math.max(0, delay.toNanos());
+        long dueTick = Math.max(nextTick, (dueNanos + tickNanos - 1) / tickNanos);
+
+        bucketOf(dueTick).add(new Scheduled<>(item, dueTick));
+        size++;
+    }
+
+    /**
+     * Removes and returns up to {@code max} items which are due at {@code nowNanos}. Items due
+     * at earlier ticks are returned first. Due items beyond {@code max} are returned by later
+     * polls, before any others.
+     */
+    synchronized List<T> pollDue(long nowNanos, int max) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        int visited = 0;
+
+        while (nextTick <= nowTick && visited < buckets.size()) {
+            List<Scheduled<T>> bucket = bucketOf(nextTick);
+
+            if (!bucket.isEmpty()) {
+                List<Scheduled<T>> notYetDue = new ArrayList<>();
+
+                for (Scheduled<T> scheduled : bucket) {
+                    if (scheduled.dueTick <= nowTick) {
+                        due.add(scheduled.item);
+                    } else {
+                        notYetDue.add(scheduled);
+                    }
+                }
+
+                bucket.clear();
+                bucket.addAll(notYetDue);
+            }
+
+            nextTick++;
+            visited++;
+        }
+
+        // Every bucket was visited, so anything due was found. Skip the ticks in between.
+        nextTick = Math.max(nextTick, nowTick + 1);
+
+        List<T> polled = new ArrayList<>(Math.min(max, due.size()));
+
+        while (polled.size() < max && !due.isEmpty()) {
+            polled.add(due.poll());
+        }
+
+        size -= polled.size();
+
+        return polled;
+    }
+
+    /**
+     * @return How many items are scheduled, due or not, which have not been polled.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private List<Scheduled<T>> bucketOf(long tick) {
+        return buckets.get((int) (tick % buckets.size()));
+    }
+
+    @Override
+    public String toString() {
+        return "TimerWheel{" +
+                "tickNanos=" + tickNanos +
+                ", wheelSize=" + buckets.size() +
+                ", size=" + size() +
+                '}';
+    }
+
+    private static final class Scheduled<T> {
+        final T item;
+        final long dueTick;
+
+        Scheduled(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+@RunWith(JUnit4.class)
+public class AdaptivePollingScheduleTest {
+    static final int BATCH_SIZE = 10;
+
+    AdvanceableClock clock = new AdvanceableClock();
+
+    AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(
+            Duration.ofSeconds(1), Duration.ofSeconds(8), clock);
+
+    @Test
+    public void shouldPollImmediatelyAtFirst() {
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldPollAgainImmediatelyAfterFullBatch() {
+        schedule.startPollIfDue();
+        schedule.recordPoll(BATCH_SIZE, BATCH_SIZE);
+
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldWaitMinIntervalAfterPartialBatch() {
+        schedule.startPollIfDue();
+        schedule.recordPoll(BATCH_SIZE - 1, BATCH_SIZE);
+
+        clock.advance(Duration.ofMillis(499));
+        assertFalse(schedule.startPollIfDue());
+
+        clock.advance(Duration.ofMillis(501));
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldPollOnNextTickAfterDrainingBacklogWithinTick() {
+        assertTrue(schedule.startPollIfDue());
+        schedule.recordPoll(BATCH_SIZE, BATCH_SIZE);
+        clock.advance(Duration.ofMillis(400));
+
+        assertTrue(schedule.startPollIfDue());
+        schedule.recordPoll(BATCH_SIZE, BATCH_SIZE);
+        clock.advance(Duration.ofMillis(400));
+
+        assertTrue(schedule.startPollIfDue());
+        schedule.recordPoll(BATCH_SIZE - 1, BATCH_SIZE);
+        clock.advance(Duration.ofMillis(200));
+
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldPollOnTickWhichFiresSlightlyEarlierThanLastOne() {
+        clock.advance(Duration.ofMillis(20));
+        assertTrue(schedule.startPollIfDue());
+        schedule.recordPoll(BATCH_SIZE - 1, BATCH_SIZE);
+
+        clock.advance(Duration.ofMillis(985));
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldBackOffExponentiallyUpToMaxIntervalWhileEmpty() {
+        for (long expectedIntervalSeconds : new long[]{1, 2, 4, 8, 8}) {
+            assertTrue(schedule.startPollIfDue());
+            schedule.recordPoll(0, BATCH_SIZE);
+
+            clock.advance(Duration.ofSeconds(expectedIntervalSeconds).minusMillis(501));
+            assertFalse(schedule.startPollIfDue());
+
+            clock.advance(Duration.ofMillis(501));
+        }
+    }
+
+    @Test
+    public void shouldBackOffAfterFailedPolls() {
+        schedule.startPollIfDue();
+        schedule.recordFailedPoll();
+        clock.advance(Duration.ofSeconds(1));
+
+        schedule.startPollIfDue();
+        schedule.recordFailedPoll();
+        clock.advance(Duration.ofSeconds(1));
+
+        assertFalse(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldResetToMinIntervalOnActivity() {
+        schedule.startPollIfDue();
+        schedule.recordPoll(0, BATCH_SIZE);
+        clock.advance(Duration.ofSeconds(1));
+
+        schedule.startPollIfDue();
+        schedule.recordPoll(0, BATCH_SIZE);
+        clock.advance(Duration.ofSeconds(2));
+
+        schedule.startPollIfDue();
+        schedule.recordPoll(1, BATCH_SIZE);
+        clock.advance(Duration.ofSeconds(1));
+
+        assertTrue(schedule.startPollIfDue());
+    }
+
+    @Test
+    public void shouldPollEveryTickIfMinAndMaxIntervalsAreEqual() {
+        AdaptivePollingSchedule fixed = new AdaptivePollingSchedule(
+                Duration.ofSeconds(1), Duration.ofSeconds(1), clock);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(fixed.startPollIfDue());
+            fixed.recordPoll(0, BATCH_SIZE);
+            clock.advance(Duration.ofSeconds(1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowMaxIntervalLessThanMinInterval() {
+        new AdaptivePollingSchedule(Duration.ofSeconds(2), Duration.ofSeconds(1));
+    }
+
+    static class AdvanceableClock extends Clock {
+        private Instant now = Instant.now();
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -39,10 +39,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @RunWith(JUnit4.class)
@@ -57,9 +64,54 @@ public class AsyncBatchMessageProcessorRouteTest extends CamelTestSupport {
     @EndpointInject(uri = "direct:short_timeout")
     ProducerTemplate toShortTimeout;
 
+    @EndpointInject(uri = "direct:limited_completable")
+    ProducerTemplate toLimitedCompletable;
+
+    @EndpointInject(uri = "direct:limited_plain")
+    ProducerTemplate toLimitedPlain;
+
+    @EndpointInject(uri = "direct:limited_short_timeout")
+    ProducerTemplate toLimitedShortTimeout;
+
+    @EndpointInject(uri = "direct:limited_lazy")
+    ProducerTemplate toLimitedLazy;
+
+    @EndpointInject(uri = "direct:shared_short_timeout")
+    ProducerTemplate toSharedShortTimeout;
+
+    @EndpointInject(uri = "direct:shared")
+    ProducerTemplate toShared;
+
+    @EndpointInject(uri = "direct:circuit_broken")
+    ProducerTemplate toCircuitBroken;
+
+    @EndpointInject(uri = "direct:circuit_broken_transformable")
+    ProducerTemplate toCircuitBrokenTransformable;
+
     @EndpointInject(uri = "mock:failures")
     MockEndpoint toFailures;
 
+    AdaptivePollingScheduleTest.AdvanceableClock clock =
+            new AdaptivePollingScheduleTest.AdvanceableClock();
+
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", /*windowSize:*/ 4,
+            /*minimumCalls:*/ 4, /*failureRateThreshold:*/ 0.5, Duration.ofMinutes(1),
+            /*halfOpenProbes:*/ 1, clock);
+
+    CircuitBreaker transformableCircuitBreaker = new CircuitBreaker("transformable",
+            /*windowSize:*/ 4, /*minimumCalls:*/ 4, /*failureRateThreshold:*/ 0.5,
+            Duration.ofMinutes(1), /*halfOpenProbes:*/ 1, clock);
+
+    ConcurrencyTrackingMessageFactory completableMessageFactory =
+            new ConcurrencyTrackingMessageFactory(true);
+
+    ConcurrencyTrackingMessageFactory plainMessageFactory =
+            new ConcurrencyTrackingMessageFactory(false);
+
+    LazyMessageFactory lazyMessageFactory = new LazyMessageFactory();
+
+    Semaphore sharedPermits = new Semaphore(1);
+
     /**
      * Demonstrates the kind of message parsing behavior a real factory might do by creating one of
      * four types of messages based on the provided object:
@@ -108,6 +160,10 @@ public class AsyncBatchMessageProcessorRouteTest extends CamelTestSupport {
      * Creates two message processor routes: one which reads from "direct:incoming" with a long
      * timeout which should not be hit in normal tests, and another with a very short timeout,
      * reading from "direct:short_timeout", in order to test timeout handling.
+     *
+     * <p>Also creates routes which limit messages in flight, reading from "direct:limited_*", two
+     * which share a limit, reading from "direct:shared*", and two guarded by circuit breakers,
+     * reading from "direct:circuit_broken*".
      */
     @Override
     protected RouteBuilder[] createRouteBuilders() throws Exception {
@@ -115,7 +171,28 @@ public class AsyncBatchMessageProcessorRouteTest extends CamelTestSupport {
                 new AsyncBatchMessageProcessorRoute("direct:incoming", "mock:failures",
                         Duration.ofMinutes(1), messageFactory),
                 new AsyncBatchMessageProcessorRoute("direct:short_timeout", "mock:failures",
-                        Duration.ofMillis(1), messageFactory)
+                        Duration.ofMillis(1), messageFactory),
+                new AsyncBatchMessageProcessorRoute("direct:limited_completable", "mock:failures",
+                        Duration.ofMinutes(1), completableMessageFactory, 2),
+                new AsyncBatchMessageProcessorRoute("direct:limited_plain", "mock:failures",
+                        Duration.ofMinutes(1), plainMessageFactory, 2),
+                new AsyncBatchMessageProcessorRoute("direct:limited_short_timeout",
+                        "mock:failures", Duration.ofMillis(200), messageFactory, 1),
+                new AsyncBatchMessageProcessorRoute("direct:limited_lazy", "mock:failures",
+                        Duration.ofMinutes(1), lazyMessageFactory, 2),
+                new AsyncBatchMessageProcessorRoute("direct:shared_short_timeout",
+                        "mock:failures", Duration.ofMillis(200), messageFactory, sharedPermits,
+                        EventHandlerMetrics.none()),
+                new AsyncBatchMessageProcessorRoute("direct:shared", "mock:failures",
+                        Duration.ofSeconds(5), messageFactory, sharedPermits,
+                        EventHandlerMetrics.none()),
+                new AsyncBatchMessageProcessorRoute("direct:circuit_broken", "mock:failures",
+                        Duration.ofMinutes(1), messageFactory, null, message -> circuitBreaker,
+                        EventHandlerMetrics.none()),
+                new AsyncBatchMessageProcessorRoute("direct:circuit_broken_transformable",
+                        "mock:failures", Duration.ofMinutes(1),
+                        new TransformableMessageFactory(persistence), null,
+                        message -> transformableCircuitBreaker, EventHandlerMetrics.none())
         };
     }
 
@@ -294,6 +371,367 @@ public class AsyncBatchMessageProcessorRouteTest extends CamelTestSupport {
         Truth.assertThat(failedMessage.exception()).isEqualTo(exception);
     }
 
+    @Test(timeout = 5000L)
+    public void shouldProcessNoMoreThanMaxInFlightMessagesAtOnce() throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toLimitedCompletable.sendBody(Collections.nCopies(10, Duration.ofMillis(50)));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).isEmpty();
+        Truth.assertThat(completableMessageFactory.processed.get()).isEqualTo(10);
+        Truth.assertThat(completableMessageFactory.maxInFlight.get()).isEqualTo(2);
+    }
+
+    @Test(timeout = 5000L)
+    public void shouldProcessNoMoreThanMaxInFlightMessagesAtOnceWithPlainFutures()
+            throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toLimitedPlain.sendBody(Collections.nCopies(10, Duration.ofMillis(50)));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).isEmpty();
+        Truth.assertThat(plainMessageFactory.processed.get()).isEqualTo(10);
+        Truth.assertThat(plainMessageFactory.maxInFlight.get()).isEqualTo(2);
+    }
+
+    @Test(timeout = 5000L)
+    public void shouldTimeOutMessagesWhichCouldNotStartBeforeBatchDeadline() throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toLimitedShortTimeout.sendBody(
+                Arrays.asList(Duration.ofMillis(600), Duration.ofMillis(1)));
+
+        toFailures.assertIsSatisfied();
+
+        Collection<?> failures = toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class);
+
+        Truth.assertThat(failures).named("failed messages").hasSize(2);
+
+        for (Object failure : failures) {
+            Truth.assertThat(((FailedMessage) failure).exception())
+                    .isInstanceOf(TimeoutException.class);
+        }
+
+        // Permits of timed out messages are held until they are actually done.
+        toFailures.reset();
+        toFailures.expectedMessageCount(1);
+
+        toLimitedShortTimeout.sendBody(Arrays.asList("limited by last batch"));
+
+        toFailures.assertIsSatisfied();
+
+        Collection<?> stillLimited = toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class);
+
+        Truth.assertThat(stillLimited).named("failed messages").hasSize(1);
+        Truth.assertThat(((FailedMessage) stillLimited.iterator().next()).exception())
+                .isInstanceOf(TimeoutException.class);
+
+        Thread.sleep(600);
+
+        toFailures.reset();
+        toFailures.expectedMessageCount(1);
+
+        toLimitedShortTimeout.sendBody(Arrays.asList("no longer limited by last batch"));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).isEmpty();
+    }
+
+    @Test(timeout = 5000L)
+    public void shouldProcessLazyTransformableFuturesWhileOutOfPermits() throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toLimitedLazy.sendBody(Collections.nCopies(10, Duration.ofMillis(10)));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).isEmpty();
+        Truth.assertThat(lazyMessageFactory.processed.get()).isEqualTo(10);
+    }
+
+    @Test(timeout = 5000L)
+    public void shouldHoldSharedPermitsOfTimedOutMessagesUntilTheyAreDone() throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toSharedShortTimeout.sendBody(Arrays.asList(Duration.ofMillis(600)));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(sharedPermits.availablePermits()).isEqualTo(0);
+
+        toFailures.reset();
+        toFailures.expectedMessageCount(1);
+
+        // Waits for the timed out message of the other route to finish.
+        toShared.sendBody(Arrays.asList("after timed out message"));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).isEmpty();
+        Truth.assertThat(persistence).contains("after timed out message");
+        Truth.assertThat(sharedPermits.availablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldShortCircuitMessagesToFailureUriWhileCircuitBreakerIsOpen()
+            throws Exception {
+        toFailures.expectedMessageCount(2);
+
+        toCircuitBroken.sendBody(Arrays.asList(
+                new Exception("Simulated failure 1"), new Exception("Simulated failure 2"),
+                "success 1", "success 2"));
+        toCircuitBroken.sendBody(Arrays.asList("short circuited"));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        Truth.assertThat(persistence).doesNotContain("short circuited");
+
+        Collection<?> failures = toFailures.getExchanges().get(1).getIn()
+                .getMandatoryBody(Collection.class);
+
+        Truth.assertThat(failures).named("failed messages").hasSize(1);
+        Truth.assertThat(((FailedMessage) failures.iterator().next()).exception())
+                .isInstanceOf(CircuitBreakerOpenException.class);
+    }
+
+    @Test
+    public void shouldOpenCircuitBreakerPartwayThroughBatchAsMessagesComplete() throws Exception {
+        toFailures.expectedMessageCount(1);
+
+        toCircuitBrokenTransformable.sendBody(Arrays.asList(
+                new Exception("Simulated failure 1"), new Exception("Simulated failure 2"),
+                new Exception("Simulated failure 3"), new Exception("Simulated failure 4"),
+                "short circuited in same batch"));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(transformableCircuitBreaker.state())
+                .isEqualTo(CircuitBreaker.State.OPEN);
+        Truth.assertThat(persistence).doesNotContain("short circuited in same batch");
+
+        List<Throwable> failures = ((Collection<?>) toFailures.getExchanges().get(0).getIn()
+                .getMandatoryBody(Collection.class)).stream()
+                .map(failure -> ((FailedMessage) failure).exception())
+                .collect(Collectors.toList());
+
+        Truth.assertThat(failures).hasSize(5);
+        Truth.assertThat(failures.stream()
+                .filter(failure -> failure instanceof CircuitBreakerOpenException)
+                .count()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldProbeAndCloseCircuitBreakerOnceOpenDurationPasses() throws Exception {
+        toCircuitBroken.sendBody(Arrays.asList(
+                new Exception("Simulated failure 1"), new Exception("Simulated failure 2"),
+                new Exception("Simulated failure 3"), new Exception("Simulated failure 4")));
+
+        Truth.assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        clock.advance(Duration.ofMinutes(1));
+        toFailures.reset();
+        toFailures.expectedMessageCount(1);
+
+        toCircuitBroken.sendBody(Arrays.asList("probe", "short circuited while probing"));
+
+        toFailures.assertIsSatisfied();
+
+        Truth.assertThat(persistence).contains("probe");
+        Truth.assertThat(persistence).doesNotContain("short circuited while probing");
+        Truth.assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    /**
+     * Creates messages from durations which take that long to process, tracking how many are
+     * processing at once.
+     */
+    static class ConcurrencyTrackingMessageFactory implements MessageFactory {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        final AtomicInteger processed = new AtomicInteger(0);
+        final boolean completable;
+
+        /**
+         * @param completable Whether messages should return {@link CompletableFuture}s, or
+         *                    futures which cannot notify when they complete.
+         */
+        ConcurrencyTrackingMessageFactory(boolean completable) {
+            this.completable = completable;
+        }
+
+        @Override
+        public Message getMessageForBody(Object body) {
+            Duration duration = (Duration) body;
+
+            return () -> {
+                int nowInFlight = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(nowInFlight, Math::max);
+
+                Callable<Void> work = () -> {
+                    Thread.sleep(duration.toMillis());
+                    processed.incrementAndGet();
+                    inFlight.decrementAndGet();
+                    return null;
+                };
+
+                if (completable) {
+                    return CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return work.call();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                }
+
+                FutureTask<Void> task = new FutureTask<>(work);
+                new Thread(task).start();
+                return task;
+            };
+        }
+    }
+
+    /**
+     * Creates messages which fail with exception bodies, and otherwise persist their body, all
+     * with {@link TransformableFuture}s which are already complete.
+     */
+    static class TransformableMessageFactory implements MessageFactory {
+        private final List<Object> persistence;
+
+        TransformableMessageFactory(List<Object> persistence) {
+            this.persistence = persistence;
+        }
+
+        @Override
+        public Message getMessageForBody(Object body) {
+            if (body instanceof Exception) {
+                return () -> TransformableFuture.immediateFailed((Exception) body);
+            }
+
+            return () -> {
+                persistence.add(body);
+                return TransformableFuture.immediate(null);
+            };
+        }
+    }
+
+    /**
+     * Creates messages whose futures, like those of lightblue's bulk requester, do not process
+     * until their result is asked for.
+     */
+    static class LazyMessageFactory implements MessageFactory {
+        final AtomicInteger processed = new AtomicInteger(0);
+
+        @Override
+        public Message getMessageForBody(Object body) {
+            Duration duration = (Duration) body;
+
+            return () -> new LazyTransformableFuture(() -> {
+                Thread.sleep(duration.toMillis());
+                processed.incrementAndGet();
+                return null;
+            });
+        }
+    }
+
+    static class LazyTransformableFuture implements TransformableFuture<Void> {
+        private final Callable<Void> work;
+        private final List<FutureDoneCallback> callbacks = new ArrayList<>();
+        private boolean done = false;
+
+        LazyTransformableFuture(Callable<Void> work) {
+            this.work = work;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized Void get() throws InterruptedException, ExecutionException {
+            if (!done) {
+                try {
+                    work.call();
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                } finally {
+                    done = true;
+
+                    callbacks.forEach(LazyTransformableFuture::runCallback);
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException {
+            return get();
+        }
+
+        @Override
+        public <U> TransformableFuture<U> transformSync(FutureTransform<Void, U> futureTransform) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <U> TransformableFuture<U> transformAsync(
+                FutureTransform<Void, TransformableFuture<U>> futureTransform) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public TransformableFuture<Void> transformAsyncIgnoringReturn(
+                FutureTransform<Void, TransformableFuture<?>> futureTransform) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized TransformableFuture<Void> whenDoneOrCancelled(
+                FutureDoneCallback callback) {
+            if (done) {
+                runCallback(callback);
+            } else {
+                callbacks.add(callback);
+            }
+
+            return this;
+        }
+
+        private static void runCallback(FutureDoneCallback callback) {
+            try {
+                callback.onDoneOrCancelled();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     static class FutureFailingMessage implements Message {
         private final Exception exception;
 
@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static org.esbtools.eventhandler.RetryingBatchFailedMessageRouteTest.exceptionMessageForRetryAttempt;
+
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.Futures;
+import com.jayway.awaitility.Awaitility;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RoutesBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.test.junit4.CamelTestSupport;
+import org.esbtools.eventhandler.RetryingBatchFailedMessageRouteTest.SuppressedExceptionTraverser;
+import org.esbtools.eventhandler.RetryingBatchFailedMessageRouteTest.TestRetryMessage;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class BackoffRetryingFailedMessageRouteTest extends CamelTestSupport {
+    @EndpointInject(uri = "direct:failure_batches")
+    ProducerTemplate toFailureRetry5Retries;
+
+    @EndpointInject(uri = "direct:failure_batches_long_delay")
+    ProducerTemplate toFailureRetry2SecondDelay;
+
+    @EndpointInject(uri = "direct:failure_batches_waves")
+    ProducerTemplate toFailureRetryInWaves;
+
+    @EndpointInject(uri = "mock:direct:dlq")
+    MockEndpoint toDlq;
+
+    BackoffRetryingFailedMessageRoute longDelayRoute = new BackoffRetryingFailedMessageRoute(
+            "direct:failure_batches_long_delay",
+            /*initialDelay:*/ Duration.ofSeconds(2), /*maxDelay:*/ Duration.ofSeconds(2),
+            /*maxRetryCount:*/ 5, /*processTimeout:*/ Duration.ofSeconds(5), "mock:direct:dlq");
+
+    List<Long> waveSizes = Collections.synchronizedList(new ArrayList<>());
+
+    EventHandlerMetrics recordsWaveSizes = new EventHandlerMetrics() {
+        @Override
+        public void increment(String source, String metric, long delta) {
+        }
+
+        @Override
+        public void recordValue(String source, String metric, long value) {
+            if (EventHandlerMetrics.BATCH_SIZE.equals(metric)) {
+                waveSizes.add(value);
+            }
+        }
+
+        @Override
+        public void recordDuration(String source, String metric, Duration duration) {
+        }
+    };
+
+    @Override
+    protected RoutesBuilder[] createRouteBuilders() throws Exception {
+        return new RoutesBuilder[] {
+                new BackoffRetryingFailedMessageRoute("direct:failure_batches",
+                        /*initialDelay:*/ Duration.ofMillis(10), /*maxDelay:*/ Duration.ofMillis(40),
+                        /*jitter:*/ 0.5, /*maxRetryCount:*/ 5, /*maxWaveSize:*/ 100,
+                        /*tick:*/ Duration.ofMillis(10), /*processTimeout:*/ Duration.ofSeconds(5),
+                        "mock:direct:dlq", EventHandlerMetrics.none()),
+                new BackoffRetryingFailedMessageRoute("direct:failure_batches_waves",
+                        /*initialDelay:*/ Duration.ofMillis(10), /*maxDelay:*/ Duration.ofMillis(10),
+                        /*jitter:*/ 0, /*maxRetryCount:*/ 5, /*maxWaveSize:*/ 100,
+                        /*tick:*/ Duration.ofMillis(500), /*processTimeout:*/ Duration.ofSeconds(5),
+                        "mock:direct:dlq", recordsWaveSizes),
+                longDelayRoute
+        };
+    }
+
+    @Test
+    public void shouldRetryEachMessageUpToMaxRetryCountThenDeadLetterIt() throws Exception {
+        TestRetryMessage alwaysFails = TestRetryMessage.neverRecovering();
+        TestRetryMessage recoversOn3rdTry = TestRetryMessage.recoveringAfter(3);
+
+        toDlq.expectedMessageCount(1);
+
+        toFailureRetry5Retries.sendBody(Arrays.asList(
+                new FailedMessage("fail original", alwaysFails, new Exception("Simulated original failure")),
+                new FailedMessage("original", recoversOn3rdTry, new Exception("Simulated original failure"))));
+
+        toDlq.assertIsSatisfied();
+
+        Collection<FailedMessage> deadLetters =
+                toDlq.getExchanges().get(0).getIn().getMandatoryBody(Collection.class);
+
+        Truth.assertThat(deadLetters).hasSize(1);
+        Truth.assertThat(alwaysFails.processCount).named("times failure retried").isEqualTo(5);
+        Truth.assertThat(recoversOn3rdTry.processCount).named("times failure retried").isEqualTo(3);
+
+        FailedMessage dead = deadLetters.iterator().next();
+
+        assertEquals("fail original", dead.originalMessage());
+        Truth.assertThat(new SuppressedExceptionTraverser().breadthFirstTraversal(dead.exception())
+                .transform(Throwable::getMessage)
+                .toList())
+                .containsExactly(
+                        exceptionMessageForRetryAttempt(5),
+                        exceptionMessageForRetryAttempt(4),
+                        exceptionMessageForRetryAttempt(3),
+                        exceptionMessageForRetryAttempt(2),
+                        exceptionMessageForRetryAttempt(1),
+                        "Simulated original failure")
+                .inOrder();
+    }
+
+    @Test
+    public void shouldReturnBeforeRetryingInsteadOfHoldingTheExchange() throws Exception {
+        TestRetryMessage alwaysFails = TestRetryMessage.neverRecovering();
+
+        Future<?> scheduled = toFailureRetry2SecondDelay.asyncSendBody(
+                toFailureRetry2SecondDelay.getDefaultEndpoint(),
+                Collections.singleton(new FailedMessage("original", alwaysFails,
+                        new Exception("Simulated original failure"))));
+
+        scheduled.get(1, TimeUnit.SECONDS);
+
+        Truth.assertThat(alwaysFails.processCount).isEqualTo(0);
+        Truth.assertThat(longDelayRoute.pendingRetries()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRetryMessagesFromDifferentBatchesInTheSameWave() throws Exception {
+        Message recovers = () -> Futures.immediateFuture(null);
+
+        for (int i = 0; i < 10; i++) {
+            toFailureRetryInWaves.sendBody(Collections.singleton(new FailedMessage(
+                    "original " + i, recovers, new Exception("Simulated failure"))));
+        }
+
+        Awaitility.await().until(
+                () -> waveSizes.stream().mapToLong(Long::longValue).sum(),
+                Matchers.equalTo(10L));
+
+        // All batches were sent well within one 500ms tick, but may straddle a tick boundary.
+        Truth.assertThat(waveSizes.size()).isAtMost(2);
+    }
+
+    @Test
+    public void shouldGrowDelayExponentiallyUpToMaxDelay() {
+        BackoffRetryingFailedMessageRoute noJitter = new BackoffRetryingFailedMessageRoute(
+                "direct:unused", Duration.ofMillis(100), Duration.ofSeconds(1), /*jitter:*/ 0,
+                5, 100, Duration.ofMillis(10), Duration.ofSeconds(5), "mock:direct:dlq",
+                EventHandlerMetrics.none());
+
+        Truth.assertThat(noJitter.delayBefore(1)).isEqualTo(Duration.ofMillis(100));
+        Truth.assertThat(noJitter.delayBefore(2)).isEqualTo(Duration.ofMillis(200));
+        Truth.assertThat(noJitter.delayBefore(4)).isEqualTo(Duration.ofMillis(800));
+        Truth.assertThat(noJitter.delayBefore(5)).isEqualTo(Duration.ofSeconds(1));
+        Truth.assertThat(noJitter.delayBefore(100)).isEqualTo(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void shouldTakeUpToJitterFractionOffEachDelay() {
+        BackoffRetryingFailedMessageRoute halfJitter = new BackoffRetryingFailedMessageRoute(
+                "direct:unused", Duration.ofMillis(100), Duration.ofSeconds(1), /*jitter:*/ 0.5,
+                5, 100, Duration.ofMillis(10), Duration.ofSeconds(5), "mock:direct:dlq",
+                EventHandlerMetrics.none());
+
+        for (int i = 0; i < 100; i++) {
+            Duration delay = halfJitter.delayBefore(2);
+
+            Truth.assertThat(delay).isAtLeast(Duration.ofMillis(100));
+            Truth.assertThat(delay).isAtMost(Duration.ofMillis(200));
+        }
+    }
+
+    @Test
+    public void shouldSendFailuresWithoutMessagesStraightToDlq() throws Exception {
+        FailedMessage noMsgFailure = new FailedMessage("original", new Exception("Simulated failure"));
+
+        toDlq.expectedMessageCount(1);
+
+        toFailureRetry5Retries.sendBody(Collections.singletonList(noMsgFailure));
+
+        toDlq.assertIsSatisfied();
+
+        Collection<FailedMessage> deadLetters =
+                toDlq.getExchanges().get(0).getIn().getMandatoryBody(Collection.class);
+
+        Truth.assertThat(deadLetters).containsExactly(noMsgFailure);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@RunWith(JUnit4.class)
+public class BatchAwaitTest {
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    @After
+    public void shutdownScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test(timeout = 5000)
+    public void shouldWaitNoLongerThanTimeoutForWholeBatch() {
+        Map<String, Future<String>> futures = new LinkedHashMap<>();
+
+        for (int i = 0; i < 10; i++) {
+            futures.put("never" + i, SettableFuture.create());
+        }
+
+        long start = System.nanoTime();
+
+        BatchAwait.Results<String, String> results =
+                BatchAwait.awaitAll(futures, Duration.ofMillis(200));
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Truth.assertThat(elapsedMillis).isLessThan(1000L);
+        Truth.assertThat(results.failed().keySet()).containsExactlyElementsIn(futures.keySet());
+        for (Exception e : results.failed().values()) {
+            Truth.assertThat(e).isInstanceOf(TimeoutException.class);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldCollectResultsCompletedBeforeDeadlineAndFailOnlyStragglers() {
+        SettableFuture<String> completesLater = SettableFuture.create();
+        scheduler.schedule(() -> completesLater.set("later"), 100, TimeUnit.MILLISECONDS);
+
+        Map<String, Future<String>> futures = new LinkedHashMap<>();
+        futures.put("straggler", SettableFuture.create());
+        futures.put("completesLater", completesLater);
+        futures.put("immediate", Futures.immediateFuture("now"));
+        futures.put("failed", Futures.immediateFailedFuture(new RuntimeException("uh oh")));
+
+        BatchAwait.Results<String, String> results =
+                BatchAwait.awaitAll(futures, Duration.ofMillis(500));
+
+        Truth.assertThat(results.succeeded()).isEqualTo(ImmutableMap.of(
+                "completesLater", "later",
+                "immediate", "now"));
+        Truth.assertThat(results.failed().keySet()).containsExactly("straggler", "failed");
+        Truth.assertThat(results.failed().get("straggler")).isInstanceOf(TimeoutException.class);
+        Truth.assertThat(results.failed().get("failed")).isInstanceOf(ExecutionException.class);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+    AdaptivePollingScheduleTest.AdvanceableClock clock =
+            new AdaptivePollingScheduleTest.AdvanceableClock();
+
+    CircuitBreaker breaker = new CircuitBreaker("test", /*windowSize:*/ 10,
+            /*minimumCalls:*/ 5, /*failureRateThreshold:*/ 0.5, Duration.ofSeconds(30),
+            /*halfOpenProbes:*/ 2, clock);
+
+    @Test
+    public void shouldStayClosedUntilMinimumCallsAreMade() {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission().onFailure();
+        }
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+    }
+
+    @Test
+    public void shouldOpenOnceFailuresAndTimeoutsTogetherReachThreshold() {
+        breaker.tryAcquirePermission().onSuccess();
+        breaker.tryAcquirePermission().onSuccess();
+        breaker.tryAcquirePermission().onFailure();
+        breaker.tryAcquirePermission().onTimeout();
+
+        assertThat(breaker.failureRate()).isWithin(0.001).of(0.25);
+        assertThat(breaker.timeoutRate()).isWithin(0.001).of(0.25);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        breaker.tryAcquirePermission().onTimeout();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquirePermission()).isNull();
+    }
+
+    @Test
+    public void shouldOnlyConsiderOutcomesWithinWindow() {
+        for (int i = 0; i < 4; i++) {
+            breaker.tryAcquirePermission().onFailure();
+        }
+
+        for (int i = 0; i < 10; i++) {
+            breaker.tryAcquirePermission().onSuccess();
+        }
+
+        breaker.tryAcquirePermission().onFailure();
+
+        assertThat(breaker.failureRate()).isWithin(0.001).of(0.1);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldLetLimitedProbesThroughOnceOpenDurationPasses() {
+        open();
+
+        clock.advance(Duration.ofSeconds(29));
+        assertThat(breaker.tryAcquirePermission()).isNull();
+
+        clock.advance(Duration.ofSeconds(1));
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+        assertThat(breaker.tryAcquirePermission()).isNull();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void shouldCloseWithFreshWindowOnceAllProbesSucceed() {
+        open();
+        clock.advance(Duration.ofSeconds(30));
+
+        CircuitBreaker.Permission probe1 = breaker.tryAcquirePermission();
+        CircuitBreaker.Permission probe2 = breaker.tryAcquirePermission();
+        probe1.onSuccess();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        probe2.onSuccess();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.failureRate()).isWithin(0.001).of(0);
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+    }
+
+    @Test
+    public void shouldOpenAgainIfAProbeFails() {
+        open();
+        clock.advance(Duration.ofSeconds(30));
+
+        breaker.tryAcquirePermission().onTimeout();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquirePermission()).isNull();
+
+        clock.advance(Duration.ofSeconds(30));
+
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+    }
+
+    @Test
+    public void shouldOpenAgainIfProbesDoNotReportWithinProbeTimeout() {
+        open();
+        clock.advance(Duration.ofSeconds(30));
+
+        CircuitBreaker.Permission probe1 = breaker.tryAcquirePermission();
+        breaker.tryAcquirePermission();
+        probe1.onSuccess();
+
+        clock.advance(Duration.ofSeconds(29));
+
+        assertThat(breaker.tryAcquirePermission()).isNull();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        clock.advance(Duration.ofSeconds(1));
+
+        assertThat(breaker.tryAcquirePermission()).isNull();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        clock.advance(Duration.ofSeconds(30));
+
+        assertThat(breaker.tryAcquirePermission()).isNotNull();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void shouldIgnoreOutcomesOfCallsPermittedBeforeTheBreakerLastChangedState() {
+        CircuitBreaker.Permission lateSuccess = breaker.tryAcquirePermission();
+        CircuitBreaker.Permission lateFailure = breaker.tryAcquirePermission();
+
+        open();
+        clock.advance(Duration.ofSeconds(30));
+
+        CircuitBreaker.Permission probe1 = breaker.tryAcquirePermission();
+        CircuitBreaker.Permission probe2 = breaker.tryAcquirePermission();
+        probe1.onSuccess();
+        lateSuccess.onSuccess();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        lateFailure.onFailure();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        probe2.onSuccess();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldNotCountCancelledCalls() {
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquirePermission().onCancelled();
+        }
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.failureRate()).isWithin(0.001).of(0);
+    }
+
+    @Test
+    public void shouldLetAnotherCallProbeInsteadOfACancelledProbe() {
+        open();
+        clock.advance(Duration.ofSeconds(30));
+
+        CircuitBreaker.Permission probe1 = breaker.tryAcquirePermission();
+        breaker.tryAcquirePermission().onCancelled();
+        CircuitBreaker.Permission probe2 = breaker.tryAcquirePermission();
+
+        assertThat(probe2).isNotNull();
+
+        probe1.onSuccess();
+        probe2.onSuccess();
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldReturnSameBreakerForEqualKeys() {
+        Function<Object, CircuitBreaker> byType = CircuitBreaker.perKey(Object::getClass,
+                type -> new CircuitBreaker(type.getName(), 0.5, Duration.ofSeconds(30)));
+
+        assertThat(byType.apply("a")).isSameAs(byType.apply("b"));
+        assertThat(byType.apply("a")).isNotSameAs(byType.apply(1));
+        assertThat(byType.apply(1).name()).isEqualTo(Integer.class.getName());
+    }
+
+    private void open() {
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquirePermission().onFailure();
+        }
+
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+}
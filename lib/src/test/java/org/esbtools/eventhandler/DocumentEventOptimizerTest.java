@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+
+@RunWith(JUnit4.class)
+public class DocumentEventOptimizerTest {
+    DocumentEventOptimizer<DocumentEvent> optimizer =
+            new DocumentEventOptimizer<>(DocumentEvent::merge);
+
+    RecordingListener listener = new RecordingListener();
+
+    @Test
+    public void shouldDropNewEventsSupersededByKeptEvents() {
+        ValuesEvent kept = new ValuesEvent("a", true, "1", "2");
+
+        optimizer.add(kept, listener);
+        Optional<DocumentEvent> result = optimizer.add(new ValuesEvent("a", true, "1"), listener);
+
+        Truth.assertThat(result.isPresent()).isFalse();
+        Truth.assertThat(optimizer.optimized()).containsExactly(kept);
+        Truth.assertThat(listener.superseded).containsExactly("a[1] by a[1, 2]");
+    }
+
+    @Test
+    public void shouldDropKeptEventsSupersededByNewEventsAndMergeOthers() {
+        optimizer.add(new ValuesEvent("a", true, "1"), listener);
+        optimizer.add(new ValuesEvent("b", true, "1"), listener);
+        optimizer.add(new ValuesEvent("a", true, "2"), listener);
+        optimizer.add(new ValuesEvent("b", true, "1", "3"), listener);
+
+        Truth.assertThat(optimizer.optimized()).hasSize(2);
+        Truth.assertThat(listener.superseded).containsExactly("b[1] by b[1, 3]");
+        Truth.assertThat(listener.merged).containsExactly("a[1] and a[2] into a[1, 2]");
+    }
+
+    @Test
+    public void shouldOnlyCompareKeyedEventsWithEventsOfEqualKeyOrWithoutKey() {
+        for (int i = 0; i < 100; i++) {
+            optimizer.add(new ValuesEvent("key" + i, true, "1"), listener);
+        }
+
+        optimizer.add(new ValuesEvent("unkeyed", false, "1"), listener);
+
+        ValuesEvent.comparisons = 0;
+        optimizer.add(new ValuesEvent("key0", true, "2"), listener);
+
+        // At most three comparisons each with key0 and unkeyed, rather than with all 101 events.
+        Truth.assertThat(ValuesEvent.comparisons).isAtMost(6);
+        Truth.assertThat(optimizer.size()).isEqualTo(101);
+    }
+
+    @Test
+    public void shouldCompareEventsWithoutKeyWithAllKeptEvents() {
+        optimizer.add(new ValuesEvent("a", true, "1"), listener);
+        optimizer.add(new ValuesEvent("b", true, "1"), listener);
+
+        ValuesEvent.comparisons = 0;
+        optimizer.add(new ValuesEvent("c", false, "1"), listener);
+
+        Truth.assertThat(ValuesEvent.comparisons).isAtLeast(2);
+    }
+
+    @Test
+    public void shouldKeepOrderOfRemainingEventsWithoutKeyAfterDroppingSome() {
+        optimizer.add(new ValuesEvent("a", false, "1"), listener);
+        optimizer.add(new ValuesEvent("b", false, "1"), listener);
+        optimizer.add(new ValuesEvent("c", false, "1"), listener);
+        optimizer.add(new ValuesEvent("b", false, "1", "2"), listener);
+        optimizer.add(new ValuesEvent("a", false, "2"), listener);
+
+        Truth.assertThat(toStrings(optimizer.optimized()))
+                .containsExactly("c[1]", "b[1, 2]", "a[1, 2]")
+                .inOrder();
+        Truth.assertThat(listener.superseded).containsExactly("b[1] by b[1, 2]");
+        Truth.assertThat(listener.merged).containsExactly("a[1] and a[2] into a[1, 2]");
+    }
+
+    @Test
+    public void shouldOptimizeSameAsWithoutKeysRegardlessOfWhichEventsHaveKeys() {
+        DocumentEventOptimizer<DocumentEvent> unkeyedOptimizer =
+                new DocumentEventOptimizer<>(DocumentEvent::merge);
+
+        for (int i = 0; i < 200; i++) {
+            String key = "key" + (i % 7);
+            String value = Integer.toString(i % 5);
+
+            optimizer.add(new ValuesEvent(key, i % 3 != 0, value), listener);
+            unkeyedOptimizer.add(new ValuesEvent(key, false, value), new RecordingListener());
+        }
+
+        Truth.assertThat(toStrings(optimizer.optimized()))
+                .containsExactlyElementsIn(toStrings(unkeyedOptimizer.optimized()))
+                .inOrder();
+    }
+
+    @Test
+    public void shouldNotOptimizeWithRemovedEvents() {
+        ValuesEvent removed = new ValuesEvent("a", true, "1", "2");
+
+        optimizer.add(removed, listener);
+        optimizer.remove(removed);
+
+        Truth.assertThat(optimizer.wouldOptimize(new ValuesEvent("a", true, "1"))).isFalse();
+        Truth.assertThat(optimizer.isEmpty()).isTrue();
+    }
+
+    static List<String> toStrings(List<DocumentEvent> events) {
+        List<String> strings = new ArrayList<>(events.size());
+
+        for (DocumentEvent event : events) {
+            strings.add(event.toString());
+        }
+
+        return strings;
+    }
+
+    static class RecordingListener implements DocumentEventOptimizer.Listener<DocumentEvent> {
+        final List<String> superseded = new ArrayList<>();
+        final List<String> merged = new ArrayList<>();
+
+        @Override
+        public void superseded(DocumentEvent superseded, DocumentEvent survivor) {
+            this.superseded.add(superseded + " by " + survivor);
+        }
+
+        @Override
+        public void merged(DocumentEvent previous, DocumentEvent newOrMerger,
+                DocumentEvent merger) {
+            merged.add(previous + " and " + newOrMerger + " into " + merger);
+        }
+    }
+
+    /**
+     * Supersedes events of the same key whose values it includes, and merges with events of the
+     * same key which have other values. Optionally exposes its key as its optimization key.
+     */
+    static class ValuesEvent implements DocumentEvent {
+        static int comparisons = 0;
+
+        final String key;
+        final boolean indexed;
+        final Set<String> values;
+
+        ValuesEvent(String key, boolean indexed, String... values) {
+            this(key, indexed, ImmutableSet.copyOf(values));
+        }
+
+        ValuesEvent(String key, boolean indexed, Set<String> values) {
+            this.key = key;
+            this.indexed = indexed;
+            this.values = values;
+        }
+
+        @Override
+        public Future<?> lookupDocument() {
+            return Futures.immediateFuture(toString());
+        }
+
+        @Override
+        public boolean isSupersededBy(DocumentEvent event) {
+            comparisons++;
+            return event instanceof ValuesEvent
+                    && key.equals(((ValuesEvent) event).key)
+                    && ((ValuesEvent) event).values.containsAll(values);
+        }
+
+        @Override
+        public boolean couldMergeWith(DocumentEvent event) {
+            comparisons++;
+            return event instanceof ValuesEvent
+                    && key.equals(((ValuesEvent) event).key)
+                    && !((ValuesEvent) event).values.containsAll(values)
+                    && !values.containsAll(((ValuesEvent) event).values);
+        }
+
+        @Override
+        public DocumentEvent merge(DocumentEvent event) {
+            ValuesEvent other = (ValuesEvent) event;
+            Set<String> merged = new HashSet<>(values);
+            merged.addAll(other.values);
+
+            return new ValuesEvent(key, indexed && other.indexed, merged);
+        }
+
+        @Override
+        public Optional<?> optimizationKey() {
+            return indexed ? Optional.of(key) : Optional.empty();
+        }
+
+        @Override
+        public String toString() {
+            return key + new TreeSet<>(values);
+        }
+    }
+}
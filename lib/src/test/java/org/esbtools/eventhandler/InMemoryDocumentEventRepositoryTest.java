@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class InMemoryDocumentEventRepositoryTest {
+    AdaptivePollingScheduleTest.AdvanceableClock clock =
+            new AdaptivePollingScheduleTest.AdvanceableClock();
+
+    InMemoryDocumentEventRepository repository = newRepository(100, Duration.ofSeconds(5));
+
+    @Test
+    public void shouldRetrieveHighestPriorityThenOldestEventsFirst() throws Exception {
+        KeyedEvent low = new KeyedEvent("a", 1, "1");
+        KeyedEvent high = new KeyedEvent("b", 5, "1");
+        KeyedEvent olderLow = new KeyedEvent("c", 1, "1");
+
+        repository.addNewDocumentEvents(Arrays.asList(olderLow, low, high));
+
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10))
+                .containsExactly(high, olderLow, low).inOrder();
+    }
+
+    @Test
+    public void shouldDropNewEventsSupersededByWaitingEventsOfSameIdentity() throws Exception {
+        KeyedEvent both = new KeyedEvent("a", 1, "1", "2");
+
+        repository.addNewDocumentEvents(Collections.singleton(both));
+        repository.addNewDocumentEvents(Collections.singleton(new KeyedEvent("a", 1, "1")));
+
+        Truth.assertThat(repository.size()).isEqualTo(1);
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).containsExactly(both);
+    }
+
+    @Test
+    public void shouldReplaceWaitingEventsSupersededByNewEventOfSameIdentity() throws Exception {
+        KeyedEvent both = new KeyedEvent("a", 1, "1", "2");
+
+        repository.addNewDocumentEvents(Collections.singleton(new KeyedEvent("a", 1, "1")));
+        repository.addNewDocumentEvents(Collections.singleton(both));
+
+        Truth.assertThat(repository.size()).isEqualTo(1);
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).containsExactly(both);
+    }
+
+    @Test
+    public void shouldMergeEventsOfSameIdentityKeepingEarliestPositionAndHighestPriority()
+            throws Exception {
+        repository.addNewDocumentEvents(Arrays.asList(
+                new KeyedEvent("a", 1, "1"),
+                new KeyedEvent("b", 2, "1"),
+                new KeyedEvent("a", 3, "2")));
+
+        List<? extends DocumentEvent> retrieved = repository.retrievePriorityDocumentEventsUpTo(10);
+
+        Truth.assertThat(retrieved).hasSize(2);
+        Truth.assertThat(((KeyedEvent) retrieved.get(0)).values).containsExactly("1", "2");
+        Truth.assertThat(((KeyedEvent) retrieved.get(1)).key).isEqualTo("b");
+    }
+
+    @Test
+    public void shouldNotRetrieveEventsOfAnIdentityWhileAnotherOfItIsProcessing() throws Exception {
+        KeyedEvent first = new KeyedEvent("a", 1, "1");
+        KeyedEvent second = new KeyedEvent("a", 1, "2");
+
+        repository.addNewDocumentEvents(Collections.singleton(first));
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).containsExactly(first);
+
+        repository.addNewDocumentEvents(Collections.singleton(second));
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).isEmpty();
+
+        repository.markDocumentEventsPublishedOrFailed(Collections.singleton(first),
+                Collections.emptyList());
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).containsExactly(second);
+    }
+
+    @Test
+    public void shouldEndTransactionsOnlyWhenPublishedFailedOrTimedOut() throws Exception {
+        KeyedEvent published = new KeyedEvent("a", 1, "1");
+        KeyedEvent failed = new KeyedEvent("b", 1, "1");
+        KeyedEvent timedOut = new KeyedEvent("c", 1, "1");
+
+        repository.addNewDocumentEvents(Arrays.asList(published, failed, timedOut));
+        repository.retrievePriorityDocumentEventsUpTo(10);
+
+        repository.ensureTransactionActive(timedOut);
+
+        repository.markDocumentEventsPublishedOrFailed(Collections.singleton(published),
+                Collections.singleton(new FailedDocumentEvent(failed, new Exception("fake"))));
+
+        assertTransactionNotActive(published);
+        assertTransactionNotActive(failed);
+
+        clock.advance(Duration.ofSeconds(6));
+
+        assertTransactionNotActive(timedOut);
+        Truth.assertThat(repository.size()).isEqualTo(1);
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).containsExactly(timedOut);
+    }
+
+    @Test
+    public void shouldFailToAddEventsOnceFullAndWaitedMaxWaitForCapacity() throws Exception {
+        InMemoryDocumentEventRepository repository = newRepository(2, Duration.ofMillis(100));
+
+        repository.addNewDocumentEvents(Arrays.asList(
+                new KeyedEvent("a", 1, "1"), new KeyedEvent("b", 1, "1")));
+
+        try {
+            repository.addNewDocumentEvents(Collections.singleton(new KeyedEvent("c", 1, "1")));
+            Assert.fail("Expected to fail adding event to full repository.");
+        } catch (EventHandlerException expected) {
+        }
+
+        // Events which merge with waiting events still fit.
+        repository.addNewDocumentEvents(Collections.singleton(new KeyedEvent("a", 1, "2")));
+
+        Truth.assertThat(repository.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldAddEventsBlockedOnCapacityOnceEventsArePublished() throws Exception {
+        InMemoryDocumentEventRepository repository = newRepository(1, Duration.ofSeconds(10));
+        KeyedEvent first = new KeyedEvent("a", 1, "1");
+        KeyedEvent second = new KeyedEvent("b", 1, "1");
+
+        repository.addNewDocumentEvents(Collections.singleton(first));
+
+        CompletableFuture<Void> blockedAdd = CompletableFuture.runAsync(() -> {
+            try {
+                repository.addNewDocumentEvents(Collections.singleton(second));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(200);
+        Truth.assertThat(blockedAdd.isDone()).isFalse();
+
+        repository.retrievePriorityDocumentEventsUpTo(1);
+        repository.markDocumentEventsPublishedOrFailed(Collections.singleton(first),
+                Collections.emptyList());
+
+        blockedAdd.get(5, TimeUnit.SECONDS);
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(1)).containsExactly(second);
+    }
+
+    private InMemoryDocumentEventRepository newRepository(int capacity,
+            Duration maxWaitForCapacity) {
+        return new InMemoryDocumentEventRepository(event -> ((KeyedEvent) event).key,
+                event -> ((KeyedEvent) event).priority, capacity, maxWaitForCapacity,
+                Duration.ofSeconds(5), clock);
+    }
+
+    private void assertTransactionNotActive(DocumentEvent event) {
+        try {
+            repository.ensureTransactionActive(event);
+            Assert.fail("Expected transaction to not be active for event: " + event);
+        } catch (Exception expected) {
+        }
+    }
+
+    /**
+     * Supersedes events of the same key whose values it includes, and merges with events of the
+     * same key which have other values.
+     */
+    static class KeyedEvent implements DocumentEvent {
+        final String key;
+        final int priority;
+        final Set<String> values;
+
+        KeyedEvent(String key, int priority, String... values) {
+            this(key, priority, ImmutableSet.copyOf(values));
+        }
+
+        KeyedEvent(String key, int priority, Set<String> values) {
+            this.key = key;
+            this.priority = priority;
+            this.values = values;
+        }
+
+        @Override
+        public Future<?> lookupDocument() {
+            return Futures.immediateFuture(key + values);
+        }
+
+        @Override
+        public boolean isSupersededBy(DocumentEvent event) {
+            return event instanceof KeyedEvent
+                    && key.equals(((KeyedEvent) event).key)
+                    && ((KeyedEvent) event).values.containsAll(values);
+        }
+
+        @Override
+        public boolean couldMergeWith(DocumentEvent event) {
+            return event instanceof KeyedEvent
+                    && key.equals(((KeyedEvent) event).key)
+                    && !isSupersededBy(event)
+                    && !event.isSupersededBy(this);
+        }
+
+        @Override
+        public DocumentEvent merge(DocumentEvent event) {
+            if (!couldMergeWith(event)) {
+                throw new UnsupportedOperationException();
+            }
+
+            KeyedEvent other = (KeyedEvent) event;
+            Set<String> merged = new HashSet<>(values);
+            merged.addAll(other.values);
+
+            return new KeyedEvent(key, Math.max(priority, other.priority), merged);
+        }
+
+        @Override
+        public String toString() {
+            return key + values;
+        }
+    }
+}
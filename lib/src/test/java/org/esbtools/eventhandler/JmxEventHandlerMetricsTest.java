@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.time.Duration;
+
+@RunWith(JUnit4.class)
+public class JmxEventHandlerMetricsTest {
+    MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+    JmxEventHandlerMetrics metrics = new JmxEventHandlerMetrics(mBeanServer, "test");
+
+    @After
+    public void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    public void shouldExposeCountsAsCounterMBeans() throws Exception {
+        metrics.increment("route-1", EventHandlerMetrics.PUBLISHED, 3);
+        metrics.increment("route-1", EventHandlerMetrics.PUBLISHED, 2);
+
+        assertThat(mBeanServer.getAttribute(objectName("route-1", "published"), "Count"))
+                .isEqualTo(5L);
+    }
+
+    @Test
+    public void shouldExposeDurationsInMillisecondsAsDistributionMBeans() throws Exception {
+        metrics.recordDuration("route-1", EventHandlerMetrics.LOOKUP, Duration.ofMillis(30));
+        metrics.recordDuration("route-1", EventHandlerMetrics.LOOKUP, Duration.ofMillis(10));
+
+        ObjectName lookup = objectName("route-1", "lookup");
+
+        assertThat(mBeanServer.getAttribute(lookup, "Count")).isEqualTo(2L);
+        assertThat(mBeanServer.getAttribute(lookup, "Min")).isEqualTo(10L);
+        assertThat(mBeanServer.getAttribute(lookup, "Max")).isEqualTo(30L);
+        assertThat(mBeanServer.getAttribute(lookup, "Mean")).isEqualTo(20.0);
+        assertThat(mBeanServer.getAttribute(lookup, "Last")).isEqualTo(10L);
+        assertThat(mBeanServer.getAttribute(lookup, "Unit")).isEqualTo("milliseconds");
+    }
+
+    @Test
+    public void shouldKeepMetricsOfDifferentSourcesSeparate() throws Exception {
+        metrics.recordValue("route-1", EventHandlerMetrics.BATCH_SIZE, 10);
+        metrics.recordValue("route-2", EventHandlerMetrics.BATCH_SIZE, 20);
+
+        assertThat(mBeanServer.getAttribute(objectName("route-1", "batchSize"), "Total"))
+                .isEqualTo(10L);
+        assertThat(mBeanServer.getAttribute(objectName("route-2", "batchSize"), "Total"))
+                .isEqualTo(20L);
+    }
+
+    @Test
+    public void shouldUnregisterMBeansWhenClosed() throws Exception {
+        metrics.increment("route-1", EventHandlerMetrics.RETRIES, 1);
+
+        metrics.close();
+
+        assertThat(mBeanServer.isRegistered(objectName("route-1", "retries"))).isFalse();
+    }
+
+    private static ObjectName objectName(String source, String metric) throws Exception {
+        return new ObjectName("test:type=EventHandlerMetrics,source=" + ObjectName.quote(source) +
+                ",name=" + ObjectName.quote(metric));
+    }
+}
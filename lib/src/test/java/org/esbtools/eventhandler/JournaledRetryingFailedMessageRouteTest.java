@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.Futures;
+import com.jayway.awaitility.Awaitility;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RoutesBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.test.junit4.CamelTestSupport;
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class JournaledRetryingFailedMessageRouteTest extends CamelTestSupport {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @EndpointInject(uri = "direct:failure_batches")
+    ProducerTemplate toFailureRetry5Retries;
+
+    @EndpointInject(uri = "direct:failure_batches_long_delay")
+    ProducerTemplate toFailureRetry2SecondDelay;
+
+    @EndpointInject(uri = "mock:direct:dlq")
+    MockEndpoint toDlq;
+
+    MappedRetryJournal journal;
+    MappedRetryJournal longDelayJournal;
+
+    /** Process count per body, which survives parsing bodies again for each retry. */
+    ConcurrentMap<Object, AtomicInteger> processCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Parses bodies like "recover after 3" into messages which fail until processed that many
+     * times, and any other body into messages which always fail.
+     */
+    MessageFactory messageFactory = body -> () -> {
+        int processCount = processCounts.computeIfAbsent(body, b -> new AtomicInteger())
+                .incrementAndGet();
+        String recoverAfter = ((String) body).replace("recover after ", "");
+
+        if (!recoverAfter.equals(body) && processCount == Integer.parseInt(recoverAfter)) {
+            return Futures.immediateFuture(null);
+        }
+
+        return Futures.immediateFailedFuture(new Exception(
+                RetryingBatchFailedMessageRouteTest.exceptionMessageForRetryAttempt(processCount)));
+    };
+
+    @Override
+    protected RoutesBuilder[] createRouteBuilders() throws Exception {
+        journal = new MappedRetryJournal(temporaryFolder.newFolder().toPath(), 1024 * 1024,
+                MappedRetryJournal.BodyCodec.javaSerialization());
+        longDelayJournal = new MappedRetryJournal(temporaryFolder.newFolder().toPath(),
+                1024 * 1024, MappedRetryJournal.BodyCodec.javaSerialization());
+
+        return new RoutesBuilder[] {
+                new JournaledRetryingFailedMessageRoute("direct:failure_batches", journal,
+                        messageFactory, /*initialDelay:*/ Duration.ofMillis(10),
+                        /*maxDelay:*/ Duration.ofMillis(40), /*jitter:*/ 0.5,
+                        /*maxRetryCount:*/ 5, /*maxWaveSize:*/ 100, /*tick:*/ Duration.ofMillis(10),
+                        /*processTimeout:*/ Duration.ofSeconds(5), "mock:direct:dlq",
+                        EventHandlerMetrics.none()),
+                new JournaledRetryingFailedMessageRoute("direct:failure_batches_long_delay",
+                        longDelayJournal, messageFactory, /*initialDelay:*/ Duration.ofSeconds(2),
+                        /*maxDelay:*/ Duration.ofSeconds(2), /*maxRetryCount:*/ 5,
+                        /*processTimeout:*/ Duration.ofSeconds(5), "mock:direct:dlq")
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        journal.close();
+        longDelayJournal.close();
+    }
+
+    @Test
+    public void shouldRetryJournaledBodiesUpToMaxRetryCountThenDeadLetterThem() throws Exception {
+        toDlq.expectedMessageCount(1);
+
+        toFailureRetry5Retries.sendBody(Arrays.asList(
+                new FailedMessage("always fails", messageFactory.getMessageForBody("always fails"),
+                        new Exception("Simulated original failure")),
+                new FailedMessage("recover after 3",
+                        messageFactory.getMessageForBody("recover after 3"),
+                        new Exception("Simulated original failure"))));
+
+        toDlq.assertIsSatisfied();
+
+        Collection<FailedMessage> deadLetters =
+                toDlq.getExchanges().get(0).getIn().getMandatoryBody(Collection.class);
+
+        Truth.assertThat(deadLetters).hasSize(1);
+
+        FailedMessage dead = deadLetters.iterator().next();
+
+        assertEquals("always fails", dead.originalMessage());
+        assertEquals(RetryingBatchFailedMessageRouteTest.exceptionMessageForRetryAttempt(5),
+                dead.exception().getMessage());
+        Truth.assertThat(processCounts.get("always fails").get()).isEqualTo(5);
+        Truth.assertThat(processCounts.get("recover after 3").get()).isEqualTo(3);
+
+        // Dead lettered entries are completed just after they are sent.
+        Awaitility.await().until(journal::size, Matchers.equalTo(0));
+    }
+
+    @Test
+    public void shouldRetryWaveWhoseDeadLettersFailedToSend() throws Exception {
+        toDlq.whenExchangeReceived(1, exchange -> {
+            throw new Exception("Simulated dead letter failure");
+        });
+        toDlq.expectedMessageCount(2);
+
+        toFailureRetry5Retries.sendBody(Arrays.asList(
+                new FailedMessage("always fails", messageFactory.getMessageForBody("always fails"),
+                        new Exception("Simulated original failure"))));
+
+        toDlq.assertIsSatisfied();
+
+        // Put back at its last attempt when sending failed, so retried once more.
+        Truth.assertThat(processCounts.get("always fails").get()).isEqualTo(6);
+        Awaitility.await().until(journal::size, Matchers.equalTo(0));
+    }
+
+    @Test
+    public void shouldJournalFailuresAndReturnBeforeRetrying() throws Exception {
+        toFailureRetry2SecondDelay.sendBody(Collections.singleton(new FailedMessage(
+                "always fails", messageFactory.getMessageForBody("always fails"),
+                new Exception("Simulated original failure"))));
+
+        Truth.assertThat(longDelayJournal.size()).isEqualTo(1);
+        Truth.assertThat(processCounts).isEmpty();
+    }
+
+    @Test
+    public void shouldSendFailuresWithoutMessagesStraightToDlq() throws Exception {
+        FailedMessage noMsgFailure = new FailedMessage("original", new Exception("Simulated failure"));
+
+        toDlq.expectedMessageCount(1);
+
+        toFailureRetry5Retries.sendBody(Collections.singletonList(noMsgFailure));
+
+        toDlq.assertIsSatisfied();
+
+        Collection<FailedMessage> deadLetters =
+                toDlq.getExchanges().get(0).getIn().getMandatoryBody(Collection.class);
+
+        Truth.assertThat(deadLetters).containsExactly(noMsgFailure);
+        Truth.assertThat(journal.size()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@RunWith(JUnit4.class)
+public class MappedRetryJournalTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    static final Instant NOW = Instant.parse("2016-05-01T12:00:00Z");
+
+    Path directory;
+    MappedRetryJournal journal;
+
+    @Before
+    public void openJournal() throws IOException {
+        directory = temporaryFolder.getRoot().toPath().resolve("journal");
+        journal = newJournal(100);
+    }
+
+    @After
+    public void closeJournal() {
+        journal.close();
+    }
+
+    @Test
+    public void shouldPollEntriesOnlyOnceDueSoonestFirst() throws Exception {
+        journal.append("later", 1, NOW.plusSeconds(2));
+        journal.append("sooner", 1, NOW.plusSeconds(1));
+        journal.append("not yet", 1, NOW.plusSeconds(3));
+
+        assertThat(journal.pollDue(NOW, 10)).isEmpty();
+        assertThat(bodiesOf(journal.pollDue(NOW.plusSeconds(2), 10)))
+                .containsExactly("sooner", "later").inOrder();
+        assertThat(journal.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldPollRescheduledEntriesWithNewAttemptOnceDueAgain() throws Exception {
+        journal.append("retry me", 1, NOW);
+
+        MappedRetryJournal.Entry entry = journal.pollDue(NOW, 10).get(0);
+        journal.reschedule(entry, 2, NOW.plusSeconds(5));
+
+        assertThat(journal.pollDue(NOW.plusSeconds(4), 10)).isEmpty();
+
+        List<MappedRetryJournal.Entry> due = journal.pollDue(NOW.plusSeconds(5), 10);
+
+        assertThat(due).containsExactly(entry);
+        assertThat(entry.attempt()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldPollEntriesPutBackAgainUnlessRescheduledOrCompleted() throws Exception {
+        journal.append("put back", 1, NOW);
+        journal.append("rescheduled", 1, NOW);
+        journal.append("completed", 1, NOW);
+
+        List<MappedRetryJournal.Entry> polled = journal.pollDue(NOW, 10);
+        journal.reschedule(polled.get(1), 2, NOW.plusSeconds(5));
+        journal.complete(polled.get(2));
+
+        for (MappedRetryJournal.Entry entry : polled) {
+            journal.putBack(entry);
+        }
+
+        List<MappedRetryJournal.Entry> due = journal.pollDue(NOW, 10);
+
+        assertThat(bodiesOf(due)).containsExactly("put back");
+        assertThat(due.get(0).attempt()).isEqualTo(1);
+        assertThat(journal.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRecoverIncompleteEntriesIncludingPolledOnesAfterReopening() throws Exception {
+        journal.append("completed", 1, NOW);
+        journal.append("rescheduled", 1, NOW);
+        journal.append("polled", 1, NOW);
+        journal.append("waiting", 1, NOW.plusSeconds(10));
+
+        List<MappedRetryJournal.Entry> due = journal.pollDue(NOW, 10);
+        journal.complete(due.get(0));
+        journal.reschedule(due.get(1), 3, NOW.plusSeconds(1));
+
+        journal.close();
+        journal = newJournal(100);
+
+        assertThat(journal.size()).isEqualTo(3);
+
+        List<MappedRetryJournal.Entry> recovered = journal.pollDue(NOW.plusSeconds(10), 10);
+
+        assertThat(bodiesOf(recovered))
+                .containsExactly("polled", "rescheduled", "waiting").inOrder();
+        assertThat(recovered.get(1).attempt()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRotateSegmentsAndDeleteThoseWhoseEntriesAreAllComplete() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            journal.append("body " + i, 1, NOW);
+        }
+
+        assertThat(segmentFiles()).isAtLeast(3L);
+
+        List<MappedRetryJournal.Entry> due = journal.pollDue(NOW, 10);
+
+        for (MappedRetryJournal.Entry entry : due.subList(0, 9)) {
+            journal.complete(entry);
+        }
+
+        // Only the newest segment, which is still written to, remains.
+        assertThat(segmentFiles()).isEqualTo(1L);
+        assertThat(due.get(9).body()).isEqualTo("body 9");
+    }
+
+    @Test
+    public void shouldCompactIncompleteEntriesOutOfMostlyCompleteSegments() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            journal.append("body " + i, i, NOW.plusSeconds(i));
+        }
+
+        long segmentsBefore = segmentFiles();
+        List<MappedRetryJournal.Entry> due = journal.pollDue(NOW.plusSeconds(9), 10);
+        List<MappedRetryJournal.Entry> keep = new ArrayList<>();
+
+        for (MappedRetryJournal.Entry entry : due) {
+            if (entry.attempt() % 3 == 0) {
+                keep.add(entry);
+            } else {
+                journal.complete(entry);
+            }
+        }
+
+        journal.compact();
+
+        assertThat(segmentFiles()).isLessThan(segmentsBefore);
+        assertThat(bodiesOf(keep)).containsExactly("body 0", "body 3", "body 6", "body 9")
+                .inOrder();
+
+        journal.reschedule(keep.get(0), 1, NOW);
+        journal.close();
+        journal = newJournal(100);
+
+        assertThat(bodiesOf(journal.pollDue(NOW.plusSeconds(9), 10)))
+                .containsExactly("body 0", "body 3", "body 6", "body 9").inOrder();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectBodiesTooLargeForASegment() throws Exception {
+        journal.append(new String(new char[256]), 1, NOW);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotCompleteEntriesTwice() throws Exception {
+        MappedRetryJournal.Entry entry = journal.append("body", 1, NOW);
+
+        journal.complete(entry);
+        journal.complete(entry);
+    }
+
+    private MappedRetryJournal newJournal(int segmentSize) throws IOException {
+        return new MappedRetryJournal(directory, segmentSize,
+                MappedRetryJournal.BodyCodec.javaSerialization());
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static List<Object> bodiesOf(List<MappedRetryJournal.Entry> entries) {
+        return entries.stream().map(entry -> {
+            try {
+                return entry.body();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }).collect(Collectors.toList());
+    }
+}
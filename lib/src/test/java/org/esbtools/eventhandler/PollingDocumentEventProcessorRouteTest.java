@@ -25,6 +25,7 @@ import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.test.junit4.CamelTestSupport;
 import org.esbtools.eventhandler.testing.FailingDocumentEvent;
+import org.esbtools.eventhandler.testing.RecordingEventHandlerMetrics;
 import org.esbtools.eventhandler.testing.SimpleInMemoryDocumentEventRepository;
 import org.esbtools.eventhandler.testing.StringDocumentEvent;
 import org.hamcrest.Matchers;
@@ -39,6 +40,7 @@ import java.util.concurrent.TimeUnit;
 
 public class PollingDocumentEventProcessorRouteTest extends CamelTestSupport {
     SimpleInMemoryDocumentEventRepository documentEventRepository = new SimpleInMemoryDocumentEventRepository();
+    RecordingEventHandlerMetrics metrics = new RecordingEventHandlerMetrics();
 
     @EndpointInject(uri = "mock:documents")
     MockEndpoint documentEndpoint;
@@ -48,8 +50,87 @@ public class PollingDocumentEventProcessorRouteTest extends CamelTestSupport {
 
     @Override
     protected RouteBuilder createRouteBuilder() throws Exception {
-        return new PollingDocumentEventProcessorRoute(documentEventRepository, Duration.ofSeconds(1),Duration.ofSeconds(3),
-                10, "mock:documents", "mock:failures", "documentEventProcessor-123");
+        return new PollingDocumentEventProcessorRoute(documentEventRepository, Duration.ofSeconds(1),
+                Duration.ofSeconds(4), Duration.ofSeconds(3), 10, "mock:documents", "mock:failures",
+                "documentEventProcessor-123", 10, metrics);
+    }
+
+    @Test
+    public void shouldPollAgainImmediatelyAfterFullBatch() throws Exception {
+        documentEndpoint.expectedMessageCount(35);
+
+        documentEventRepository.addNewDocumentEvents(randomSuccessfulEvents(35));
+
+        documentEndpoint.assertIsSatisfied();
+
+        List<Long> batchSizes = metrics.values(EventHandlerMetrics.BATCH_SIZE);
+        List<Long> pollTimes = metrics.nanoTimes(EventHandlerMetrics.BATCH_SIZE);
+
+        Truth.assertThat(batchSizes.subList(0, 4)).containsExactly(10L, 10L, 10L, 5L).inOrder();
+        // All four polls happened within one tick of the 1 second timer.
+        Truth.assertThat(Duration.ofNanos(pollTimes.get(3) - pollTimes.get(0)))
+                .isLessThan(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void shouldBackOffWhilePollsAreEmpty() throws Exception {
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(
+                () -> metrics.values(EventHandlerMetrics.BATCH_SIZE), Matchers.hasSize(3));
+
+        List<Long> pollTimes = metrics.nanoTimes(EventHandlerMetrics.BATCH_SIZE);
+
+        Truth.assertThat(metrics.values(EventHandlerMetrics.BATCH_SIZE).subList(0, 3))
+                .containsExactly(0L, 0L, 0L);
+        // 1 second after the first empty poll, then 2 seconds after the second.
+        Truth.assertThat(Duration.ofNanos(pollTimes.get(2) - pollTimes.get(1)))
+                .isGreaterThan(Duration.ofMillis(1900));
+    }
+
+    @Test
+    public void shouldRecordMetricsForEachStageOfAPoll() throws Exception {
+        documentEndpoint.expectedMessageCount(10);
+
+        documentEventRepository.addNewDocumentEvents(randomSuccessfulEvents(10));
+
+        documentEndpoint.assertIsSatisfied();
+
+        int fullPoll = metrics.values(EventHandlerMetrics.BATCH_SIZE).indexOf(10L);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(
+                () -> metrics.durations(EventHandlerMetrics.POLL_CYCLE).size() > fullPoll);
+
+        // Cycles first, since a poll still in progress may already have recorded the others.
+        List<Duration> pollCycles = metrics.durations(EventHandlerMetrics.POLL_CYCLE);
+        List<Duration> retrievals = metrics.durations(EventHandlerMetrics.RETRIEVAL);
+        List<Duration> lookups = metrics.durations(EventHandlerMetrics.LOOKUP);
+
+        Truth.assertThat(fullPoll).isAtLeast(0);
+        Truth.assertThat(metrics.durations(EventHandlerMetrics.PUBLISH)).hasSize(10);
+        Truth.assertThat(metrics.durations(EventHandlerMetrics.MARK)).isNotEmpty();
+
+        // Every poll records one retrieval and one lookup, and its cycle includes both.
+        Truth.assertThat(retrievals.size()).isAtLeast(pollCycles.size());
+        Truth.assertThat(lookups.size()).isAtLeast(pollCycles.size());
+        for (int i = 0; i < pollCycles.size(); i++) {
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(retrievals.get(i));
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(lookups.get(i));
+        }
+
+        for (String metric : new String[] {EventHandlerMetrics.RETRIEVAL,
+                EventHandlerMetrics.LOOKUP, EventHandlerMetrics.PUBLISH, EventHandlerMetrics.MARK,
+                EventHandlerMetrics.POLL_CYCLE}) {
+            for (Duration duration : metrics.durations(metric)) {
+                Truth.assertThat(duration).isAtLeast(Duration.ZERO);
+                Truth.assertThat(duration).isLessThan(Duration.ofSeconds(5));
+            }
+        }
+
+        for (String metric : new String[] {EventHandlerMetrics.BATCH_SIZE,
+                EventHandlerMetrics.RETRIEVAL, EventHandlerMetrics.LOOKUP,
+                EventHandlerMetrics.PUBLISH, EventHandlerMetrics.MARK,
+                EventHandlerMetrics.POLL_CYCLE}) {
+            Truth.assertThat(metrics.sources(metric)).containsExactly("documentEventProcessor-123");
+        }
     }
 
     @Test
@@ -115,6 +196,33 @@ public class PollingDocumentEventProcessorRouteTest extends CamelTestSupport {
                 .until(documentEventRepository::getPublishedEvents, Matchers.hasSize(5));
     }
 
+    @Test
+    public void shouldMarkAllEventsPublishedInABatchInOneUpdate() throws Exception {
+        documentEndpoint.expectedMessageCount(10);
+
+        documentEventRepository.addNewDocumentEvents(randomSuccessfulEvents(10));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(documentEventRepository::getPublishedEvents, Matchers.hasSize(10));
+
+        Truth.assertThat(documentEventRepository.getPublishedUpdateCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMarkPublishedEventsWhoseDocumentsWerePublishedEvenIfOthersFailedToPublish()
+            throws Exception {
+        documentEndpoint.whenExchangeReceived(2, exchange -> {
+            throw new Exception("Simulated publish failure");
+        });
+
+        documentEventRepository.addNewDocumentEvents(randomSuccessfulEvents(5));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(documentEventRepository::getPublishedEvents, Matchers.hasSize(4));
+
+        Truth.assertThat(documentEventRepository.getPublishedUpdateCount()).isEqualTo(1);
+    }
+
     @Test(timeout = 10000)
     // Eventually this should be "shouldRollBackEventsWherePublishFailed"
     // See: https://github.com/esbtools/event-handler/issues/18
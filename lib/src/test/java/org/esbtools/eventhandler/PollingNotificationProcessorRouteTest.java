@@ -19,6 +19,7 @@
 package org.esbtools.eventhandler;
 
 import org.esbtools.eventhandler.testing.FailingNotification;
+import org.esbtools.eventhandler.testing.RecordingEventHandlerMetrics;
 import org.esbtools.eventhandler.testing.SimpleInMemoryDocumentEventRepository;
 import org.esbtools.eventhandler.testing.SimpleInMemoryNotificationRepository;
 import org.esbtools.eventhandler.testing.StringNotification;
@@ -39,11 +40,87 @@ import java.util.concurrent.TimeUnit;
 public class PollingNotificationProcessorRouteTest extends CamelTestSupport {
     SimpleInMemoryNotificationRepository notificationRepository = new SimpleInMemoryNotificationRepository();
     SimpleInMemoryDocumentEventRepository documentEventRepository = new SimpleInMemoryDocumentEventRepository();
+    RecordingEventHandlerMetrics metrics = new RecordingEventHandlerMetrics();
 
     @Override
     protected RouteBuilder createRouteBuilder() throws Exception {
         return new PollingNotificationProcessorRoute(notificationRepository, documentEventRepository,
-                Duration.ofSeconds(1), Duration.ofSeconds(3), 10);
+                Duration.ofSeconds(1), Duration.ofSeconds(2), Duration.ofSeconds(3), 10, metrics);
+    }
+
+    @Test
+    public void shouldPollAgainImmediatelyAfterFullBatch() {
+        notificationRepository.addNotifications(randomNotifications(35));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(documentEventRepository::getDocumentEvents, Matchers.hasSize(35));
+
+        List<Long> pollTimes = metrics.nanoTimes(EventHandlerMetrics.BATCH_SIZE);
+
+        Truth.assertThat(metrics.values(EventHandlerMetrics.BATCH_SIZE).subList(0, 4))
+                .containsExactly(10L, 10L, 10L, 5L).inOrder();
+        // All four polls happened within one tick of the 1 second timer.
+        Truth.assertThat(Duration.ofNanos(pollTimes.get(3) - pollTimes.get(0)))
+                .isLessThan(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void shouldBackOffWhilePollsAreEmpty() {
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(
+                () -> metrics.values(EventHandlerMetrics.BATCH_SIZE), Matchers.hasSize(3));
+
+        List<Long> pollTimes = metrics.nanoTimes(EventHandlerMetrics.BATCH_SIZE);
+
+        // 1 second after the first empty poll, then 2 seconds after the second.
+        Truth.assertThat(Duration.ofNanos(pollTimes.get(2) - pollTimes.get(1)))
+                .isGreaterThan(Duration.ofMillis(1900));
+    }
+
+    @Test
+    public void shouldRecordMetricsForEachStageOfAPoll() {
+        notificationRepository.addNotifications(randomNotifications(10));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(documentEventRepository::getDocumentEvents, Matchers.hasSize(10));
+
+        int fullPoll = metrics.values(EventHandlerMetrics.BATCH_SIZE).indexOf(10L);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(
+                () -> metrics.durations(EventHandlerMetrics.POLL_CYCLE).size() > fullPoll);
+
+        // Cycles first, since a poll still in progress may already have recorded the others.
+        List<Duration> pollCycles = metrics.durations(EventHandlerMetrics.POLL_CYCLE);
+        List<Duration> retrievals = metrics.durations(EventHandlerMetrics.RETRIEVAL);
+        List<Duration> lookups = metrics.durations(EventHandlerMetrics.LOOKUP);
+        List<Duration> persists = metrics.durations(EventHandlerMetrics.PERSIST);
+        List<Duration> marks = metrics.durations(EventHandlerMetrics.MARK);
+
+        Truth.assertThat(fullPoll).isAtLeast(0);
+
+        // Every poll records each stage once, and its cycle includes all of them.
+        for (int i = 0; i < pollCycles.size(); i++) {
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(retrievals.get(i));
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(lookups.get(i));
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(persists.get(i));
+            Truth.assertThat(pollCycles.get(i)).isAtLeast(marks.get(i));
+        }
+
+        for (String metric : new String[] {EventHandlerMetrics.RETRIEVAL,
+                EventHandlerMetrics.LOOKUP, EventHandlerMetrics.PERSIST, EventHandlerMetrics.MARK,
+                EventHandlerMetrics.POLL_CYCLE}) {
+            for (Duration duration : metrics.durations(metric)) {
+                Truth.assertThat(duration).isAtLeast(Duration.ZERO);
+                Truth.assertThat(duration).isLessThan(Duration.ofSeconds(5));
+            }
+        }
+
+        for (String metric : new String[] {EventHandlerMetrics.BATCH_SIZE,
+                EventHandlerMetrics.RETRIEVAL, EventHandlerMetrics.LOOKUP,
+                EventHandlerMetrics.PERSIST, EventHandlerMetrics.MARK,
+                EventHandlerMetrics.POLL_CYCLE}) {
+            Truth.assertThat(metrics.sources(metric)).hasSize(1);
+            Truth.assertThat(metrics.sources(metric).get(0)).startsWith("notificationProcessor-");
+        }
     }
 
     @Test
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import com.google.common.truth.Truth;
+import com.jayway.awaitility.Awaitility;
+import org.esbtools.eventhandler.testing.SimpleInMemoryDocumentEventRepository;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class PrefetchingDocumentEventRepositoryTest {
+    SimpleInMemoryDocumentEventRepository delegate = new SimpleInMemoryDocumentEventRepository();
+
+    @Test
+    public void shouldRetrieveNextBatchInBackgroundAfterReturningCurrentBatch() throws Exception {
+        PrefetchingDocumentEventRepository repository =
+                new PrefetchingDocumentEventRepository(delegate);
+
+        delegate.addNewDocumentEvents(
+                PollingDocumentEventProcessorRouteTest.randomSuccessfulEvents(25));
+
+        List<? extends DocumentEvent> firstBatch = repository.retrievePriorityDocumentEventsUpTo(10);
+
+        Truth.assertThat(firstBatch).hasSize(10);
+
+        // Second batch is retrieved without asking for it.
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(delegate::getDocumentEvents, Matchers.hasSize(5));
+
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).hasSize(10);
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).hasSize(5);
+    }
+
+    @Test
+    public void shouldPrefetchNoMoreThanMaxPrefetchedBatches() throws Exception {
+        PrefetchingDocumentEventRepository repository =
+                new PrefetchingDocumentEventRepository(delegate, 2);
+
+        delegate.addNewDocumentEvents(
+                PollingDocumentEventProcessorRouteTest.randomSuccessfulEvents(50));
+
+        repository.retrievePriorityDocumentEventsUpTo(10);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(delegate::getDocumentEvents, Matchers.hasSize(20));
+
+        Thread.sleep(500);
+
+        Truth.assertThat(delegate.getDocumentEvents()).hasSize(20);
+    }
+
+    @Test
+    public void shouldNotPrefetchAfterEmptyOrPartialBatch() throws Exception {
+        AtomicInteger retrievals = new AtomicInteger();
+        DocumentEventRepository counting = new SimpleInMemoryDocumentEventRepository() {
+            @Override
+            public List<? extends DocumentEvent> retrievePriorityDocumentEventsUpTo(int maxEvents)
+                    throws Exception {
+                retrievals.incrementAndGet();
+                return super.retrievePriorityDocumentEventsUpTo(maxEvents);
+            }
+        };
+
+        PrefetchingDocumentEventRepository repository =
+                new PrefetchingDocumentEventRepository(counting);
+
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).isEmpty();
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).isEmpty();
+
+        counting.addNewDocumentEvents(
+                PollingDocumentEventProcessorRouteTest.randomSuccessfulEvents(5));
+
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).hasSize(5);
+
+        Thread.sleep(500);
+
+        Truth.assertThat(retrievals.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldDropPrefetchedEventsWhoseTransactionsAreNoLongerActive() throws Exception {
+        PrefetchingDocumentEventRepository repository =
+                new PrefetchingDocumentEventRepository(delegate);
+
+        delegate.addNewDocumentEvents(
+                PollingDocumentEventProcessorRouteTest.randomSuccessfulEvents(20));
+
+        repository.retrievePriorityDocumentEventsUpTo(10);
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS)
+                .until(delegate::getDocumentEvents, Matchers.empty());
+
+        delegate.considerNoTransactionsActive();
+
+        Truth.assertThat(repository.retrievePriorityDocumentEventsUpTo(10)).isEmpty();
+    }
+
+    @Test
+    public void shouldPropagateRetrievalFailures() throws Exception {
+        DocumentEventRepository failing = new SimpleInMemoryDocumentEventRepository() {
+            @Override
+            public List<? extends DocumentEvent> retrievePriorityDocumentEventsUpTo(int maxEvents)
+                    throws Exception {
+                throw new IllegalStateException("Simulated failure");
+            }
+        };
+
+        PrefetchingDocumentEventRepository repository =
+                new PrefetchingDocumentEventRepository(failing);
+
+        try {
+            repository.retrievePriorityDocumentEventsUpTo(10);
+            Assert.fail("Expected retrieval failure to propagate");
+        } catch (IllegalStateException expected) {
+            Truth.assertThat(expected).hasMessage("Simulated failure");
+        }
+    }
+}
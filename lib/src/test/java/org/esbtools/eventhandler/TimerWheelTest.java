@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class TimerWheelTest {
+    static final long START = 1_000_000L;
+    static final long TICK = Duration.ofMillis(10).toNanos();
+
+    TimerWheel<String> wheel = new TimerWheel<>(Duration.ofMillis(10), 8, START);
+
+    @Test
+    public void shouldNotReturnItemsBeforeTheirDelayPasses() {
+        wheel.schedule("a", Duration.ofMillis(30), START);
+
+        assertThat(wheel.pollDue(START + 2 * TICK, 10)).isEmpty();
+        assertThat(wheel.pollDue(START + 3 * TICK, 10)).containsExactly("a");
+        assertThat(wheel.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRoundDelaysUpToAWholeTick() {
+        wheel.schedule("a", Duration.ofMillis(11), START);
+
+        assertThat(wheel.pollDue(START + TICK, 10)).isEmpty();
+        assertThat(wheel.pollDue(START + 2 * TICK, 10)).containsExactly("a");
+    }
+
+    @Test
+    public void shouldReturnItemsScheduledMoreThanOneRevolutionAheadOnlyOnceDue() {
+        wheel.schedule("far", Duration.ofMillis(10 * 8 * 3 + 10), START);
+        wheel.schedule("near", Duration.ofMillis(10), START);
+
+        assertThat(wheel.pollDue(START + TICK, 10)).containsExactly("near");
+        assertThat(wheel.pollDue(START + 8 * 3 * TICK, 10)).isEmpty();
+        assertThat(wheel.pollDue(START + (8 * 3 + 1) * TICK, 10)).containsExactly("far");
+    }
+
+    @Test
+    public void shouldReturnEverythingDueAfterLongGapsBetweenPolls() {
+        wheel.schedule("a", Duration.ofMillis(10), START);
+        wheel.schedule("b", Duration.ofMillis(50), START);
+        wheel.schedule("c", Duration.ofMillis(250), START);
+        wheel.schedule("d", Duration.ofMillis(2000), START);
+
+        assertThat(wheel.pollDue(START + 100 * TICK, 10)).containsExactly("a", "b", "c");
+        assertThat(wheel.size()).isEqualTo(1);
+        assertThat(wheel.pollDue(START + 200 * TICK, 10)).containsExactly("d");
+    }
+
+    @Test
+    public void shouldReturnAtMostMaxItemsAndKeepTheRestDueForNextPoll() {
+        for (String item : Arrays.asList("a", "b", "c")) {
+            wheel.schedule(item, Duration.ofMillis(10), START);
+        }
+        wheel.schedule("later", Duration.ofMillis(20), START);
+
+        assertThat(wheel.pollDue(START + TICK, 2)).containsExactly("a", "b").inOrder();
+        assertThat(wheel.pollDue(START + 2 * TICK, 2)).containsExactly("c", "later").inOrder();
+    }
+
+    @Test
+    public void shouldReturnItemsScheduledInThePastOnNextPoll() {
+        wheel.pollDue(START + 5 * TICK, 10);
+
+        wheel.schedule("a", Duration.ZERO, START);
+
+        assertThat(wheel.pollDue(START + 5 * TICK, 10)).isEmpty();
+        assertThat(wheel.pollDue(START + 6 * TICK, 10)).containsExactly("a");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.testing;
+
+import org.esbtools.eventhandler.EventHandlerMetrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers every metric recorded, in order, along with when it was recorded.
+ */
+public class RecordingEventHandlerMetrics implements EventHandlerMetrics {
+    private final Queue<Recorded> recorded = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void increment(String source, String metric, long delta) {
+        recorded.add(new Recorded(source, metric, delta, null));
+    }
+
+    @Override
+    public void recordValue(String source, String metric, long value) {
+        recorded.add(new Recorded(source, metric, value, null));
+    }
+
+    @Override
+    public void recordDuration(String source, String metric, Duration duration) {
+        recorded.add(new Recorded(source, metric, 0, duration));
+    }
+
+    /** Values recorded for {@code metric}, in order. */
+    public List<Long> values(String metric) {
+        return recordedFor(metric).stream().map(r -> r.value).collect(Collectors.toList());
+    }
+
+    /** Durations recorded for {@code metric}, in order. */
+    public List<Duration> durations(String metric) {
+        return recordedFor(metric).stream().map(r -> r.duration).collect(Collectors.toList());
+    }
+
+    /** Sum of all increments of {@code metric}. */
+    public long count(String metric) {
+        return recordedFor(metric).stream().mapToLong(r -> r.value).sum();
+    }
+
+    /** When each value of {@code metric} was recorded, as {@link System#nanoTime()}. */
+    public List<Long> nanoTimes(String metric) {
+        return recordedFor(metric).stream().map(r -> r.nanoTime).collect(Collectors.toList());
+    }
+
+    /** Sources which recorded {@code metric}. */
+    public List<String> sources(String metric) {
+        return recordedFor(metric).stream()
+                .map(r -> r.source)
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    private List<Recorded> recordedFor(String metric) {
+        return recorded.stream()
+                .filter(r -> r.metric.equals(metric))
+                .collect(Collectors.toList());
+    }
+
+    private static final class Recorded {
+        final String source;
+        final String metric;
+        final long value;
+        final Duration duration;
+        final long nanoTime = System.nanoTime();
+
+        Recorded(String source, String metric, long value, Duration duration) {
+            this.source = source;
+            this.metric = metric;
+            this.value = value;
+            this.duration = duration;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.annotation.Nullable;
+
+import org.esbtools.eventhandler.EventHandlerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.client.LightblueException;
+
+/**
+ * Works through the entities older than a cutoff date, oldest first, a chunk at a time, at a
+ * capped rate and for a limited time per run. Used by the periodic routes which delete or
+ * archive old entities; each supplies how to find a chunk and what to do with it.
+ *
+ * <p>A run which runs out of time leaves its cutoff as a checkpoint, and the next run continues
+ * the same pass with it, so that a pass always finishes even while new entities keep becoming
+ * too old. Not thread safe: only meant to be run from a single route's timer thread.
+ */
+class ChunkedPass {
+    private final String source;
+    private final String entityName;
+    private final String entityDateField;
+    private final Duration olderThan;
+    private final Duration runDuration;
+    private final int chunkSize;
+    private final double maxPerSecond;
+    private final EventHandlerMetrics metrics;
+    private final String chunkDurationMetric;
+    private final String doneCountMetric;
+    private final String pastTense;
+    private final Clock clock;
+
+    /** Cutoff of the pass in progress, or null if there is none. */
+    private @Nullable Instant passCutoff;
+    private long doneInPass;
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedPass.class);
+
+    /**
+     * @param source Source of recorded metrics.
+     * @param chunkDurationMetric Records how long finding and acting on each chunk took.
+     * @param doneCountMetric Counts entities each chunk's action was done to.
+     * @param pastTense What was done to entities, for logs, e.g. "Deleted".
+     */
+    ChunkedPass(String source, String entityName, String entityDateField, Duration olderThan,
+            Duration runDuration, int chunkSize, double maxPerSecond, EventHandlerMetrics metrics,
+            String chunkDurationMetric, String doneCountMetric, String pastTense, Clock clock) {
+        this.source = source;
+        this.entityName = entityName;
+        this.entityDateField = entityDateField;
+        this.olderThan = olderThan;
+        this.runDuration = runDuration;
+        this.chunkSize = chunkSize;
+        this.maxPerSecond = maxPerSecond;
+        this.metrics = metrics;
+        this.chunkDurationMetric = chunkDurationMetric;
+        this.doneCountMetric = doneCountMetric;
+        this.pastTense = pastTense;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts a new pass, or continues the one in progress, until it is done, the run's time is
+     * up, or the thread is interrupted.
+     *
+     * @param finder Finds up to {@code chunkSize} of the oldest entities before a cutoff.
+     * @param action Acts on a found, nonempty chunk, returning how many entities it was done to.
+     */
+    <T> void run(ChunkFinder<T> finder, ChunkAction<T> action) throws LightblueException {
+        if (passCutoff == null) {
+            passCutoff = clock.instant().minus(olderThan);
+            doneInPass = 0;
+        } else {
+            log.debug("Resuming pass over {} entities with {} before {} after {} {}",
+                    entityName, entityDateField, passCutoff, doneInPass, pastTense.toLowerCase());
+        }
+
+        long runStart = System.nanoTime();
+        long runDeadline = runStart + runDuration.toNanos();
+        long doneInRun = 0;
+
+        while (true) {
+            long chunkStart = System.nanoTime();
+            T[] chunk = finder.findOldest(passCutoff);
+
+            if (chunk.length > 0) {
+                int done = action.actOn(chunk);
+
+                doneInRun += done;
+                doneInPass += done;
+
+                metrics.recordValue(source, EventHandlerMetrics.BATCH_SIZE, done);
+                metrics.recordDurationSince(source, chunkDurationMetric, chunkStart);
+                metrics.increment(source, doneCountMetric, done);
+            }
+
+            if (chunk.length < chunkSize) {
+                log.info("{} {} {} entities with {} before {}",
+                        pastTense, doneInPass, entityName, entityDateField, passCutoff);
+                passCutoff = null;
+                return;
+            }
+
+            // Space out chunks so the run averages no more than maxPerSecond.
+            long nextChunkStart = runStart + (long) (doneInRun / maxPerSecond * 1e9);
+
+            if (Math.max(nextChunkStart, System.nanoTime()) - runDeadline >= 0) {
+                log.info("{} {} {} entities with {} before {} so far; continuing next run",
+                        pastTense, doneInPass, entityName, entityDateField, passCutoff);
+                return;
+            }
+
+            long pause = nextChunkStart - System.nanoTime();
+
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface ChunkFinder<T> {
+        T[] findOldest(Instant cutoff) throws LightblueException;
+    }
+
+    @FunctionalInterface
+    interface ChunkAction<T> {
+        int actOn(T[] chunk) throws LightblueException;
+    }
+}
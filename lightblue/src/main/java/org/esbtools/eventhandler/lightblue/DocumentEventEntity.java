@@ -43,7 +43,7 @@ import java.util.Set;
  * Serialization-friendly "data object" for an entity in the documentEvent collection.
  */
 @EntityName(DocumentEventEntity.ENTITY_NAME)
-@Version(value = "0.1.0", preferImplementationVersion = false, changelog = "Initial release")
+@Version(value = "0.2.0", preferImplementationVersion = false, changelog = "Add claimToken")
 public class DocumentEventEntity {
     public static final String ENTITY_NAME = "documentEvent";
     public static final String VERSION = Version.FromAnnotation.onEntity(DocumentEventEntity.class);
@@ -58,6 +58,7 @@ public class DocumentEventEntity {
     private ZonedDateTime processedDate;
     private Set<String> survivorOfIds;
     private String sourceNotificationId;
+    private String claimToken;
 
     private static final String LIGHTBLUE_DATE_FORMAT = ClientConstants.LIGHTBLUE_DATE_FORMAT_STR;
 
@@ -197,6 +198,17 @@ public class DocumentEventEntity {
         this.sourceNotificationId = sourceNotificationId;
     }
 
+    public String getClaimToken() {
+        return claimToken;
+    }
+
+    @Description("Identifies the claim which last set this document event's status and dates " +
+            "together with other events, so that a claimer can tell which of those events it " +
+            "actually updated. Null if never claimed that way.")
+    public void setClaimToken(String claimToken) {
+        this.claimToken = claimToken;
+    }
+
     @Override
     public String toString() {
         return "DocumentEventEntity{" +
@@ -210,6 +222,7 @@ public class DocumentEventEntity {
                 ", processedDate=" + processedDate +
                 ", survivorOfIds=" + survivorOfIds +
                 ", sourceNotificationId='" + sourceNotificationId + '\'' +
+                ", claimToken='" + claimToken + '\'' +
                 '}';
     }
 
@@ -227,13 +240,14 @@ public class DocumentEventEntity {
                 Objects.equals(processingDate, that.processingDate) &&
                 Objects.equals(processedDate, that.processedDate) &&
                 Objects.equals(survivorOfIds, that.survivorOfIds) &&
-                Objects.equals(sourceNotificationId, that.sourceNotificationId);
+                Objects.equals(sourceNotificationId, that.sourceNotificationId) &&
+                Objects.equals(claimToken, that.claimToken);
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(_id, canonicalType, parameters, status, priority, creationDate,
-                processingDate, processedDate, survivorOfIds, sourceNotificationId);
+                processingDate, processedDate, survivorOfIds, sourceNotificationId, claimToken);
     }
 
     public enum Status {
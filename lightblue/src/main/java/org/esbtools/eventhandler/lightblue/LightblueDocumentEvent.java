@@ -20,6 +20,8 @@ package org.esbtools.eventhandler.lightblue;
 
 import org.esbtools.eventhandler.DocumentEvent;
 
+import java.util.Optional;
+
 /**
  * Connects event implementations to the underlying {@link LightblueDocumentEventRepository} data
  * model.
@@ -41,6 +43,15 @@ public interface LightblueDocumentEvent extends DocumentEvent {
      */
     Identity identity();
 
+    /**
+     * Events can only be optimized with events of an equal {@link #identity()}, so it serves as
+     * the key.
+     */
+    @Override
+    default Optional<?> optimizationKey() {
+        return Optional.of(identity());
+    }
+
     /**
      * @return Entity backing this document event. Every document event should be backed by an
      * entity instance. This should refer to that one, mutable instance and should not create a new
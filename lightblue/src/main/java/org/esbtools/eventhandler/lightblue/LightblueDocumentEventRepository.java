@@ -18,13 +18,18 @@
 
 package org.esbtools.eventhandler.lightblue;
 
+import org.esbtools.eventhandler.DaemonThreadPools;
 import org.esbtools.eventhandler.DocumentEvent;
+import org.esbtools.eventhandler.DocumentEventOptimizer;
 import org.esbtools.eventhandler.DocumentEventRepository;
+import org.esbtools.eventhandler.EventHandlerMetrics;
 import org.esbtools.eventhandler.FailedDocumentEvent;
 import org.esbtools.eventhandler.lightblue.client.BulkLightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.CachingLightblueRequester;
 import org.esbtools.eventhandler.lightblue.client.FindRequests;
 import org.esbtools.eventhandler.lightblue.client.InsertRequests;
 import org.esbtools.eventhandler.lightblue.client.LightblueErrors;
+import org.esbtools.eventhandler.lightblue.client.LightblueLookupCache;
 import org.esbtools.eventhandler.lightblue.client.LightblueRequester;
 import org.esbtools.eventhandler.lightblue.client.UpdateRequests;
 import org.esbtools.eventhandler.lightblue.locking.LockNotAvailableException;
@@ -34,9 +39,11 @@ import org.esbtools.eventhandler.lightblue.locking.LockedResource;
 import org.esbtools.eventhandler.lightblue.locking.LockedResources;
 import org.esbtools.eventhandler.lightblue.locking.LostLockException;
 
+import com.google.common.collect.Lists;
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueException;
 import com.redhat.lightblue.client.request.DataBulkRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
 import com.redhat.lightblue.client.response.LightblueBulkDataResponse;
 import com.redhat.lightblue.client.response.LightblueBulkResponseException;
 import com.redhat.lightblue.client.response.LightblueDataResponse;
@@ -44,6 +51,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
@@ -53,13 +61,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 /**
@@ -72,6 +85,13 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
     private final LockStrategy lockStrategy;
     private final Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType;
     private final Clock clock;
+    private final int lockingParallelism;
+    private final boolean twoPhaseRetrieval;
+    private final EventHandlerMetrics metrics;
+    private final @Nullable LightblueLookupCache lookupCache;
+    private final Map<String, ? extends Set<String>> changedEntityNamesByType;
+    /** Null if {@link #lockingParallelism} is 1, in which case locking is done in caller thread. */
+    private final @Nullable Executor lockingExecutor;
 
     private final Set<String> supportedTypes;
     /** Cached to avoid extra garbage. */
@@ -79,14 +99,38 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
 
     private static final Logger logger = LoggerFactory.getLogger(LightblueDocumentEventRepository.class);
 
+    public static final String METRICS_SOURCE = "lightblueDocumentEventRepository";
+
     public LightblueDocumentEventRepository(LightblueClient lightblue,
             LockStrategy lockStrategy, LightblueDocumentEventRepositoryConfig config,
             Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType, Clock clock) {
+        this(lightblue, lockStrategy, config, documentEventFactoriesByType,
+                new LightblueDocumentEventRepositoryOptions(), clock);
+    }
+
+    /**
+     * @param options Optional features to turn on. Read once, here; later changes to it have no
+     *                effect.
+     * @see #LightblueDocumentEventRepository(LightblueClient, LockStrategy, LightblueDocumentEventRepositoryConfig, Map, Clock)
+     */
+    public LightblueDocumentEventRepository(LightblueClient lightblue,
+            LockStrategy lockStrategy, LightblueDocumentEventRepositoryConfig config,
+            Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType,
+            LightblueDocumentEventRepositoryOptions options, Clock clock) {
         this.lightblue = lightblue;
         this.lockStrategy = lockStrategy;
         this.config = config;
         this.documentEventFactoriesByType = documentEventFactoriesByType;
         this.clock = clock;
+        this.lockingParallelism = options.getLockingParallelism();
+        this.twoPhaseRetrieval = options.isTwoPhaseRetrieval();
+        this.metrics = options.getMetrics();
+        this.lookupCache = options.getLookupCache();
+        this.changedEntityNamesByType = options.getChangedEntityNamesByType();
+        this.lockingExecutor = lockingParallelism > 1
+                ? DaemonThreadPools.newDaemonThreadPool("document-event-locking-",
+                        lockingParallelism)
+                : null;
 
         supportedTypes = documentEventFactoriesByType.keySet();
         supportedTypesArray = supportedTypes.toArray(new String[supportedTypes.size()]);
@@ -143,10 +187,13 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
             return Collections.emptyList();
         }
 
+        Instant expiredProcessingDate = clock.instant().minus(processingTimeout);
         DocumentEventEntity[] documentEventEntities = lightblue
-                .data(FindRequests.priorityDocumentEventsForTypesUpTo(
-                        typesToProcess, documentEventsBatchSize,
-                        clock.instant().minus(processingTimeout)))
+                .data(twoPhaseRetrieval
+                        ? FindRequests.priorityDocumentEventsToClaimForTypesUpTo(
+                                typesToProcess, documentEventsBatchSize, expiredProcessingDate)
+                        : FindRequests.priorityDocumentEventsForTypesUpTo(
+                                typesToProcess, documentEventsBatchSize, expiredProcessingDate))
                 .parseProcessed(DocumentEventEntity[].class);
 
         if (documentEventEntities.length == 0) {
@@ -157,9 +204,12 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
                      SharedIdentityEvents.parseAndOptimizeLockableDocumentEventEntities(
                              maxEvents,
                              documentEventEntities,
-                             new BulkLightblueRequester(lightblue),
+                             newRequesterFor(documentEventEntities),
                              documentEventFactoriesByType,
                              lockStrategy,
+                             lockingParallelism,
+                             lockingExecutor,
+                             twoPhaseRetrieval,
                              clock)) {
 
             return persistNewEventsAndStatusUpdatesToExisting(eventLocks);
@@ -198,26 +248,32 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
     public void markDocumentEventsPublishedOrFailed(
             Collection<? extends DocumentEvent> documentEvents,
             Collection<FailedDocumentEvent> failures) throws LightblueException {
-        List<DocumentEventEntity> processed = documentEvents.stream()
+        // One processed date for the whole call, so events sharing a status are updated together.
+        ZonedDateTime processedDate = ZonedDateTime.now(clock);
+
+        List<DocumentEventEntity> processedAndFailed = new ArrayList<>(
+                documentEvents.size() + failures.size());
+
+        documentEvents.stream()
                 .map(LightblueDocumentEventRepository::asEntity)
                 .peek((e) -> {
-                    e.setProcessedDate(ZonedDateTime.now(clock));
+                    e.setProcessedDate(processedDate);
                     e.setStatus(DocumentEventEntity.Status.published);
                 })
-                .collect(Collectors.toList());
+                .forEach(processedAndFailed::add);
 
-        List<DocumentEventEntity> failed = failures.stream()
+        failures.stream()
                 .map(FailedDocumentEvent::documentEvent)
                 .map(LightblueDocumentEventRepository::asEntity)
                 .peek((e) -> {
-                    e.setProcessedDate(ZonedDateTime.now(clock));
+                    e.setProcessedDate(processedDate);
                     e.setStatus(DocumentEventEntity.Status.failed);
                 })
-                .collect(Collectors.toList());
+                .forEach(processedAndFailed::add);
 
         DataBulkRequest markDocumentEvents = new DataBulkRequest();
-        markDocumentEvents.addAll(UpdateRequests.documentEventsStatusAndProcessedDate(processed));
-        markDocumentEvents.addAll(UpdateRequests.documentEventsStatusAndProcessedDate(failed));
+        markDocumentEvents.addAll(
+                UpdateRequests.documentEventsStatusAndProcessedDate(processedAndFailed));
 
         if (markDocumentEvents.getRequests().isEmpty()) {
             return;
@@ -249,7 +305,14 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
      * Within locked events, inserts new entities and updates existing with status, date, and
      * survivor id updates.
      *
-     * <p>Checks for lost locks before persisting, dropping and logging those lost.
+     * <p>Checks for lost locks before persisting, dropping and logging those lost. All locks are
+     * checked in one sweep, concurrently if the locks were acquired concurrently.
+     *
+     * <p>Existing events without survivor ids to update are claimed in groups, with one conditional
+     * update per original processing date and target status and dates. If a group's update
+     * modifies fewer events than it was given, some were concurrently modified, so we re-read
+     * those events to find out which are ours. Events with survivor ids to update are updated one
+     * at a time.
      */
     private List<LightblueDocumentEvent> persistNewEventsAndStatusUpdatesToExisting(
             LockedResources<SharedIdentityEvents> identityLocks) throws LightblueException {
@@ -258,17 +321,22 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
         }
 
         DataBulkRequest insertAndUpdateEvents = new DataBulkRequest();
-        List<LightblueDocumentEvent> savedEvents = new ArrayList<>();
+        // The events saved by each request in insertAndUpdateEvents, in the same order.
+        List<List<LightblueDocumentEvent>> eventsByRequest = new ArrayList<>();
+        Map<ClaimGroup, List<LightblueDocumentEvent>> claimGroups = new LinkedHashMap<>();
+        // Identifies the events we claim in groups. See retainClaimed.
+        String claimToken = UUID.randomUUID().toString();
+
+        Set<LockedResource> lostLocks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (LostLockException e : identityLocks.ensureAllAcquiredOrGetLost(
+                "Won't update status or process event.")) {
+            logger.warn("Lost lock. This is not fatal. See exception for details.", e);
+            lostLocks.addAll(e.lostLocks());
+        }
 
-        // TODO: We make single request per event here (wrapped in bulk request). Maybe could optimize.
-        // Right now each event may have different processing date which we are looking for.
-        // Could probably change that so processing dates were more grouped.
-        // See: https://github.com/esbtools/event-handler/issues/11
         for (LockedResource<SharedIdentityEvents> identityLock : identityLocks.getLocks()) {
-            try {
-                identityLock.ensureAcquiredOrThrow("Won't update status or process event.");
-            } catch (LostLockException e) {
-                logger.warn("Lost lock. This is not fatal. See exception for details.", e);
+            if (lostLocks.contains(identityLock)) {
                 continue;
             }
 
@@ -279,22 +347,43 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
                 DocumentEventEntity entity = event.wrappedDocumentEventEntity();
 
                 // If id is null, this is a net new event as a result of merger.
-                // See SharedIdentityEvents#addEvent(LightblueDocumentEvent)
+                // See SharedIdentityEvents#addEvent(LightblueDocumentEvent, Clock)
                 // and SharedIdentityEvents#update
                 if (entity.get_id() == null) {
                     if (entity.getStatus().equals(DocumentEventEntity.Status.processing)) {
                         insertAndUpdateEvents.add(InsertRequests.documentEventsReturningOnlyIds(entity));
-                        savedEvents.add(event);
+                        eventsByRequest.add(Collections.singletonList(event));
                     }
-                } else {
+                } else if (entity.getSurvivorOfIds() != null) {
                     insertAndUpdateEvents.add(
                             UpdateRequests.documentEventStatusDatesAndSurvivorOfIfCurrent(
                                     entity, update.originalProcessingDate));
-                    savedEvents.add(event);
+                    eventsByRequest.add(Collections.singletonList(event));
+                } else {
+                    entity.setClaimToken(claimToken);
+                    claimGroups.computeIfAbsent(new ClaimGroup(update), g -> new ArrayList<>())
+                            .add(event);
                 }
             }
         }
 
+        for (Map.Entry<ClaimGroup, List<LightblueDocumentEvent>> claimGroup
+                : claimGroups.entrySet()) {
+            for (List<LightblueDocumentEvent> claimed : Lists.partition(
+                    claimGroup.getValue(), UpdateRequests.DEFAULT_MAX_IDS_PER_STATUS_UPDATE)) {
+                insertAndUpdateEvents.add(UpdateRequests.documentEventsStatusAndDatesIfCurrent(
+                        claimed.stream()
+                                .map(LightblueDocumentEvent::wrappedDocumentEventEntity)
+                                .collect(Collectors.toList()),
+                        claimGroup.getKey().originalProcessingDate));
+                eventsByRequest.add(claimed);
+            }
+        }
+
+        if (eventsByRequest.isEmpty()) {
+            return Collections.emptyList();
+        }
+
         LightblueBulkDataResponse bulkResponse;
 
         try {
@@ -305,54 +394,176 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
             bulkResponse = e.getBulkResponse();
         }
 
-        Iterator<LightblueDocumentEvent> eventsIterator = savedEvents.iterator();
+        List<LightblueDocumentEvent> savedEvents = new ArrayList<>();
+        List<LightblueDocumentEvent> partiallyClaimed = new ArrayList<>();
+
+        Iterator<List<LightblueDocumentEvent>> eventsIterator = eventsByRequest.iterator();
         Iterator<LightblueDataResponse> responsesIterator = bulkResponse.getResponses().iterator();
 
         while (eventsIterator.hasNext()) {
             if (!responsesIterator.hasNext()) {
                 throw new IllegalStateException("Mismatched number of requests and responses! " +
-                        "Events looked like: <{}>. Responses looked like");
+                        "Events looked like: <" + eventsByRequest + ">. Responses looked like: <" +
+                        bulkResponse.getResponses() + ">");
             }
 
             LightblueDataResponse response = responsesIterator.next();
-            LightblueDocumentEvent event = eventsIterator.next();
-            DocumentEventEntity entity = event.wrappedDocumentEventEntity();
+            List<LightblueDocumentEvent> events = eventsIterator.next();
 
             if (LightblueErrors.arePresentInResponse(response)) {
                 if (logger.isWarnEnabled()) {
                     List<String> errorStrings = LightblueErrors.toStringsFromErrorResponse(response);
 
-                    logger.warn("Event update failed. Will not process. Event was: <{}>. " +
-                            "Errors: <{}>", event, errorStrings);
+                    logger.warn("Event update failed. Will not process. Events were: <{}>. " +
+                            "Errors: <{}>", events, errorStrings);
                 }
-                eventsIterator.remove();
                 continue;
             }
 
-            if (response.parseModifiedCount() == 0) {
-                logger.warn("Event updated by another thread. Will not process. " +
-                        "Document event id: {}", event.wrappedDocumentEventEntity().get_id());
-                eventsIterator.remove();
+            int modifiedCount = response.parseModifiedCount();
+
+            if (modifiedCount == 0) {
+                for (LightblueDocumentEvent event : events) {
+                    logger.warn("Event updated by another thread. Will not process. " +
+                            "Document event id: {}", event.wrappedDocumentEventEntity().get_id());
+                }
                 continue;
             }
 
-            // We don't care about returning events which are done processing. We only want events
-            // which are supposed to be turned into publishable documents.
-            if (!entity.getStatus().equals(DocumentEventEntity.Status.processing)) {
-                eventsIterator.remove();
+            if (modifiedCount < events.size()) {
+                partiallyClaimed.addAll(events);
                 continue;
             }
 
             // If known entity has no id, must've been insert. Populate id in returned entity.
-            if (entity.get_id() == null) {
-                DocumentEventEntity processed = response.parseProcessed(DocumentEventEntity.class);
-                entity.set_id(processed.get_id());
+            for (LightblueDocumentEvent event : events) {
+                DocumentEventEntity entity = event.wrappedDocumentEventEntity();
+
+                if (entity.get_id() == null) {
+                    DocumentEventEntity processed = response.parseProcessed(DocumentEventEntity.class);
+                    entity.set_id(processed.get_id());
+                }
             }
+
+            savedEvents.addAll(events);
         }
 
+        savedEvents.addAll(retainClaimed(partiallyClaimed));
+
+        recordOptimizedEvents(savedEvents);
+
+        // We don't care about returning events which are done processing. We only want events
+        // which are supposed to be turned into publishable documents.
+        savedEvents.removeIf(event -> !event.wrappedDocumentEventEntity().getStatus()
+                .equals(DocumentEventEntity.Status.processing));
+
         return savedEvents;
     }
 
+    private void recordOptimizedEvents(List<LightblueDocumentEvent> savedEvents) {
+        long superseded = 0;
+        long merged = 0;
+
+        for (LightblueDocumentEvent event : savedEvents) {
+            DocumentEventEntity.Status status = event.wrappedDocumentEventEntity().getStatus();
+
+            if (DocumentEventEntity.Status.superseded.equals(status)) {
+                superseded++;
+            } else if (DocumentEventEntity.Status.merged.equals(status)) {
+                merged++;
+            }
+        }
+
+        metrics.increment(METRICS_SOURCE, EventHandlerMetrics.SUPERSEDED, superseded);
+        metrics.increment(METRICS_SOURCE, EventHandlerMetrics.MERGED, merged);
+    }
+
+    /**
+     * Re-reads events whose grouped update modified only some of them, to find out which ones we
+     * updated. Ours are those persisted with the status and claim token we set. Processing dates
+     * can't tell claims apart, since two claimers may well timestamp theirs the same.
+     *
+     * @return The events we updated. Those we can't confirm, including all of them if they can't
+     * be read, are logged and dropped. They will be retrieved again once their processing times
+     * out.
+     */
+    private List<LightblueDocumentEvent> retainClaimed(List<LightblueDocumentEvent> events) {
+        if (events.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String[] ids = events.stream()
+                .map(event -> event.wrappedDocumentEventEntity().get_id())
+                .toArray(String[]::new);
+
+        DocumentEventEntity[] persisted;
+
+        try {
+            persisted = lightblue
+                    .data(FindRequests.documentEventsStatusAndClaimToken(ids))
+                    .parseProcessed(DocumentEventEntity[].class);
+        } catch (LightblueException e) {
+            logger.warn("Could not check which events were claimed in partially successful " +
+                    "update. Will not process any of them. Document event ids: " +
+                    Arrays.toString(ids), e);
+            return Collections.emptyList();
+        }
+
+        Map<String, DocumentEventEntity> persistedById = new HashMap<>(persisted.length);
+
+        for (DocumentEventEntity entity : persisted) {
+            persistedById.put(entity.get_id(), entity);
+        }
+
+        List<LightblueDocumentEvent> claimed = new ArrayList<>(events.size());
+
+        for (LightblueDocumentEvent event : events) {
+            DocumentEventEntity entity = event.wrappedDocumentEventEntity();
+            DocumentEventEntity persistedEntity = persistedById.get(entity.get_id());
+
+            if (persistedEntity != null &&
+                    Objects.equals(persistedEntity.getStatus(), entity.getStatus()) &&
+                    Objects.equals(persistedEntity.getClaimToken(), entity.getClaimToken())) {
+                claimed.add(event);
+            } else {
+                logger.warn("Event updated by another thread. Will not process. " +
+                        "Document event id: {}", entity.get_id());
+            }
+        }
+
+        return claimed;
+    }
+
+    /**
+     * A requester for lookups made while parsing a batch of events, which bypasses the
+     * {@link #lookupCache} for entities those events are about, as well as for document events
+     * themselves, which are retrieved in full through it with two phase retrieval.
+     */
+    private LightblueRequester newRequesterFor(DocumentEventEntity[] documentEventEntities) {
+        LightblueRequester requester =
+                new BulkLightblueRequester(lightblue, metrics, METRICS_SOURCE);
+
+        if (lookupCache == null) {
+            return requester;
+        }
+
+        Set<String> changedEntityNames = new HashSet<>();
+        changedEntityNames.add(DocumentEventEntity.ENTITY_NAME);
+
+        for (DocumentEventEntity entity : documentEventEntities) {
+            Set<String> entityNamesForType =
+                    changedEntityNamesByType.get(entity.getCanonicalType());
+
+            if (entityNamesForType == null) {
+                return requester;
+            }
+
+            changedEntityNames.addAll(entityNamesForType);
+        }
+
+        return new CachingLightblueRequester(requester, lookupCache, changedEntityNames);
+    }
+
     private static DocumentEventEntity asEntity(DocumentEvent event) {
         if (event instanceof LightblueDocumentEvent) {
             return ((LightblueDocumentEvent) event).wrappedDocumentEventEntity();
@@ -370,20 +581,34 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
         final Identity identity;
         final Map<LightblueDocumentEvent, DocumentEventUpdate> updates = new IdentityHashMap<>();
 
-        private final Optional<LockedResource<SharedIdentityEvents>> lock;
         // TODO: Is this guaranteed to only ever be one event?
-        private final List<LightblueDocumentEvent> optimized = new ArrayList<>();
-        private final Clock clock;
+        private final DocumentEventOptimizer<LightblueDocumentEvent> optimizer =
+                new DocumentEventOptimizer<>(LightblueDocumentEvent::merge);
+
+        /**
+         * Same as
+         * {@link #parseAndOptimizeLockableDocumentEventEntities(int, DocumentEventEntity[], LightblueRequester, Map, LockStrategy, int, Executor, Clock)}
+         * except locks are acquired one at a time in the calling thread.
+         */
+        static LockedResources<SharedIdentityEvents> parseAndOptimizeLockableDocumentEventEntities(
+                int maxIdentities, DocumentEventEntity[] entities, LightblueRequester requester,
+                Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType,
+                LockStrategy lockStrategy, Clock clock) {
+            return parseAndOptimizeLockableDocumentEventEntities(maxIdentities, entities,
+                    requester, documentEventFactoriesByType, lockStrategy, 1, null, clock);
+        }
 
         /**
          * Attempts to parse {@code entities} into wrapping {@link LightblueDocumentEvent}
          * implementations provided by {@code documentEventFactoriesByType}, grouped by their
          * {@link Identity}.
          *
-         * <p>As each entity is parsed, we attempt to lock its identity if we have not tried
-         * already. If we are successful, we check if this event can be optimized among others with
-         * the same identity (it almost certainly should be able to), and track the updates that
-         * need to be persisted as a result of these optimizations.
+         * <p>Once all entities are parsed, we attempt to lock each identity in the order it was
+         * first seen, requesting up to {@code lockingParallelism} locks at a time, until
+         * {@code maxIdentities} locks are acquired or we run out of identities. For each identity
+         * we locked, we check if its events can be optimized among each other (they almost
+         * certainly should be able to), and track the updates that need to be persisted as a
+         * result of these optimizations. Events of identities we could not lock are ignored.
          *
          * @param maxIdentities The maximum number of identities to lock, which <em>should</em>
          *                      also mean the maximum number of events, given all events with the
@@ -392,6 +617,9 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
          * @param requester The requester that parsed events will use to build documents.
          * @param documentEventFactoriesByType Tells us how to parse each entity into an event.
          * @param lockStrategy We only work on events we an lock. This is how we lock them.
+         * @param lockingParallelism How many locks to request at once.
+         * @param lockingExecutor Where locks are requested if {@code lockingParallelism} is more
+         *                        than 1. Ignored otherwise.
          * @param clock Determines how we get timestamps. Mainly here for testing purposes.
          * @return All of the locked and optimized event batches, wrapped in a
          * {@link LockedResources} object which can be used to release the locks as well as to check
@@ -400,69 +628,222 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
         static LockedResources<SharedIdentityEvents> parseAndOptimizeLockableDocumentEventEntities(
                 int maxIdentities, DocumentEventEntity[] entities, LightblueRequester requester,
                 Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType,
-                LockStrategy lockStrategy, Clock clock) {
-            Map<Identity, SharedIdentityEvents> docEventsByIdentity = new HashMap<>();
-            List<LockedResource<SharedIdentityEvents>> locksAcquired = new ArrayList<>();
+                LockStrategy lockStrategy, int lockingParallelism,
+                @Nullable Executor lockingExecutor, Clock clock) {
+            return parseAndOptimizeLockableDocumentEventEntities(maxIdentities, entities,
+                    requester, documentEventFactoriesByType, lockStrategy, lockingParallelism,
+                    lockingExecutor, false, clock);
+        }
+
+        /**
+         * Like
+         * {@link #parseAndOptimizeLockableDocumentEventEntities(int, DocumentEventEntity[], LightblueRequester, Map, LockStrategy, int, Executor, Clock)},
+         * except {@code entities} may be only partially retrieved, as by
+         * {@link FindRequests#priorityDocumentEventsToClaimForTypesUpTo(String[], int, Instant)},
+         * if {@code loadFullEntitiesOnceLocked} is true.
+         *
+         * <p>Partial entities need only be complete enough to determine their identity. Once
+         * locks are acquired, events of locked identities are retrieved in full and parsed again
+         * before they are optimized, since optimizing relies on their survivor ids among other
+         * things. If this fails, locks are released and no events are returned; they will be
+         * retrieved again on a later attempt.
+         */
+        static LockedResources<SharedIdentityEvents> parseAndOptimizeLockableDocumentEventEntities(
+                int maxIdentities, DocumentEventEntity[] entities, LightblueRequester requester,
+                Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType,
+                LockStrategy lockStrategy, int lockingParallelism,
+                @Nullable Executor lockingExecutor, boolean loadFullEntitiesOnceLocked,
+                Clock clock) {
+            Map<Identity, List<LightblueDocumentEvent>> eventsByIdentity = new LinkedHashMap<>();
 
             for (DocumentEventEntity eventEntity : entities) {
-                String typeOfEvent = eventEntity.getCanonicalType();
-                DocumentEventFactory eventFactoryForType = documentEventFactoriesByType.get(typeOfEvent);
+                LightblueDocumentEvent newEvent =
+                        parseEventEntity(eventEntity, requester, documentEventFactoriesByType);
+
+                eventsByIdentity.computeIfAbsent(newEvent.identity(), i -> new ArrayList<>())
+                        .add(newEvent);
+            }
 
-                LightblueDocumentEvent newEvent;
+            List<LockedResource<SharedIdentityEvents>> locksAcquired = new ArrayList<>();
+            Iterator<Identity> identities = eventsByIdentity.keySet().iterator();
+
+            while (locksAcquired.size() < maxIdentities && identities.hasNext()) {
+                // Never request more locks than we could still use, so we never hold more than
+                // maxIdentities locks.
+                int lockRequests = Math.min(lockingParallelism, maxIdentities - locksAcquired.size());
+                List<SharedIdentityEvents> toLock = new ArrayList<>(lockRequests);
+
+                while (toLock.size() < lockRequests && identities.hasNext()) {
+                    toLock.add(new SharedIdentityEvents(identities.next()));
+                }
 
+                for (Optional<LockedResource<SharedIdentityEvents>> maybeLock
+                        : tryAcquireAll(toLock, lockStrategy, lockingExecutor)) {
+                    if (maybeLock.isPresent()) {
+                        locksAcquired.add(maybeLock.get());
+                        logger.debug("Acquired lock for resource {}",
+                                maybeLock.get().getResource().getResourceId());
+                    }
+                }
+            }
+
+            if (loadFullEntitiesOnceLocked && !locksAcquired.isEmpty()) {
                 try {
-                    newEvent = eventFactoryForType.getDocumentEventForEntity(eventEntity, requester);
+                    loadFullEventsOfLockedIdentities(locksAcquired, eventsByIdentity, requester,
+                            documentEventFactoriesByType);
                 } catch (Exception e) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Failed to parse event entity: " + eventEntity, e);
+                    logger.warn("Failed to retrieve full document events of locked identities. " +
+                            "Releasing locks. Events will be retried. Locks: " + locksAcquired, e);
+
+                    try {
+                        LockedResources.fromLocks(locksAcquired).close();
+                    } catch (IOException closeException) {
+                        logger.warn("Failed to release locks. They will expire on their own.",
+                                closeException);
                     }
 
-                    newEvent = new UnparseableDocumentEvent(e, eventEntity);
+                    return LockedResources.fromLocks(Collections.emptyList());
                 }
+            }
 
-                Identity identity = newEvent.identity();
-                SharedIdentityEvents eventBatch = docEventsByIdentity.get(identity);
+            // Timestamp the whole batch with the same instant, so events can be claimed together.
+            // See ClaimGroup.
+            Clock batchClock = Clock.fixed(clock.instant(), clock.getZone());
 
-                if (eventBatch == null) {
-                    if (locksAcquired.size() == maxIdentities) {
-                        continue;
-                    }
+            for (LockedResource<SharedIdentityEvents> lock : locksAcquired) {
+                SharedIdentityEvents eventBatch = lock.getResource();
 
-                    eventBatch = new SharedIdentityEvents(lockStrategy, identity, clock);
-                    docEventsByIdentity.put(identity, eventBatch);
-                    if (eventBatch.lock.isPresent()) {
-                        locksAcquired.add(eventBatch.lock.get());
-                        logger.debug("Acquired lock for resource {}", eventBatch.getResourceId());
-                    }
+                for (LightblueDocumentEvent event : eventsByIdentity.get(eventBatch.identity)) {
+                    eventBatch.addEvent(event, batchClock);
+                }
+            }
+
+            return lockingExecutor == null
+                    ? LockedResources.fromLocks(locksAcquired)
+                    : LockedResources.fromLocks(locksAcquired, lockingExecutor);
+        }
+
+        /**
+         * Retrieves events of locked identities in full, replacing the partially retrieved events
+         * in {@code eventsByIdentity}. Events which no longer exist, or whose identity somehow no
+         * longer matches, are dropped.
+         */
+        private static void loadFullEventsOfLockedIdentities(
+                List<LockedResource<SharedIdentityEvents>> locksAcquired,
+                Map<Identity, List<LightblueDocumentEvent>> eventsByIdentity,
+                LightblueRequester requester,
+                Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType)
+                throws Exception {
+            List<String> ids = new ArrayList<>();
+
+            for (LockedResource<SharedIdentityEvents> lock : locksAcquired) {
+                for (LightblueDocumentEvent event
+                        : eventsByIdentity.get(lock.getResource().identity)) {
+                    ids.add(event.wrappedDocumentEventEntity().get_id());
                 }
+            }
 
-                eventBatch.addEvent(newEvent);
+            DataFindRequest findFullEntities =
+                    FindRequests.documentEventsById(ids.toArray(new String[ids.size()]));
+            DocumentEventEntity[] fullEntities = requester.request(findFullEntities).get()
+                    .forRequest(findFullEntities)
+                    .parseProcessed(DocumentEventEntity[].class);
+
+            Map<Identity, List<LightblueDocumentEvent>> fullEventsByIdentity = new HashMap<>();
+
+            for (DocumentEventEntity entity : fullEntities) {
+                LightblueDocumentEvent fullEvent =
+                        parseEventEntity(entity, requester, documentEventFactoriesByType);
+                fullEventsByIdentity.computeIfAbsent(fullEvent.identity(), i -> new ArrayList<>())
+                        .add(fullEvent);
             }
 
-            return LockedResources.fromLocks(locksAcquired);
+            for (LockedResource<SharedIdentityEvents> lock : locksAcquired) {
+                Identity identity = lock.getResource().identity;
+                List<LightblueDocumentEvent> fullEvents = fullEventsByIdentity.remove(identity);
+
+                eventsByIdentity.put(identity, fullEvents == null
+                        ? Collections.emptyList()
+                        : fullEvents);
+            }
+
+            if (!fullEventsByIdentity.isEmpty()) {
+                logger.warn("Retrieved document events whose identity no longer matches a " +
+                        "locked identity. Will not process: {}", fullEventsByIdentity);
+            }
+        }
+
+        private static LightblueDocumentEvent parseEventEntity(DocumentEventEntity eventEntity,
+                LightblueRequester requester,
+                Map<String, ? extends DocumentEventFactory> documentEventFactoriesByType) {
+            String typeOfEvent = eventEntity.getCanonicalType();
+            DocumentEventFactory eventFactoryForType = documentEventFactoriesByType.get(typeOfEvent);
+
+            try {
+                return eventFactoryForType.getDocumentEventForEntity(eventEntity, requester);
+            } catch (Exception e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to parse event entity: " + eventEntity, e);
+                }
+
+                return new UnparseableDocumentEvent(e, eventEntity);
+            }
         }
 
         /**
-         * Attempts to acquire a lock on the provided {@code identity}. If the lock cannot be
-         * acquired, the object is still created, but it will throw out any added events since we
-         * cannot process them without a lock.
+         * Requests locks for all of {@code toLock} concurrently on {@code lockingExecutor}, or in
+         * the calling thread if there is only one or no executor. Results are in the same order as
+         * {@code toLock}.
          */
-        SharedIdentityEvents(LockStrategy lockStrategy, Identity identity, Clock clock) {
+        private static List<Optional<LockedResource<SharedIdentityEvents>>> tryAcquireAll(
+                List<SharedIdentityEvents> toLock, LockStrategy lockStrategy,
+                @Nullable Executor lockingExecutor) {
+            if (lockingExecutor == null || toLock.size() == 1) {
+                return toLock.stream()
+                        .map(eventBatch -> eventBatch.tryAcquire(lockStrategy))
+                        .collect(Collectors.toList());
+            }
+
+            List<CompletableFuture<Optional<LockedResource<SharedIdentityEvents>>>> futureLocks =
+                    toLock.stream()
+                            .map(eventBatch -> CompletableFuture.supplyAsync(
+                                    () -> eventBatch.tryAcquire(lockStrategy), lockingExecutor))
+                            .collect(Collectors.toList());
+
+            List<Optional<LockedResource<SharedIdentityEvents>>> locks =
+                    new ArrayList<>(futureLocks.size());
+
+            for (CompletableFuture<Optional<LockedResource<SharedIdentityEvents>>> futureLock
+                    : futureLocks) {
+                // tryAcquire never throws, so neither does join.
+                locks.add(futureLock.join());
+            }
+
+            return locks;
+        }
+
+        SharedIdentityEvents(Identity identity) {
             this.identity = identity;
-            this.clock = clock;
+        }
 
-            Optional<LockedResource<SharedIdentityEvents>> lock;
+        /**
+         * Attempts to acquire a lock on this identity. If the lock cannot be acquired, we cannot
+         * process its events, so they should be ignored.
+         */
+        Optional<LockedResource<SharedIdentityEvents>> tryAcquire(LockStrategy lockStrategy) {
             try {
-                lock = Optional.of(lockStrategy.tryAcquire(this));
+                return Optional.of(lockStrategy.tryAcquire(this));
             } catch (LockNotAvailableException e) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Lock not available. This is not fatal. Assuming another" +
                             " thread is processing document events sharing identity: " + identity, e);
                 }
-                lock = Optional.empty();
+            } catch (RuntimeException e) {
+                logger.warn("Unexpected failure acquiring lock. This is not fatal. Will not " +
+                        "process document events sharing identity: " + identity, e);
             }
 
-            this.lock = lock;
+            return Optional.empty();
         }
 
         @Override
@@ -475,133 +856,120 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
             return "SharedIdentityEvents{" +
                     "identity=" + identity +
                     ", updates=" + updates +
-                    ", optimized=" + optimized +
+                    ", optimizer=" + optimizer +
                     '}';
         }
 
         /**
          * Take the provided event and checks if it can be optimized among other known events of the
          * same identity. The results are tracked as side-effects to {@link #updates}.
+         *
+         * <p>Must only be called once this identity is locked.
+         *
+         * @param clock Timestamps updated events.
          */
-        private void addEvent(LightblueDocumentEvent event) {
+        private void addEvent(LightblueDocumentEvent event, Clock clock) {
             if (!Objects.equals(event.identity(), identity)) {
                 throw new IllegalArgumentException("Tried to add event to shared identity batch " +
                         "that didn't share the same identity.");
             }
 
-            if (!lock.isPresent()) {
-                return;
-            }
-
             // We have a new event, let's see if it is superseded by or can be merged with any
-            // previous events we parsed or created as a result of a previous merge.
-
-            // As we check, if we find we can merge an event, we will merge it, and continue on with
-            // the merger instead. These pointers track which event we are currently optimizing.
-            @Nullable LightblueDocumentEvent newOrMergerEvent = event;
-            DocumentEventEntity newOrMergerEventEntity = event.wrappedDocumentEventEntity();
-
-            Iterator<LightblueDocumentEvent> optimizedIterator = optimized.iterator();
-
-            while (optimizedIterator.hasNext()) {
-                LightblueDocumentEvent previouslyOptimizedEvent = optimizedIterator.next();
-
-                if (newOrMergerEvent.isSupersededBy(previouslyOptimizedEvent)) {
-                    // Keep previous event...
-                    DocumentEventEntity previousEntity = previouslyOptimizedEvent.wrappedDocumentEventEntity();
-                    previousEntity.addSurvivorOfIds(newOrMergerEventEntity.getSurvivorOfIds());
-                    previousEntity.addSurvivorOfIds(newOrMergerEventEntity.get_id());
-
-                    // ...and throw away this new one (which means simply drop it if it is a net new
-                    // event as a result of a merge which will have no id yet).
-                    if (newOrMergerEventEntity.get_id() != null) {
-                        newOrMergerEventEntity.setStatus(DocumentEventEntity.Status.superseded);
-                        updates.put(newOrMergerEvent, DocumentEventUpdate.timestamp(newOrMergerEvent, clock));
-                    }
+            // previous events we parsed or created as a result of a previous merge. The optimizer
+            // tells us of each event dropped along the way, so we can update its entity.
+            Optional<LightblueDocumentEvent> newOrMergerEvent =
+                    optimizer.add(event, new EntityUpdater(clock));
+
+            if (newOrMergerEvent.isPresent()) {
+                LightblueDocumentEvent kept = newOrMergerEvent.get();
+                kept.wrappedDocumentEventEntity().setStatus(DocumentEventEntity.Status.processing);
+                updates.put(kept, DocumentEventUpdate.timestamp(kept, clock));
+            }
+        }
 
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Event {} superseded by event {}",
-                                identify(newOrMergerEventEntity), identify(previousEntity));
-                    }
+        /**
+         * Updates entities of events dropped while optimizing: their status, and which events
+         * survive them.
+         */
+        private final class EntityUpdater
+                implements DocumentEventOptimizer.Listener<LightblueDocumentEvent> {
+            private final Clock clock;
 
-                    newOrMergerEventEntity.setSurvivorOfIds(null);
-                    newOrMergerEvent = null;
-
-                    break;
-                } else if (previouslyOptimizedEvent.isSupersededBy(newOrMergerEvent)) {
-                    // Previous entity was processing; now it is superseded and removed from
-                    // optimized result list.
-                    DocumentEventEntity previousEntity = previouslyOptimizedEvent.wrappedDocumentEventEntity();
-                    if (previousEntity.get_id() == null) {
-                        // Was net-new event from merger, but we aren't going to process, so ignore.
-                        updates.remove(previouslyOptimizedEvent);
-                    } else {
-                        previousEntity.setStatus(DocumentEventEntity.Status.superseded);
-                        previousEntity.setProcessedDate(ZonedDateTime.now(clock));
-                    }
-                    optimizedIterator.remove();
+            EntityUpdater(Clock clock) {
+                this.clock = clock;
+            }
 
-                    newOrMergerEventEntity.addSurvivorOfIds(previousEntity.get_id());
-                    newOrMergerEventEntity.addSurvivorOfIds(previousEntity.getSurvivorOfIds());
+            @Override
+            public void superseded(LightblueDocumentEvent superseded,
+                    LightblueDocumentEvent survivor) {
+                DocumentEventEntity supersededEntity = superseded.wrappedDocumentEventEntity();
+                DocumentEventEntity survivorEntity = survivor.wrappedDocumentEventEntity();
+
+                if (supersededEntity.get_id() == null) {
+                    // Was net-new event from merger, but we aren't going to process, so ignore.
+                    updates.remove(superseded);
+                } else if (updates.containsKey(superseded)) {
+                    // Previous event was processing; now it is superseded.
+                    supersededEntity.setStatus(DocumentEventEntity.Status.superseded);
+                    supersededEntity.setProcessedDate(ZonedDateTime.now(clock));
+                } else {
+                    // New event was never processing; it is simply superseded.
+                    supersededEntity.setStatus(DocumentEventEntity.Status.superseded);
+                    updates.put(superseded, DocumentEventUpdate.timestamp(superseded, clock));
+                }
 
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Event {} superseded by event {}",
-                                identify(previousEntity), identify(newOrMergerEventEntity));
-                    }
+                survivorEntity.addSurvivorOfIds(supersededEntity.get_id());
+                survivorEntity.addSurvivorOfIds(supersededEntity.getSurvivorOfIds());
 
-                    previousEntity.setSurvivorOfIds(null);
-                } else if (newOrMergerEvent.couldMergeWith(previouslyOptimizedEvent)) {
-                    // Previous entity was processing; now it is merged and removed from optimized
-                    // result list.
-                    DocumentEventEntity previousEntity = previouslyOptimizedEvent.wrappedDocumentEventEntity();
-                    if (previousEntity.get_id() == null) {
-                        // Was net-new event from merger, but we aren't going to process, so ignore.
-                        updates.remove(previouslyOptimizedEvent);
-                    } else {
-                        previousEntity.setStatus(DocumentEventEntity.Status.merged);
-                        previousEntity.setProcessedDate(ZonedDateTime.now(clock));
-                    }
-                    optimizedIterator.remove();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Event {} superseded by event {}",
+                            identify(supersededEntity), identify(survivorEntity));
+                }
 
-                    // This new event will not be included in result list, but we do have to update
-                    // its entity (if it has one) to store that it has been merged.
-                    newOrMergerEventEntity.setStatus(DocumentEventEntity.Status.merged);
-                    if (newOrMergerEventEntity.get_id() != null) {
-                        updates.put(newOrMergerEvent, DocumentEventUpdate.timestamp(newOrMergerEvent, clock));
-                    }
+                supersededEntity.setSurvivorOfIds(null);
+            }
 
-                    // We create a new event as a result of the merger, and keep this instead of the
-                    // others.
-                    LightblueDocumentEvent merger = newOrMergerEvent.merge(previouslyOptimizedEvent);
-                    DocumentEventEntity mergerEntity = merger.wrappedDocumentEventEntity();
-                    mergerEntity.addSurvivorOfIds(previousEntity.getSurvivorOfIds());
-                    mergerEntity.addSurvivorOfIds(newOrMergerEventEntity.getSurvivorOfIds());
-                    if (previousEntity.get_id() != null) {
-                        mergerEntity.addSurvivorOfIds(previousEntity.get_id());
-                    }
-                    if (newOrMergerEventEntity.get_id() != null) {
-                        mergerEntity.addSurvivorOfIds(newOrMergerEventEntity.get_id());
-                    }
+            @Override
+            public void merged(LightblueDocumentEvent previous,
+                    LightblueDocumentEvent newOrMerger, LightblueDocumentEvent merger) {
+                // Previous entity was processing; now it is merged.
+                DocumentEventEntity previousEntity = previous.wrappedDocumentEventEntity();
+                if (previousEntity.get_id() == null) {
+                    // Was net-new event from merger, but we aren't going to process, so ignore.
+                    updates.remove(previous);
+                } else {
+                    previousEntity.setStatus(DocumentEventEntity.Status.merged);
+                    previousEntity.setProcessedDate(ZonedDateTime.now(clock));
+                }
 
-                    if (logger.isDebugEnabled()) {
-                        logger.debug(
-                                "Events {} and {} merged into new event which now merges all of {}",
-                                identify(previousEntity), identify(newOrMergerEventEntity),
-                                identify(mergerEntity));
-                    }
+                // The new event will not be processed either, but we do have to update its entity
+                // (if it has one) to store that it has been merged.
+                DocumentEventEntity newOrMergerEntity = newOrMerger.wrappedDocumentEventEntity();
+                newOrMergerEntity.setStatus(DocumentEventEntity.Status.merged);
+                if (newOrMergerEntity.get_id() != null) {
+                    updates.put(newOrMerger, DocumentEventUpdate.timestamp(newOrMerger, clock));
+                }
 
-                    newOrMergerEventEntity.setSurvivorOfIds(null);
-                    previousEntity.setSurvivorOfIds(null);
+                // The new event as a result of the merger is kept instead of the others.
+                DocumentEventEntity mergerEntity = merger.wrappedDocumentEventEntity();
+                mergerEntity.addSurvivorOfIds(previousEntity.getSurvivorOfIds());
+                mergerEntity.addSurvivorOfIds(newOrMergerEntity.getSurvivorOfIds());
+                if (previousEntity.get_id() != null) {
+                    mergerEntity.addSurvivorOfIds(previousEntity.get_id());
+                }
+                if (newOrMergerEntity.get_id() != null) {
+                    mergerEntity.addSurvivorOfIds(newOrMergerEntity.get_id());
+                }
 
-                    newOrMergerEvent = merger;
-                    newOrMergerEventEntity = mergerEntity;
+                if (logger.isDebugEnabled()) {
+                    logger.debug(
+                            "Events {} and {} merged into new event which now merges all of {}",
+                            identify(previousEntity), identify(newOrMergerEntity),
+                            identify(mergerEntity));
                 }
-            }
 
-            if (newOrMergerEvent != null) {
-                newOrMergerEventEntity.setStatus(DocumentEventEntity.Status.processing);
-                optimized.add(newOrMergerEvent);
-                updates.put(newOrMergerEvent, DocumentEventUpdate.timestamp(newOrMergerEvent, clock));
+                newOrMergerEntity.setSurvivorOfIds(null);
+                previousEntity.setSurvivorOfIds(null);
             }
         }
     }
@@ -616,6 +984,47 @@ public class LightblueDocumentEventRepository implements DocumentEventRepository
                 : "<survivorOfIds=" + eventEntity.getSurvivorOfIds() + ">";
     }
 
+    /**
+     * Existing events which can be claimed by the same conditional update: they were retrieved with
+     * the same processing date and are to be updated to the same status and dates.
+     */
+    static final class ClaimGroup {
+        final @Nullable ZonedDateTime originalProcessingDate;
+        final DocumentEventEntity.Status status;
+        final ZonedDateTime processingDate;
+        final @Nullable ZonedDateTime processedDate;
+
+        ClaimGroup(DocumentEventUpdate update) {
+            DocumentEventEntity entity = update.event.wrappedDocumentEventEntity();
+
+            this.originalProcessingDate = update.originalProcessingDate;
+            this.status = entity.getStatus();
+            this.processingDate = entity.getProcessingDate();
+            this.processedDate = entity.getProcessedDate();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ClaimGroup that = (ClaimGroup) o;
+            return Objects.equals(instantOf(originalProcessingDate), instantOf(that.originalProcessingDate)) &&
+                    status == that.status &&
+                    Objects.equals(instantOf(processingDate), instantOf(that.processingDate)) &&
+                    Objects.equals(instantOf(processedDate), instantOf(that.processedDate));
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(instantOf(originalProcessingDate), status,
+                    instantOf(processingDate), instantOf(processedDate));
+        }
+
+        private static @Nullable Instant instantOf(@Nullable ZonedDateTime date) {
+            return date == null ? null : date.toInstant();
+        }
+    }
+
     /**
      * Captures a new or changed event with its to-be-persisted state, and the original processing
      * timestamp of the currently persisted state (or null if we're processing the event for the
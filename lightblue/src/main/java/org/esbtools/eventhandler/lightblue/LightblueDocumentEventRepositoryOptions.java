@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esbtools.eventhandler.lightblue;
+
+import org.esbtools.eventhandler.EventHandlerMetrics;
+import org.esbtools.eventhandler.lightblue.client.LightblueLookupCache;
+import org.esbtools.eventhandler.lightblue.locking.LockStrategy;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Optional features of a {@link LightblueDocumentEventRepository}, which are all off by default.
+ * Unlike {@link LightblueDocumentEventRepositoryConfig}, these are only read once, when the
+ * repository is constructed.
+ */
+@NotThreadSafe
+public class LightblueDocumentEventRepositoryOptions {
+    private int lockingParallelism = 1;
+    private boolean twoPhaseRetrieval = false;
+    private EventHandlerMetrics metrics = EventHandlerMetrics.none();
+    private @Nullable LightblueLookupCache lookupCache = null;
+    private Map<String, ? extends Set<String>> changedEntityNamesByType = Collections.emptyMap();
+
+    public int getLockingParallelism() {
+        return lockingParallelism;
+    }
+
+    /**
+     * @param lockingParallelism How many identity locks may be requested from the
+     *                           {@link LockStrategy} at once while retrieving events. With 1, the
+     *                           default, locks are requested one at a time in the retrieving
+     *                           thread. Higher values trade a bounded pool of threads for
+     *                           retrieval latency which no longer grows with lock round trips
+     *                           times batch size.
+     */
+    public LightblueDocumentEventRepositoryOptions setLockingParallelism(int lockingParallelism) {
+        if (lockingParallelism < 1) {
+            throw new IllegalArgumentException("lockingParallelism must be at least 1, but was " +
+                    lockingParallelism);
+        }
+
+        this.lockingParallelism = lockingParallelism;
+        return this;
+    }
+
+    public boolean isTwoPhaseRetrieval() {
+        return twoPhaseRetrieval;
+    }
+
+    /**
+     * @param twoPhaseRetrieval If true, events are first retrieved with only the fields needed to
+     *                          identify and prioritize them, and only events of identities we
+     *                          manage to lock are then retrieved in full. This avoids transferring
+     *                          survivor ids and other details of events we will not process, at
+     *                          the cost of an extra find per retrieval. Worth it when many threads
+     *                          or instances compete for the same events.
+     */
+    public LightblueDocumentEventRepositoryOptions setTwoPhaseRetrieval(boolean twoPhaseRetrieval) {
+        this.twoPhaseRetrieval = twoPhaseRetrieval;
+        return this;
+    }
+
+    public EventHandlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics Counts events superseded and merged as they are persisted, and lookups
+     *                deduplicated while they are parsed, under the source
+     *                {@value LightblueDocumentEventRepository#METRICS_SOURCE}.
+     */
+    public LightblueDocumentEventRepositoryOptions setMetrics(EventHandlerMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        return this;
+    }
+
+    public @Nullable LightblueLookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    public Map<String, ? extends Set<String>> getChangedEntityNamesByType() {
+        return changedEntityNamesByType;
+    }
+
+    /**
+     * @param lookupCache If not null, lookups made while parsing events are answered from this
+     *                    cache where possible.
+     * @param changedEntityNamesByType For each canonical type, the names of the entities whose
+     *                                 changes events of that type are about. Lookups of these
+     *                                 entities always go to lightblue while parsing a batch with
+     *                                 events of that type. If a batch has an event of a type not
+     *                                 in this map, none of its lookups use the cache, since we
+     *                                 cannot tell which of them must be fresh.
+     */
+    public LightblueDocumentEventRepositoryOptions setLookupCache(
+            @Nullable LightblueLookupCache lookupCache,
+            Map<String, ? extends Set<String>> changedEntityNamesByType) {
+        this.lookupCache = lookupCache;
+        this.changedEntityNamesByType = Objects.requireNonNull(changedEntityNamesByType,
+                "changedEntityNamesByType");
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "LightblueDocumentEventRepositoryOptions{" +
+                "lockingParallelism=" + lockingParallelism +
+                ", twoPhaseRetrieval=" + twoPhaseRetrieval +
+                ", metrics=" + metrics +
+                ", lookupCache=" + lookupCache +
+                ", changedEntityNamesByType=" + changedEntityNamesByType +
+                '}';
+    }
+}
@@ -22,8 +22,10 @@ import org.esbtools.eventhandler.FailedNotification;
 import org.esbtools.eventhandler.Notification;
 import org.esbtools.eventhandler.NotificationRepository;
 import org.esbtools.eventhandler.lightblue.client.BulkLightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.CachingLightblueRequester;
 import org.esbtools.eventhandler.lightblue.client.FindRequests;
 import org.esbtools.eventhandler.lightblue.client.LightblueErrors;
+import org.esbtools.eventhandler.lightblue.client.LightblueLookupCache;
 import org.esbtools.eventhandler.lightblue.client.LightblueRequester;
 import org.esbtools.eventhandler.lightblue.client.UpdateRequests;
 import org.esbtools.lightbluenotificationhook.NotificationEntity;
@@ -37,6 +39,7 @@ import com.redhat.lightblue.client.response.LightblueDataResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
@@ -44,7 +47,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -61,6 +66,8 @@ public class LightblueNotificationRepository implements NotificationRepository {
     private final LightblueClient lightblue;
     private final LightblueNotificationRepositoryConfig config;
     private final Map<String, NotificationFactory> notificationFactoryByEntityName;
+    private final boolean twoPhaseRetrieval;
+    private final @Nullable LightblueLookupCache lookupCache;
     private final Clock clock;
 
     private final Set<String> supportedEntityNames;
@@ -72,9 +79,39 @@ public class LightblueNotificationRepository implements NotificationRepository {
     public LightblueNotificationRepository(LightblueClient lightblue,
             LightblueNotificationRepositoryConfig config,
             Map<String, NotificationFactory> notificationFactoryByEntityName, Clock clock) {
+        this(lightblue, config, notificationFactoryByEntityName, false, clock);
+    }
+
+    /**
+     * @param twoPhaseRetrieval If true, notifications are first retrieved with only the fields
+     *                          needed to claim them, and only those successfully claimed are then
+     *                          retrieved in full. This avoids transferring entity data for
+     *                          notifications another thread claims first, at the cost of an extra
+     *                          find per retrieval. Worth it when many threads or instances compete
+     *                          for the same notifications.
+     */
+    public LightblueNotificationRepository(LightblueClient lightblue,
+            LightblueNotificationRepositoryConfig config,
+            Map<String, NotificationFactory> notificationFactoryByEntityName,
+            boolean twoPhaseRetrieval, Clock clock) {
+        this(lightblue, config, notificationFactoryByEntityName, twoPhaseRetrieval, null, clock);
+    }
+
+    /**
+     * @param lookupCache If not null, lookups made while parsing notifications are answered from
+     *                    this cache where possible. Lookups of the entities the notifications are
+     *                    about always go to lightblue.
+     * @see #LightblueNotificationRepository(LightblueClient, LightblueNotificationRepositoryConfig, Map, boolean, Clock)
+     */
+    public LightblueNotificationRepository(LightblueClient lightblue,
+            LightblueNotificationRepositoryConfig config,
+            Map<String, NotificationFactory> notificationFactoryByEntityName,
+            boolean twoPhaseRetrieval, @Nullable LightblueLookupCache lookupCache, Clock clock) {
         this.lightblue = lightblue;
         this.config = config;
         this.notificationFactoryByEntityName = notificationFactoryByEntityName;
+        this.twoPhaseRetrieval = twoPhaseRetrieval;
+        this.lookupCache = lookupCache;
         this.clock = clock;
 
         supportedEntityNames = notificationFactoryByEntityName.keySet();
@@ -99,6 +136,11 @@ public class LightblueNotificationRepository implements NotificationRepository {
             return Collections.emptyList();
         }
 
+        if (twoPhaseRetrieval) {
+            return claimThenRetrieveOldestNotificationsUpTo(entitiesToProcess, maxNotifications,
+                    processingTimeout);
+        }
+
         NotificationEntity[] notificationEntities = lightblue
                 .data(FindRequests.oldestNotificationsForEntitiesUpTo(
                         entitiesToProcess, maxNotifications,
@@ -107,7 +149,7 @@ public class LightblueNotificationRepository implements NotificationRepository {
         List<ProcessingNotification> processingList =
                 ProcessingNotification.parseNotificationEntities(
                         notificationEntities,
-                        new BulkLightblueRequester(lightblue),
+                        newRequesterFor(notificationEntities),
                         notificationFactoryByEntityName, clock);
 
         if (processingList.isEmpty()) {
@@ -169,6 +211,102 @@ public class LightblueNotificationRepository implements NotificationRepository {
         return updatedNotifications;
     }
 
+    private List<LightblueNotification> claimThenRetrieveOldestNotificationsUpTo(
+            String[] entitiesToProcess, int maxNotifications, Duration processingTimeout)
+            throws LightblueException {
+        NotificationEntity[] entitiesToClaim = lightblue
+                .data(FindRequests.oldestNotificationsToClaimForEntitiesUpTo(
+                        entitiesToProcess, maxNotifications,
+                        clock.instant().minus(processingTimeout)))
+                .parseProcessed(NotificationEntity[].class);
+
+        if (entitiesToClaim.length == 0) {
+            return Collections.emptyList();
+        }
+
+        DataBulkRequest claimEntities = new DataBulkRequest();
+        Date processingDate = Date.from(clock.instant());
+
+        for (NotificationEntity entity : entitiesToClaim) {
+            Date originalProcessingDate = entity.getProcessingDate();
+            entity.setProcessingDate(processingDate);
+            entity.setStatus(NotificationEntity.Status.processing);
+
+            claimEntities.add(UpdateRequests.notificationStatusIfCurrent(
+                    entity, originalProcessingDate));
+        }
+
+        LightblueBulkDataResponse bulkResponse;
+
+        try {
+            bulkResponse = lightblue.bulkData(claimEntities);
+        } catch (LightblueBulkResponseException e) {
+            bulkResponse = e.getBulkResponse();
+        }
+
+        List<LightblueDataResponse> responses = bulkResponse.getResponses();
+
+        if (responses.size() != entitiesToClaim.length) {
+            throw new IllegalStateException("Mismatched number of requests and responses! " +
+                    "Notifications looked like: " + Arrays.toString(entitiesToClaim) +
+                    "Responses looked like: " + responses);
+        }
+
+        List<String> claimedIds = new ArrayList<>(entitiesToClaim.length);
+
+        for (int i = 0; i < entitiesToClaim.length; i++) {
+            LightblueDataResponse response = responses.get(i);
+            String id = entitiesToClaim[i].get_id();
+
+            if (LightblueErrors.arePresentInResponse(response)) {
+                if (logger.isWarnEnabled()) {
+                    List<String> errorStrings = LightblueErrors.toStringsFromErrorResponse(response);
+                    logger.warn("Notification update failed. Will not process. " +
+                            "Notification id: <{}>. Errors: <{}>", id, errorStrings);
+                }
+                continue;
+            }
+
+            if (response.parseModifiedCount() == 0) {
+                logger.warn("Notification updated by another thread. Will not process. " +
+                        "Notification id: {}", id);
+                continue;
+            }
+
+            claimedIds.add(id);
+        }
+
+        if (claimedIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        NotificationEntity[] claimedEntities = lightblue
+                .data(FindRequests.notificationsById(
+                        claimedIds.toArray(new String[claimedIds.size()])))
+                .parseProcessed(NotificationEntity[].class);
+
+        // The $in find returns entities in no particular order. Restore the oldest first order in
+        // which they were claimed.
+        Map<String, Integer> claimOrder = new HashMap<>(claimedIds.size());
+
+        for (int i = 0; i < claimedIds.size(); i++) {
+            claimOrder.put(claimedIds.get(i), i);
+        }
+
+        Arrays.sort(claimedEntities, Comparator.comparing(
+                (NotificationEntity entity) -> claimOrder.getOrDefault(entity.get_id(), Integer.MAX_VALUE)));
+
+        LightblueRequester requester = newRequesterFor(claimedEntities);
+        List<LightblueNotification> claimedNotifications = new ArrayList<>(claimedEntities.length);
+
+        for (NotificationEntity entity : claimedEntities) {
+            claimedNotifications.add(ProcessingNotification.parseNotificationEntity(
+                    entity, requester, notificationFactoryByEntityName));
+        }
+
+        return claimedNotifications;
+    }
+
 
     @Override
     public void ensureTransactionActive(Notification notification) throws Exception {
@@ -194,28 +332,33 @@ public class LightblueNotificationRepository implements NotificationRepository {
     @Override
     public void markNotificationsProcessedOrFailed(Collection<? extends Notification> notification,
             Collection<FailedNotification> failures) throws LightblueException {
-        List<NotificationEntity> processedNotificationEntities = notification.stream()
+        // One processed date for the whole call, so notifications sharing a status are updated
+        // together.
+        Date processedDate = Date.from(clock.instant());
+
+        List<NotificationEntity> processedAndFailedEntities = new ArrayList<>(
+                notification.size() + failures.size());
+
+        notification.stream()
                 .map(LightblueNotificationRepository::asEntity)
                 .peek(entity -> {
                     entity.setStatus(NotificationEntity.Status.processed);
-                    entity.setProcessedDate(Date.from(clock.instant()));
+                    entity.setProcessedDate(processedDate);
                 })
-                .collect(Collectors.toList());
+                .forEach(processedAndFailedEntities::add);
 
-        List<NotificationEntity> failedNotificationEntities = failures.stream()
+        failures.stream()
                 .map(FailedNotification::notification)
                 .map(LightblueNotificationRepository::asEntity)
                 .peek(entity -> {
                     entity.setStatus(NotificationEntity.Status.failed);
-                    entity.setProcessedDate(Date.from(clock.instant()));
+                    entity.setProcessedDate(processedDate);
                 })
-                .collect(Collectors.toList());
+                .forEach(processedAndFailedEntities::add);
 
         DataBulkRequest markNotifications = new DataBulkRequest();
         markNotifications.addAll(
-                UpdateRequests.notificationsStatusAndProcessedDate(processedNotificationEntities));
-        markNotifications.addAll(
-                UpdateRequests.notificationsStatusAndProcessedDate(failedNotificationEntities));
+                UpdateRequests.notificationsStatusAndProcessedDate(processedAndFailedEntities));
 
         if (markNotifications.getRequests().isEmpty()) {
             return;
@@ -225,6 +368,24 @@ public class LightblueNotificationRepository implements NotificationRepository {
         lightblue.bulkData(markNotifications);
     }
 
+    /**
+     * A requester for lookups made while parsing a batch of notifications, which bypasses the
+     * {@link #lookupCache} for entities those notifications are about.
+     */
+    private LightblueRequester newRequesterFor(NotificationEntity[] notificationEntities) {
+        LightblueRequester requester = new BulkLightblueRequester(lightblue);
+
+        if (lookupCache == null) {
+            return requester;
+        }
+
+        Set<String> changedEntityNames = Arrays.stream(notificationEntities)
+                .map(NotificationEntity::getEntityName)
+                .collect(Collectors.toSet());
+
+        return new CachingLightblueRequester(requester, lookupCache, changedEntityNames);
+    }
+
     private String[] getSupportedAndEnabledEntityNames() {
         Set<String> entityNamesToProcess = config.getEntityNamesToProcess();
 
@@ -266,19 +427,8 @@ public class LightblueNotificationRepository implements NotificationRepository {
             List<NotificationEntity> notificationEntityList = Arrays.asList(entities);
 
             for (NotificationEntity entity : notificationEntityList) {
-                LightblueNotification notification;
-
-                try {
-                    notification = notificationFactoriesByEntityName
-                            .get(entity.getEntityName())
-                            .getNotificationForEntity(entity, requester);
-                } catch (Exception e) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Failed to parse notification entity: " + entity, e);
-                    }
-
-                    notification = new UnparseableNotification(e, entity);
-                }
+                LightblueNotification notification = parseNotificationEntity(entity, requester,
+                        notificationFactoriesByEntityName);
 
                 Date originalProcessingDate = entity.getProcessingDate();
 
@@ -295,6 +445,22 @@ public class LightblueNotificationRepository implements NotificationRepository {
             return processedNotifications;
         }
 
+        static LightblueNotification parseNotificationEntity(NotificationEntity entity,
+                LightblueRequester requester,
+                Map<String, ? extends NotificationFactory> notificationFactoriesByEntityName) {
+            try {
+                return notificationFactoriesByEntityName
+                        .get(entity.getEntityName())
+                        .getNotificationForEntity(entity, requester);
+            } catch (Exception e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to parse notification entity: " + entity, e);
+                }
+
+                return new UnparseableNotification(e, entity);
+            }
+        }
+
         private ProcessingNotification(String notificationId, LightblueNotification notification,
                 Date originalProcessingDate) {
             this.notificationId = notificationId;
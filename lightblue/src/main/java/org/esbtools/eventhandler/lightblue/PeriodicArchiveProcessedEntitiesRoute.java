@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import java.sql.Date;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.esbtools.eventhandler.EventHandlerMetrics;
+import org.esbtools.eventhandler.lightblue.locking.LockStrategy;
+import org.esbtools.eventhandler.lightblue.locking.LockingRoutePolicy;
+import org.esbtools.lightbluenotificationhook.NotificationEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.Literal;
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.Sort;
+import com.redhat.lightblue.client.request.data.DataDeleteRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataSaveRequest;
+
+/**
+ * Periodically moves entities which reached a terminal status more than {@code archiveOlderThan}
+ * ago out of their collection and into an archive entity, while holding a lock so that only one
+ * instance archives at a time.
+ *
+ * <p>Repositories only ever query for unprocessed or processing entities, but those queries and
+ * their indexes still have to cope with every published, merged, or processed entity left behind
+ * in the same collection. Archiving keeps the hot collections down to the entities still in
+ * flight, while keeping the history which deleting with {@link PeriodicDeleteOldEntitiesRoute}
+ * would throw away.
+ *
+ * <p>Entities are moved {@code chunkSize} at a time, oldest first, no faster than
+ * {@code maxArchivesPerSecond}, and for no longer than {@code archiveInterval} per run. Each chunk
+ * is saved to the archive entity, whole and with its original id, before it is deleted from its
+ * collection. Saves upsert, so a chunk which was archived but not yet deleted when an instance
+ * stopped is simply archived again by the next run.
+ *
+ * <p>Like {@link PeriodicDeleteOldEntitiesRoute}, a run which runs out of time leaves a
+ * checkpoint in memory, and the next run continues the same pass with the same cutoff date.
+ */
+public class PeriodicArchiveProcessedEntitiesRoute extends RouteBuilder {
+    private final LightblueClient client;
+    private final LockStrategy lockStrategy;
+    private final Duration archiveInterval;
+    private final int chunkSize;
+    private final EventHandlerMetrics metrics;
+    private final String entityName;
+    private final String entityVersion;
+    private final String archiveEntityName;
+    private final String archiveEntityVersion;
+    private final String entityDateField;
+    private final Literal[] terminalStatuses;
+
+    private final ChunkedPass chunkedPass;
+
+    /** Package visible for testing. */
+    final String archiverLockResourceId;
+
+    private static final String STATUS_FIELD = "status";
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PeriodicArchiveProcessedEntitiesRoute.class);
+
+    /**
+     * Archives document events which were published, superseded, merged, or failed more than
+     * {@code archiveOlderThan} ago into {@link DocumentEventArchiveEntity}.
+     */
+    public static PeriodicArchiveProcessedEntitiesRoute archivingDocumentEventsProcessedOlderThan(
+            Duration archiveOlderThan, Duration archiveInterval, int chunkSize,
+            double maxArchivesPerSecond, LightblueClient client, LockStrategy lockStrategy,
+            EventHandlerMetrics metrics, Clock clock) {
+        return new PeriodicArchiveProcessedEntitiesRoute(DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION, DocumentEventArchiveEntity.ENTITY_NAME,
+                DocumentEventArchiveEntity.VERSION, "processedDate",
+                Arrays.asList(
+                        DocumentEventEntity.Status.published.name(),
+                        DocumentEventEntity.Status.superseded.name(),
+                        DocumentEventEntity.Status.merged.name(),
+                        DocumentEventEntity.Status.failed.name()),
+                client, lockStrategy, archiveOlderThan, archiveInterval, chunkSize,
+                maxArchivesPerSecond, metrics, clock);
+    }
+
+    /**
+     * Archives notifications which were processed more than {@code archiveOlderThan} ago into
+     * {@link NotificationArchiveEntity}. Failed notifications are left in place.
+     */
+    public static PeriodicArchiveProcessedEntitiesRoute archivingNotificationsProcessedOlderThan(
+            Duration archiveOlderThan, Duration archiveInterval, int chunkSize,
+            double maxArchivesPerSecond, LightblueClient client, LockStrategy lockStrategy,
+            EventHandlerMetrics metrics, Clock clock) {
+        return new PeriodicArchiveProcessedEntitiesRoute(NotificationEntity.ENTITY_NAME,
+                NotificationEntity.ENTITY_VERSION, NotificationArchiveEntity.ENTITY_NAME,
+                NotificationArchiveEntity.ENTITY_VERSION, "processedDate",
+                Arrays.asList(NotificationEntity.Status.processed.name()),
+                client, lockStrategy, archiveOlderThan, archiveInterval, chunkSize,
+                maxArchivesPerSecond, metrics, clock);
+    }
+
+    /**
+     * @param archiveEntityName Entity to move entities into. Its metadata must have the same
+     *                          fields as the archived entity.
+     * @param entityDateField When an entity reached its terminal status.
+     * @param terminalStatuses Values of the entity's status field which it never leaves.
+     * @param chunkSize How many entities to move per request.
+     * @param maxArchivesPerSecond Caps throughput: chunks are spaced out so that no more than
+     *                             this many entities are moved per second, on average over a run.
+     * @param metrics Records the size and duration of each chunk, and counts archived entities,
+     *                with the lock resource id as their source.
+     */
+    public PeriodicArchiveProcessedEntitiesRoute(String entityName, String entityVersion,
+            String archiveEntityName, String archiveEntityVersion, String entityDateField,
+            Collection<String> terminalStatuses, LightblueClient client,
+            LockStrategy lockStrategy, Duration archiveOlderThan, Duration archiveInterval,
+            int chunkSize, double maxArchivesPerSecond, EventHandlerMetrics metrics,
+            Clock clock) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive, but was: " +
+                    chunkSize);
+        }
+
+        if (!(maxArchivesPerSecond > 0)) {
+            throw new IllegalArgumentException("maxArchivesPerSecond must be positive, but was: " +
+                    maxArchivesPerSecond);
+        }
+
+        if (terminalStatuses.isEmpty()) {
+            throw new IllegalArgumentException("terminalStatuses must not be empty");
+        }
+
+        this.client = client;
+        this.lockStrategy = lockStrategy;
+        this.archiveInterval = archiveInterval;
+        this.chunkSize = chunkSize;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.entityName = entityName;
+        this.entityVersion = entityVersion;
+        this.archiveEntityName = archiveEntityName;
+        this.archiveEntityVersion = archiveEntityVersion;
+        this.entityDateField = entityDateField;
+        this.terminalStatuses = Literal.values(
+                terminalStatuses.toArray(new String[terminalStatuses.size()]));
+
+        archiverLockResourceId = "processed_" + entityName + "_archiver";
+        chunkedPass = new ChunkedPass(archiverLockResourceId, entityName, entityDateField,
+                archiveOlderThan, archiveInterval, chunkSize, maxArchivesPerSecond, this.metrics,
+                EventHandlerMetrics.ARCHIVE, EventHandlerMetrics.ARCHIVED, "Archived", clock);
+    }
+
+    @Override
+    public void configure() throws Exception {
+        from("timer:" + archiverLockResourceId + "?period=" + archiveInterval.toMillis())
+        .routeId(archiverLockResourceId)
+        .routePolicy(new LockingRoutePolicy(archiverLockResourceId, lockStrategy))
+        .process(exchange -> chunkedPass.run(this::findOldestProcessed, this::archive));
+    }
+
+    private ObjectNode[] findOldestProcessed(Instant cutoff) throws LightblueException {
+        DataFindRequest findChunk = new DataFindRequest(entityName, entityVersion);
+        findChunk.where(Query.and(
+                Query.withValues(STATUS_FIELD, Query.NaryOp.in, terminalStatuses),
+                Query.withValue(entityDateField, Query.BinOp.lt, Date.from(cutoff))));
+        findChunk.select(Projection.includeFieldRecursively("*"));
+        findChunk.sort(Sort.asc(entityDateField));
+        findChunk.range(0, chunkSize - 1);
+
+        return client.data(findChunk).parseProcessed(ObjectNode[].class);
+    }
+
+    /**
+     * Copies the chunk into the archive entity, then deletes it from its own.
+     *
+     * @return How many entities were deleted from their own entity.
+     */
+    private int archive(ObjectNode[] chunk) throws LightblueException {
+        List<String> ids = new ArrayList<>(chunk.length);
+
+        for (ObjectNode entity : chunk) {
+            ids.add(entity.get("_id").asText());
+            // Lightblue sets this from the entity saved to.
+            entity.remove("objectType");
+        }
+
+        DataSaveRequest saveChunk = new DataSaveRequest(archiveEntityName, archiveEntityVersion);
+        saveChunk.create((Object[]) chunk);
+        saveChunk.setUpsert(true);
+        saveChunk.returns(Projection.includeField("_id"));
+
+        client.data(saveChunk);
+
+        DataDeleteRequest deleteChunk = new DataDeleteRequest(entityName, entityVersion);
+        deleteChunk.where(Query.withValues("_id", Query.NaryOp.in,
+                Literal.values(ids.toArray(new String[ids.size()]))));
+
+        return client.data(deleteChunk).parseModifiedCount();
+    }
+}
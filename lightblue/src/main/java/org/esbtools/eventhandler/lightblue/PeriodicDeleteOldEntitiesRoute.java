@@ -22,32 +22,64 @@ import java.sql.Date;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Objects;
 
 import org.apache.camel.builder.RouteBuilder;
+import org.esbtools.eventhandler.EventHandlerMetrics;
 import org.esbtools.eventhandler.lightblue.locking.LockStrategy;
 import org.esbtools.eventhandler.lightblue.locking.LockingRoutePolicy;
 import org.esbtools.lightbluenotificationhook.NotificationEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.Literal;
+import com.redhat.lightblue.client.Projection;
 import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.Sort;
 import com.redhat.lightblue.client.request.data.DataDeleteRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
 import com.redhat.lightblue.client.response.LightblueDataResponse;
 
+/**
+ * Periodically deletes entities whose date field is older than {@code deleteOlderThan}, while
+ * holding a lock so that only one instance deletes at a time.
+ *
+ * <p>By default, everything too old is deleted with one request per interval. With a
+ * {@code chunkSize}, the oldest entities are instead found and deleted by id, {@code chunkSize}
+ * at a time, no faster than {@code maxDeletesPerSecond}, and for no longer than
+ * {@code deleteInterval} per run. A large backlog, such as after an outage, is then worked off
+ * over several runs at a steady rate instead of in one request which competes with the queries
+ * of processing routes on the same collection.
+ *
+ * <p>A run which runs out of time leaves a checkpoint: the next run continues the same pass, with
+ * the same cutoff date, so that a pass always finishes even while new entities keep becoming too
+ * old. The checkpoint is kept in memory by whichever instance holds the lock; if another
+ * instance takes over, it simply starts a new pass, which is equivalent since deleted entities
+ * are gone.
+ */
 public class PeriodicDeleteOldEntitiesRoute extends RouteBuilder {
     private final LightblueClient client;
     private final LockStrategy lockStrategy;
     private final Duration deleteOlderThan;
     private final Duration deleteInterval;
+    private final int chunkSize;
+    private final EventHandlerMetrics metrics;
     private final Clock clock;
     private final String entityName;
     private final String entityVersion;
     private final String entityDateField;
 
+    private final ChunkedPass chunkedPass;
+
     /** Package visible for testing. */
     final String deleterLockResourceId;
 
+    /** Deletes everything too old in one request. */
+    private static final int UNCHUNKED = 0;
+
     private static final Logger log = LoggerFactory.getLogger(PeriodicDeleteOldEntitiesRoute.class);
 
     public static PeriodicDeleteOldEntitiesRoute deletingNotificationsOlderThan(
@@ -58,6 +90,22 @@ public class PeriodicDeleteOldEntitiesRoute extends RouteBuilder {
                 deleteOlderThan, deleteInterval, clock);
     }
 
+    /**
+     * Like {@link #deletingNotificationsOlderThan(Duration, Duration, LightblueClient,
+     * LockStrategy, Clock)}, but deletes in chunks.
+     *
+     * @see #PeriodicDeleteOldEntitiesRoute(String, String, String, LightblueClient, LockStrategy,
+     * Duration, Duration, int, double, EventHandlerMetrics, Clock)
+     */
+    public static PeriodicDeleteOldEntitiesRoute deletingNotificationsOlderThan(
+            Duration deleteOlderThan, Duration deleteInterval, int chunkSize,
+            double maxDeletesPerSecond, LightblueClient client, LockStrategy lockStrategy,
+            EventHandlerMetrics metrics, Clock clock) {
+        return new PeriodicDeleteOldEntitiesRoute(NotificationEntity.ENTITY_NAME,
+                NotificationEntity.ENTITY_VERSION, "clientRequestDate", client, lockStrategy,
+                deleteOlderThan, deleteInterval, chunkSize, maxDeletesPerSecond, metrics, clock);
+    }
+
     public static PeriodicDeleteOldEntitiesRoute deletingDocumentEventsOlderThan(
             Duration deleteOlderThan, Duration deleteInterval, LightblueClient client,
             LockStrategy lockStrategy, Clock clock) {
@@ -66,19 +114,66 @@ public class PeriodicDeleteOldEntitiesRoute extends RouteBuilder {
                 deleteOlderThan, deleteInterval, clock);
     }
 
+    /**
+     * Like {@link #deletingDocumentEventsOlderThan(Duration, Duration, LightblueClient,
+     * LockStrategy, Clock)}, but deletes in chunks.
+     *
+     * @see #PeriodicDeleteOldEntitiesRoute(String, String, String, LightblueClient, LockStrategy,
+     * Duration, Duration, int, double, EventHandlerMetrics, Clock)
+     */
+    public static PeriodicDeleteOldEntitiesRoute deletingDocumentEventsOlderThan(
+            Duration deleteOlderThan, Duration deleteInterval, int chunkSize,
+            double maxDeletesPerSecond, LightblueClient client, LockStrategy lockStrategy,
+            EventHandlerMetrics metrics, Clock clock) {
+        return new PeriodicDeleteOldEntitiesRoute(DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION, "creationDate", client, lockStrategy,
+                deleteOlderThan, deleteInterval, chunkSize, maxDeletesPerSecond, metrics, clock);
+    }
+
     public PeriodicDeleteOldEntitiesRoute(String entityName, String entityVersion,
             String entityDateField, LightblueClient client, LockStrategy lockStrategy,
             Duration deleteOlderThan, Duration deleteInterval, Clock clock) {
+        this(entityName, entityVersion, entityDateField, client, lockStrategy, deleteOlderThan,
+                deleteInterval, UNCHUNKED, Double.POSITIVE_INFINITY, EventHandlerMetrics.none(),
+                clock);
+    }
+
+    /**
+     * @param chunkSize How many entities to delete per request.
+     * @param maxDeletesPerSecond Caps throughput: chunks are spaced out so that no more than this
+     *                            many entities are deleted per second, on average over a run.
+     * @param metrics Records the size and duration of each chunk, and counts deleted entities,
+     *                with the lock resource id as their source.
+     */
+    public PeriodicDeleteOldEntitiesRoute(String entityName, String entityVersion,
+            String entityDateField, LightblueClient client, LockStrategy lockStrategy,
+            Duration deleteOlderThan, Duration deleteInterval, int chunkSize,
+            double maxDeletesPerSecond, EventHandlerMetrics metrics, Clock clock) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("chunkSize must not be negative, but was: " +
+                    chunkSize);
+        }
+
+        if (!(maxDeletesPerSecond > 0)) {
+            throw new IllegalArgumentException("maxDeletesPerSecond must be positive, but was: " +
+                    maxDeletesPerSecond);
+        }
+
         this.client = client;
         this.lockStrategy = lockStrategy;
         this.deleteOlderThan = deleteOlderThan;
         this.deleteInterval = deleteInterval;
+        this.chunkSize = chunkSize;
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
         this.clock = clock;
         this.entityName = entityName;
         this.entityVersion = entityVersion;
         this.entityDateField = entityDateField;
 
         deleterLockResourceId = "old_" + entityName + "_deleter";
+        chunkedPass = new ChunkedPass(deleterLockResourceId, entityName, entityDateField,
+                deleteOlderThan, deleteInterval, chunkSize, maxDeletesPerSecond, this.metrics,
+                EventHandlerMetrics.DELETE, EventHandlerMetrics.DELETED, "Deleted", clock);
     }
 
     @Override
@@ -87,19 +182,52 @@ public class PeriodicDeleteOldEntitiesRoute extends RouteBuilder {
         .routeId(deleterLockResourceId)
         .routePolicy(new LockingRoutePolicy(deleterLockResourceId, lockStrategy))
         .process(exchange -> {
-            Instant tooOld = clock.instant().minus(deleteOlderThan);
+            if (chunkSize == UNCHUNKED) {
+                deleteAllTooOld();
+            } else {
+                chunkedPass.run(this::findOldestIds, this::deleteChunk);
+            }
+        });
+    }
 
-            log.debug("Deleting {} entities with {} before {}", entityName, entityDateField, tooOld);
+    private void deleteAllTooOld() throws LightblueException {
+        Instant tooOld = clock.instant().minus(deleteOlderThan);
 
-            DataDeleteRequest deleteRequest = new DataDeleteRequest(entityName, entityVersion);
-            deleteRequest.where(Query.withValue(entityDateField, Query.BinOp.lt, Date.from(tooOld)));
+        log.debug("Deleting {} entities with {} before {}", entityName, entityDateField, tooOld);
 
-            LightblueDataResponse response = client.data(deleteRequest);
+        DataDeleteRequest deleteRequest = new DataDeleteRequest(entityName, entityVersion);
+        deleteRequest.where(Query.withValue(entityDateField, Query.BinOp.lt, Date.from(tooOld)));
 
-            log.info("Deleted {} {} entities with {} before {}",
-                    response.parseModifiedCount(), entityName, entityDateField, tooOld);
-        });
+        LightblueDataResponse response = client.data(deleteRequest);
+
+        log.info("Deleted {} {} entities with {} before {}",
+                response.parseModifiedCount(), entityName, entityDateField, tooOld);
+
+        metrics.increment(deleterLockResourceId, EventHandlerMetrics.DELETED,
+                response.parseModifiedCount());
+    }
+
+    private int deleteChunk(String[] ids) throws LightblueException {
+        DataDeleteRequest deleteChunk = new DataDeleteRequest(entityName, entityVersion);
+        deleteChunk.where(Query.withValues("_id", Query.NaryOp.in, Literal.values(ids)));
+
+        return client.data(deleteChunk).parseModifiedCount();
     }
 
+    private String[] findOldestIds(Instant cutoff) throws LightblueException {
+        DataFindRequest findChunk = new DataFindRequest(entityName, entityVersion);
+        findChunk.where(Query.withValue(entityDateField, Query.BinOp.lt, Date.from(cutoff)));
+        findChunk.select(Projection.includeField("_id"));
+        findChunk.sort(Sort.asc(entityDateField));
+        findChunk.range(0, chunkSize - 1);
 
+        ObjectNode[] found = client.data(findChunk).parseProcessed(ObjectNode[].class);
+        String[] ids = new String[found.length];
+
+        for (int i = 0; i < found.length; i++) {
+            ids[i] = found[i].get("_id").asText();
+        }
+
+        return ids;
+    }
 }
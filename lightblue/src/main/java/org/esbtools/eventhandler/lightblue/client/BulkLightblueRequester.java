@@ -23,20 +23,24 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
+import org.esbtools.eventhandler.DaemonThreadPools;
+import org.esbtools.eventhandler.EventHandlerMetrics;
 import org.esbtools.eventhandler.FutureDoneCallback;
 import org.esbtools.eventhandler.FutureTransform;
 import org.esbtools.eventhandler.NestedTransformableFuture;
@@ -46,12 +50,15 @@ import org.esbtools.eventhandler.TransformableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueException;
 import com.redhat.lightblue.client.model.DataError;
 import com.redhat.lightblue.client.model.Error;
 import com.redhat.lightblue.client.request.CRUDRequest;
 import com.redhat.lightblue.client.request.DataBulkRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
 import com.redhat.lightblue.client.response.LightblueBulkDataResponse;
 import com.redhat.lightblue.client.response.LightblueBulkResponseException;
 import com.redhat.lightblue.client.response.LightblueDataResponse;
@@ -75,22 +82,155 @@ import com.redhat.lightblue.client.response.LightblueErrorResponse;
  * want some other thread interrupting your batch performing your requests before you've finished
  * queueing all of them up. So, you should create a new {@code BulkLightblueRequester} instance per
  * logical "batch," and generally should avoid sharing an instance among multiple threads.
+ *
+ * <p>Futures resolved with a timeout ({@link Future#get(long, TimeUnit)}) cannot perform the
+ * batch in the calling thread, since the caller must be able to give up waiting. Instead, the
+ * batch is performed by a {@link Executor completion executor}. All futures waiting at the same
+ * time share one in flight batch, each with their own deadline, so no matter how many futures
+ * are resolved with a timeout, a batch is only ever performed once and no threads are created per
+ * call. By default, a bounded pool of daemon threads shared by all requesters is used.
+ *
+ * <p>Equivalent finds queued for the same batch, such as many events looking up the same related
+ * entity, are only sent once, and every future waiting on any of them gets the same response.
+ * Other requests are always sent as queued, since performing a write once instead of twice would
+ * change its meaning.
  */
 public class BulkLightblueRequester implements LightblueRequester {
     private final LightblueClient lightblue;
-    private final boolean ordered;
+    private final Ordering ordering;
+    private final Executor completionExecutor;
+    private final int maxRequestsPerBulk;
+    private final int maxBulkBodyLength;
+    private final int bulkParallelism;
+    private final Executor dispatchExecutor;
+    private final EventHandlerMetrics metrics;
+    private final String metricsSource;
     private final List<LazyRequestTransformableFuture<LightblueDataResponses>> queuedRequests =
             Collections.synchronizedList(new ArrayList<>());
     private final List<LazyRequestTransformableFuture<LightblueResponses>> queuedTryRequests =
             Collections.synchronizedList(new ArrayList<>());
 
+    private final QueuedRequestsCompleter completer = new QueuedRequestsCompleter();
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkLightblueRequester.class);
+
+    private static final int DEFAULT_THREADS =
+            Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /** Shared among all requesters which are not given their own completion executor. */
+    private static final Executor DEFAULT_COMPLETION_EXECUTOR =
+            DaemonThreadPools.newDaemonThreadPool("bulk-lightblue-requester-", DEFAULT_THREADS);
+
+    /**
+     * Performs bulk requests of a single flush concurrently. Separate from
+     * {@link #DEFAULT_COMPLETION_EXECUTOR} because flushes may themselves run there, and must
+     * never wait on tasks queued behind them.
+     */
+    private static final Executor DEFAULT_DISPATCH_EXECUTOR =
+            DaemonThreadPools.newDaemonThreadPool("bulk-lightblue-dispatch-", DEFAULT_THREADS);
+
+    /** No limit on the number of requests or total body length of each bulk request. */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * Bulk requests are ordered, and all queued requests are performed in a single bulk request.
+     */
     public BulkLightblueRequester(LightblueClient lightblue) {
         this(lightblue, true);
     }
 
     public BulkLightblueRequester(LightblueClient lightblue, boolean ordered) {
+        this(lightblue, ordered, DEFAULT_COMPLETION_EXECUTOR);
+    }
+
+    /**
+     * Like {@link #BulkLightblueRequester(LightblueClient)}, but counts queued requests which were
+     * not sent because an equivalent one was, as {@link EventHandlerMetrics#DEDUPLICATED}.
+     *
+     * @param metricsSource Source the count is recorded under.
+     */
+    public BulkLightblueRequester(LightblueClient lightblue, EventHandlerMetrics metrics,
+            String metricsSource) {
+        this(lightblue, Ordering.ALWAYS, DEFAULT_COMPLETION_EXECUTOR, UNLIMITED, UNLIMITED, 1,
+                DEFAULT_DISPATCH_EXECUTOR, metrics, metricsSource);
+    }
+
+    /**
+     * @param completionExecutor Performs queued requests when a future is resolved with a timeout.
+     *                           Should be bounded and shared among requesters; it is not shut down
+     *                           by this requester.
+     */
+    public BulkLightblueRequester(LightblueClient lightblue, boolean ordered,
+            Executor completionExecutor) {
+        this(lightblue, Ordering.of(ordered), completionExecutor, UNLIMITED, UNLIMITED, 1,
+                DEFAULT_DISPATCH_EXECUTOR, EventHandlerMetrics.none(), "");
+    }
+
+    /**
+     * Like {@link #BulkLightblueRequester(LightblueClient)}, except queued requests are split into
+     * multiple bulk requests, unordered ones of which may be performed concurrently. Bulk requests
+     * are only ordered if there are writes among them; finds alone cannot depend on each other.
+     *
+     * @param maxRequestsPerBulk The most requests to put in one bulk request, or
+     *                           {@link #UNLIMITED}.
+     * @param maxBulkBodyLength Roughly the largest payload of one bulk request, measured as the
+     *                          total length of its requests' bodies, or {@link #UNLIMITED}. A
+     *                          request larger than this on its own is sent in its own bulk
+     *                          request.
+     * @param bulkParallelism How many bulk requests of one batch may be in flight at once. Ordered
+     *                        bulk requests are always performed one at a time.
+     */
+    public BulkLightblueRequester(LightblueClient lightblue, int maxRequestsPerBulk,
+            int maxBulkBodyLength, int bulkParallelism) {
+        this(lightblue, Ordering.IF_WRITES, DEFAULT_COMPLETION_EXECUTOR, maxRequestsPerBulk,
+                maxBulkBodyLength, bulkParallelism, DEFAULT_DISPATCH_EXECUTOR,
+                EventHandlerMetrics.none(), "");
+    }
+
+    /**
+     * @param dispatchExecutor Performs bulk requests of one batch concurrently, if
+     *                         {@code bulkParallelism} is more than 1. Must not be the
+     *                         {@code completionExecutor}. Should be bounded and shared among
+     *                         requesters; it is not shut down by this requester.
+     * @see #BulkLightblueRequester(LightblueClient, boolean, Executor)
+     * @see #BulkLightblueRequester(LightblueClient, int, int, int)
+     */
+    public BulkLightblueRequester(LightblueClient lightblue, boolean ordered,
+            Executor completionExecutor, int maxRequestsPerBulk, int maxBulkBodyLength,
+            int bulkParallelism, Executor dispatchExecutor) {
+        this(lightblue, Ordering.of(ordered), completionExecutor, maxRequestsPerBulk,
+                maxBulkBodyLength, bulkParallelism, dispatchExecutor, EventHandlerMetrics.none(),
+                "");
+    }
+
+    private BulkLightblueRequester(LightblueClient lightblue, Ordering ordering,
+            Executor completionExecutor, int maxRequestsPerBulk, int maxBulkBodyLength,
+            int bulkParallelism, Executor dispatchExecutor, EventHandlerMetrics metrics,
+            String metricsSource) {
+        if (maxRequestsPerBulk < 1) {
+            throw new IllegalArgumentException("maxRequestsPerBulk must be at least 1, but was " +
+                    maxRequestsPerBulk);
+        }
+
+        if (maxBulkBodyLength < 1) {
+            throw new IllegalArgumentException("maxBulkBodyLength must be at least 1, but was " +
+                    maxBulkBodyLength);
+        }
+
+        if (bulkParallelism < 1) {
+            throw new IllegalArgumentException("bulkParallelism must be at least 1, but was " +
+                    bulkParallelism);
+        }
+
         this.lightblue = lightblue;
-        this.ordered = ordered;
+        this.ordering = ordering;
+        this.completionExecutor = Objects.requireNonNull(completionExecutor, "completionExecutor");
+        this.maxRequestsPerBulk = maxRequestsPerBulk;
+        this.maxBulkBodyLength = maxBulkBodyLength;
+        this.bulkParallelism = bulkParallelism;
+        this.dispatchExecutor = Objects.requireNonNull(dispatchExecutor, "dispatchExecutor");
+        this.metrics = Objects.requireNonNull(metrics, "metrics");
+        this.metricsSource = Objects.requireNonNull(metricsSource, "metricsSource");
     }
     
     @Override
@@ -131,24 +271,91 @@ public class BulkLightblueRequester implements LightblueRequester {
             queuedTryRequests.clear();
         }
         
-        DataBulkRequest bulkRequest = new DataBulkRequest(ordered);
+        Map<CRUDRequest, CRUDRequest> bulkEntriesByRequest = new IdentityHashMap<>();
+        Map<EquivalentFind, CRUDRequest> bulkEntriesByFind = new HashMap<>();
+        List<CRUDRequest> queued = new ArrayList<>();
+        List<CRUDRequest> bulkEntries = new ArrayList<>();
+        boolean containsWrites = false;
 
         Stream.concat(batch.stream(), tryBatch.stream())
                 .flatMap(requestFuture -> Arrays.stream(requestFuture.requests))
-                // TODO: Determine if any requests are equivalent / duplicated and filter out
-                .forEach(bulkRequest::add);
+                .forEach(queued::add);
+
+        for (CRUDRequest request : queued) {
+            if (!(request instanceof DataFindRequest)) {
+                containsWrites = true;
+
+                // In an ordered bulk request, a later find may be meant to see this write, so it
+                // must not share a response with a find before it.
+                if (ordering != Ordering.NEVER) {
+                    bulkEntriesByFind.clear();
+                }
+
+                bulkEntries.add(request);
+                bulkEntriesByRequest.put(request, request);
+                continue;
+            }
+
+            if (bulkEntriesByRequest.containsKey(request)) {
+                continue;
+            }
+
+            EquivalentFind find = new EquivalentFind((DataFindRequest) request);
+            CRUDRequest bulkEntry = bulkEntriesByFind.putIfAbsent(find, request);
+
+            if (bulkEntry == null) {
+                bulkEntries.add(request);
+                bulkEntry = request;
+            }
+
+            bulkEntriesByRequest.put(request, bulkEntry);
+        }
+
+        boolean ordered = ordering == Ordering.ALWAYS ||
+                (ordering == Ordering.IF_WRITES && containsWrites);
+        List<DataBulkRequest> bulkRequests = splitIntoBulkRequests(bulkEntries, ordered);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Performing {} queued requests as {} bulk entries, saving {}, in {} " +
+                    "{} bulk requests.", queued.size(), bulkEntries.size(),
+                    queued.size() - bulkEntries.size(), bulkRequests.size(),
+                    ordered ? "ordered" : "unordered");
+        }
+
+        metrics.increment(metricsSource, EventHandlerMetrics.DEDUPLICATED,
+                queued.size() - bulkEntries.size());
 
         try {
-            LightblueBulkDataResponse bulkResponse = tryBulkRequest(bulkRequest);
+            Map<CRUDRequest, LightblueDataResponse> responsesByBulkEntry = new IdentityHashMap<>();
+            Map<CRUDRequest, Exception> failuresByBulkEntry = new IdentityHashMap<>();
+
+            for (BulkRequestResult result : performBulkRequests(bulkRequests, ordered)) {
+                for (CRUDRequest bulkEntry : result.bulkRequest.getRequests()) {
+                    if (result.failure != null) {
+                        failuresByBulkEntry.put(bulkEntry, result.failure);
+                    } else {
+                        responsesByBulkEntry.put(bulkEntry, result.response.getResponse(bulkEntry));
+                    }
+                }
+            }
 
             for (LazyRequestTransformableFuture<LightblueDataResponses> batchedFuture : batch) {
                 CRUDRequest[] requests = batchedFuture.requests;
+                Optional<Exception> failure =
+                        failureOfAny(requests, bulkEntriesByRequest, failuresByBulkEntry);
+
+                if (failure.isPresent()) {
+                    batchedFuture.completeExceptionally(failure.get());
+                    continue;
+                }
+
                 Map<CRUDRequest, LightblueDataResponse> responseMap =
                         new HashMap<>(requests.length);
                 List<Error> errors = new ArrayList<>();
 
                 for (CRUDRequest request : requests) {
-                    LightblueDataResponse response = bulkResponse.getResponse(request);
+                    LightblueDataResponse response =
+                            responsesByBulkEntry.get(bulkEntriesByRequest.get(request));
 
                     if (response instanceof LightblueErrorResponse) {
                         LightblueErrorResponse errorResponse = (LightblueErrorResponse) response;
@@ -179,11 +386,20 @@ public class BulkLightblueRequester implements LightblueRequester {
 
             for (LazyRequestTransformableFuture<LightblueResponses> batchedFuture : tryBatch) {
                 CRUDRequest[] requests = batchedFuture.requests;
+                Optional<Exception> failure =
+                        failureOfAny(requests, bulkEntriesByRequest, failuresByBulkEntry);
+
+                if (failure.isPresent()) {
+                    batchedFuture.completeExceptionally(failure.get());
+                    continue;
+                }
+
                 Map<CRUDRequest, LightblueResponse> responseMap =
                         new HashMap<>(requests.length);
 
                 for (CRUDRequest request : requests) {
-                    LightblueDataResponse response = bulkResponse.getResponse(request);
+                    LightblueDataResponse response =
+                            responsesByBulkEntry.get(bulkEntriesByRequest.get(request));
                     responseMap.put(request, LightblueResponse.fromClientResponse(response));
                 }
 
@@ -195,6 +411,129 @@ public class BulkLightblueRequester implements LightblueRequester {
         }
     }
 
+    /**
+     * Splits bulk entries, in order, into bulk requests of no more than
+     * {@link #maxRequestsPerBulk} entries and, unless a single entry is larger on its own, no more
+     * than {@link #maxBulkBodyLength} characters of request bodies.
+     */
+    private List<DataBulkRequest> splitIntoBulkRequests(List<CRUDRequest> bulkEntries,
+            boolean ordered) {
+        List<DataBulkRequest> bulkRequests = new ArrayList<>(1);
+        DataBulkRequest current = new DataBulkRequest(ordered);
+        int currentCount = 0;
+        long currentBodyLength = 0;
+
+        for (CRUDRequest bulkEntry : bulkEntries) {
+            // Only serialize bodies if we have to.
+            int bodyLength = maxBulkBodyLength == UNLIMITED ? 0 : bulkEntry.getBody().length();
+
+            if (currentCount > 0 && (currentCount == maxRequestsPerBulk ||
+                    currentBodyLength + bodyLength > maxBulkBodyLength)) {
+                bulkRequests.add(current);
+                current = new DataBulkRequest(ordered);
+                currentCount = 0;
+                currentBodyLength = 0;
+            }
+
+            current.add(bulkEntry);
+            currentCount++;
+            currentBodyLength += bodyLength;
+        }
+
+        // Always perform at least one bulk request, even if empty, as we always have.
+        bulkRequests.add(current);
+
+        return bulkRequests;
+    }
+
+    /**
+     * Performs bulk requests in up to {@link #bulkParallelism} lanes at once, one of which is
+     * the calling thread and the rest of which run on {@link #dispatchExecutor}. Each lane performs
+     * its share of bulk requests one after another. Ordered bulk requests are all performed in the
+     * calling thread, in order.
+     *
+     * @return A result per bulk request, in no particular order.
+     */
+    private List<BulkRequestResult> performBulkRequests(List<DataBulkRequest> bulkRequests,
+            boolean ordered) {
+        int lanes = ordered ? 1 : Math.min(bulkParallelism, bulkRequests.size());
+
+        if (lanes == 1) {
+            return performLane(bulkRequests, 0, 1, ordered);
+        }
+
+        List<CompletableFuture<List<BulkRequestResult>>> otherLanes = new ArrayList<>(lanes - 1);
+        List<BulkRequestResult> results = new ArrayList<>(bulkRequests.size());
+
+        for (int lane = 1; lane < lanes; lane++) {
+            int firstIndex = lane;
+
+            try {
+                otherLanes.add(CompletableFuture.supplyAsync(
+                        () -> performLane(bulkRequests, firstIndex, lanes, false),
+                        dispatchExecutor));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Bulk request dispatch rejected. Performing in calling thread.", e);
+                results.addAll(performLane(bulkRequests, firstIndex, lanes, false));
+            }
+        }
+
+        results.addAll(performLane(bulkRequests, 0, lanes, false));
+
+        for (CompletableFuture<List<BulkRequestResult>> otherLane : otherLanes) {
+            // performLane never throws, so neither does join.
+            results.addAll(otherLane.join());
+        }
+
+        return results;
+    }
+
+    /**
+     * @param ordered If true, once a bulk request fails, later ones are not sent, since they may
+     *                depend on it. They fail with an exception caused by the first failure.
+     */
+    private List<BulkRequestResult> performLane(List<DataBulkRequest> bulkRequests,
+            int firstIndex, int step, boolean ordered) {
+        List<BulkRequestResult> results = new ArrayList<>();
+        Exception orderedFailure = null;
+
+        for (int i = firstIndex; i < bulkRequests.size(); i += step) {
+            DataBulkRequest bulkRequest = bulkRequests.get(i);
+
+            if (orderedFailure != null) {
+                results.add(new BulkRequestResult(bulkRequest, null, orderedFailure));
+                continue;
+            }
+
+            try {
+                results.add(new BulkRequestResult(bulkRequest, tryBulkRequest(bulkRequest), null));
+            } catch (Exception e) {
+                results.add(new BulkRequestResult(bulkRequest, null, e));
+
+                if (ordered) {
+                    orderedFailure = new IllegalStateException("Bulk request not sent because an " +
+                            "earlier bulk request of the same ordered batch failed.", e);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private static Optional<Exception> failureOfAny(CRUDRequest[] requests,
+            Map<CRUDRequest, CRUDRequest> bulkEntriesByRequest,
+            Map<CRUDRequest, Exception> failuresByBulkEntry) {
+        for (CRUDRequest request : requests) {
+            Exception failure = failuresByBulkEntry.get(bulkEntriesByRequest.get(request));
+
+            if (failure != null) {
+                return Optional.of(failure);
+            }
+        }
+
+        return Optional.empty();
+    }
+
     /**
      * Swallows exceptions related to errors in individual requests on purpose. The returned
      * bulk response object may have failed responses.
@@ -218,6 +557,39 @@ public class BulkLightblueRequester implements LightblueRequester {
         }
     }
 
+    /**
+     * The outcome of one bulk request: either a response or the reason there is none.
+     */
+    private static final class BulkRequestResult {
+        final DataBulkRequest bulkRequest;
+        final @Nullable LightblueBulkDataResponse response;
+        final @Nullable Exception failure;
+
+        BulkRequestResult(DataBulkRequest bulkRequest,
+                @Nullable LightblueBulkDataResponse response, @Nullable Exception failure) {
+            this.bulkRequest = bulkRequest;
+            this.response = response;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * How bulk requests are ordered.
+     */
+    private enum Ordering {
+        ALWAYS,
+        NEVER,
+        /**
+         * Ordered only if there are writes among the requests. Finds alone cannot depend on each
+         * other, so the server is free to perform them in any order.
+         */
+        IF_WRITES;
+
+        static Ordering of(boolean ordered) {
+            return ordered ? ALWAYS : NEVER;
+        }
+    }
+
     /**
      * We have two response maps: one with guaranteed successful responses (
      * {@link BulkDataResponses} and one with no guarantees ({@link BulkResponses}). They are both
@@ -282,10 +654,11 @@ public class BulkLightblueRequester implements LightblueRequester {
          */
         private final Completer completer;
 
-        private U result;
-        private Exception exception;
-        private boolean completed = false;
-        private boolean cancelled = false;
+        // Volatile because futures resolved with a timeout are completed in another thread.
+        private volatile U result;
+        private volatile Exception exception;
+        private volatile boolean completed = false;
+        private volatile boolean cancelled = false;
 
         /**
          * Queued up futures which are the result of applying this future's value to some transform
@@ -327,8 +700,10 @@ public class BulkLightblueRequester implements LightblueRequester {
 
         void completeExceptionally(Exception exception) {
             if (isDone()) return;
-            completed = true;
+            // Set before completed is published, so a get() which sees this future completed
+            // always sees its exception too.
             this.exception = exception;
+            completed = true;
             callDoneCallbacks();
 
             for (LazyTransformingFuture<U, ?> next : this.next) {
@@ -396,15 +771,18 @@ public class BulkLightblueRequester implements LightblueRequester {
 
             if (!completed) {
                 if (timeout.isPresent()) {
-                    ExecutorService executor = Executors.newSingleThreadExecutor();
-                    try {
-                        Future<?> submittedTask = executor.submit(() -> {
-                            completer.triggerFutureCompletion();
-                        });
-                        TimeoutDuration timeoutDuration = timeout.get();
-                        submittedTask.get(timeoutDuration.duration, timeoutDuration.timeUnit);
-                    } finally {
-                        executor.shutdownNow();
+                    TimeoutDuration timeoutDuration = timeout.get();
+                    long deadline = System.nanoTime() +
+                            timeoutDuration.timeUnit.toNanos(timeoutDuration.duration);
+
+                    // The first completion we wait on may have already been in flight before our
+                    // requests were queued, in which case it won't include them. Any completion
+                    // started after that one is finished necessarily will, so at most we wait on
+                    // two.
+                    for (int attempt = 0; attempt < 2 && !completed; attempt++) {
+                        Future<?> completion = completer.triggerFutureCompletionAsync();
+                        completion.get(
+                                Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
                     }
                 } else {
                     completer.triggerFutureCompletion();
@@ -482,7 +860,7 @@ public class BulkLightblueRequester implements LightblueRequester {
      */
     class LazyRequestTransformableFuture<T> implements TransformableFuture<T> {
         private final LazyTransformableFuture<T> backingFuture =
-                new LazyTransformableFuture<>(() -> doQueuedRequestsAndCompleteFutures());
+                new LazyTransformableFuture<>(completer);
 
         final CRUDRequest[] requests;
 
@@ -655,6 +1033,71 @@ public class BulkLightblueRequester implements LightblueRequester {
     }
 
     interface Completer {
+        /**
+         * Completes futures in the calling thread.
+         */
         void triggerFutureCompletion();
+
+        /**
+         * Completes futures in another thread, returning a {@code Future} which is done once
+         * completion has been attempted. Callers which trigger completion while completion is
+         * already in progress share the in progress completion instead of starting another.
+         */
+        Future<?> triggerFutureCompletionAsync();
+    }
+
+    /**
+     * Performs queued requests via {@link #doQueuedRequestsAndCompleteFutures()}, either in the
+     * calling thread or on the {@link #completionExecutor}.
+     */
+    private class QueuedRequestsCompleter implements Completer {
+        private final Object lock = new Object();
+        private CompletableFuture<Void> inFlight;
+
+        @Override
+        public void triggerFutureCompletion() {
+            doQueuedRequestsAndCompleteFutures();
+        }
+
+        @Override
+        public Future<?> triggerFutureCompletionAsync() {
+            synchronized (lock) {
+                if (inFlight != null) {
+                    return inFlight;
+                }
+
+                CompletableFuture<Void> completion = new CompletableFuture<>();
+                inFlight = completion;
+
+                try {
+                    completionExecutor.execute(() -> {
+                        Throwable failure = null;
+
+                        try {
+                            doQueuedRequestsAndCompleteFutures();
+                        } catch (Throwable t) {
+                            failure = t;
+                        } finally {
+                            // Clear before completing, so that any waiter which finds its future
+                            // still incomplete starts a new batch rather than rejoining this one.
+                            synchronized (lock) {
+                                inFlight = null;
+                            }
+                        }
+
+                        if (failure == null) {
+                            completion.complete(null);
+                        } else {
+                            completion.completeExceptionally(failure);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight = null;
+                    completion.completeExceptionally(e);
+                }
+
+                return completion;
+            }
+        }
     }
 }
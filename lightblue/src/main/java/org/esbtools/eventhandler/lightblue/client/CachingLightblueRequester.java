@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import org.esbtools.eventhandler.TransformableFuture;
+
+import com.redhat.lightblue.client.request.CRUDRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Answers finds from a {@link LightblueLookupCache} when it can, and otherwise forwards requests
+ * to another requester, caching successful find responses on the way back.
+ *
+ * <p>Create one per batch, naming the entities which the batch is about as
+ * {@code bypassedEntityNames}. Finds of those entities always go to lightblue, so a batch never
+ * works with stale data for the very entity which changed. Their fresh responses still refresh the
+ * cache for later batches.
+ */
+public class CachingLightblueRequester implements LightblueRequester {
+    private final LightblueRequester delegate;
+    private final LightblueLookupCache cache;
+    private final Set<String> bypassedEntityNames;
+
+    public CachingLightblueRequester(LightblueRequester delegate, LightblueLookupCache cache,
+            Set<String> bypassedEntityNames) {
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.cache = Objects.requireNonNull(cache, "cache");
+        this.bypassedEntityNames = Objects.requireNonNull(bypassedEntityNames, "bypassedEntityNames");
+    }
+
+    @Override
+    public TransformableFuture<LightblueDataResponses> request(CRUDRequest... requests) {
+        Map<CRUDRequest, LightblueDataResponse> responseMap = new HashMap<>(requests.length);
+        List<CRUDRequest> uncached = lookUpCached(requests, responseMap);
+
+        if (uncached.isEmpty()) {
+            return TransformableFuture.immediate(
+                    new BulkLightblueRequester.BulkDataResponses(responseMap));
+        }
+
+        return delegate.request(uncached).transformSync(responses -> {
+            for (CRUDRequest request : uncached) {
+                LightblueDataResponse response = responses.forRequest(request);
+
+                if (isCacheable(request)) {
+                    cache.put((DataFindRequest) request, response);
+                }
+
+                responseMap.put(request, response);
+            }
+
+            return new BulkLightblueRequester.BulkDataResponses(responseMap);
+        });
+    }
+
+    @Override
+    public TransformableFuture<LightblueDataResponses> request(
+            Collection<? extends CRUDRequest> requests) {
+        return request(requests.toArray(new CRUDRequest[requests.size()]));
+    }
+
+    @Override
+    public TransformableFuture<LightblueResponses> tryRequest(CRUDRequest... requests) {
+        Map<CRUDRequest, LightblueDataResponse> cachedResponses = new HashMap<>(requests.length);
+        List<CRUDRequest> uncached = lookUpCached(requests, cachedResponses);
+        Map<CRUDRequest, LightblueResponse> responseMap = new HashMap<>(requests.length);
+
+        cachedResponses.forEach((request, response) ->
+                responseMap.put(request, LightblueResponse.fromClientResponse(response)));
+
+        if (uncached.isEmpty()) {
+            return TransformableFuture.immediate(
+                    new BulkLightblueRequester.BulkResponses(responseMap));
+        }
+
+        return delegate.tryRequest(uncached).transformSync(responses -> {
+            for (CRUDRequest request : uncached) {
+                LightblueResponse response = responses.forRequest(request);
+
+                if (response.isSuccess() && isCacheable(request)) {
+                    cache.put((DataFindRequest) request, response.getSuccess());
+                }
+
+                responseMap.put(request, response);
+            }
+
+            return new BulkLightblueRequester.BulkResponses(responseMap);
+        });
+    }
+
+    /**
+     * Puts cached responses in {@code cachedResponses}.
+     *
+     * @return Requests which must go to lightblue, in the order they were provided.
+     */
+    private List<CRUDRequest> lookUpCached(CRUDRequest[] requests,
+            Map<CRUDRequest, LightblueDataResponse> cachedResponses) {
+        List<CRUDRequest> uncached = new ArrayList<>(requests.length);
+
+        for (CRUDRequest request : requests) {
+            Objects.requireNonNull(request, "request");
+
+            if (!isCacheable(request) || bypassedEntityNames.contains(request.getEntityName())) {
+                uncached.add(request);
+                continue;
+            }
+
+            Optional<LightblueDataResponse> cached = cache.getIfPresent((DataFindRequest) request);
+
+            if (cached.isPresent()) {
+                cachedResponses.put(request, cached.get());
+            } else {
+                uncached.add(request);
+            }
+        }
+
+        return uncached;
+    }
+
+    private boolean isCacheable(CRUDRequest request) {
+        return request instanceof DataFindRequest && cache.isCached(request.getEntityName());
+    }
+
+    @Override
+    public String toString() {
+        return "CachingLightblueRequester{" +
+                "delegate=" + delegate +
+                ", cache=" + cache +
+                ", bypassedEntityNames=" + bypassedEntityNames +
+                '}';
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+
+import java.util.Objects;
+
+/**
+ * Identifies finds which return the same results when performed at the same time: those of the
+ * same entity and version with the same query, projection, sort, and range, all of which are
+ * captured by the request body.
+ */
+final class EquivalentFind {
+    private final String entityName;
+    private final String entityVersion;
+    private final String body;
+
+    EquivalentFind(DataFindRequest find) {
+        this.entityName = find.getEntityName();
+        this.entityVersion = find.getEntityVersion();
+        this.body = find.getBody();
+    }
+
+    String entityName() {
+        return entityName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        EquivalentFind that = (EquivalentFind) o;
+        return Objects.equals(entityName, that.entityName) &&
+                Objects.equals(entityVersion, that.entityVersion) &&
+                Objects.equals(body, that.body);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entityName, entityVersion, body);
+    }
+
+    @Override
+    public String toString() {
+        return "EquivalentFind{" +
+                "entityName='" + entityName + '\'' +
+                ", entityVersion='" + entityVersion + '\'' +
+                ", body='" + body + '\'' +
+                '}';
+    }
+}
@@ -42,6 +42,43 @@ public abstract class FindRequests {
      */
     public static DataFindRequest oldestNotificationsForEntitiesUpTo(String[] entityNames,
             int maxNotifications, Instant expiredProcessingDate) {
+        DataFindRequest findEntities = oldestNotificationsForEntitiesUpToWithoutProjection(
+                entityNames, maxNotifications, expiredProcessingDate);
+        findEntities.select(Projection.includeFieldRecursively("*"));
+        return findEntities;
+    }
+
+    /**
+     * Like {@link #oldestNotificationsForEntitiesUpTo(String[], int, Instant)}, but only
+     * retrieves the fields needed to claim the notifications, leaving out the entity data. Claimed
+     * notifications can then be retrieved in full with {@link #notificationsById(String[])}.
+     */
+    public static DataFindRequest oldestNotificationsToClaimForEntitiesUpTo(String[] entityNames,
+            int maxNotifications, Instant expiredProcessingDate) {
+        DataFindRequest findEntities = oldestNotificationsForEntitiesUpToWithoutProjection(
+                entityNames, maxNotifications, expiredProcessingDate);
+        findEntities.select(
+                Projection.includeField("_id"),
+                Projection.includeField("entityName"),
+                Projection.includeField("status"),
+                Projection.includeField("processingDate"),
+                Projection.includeField("clientRequestDate"));
+        return findEntities;
+    }
+
+    public static DataFindRequest notificationsById(String[] ids) {
+        DataFindRequest findEntities = new DataFindRequest(
+                NotificationEntity.ENTITY_NAME,
+                NotificationEntity.ENTITY_VERSION);
+
+        findEntities.where(Query.withValues("_id", Query.NaryOp.in, Literal.values(ids)));
+        findEntities.select(Projection.includeFieldRecursively("*"));
+
+        return findEntities;
+    }
+
+    private static DataFindRequest oldestNotificationsForEntitiesUpToWithoutProjection(
+            String[] entityNames, int maxNotifications, Instant expiredProcessingDate) {
         DataFindRequest findEntities = new DataFindRequest(
                 NotificationEntity.ENTITY_NAME,
                 NotificationEntity.ENTITY_VERSION);
@@ -55,7 +92,6 @@ public abstract class FindRequests {
                                 Query.withValue("status", Query.BinOp.eq, DocumentEventEntity.Status.processing),
                                 Query.withValue("processingDate", Query.BinOp.lte, Date.from(expiredProcessingDate)))
                 )));
-        findEntities.select(Projection.includeFieldRecursively("*"));
         findEntities.sort(Sort.asc("clientRequestDate"));
         findEntities.range(0, maxNotifications - 1);
 
@@ -72,6 +108,48 @@ public abstract class FindRequests {
      */
     public static DataFindRequest priorityDocumentEventsForTypesUpTo(String[] types,
         int maxEvents, Instant expiredProcessingDate) {
+        DataFindRequest findEntities = priorityDocumentEventsForTypesUpToWithoutProjection(
+                types, maxEvents, expiredProcessingDate);
+        findEntities.select(Projection.includeFieldRecursively("*"));
+        return findEntities;
+    }
+
+    /**
+     * Like {@link #priorityDocumentEventsForTypesUpTo(String[], int, Instant)}, but only retrieves
+     * the fields needed to identify, prioritize, and claim the events. Notably, this leaves out
+     * their survivor ids, which can grow large. Events which end up claimed can then be retrieved
+     * in full with {@link #documentEventsById(String[])}.
+     *
+     * <p>Identity is determined by a document event's canonical type and parameters, so those are
+     * included.
+     */
+    public static DataFindRequest priorityDocumentEventsToClaimForTypesUpTo(String[] types,
+            int maxEvents, Instant expiredProcessingDate) {
+        DataFindRequest findEntities = priorityDocumentEventsForTypesUpToWithoutProjection(
+                types, maxEvents, expiredProcessingDate);
+        findEntities.select(
+                Projection.includeField("_id"),
+                Projection.includeField("canonicalType"),
+                Projection.includeFieldRecursively("parameters"),
+                Projection.includeField("status"),
+                Projection.includeField("priority"),
+                Projection.includeField("creationDate"),
+                Projection.includeField("processingDate"));
+        return findEntities;
+    }
+
+    public static DataFindRequest documentEventsById(String[] ids) {
+        DataFindRequest findEntities = new DataFindRequest(DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION);
+
+        findEntities.where(Query.withValues("_id", Query.NaryOp.in, Literal.values(ids)));
+        findEntities.select(Projection.includeFieldRecursively("*"));
+
+        return findEntities;
+    }
+
+    private static DataFindRequest priorityDocumentEventsForTypesUpToWithoutProjection(
+            String[] types, int maxEvents, Instant expiredProcessingDate) {
         DataFindRequest findEntities = new DataFindRequest(DocumentEventEntity.ENTITY_NAME,
                 DocumentEventEntity.VERSION);
 
@@ -83,13 +161,31 @@ public abstract class FindRequests {
                                 Query.withValue("status", Query.BinOp.eq, DocumentEventEntity.Status.processing),
                                 Query.withValue("processingDate", Query.BinOp.lte, Date.from(expiredProcessingDate)))
                 )));
-        findEntities.select(Projection.includeFieldRecursively("*"));
         findEntities.sort(Sort.desc("priority"), Sort.asc("creationDate"));
         findEntities.range(0, maxEvents - 1);
 
         return findEntities;
     }
 
+    /**
+     * Constructs a find request which retrieves the current status, processing date, and claim
+     * token of the document events with the given ids. Useful to check which events a conditional
+     * update actually modified.
+     */
+    public static DataFindRequest documentEventsStatusAndClaimToken(String[] ids) {
+        DataFindRequest findEntities = new DataFindRequest(DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION);
+
+        findEntities.where(Query.withValues("_id", Query.NaryOp.in, Literal.values(ids)));
+        findEntities.select(
+                Projection.includeField("_id"),
+                Projection.includeField("status"),
+                Projection.includeField("processingDate"),
+                Projection.includeField("claimToken"));
+
+        return findEntities;
+    }
+
     public static DataFindRequest eventHandlerConfigForDomain(String configDomain) {
         DataFindRequest findConfig = new DataFindRequest(
                 EventHandlerConfigEntity.ENTITY_NAME,
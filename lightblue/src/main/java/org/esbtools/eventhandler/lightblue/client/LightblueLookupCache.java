@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches successful find responses across batches, for entities whose data may be reused for
+ * some time, such as reference data or a parent entity shared by many documents. Only entities
+ * given a time to live are cached; finds of any other entity are never cached.
+ *
+ * <p>Meant to be long lived and shared among many {@link CachingLightblueRequester}s, which
+ * should be created per batch. Each entity is cached separately, bounded to
+ * {@code maxResponsesPerEntity} responses, evicting least recently used responses first.
+ *
+ * <p>Finds are keyed by their entity, version, and request body, so finds must be built the same
+ * way to share cached responses. The static factories in {@link FindRequests} do this.
+ */
+@ThreadSafe
+public class LightblueLookupCache {
+    private final Map<String, Cache<EquivalentFind, LightblueDataResponse>> cachesByEntityName;
+
+    /**
+     * @param timeToLiveByEntityName How long to keep a response after it is retrieved, per entity
+     *                               to cache.
+     * @param maxResponsesPerEntity The most responses to keep per entity.
+     */
+    public LightblueLookupCache(Map<String, Duration> timeToLiveByEntityName,
+            long maxResponsesPerEntity) {
+        if (maxResponsesPerEntity < 1) {
+            throw new IllegalArgumentException("maxResponsesPerEntity must be at least 1, but " +
+                    "was " + maxResponsesPerEntity);
+        }
+
+        Map<String, Cache<EquivalentFind, LightblueDataResponse>> caches = new HashMap<>();
+
+        for (Map.Entry<String, Duration> timeToLive : timeToLiveByEntityName.entrySet()) {
+            String entityName = Objects.requireNonNull(timeToLive.getKey(), "entityName");
+            Duration ttl = Objects.requireNonNull(timeToLive.getValue(), "timeToLive");
+
+            caches.put(entityName, CacheBuilder.newBuilder()
+                    .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+                    .maximumSize(maxResponsesPerEntity)
+                    .recordStats()
+                    .build());
+        }
+
+        this.cachesByEntityName = Collections.unmodifiableMap(caches);
+    }
+
+    public boolean isCached(String entityName) {
+        return cachesByEntityName.containsKey(entityName);
+    }
+
+    /**
+     * Hits and misses for all cached entities.
+     */
+    public CacheStats stats() {
+        CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+        for (Cache<EquivalentFind, LightblueDataResponse> cache : cachesByEntityName.values()) {
+            stats = stats.plus(cache.stats());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Hits and misses for the provided entity, if it is cached.
+     */
+    public Optional<CacheStats> stats(String entityName) {
+        return Optional.ofNullable(cachesByEntityName.get(entityName)).map(Cache::stats);
+    }
+
+    /**
+     * Drops all cached responses for the provided entity, for example if it is known to have
+     * changed.
+     */
+    public void invalidate(String entityName) {
+        Cache<EquivalentFind, LightblueDataResponse> cache = cachesByEntityName.get(entityName);
+
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    public void invalidateAll() {
+        cachesByEntityName.values().forEach(Cache::invalidateAll);
+    }
+
+    Optional<LightblueDataResponse> getIfPresent(DataFindRequest find) {
+        EquivalentFind key = new EquivalentFind(find);
+        Cache<EquivalentFind, LightblueDataResponse> cache = cachesByEntityName.get(key.entityName());
+
+        if (cache == null) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    void put(DataFindRequest find, LightblueDataResponse response) {
+        EquivalentFind key = new EquivalentFind(find);
+        Cache<EquivalentFind, LightblueDataResponse> cache = cachesByEntityName.get(key.entityName());
+
+        if (cache != null) {
+            cache.put(key, response);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LightblueLookupCache{" +
+                "cachedEntityNames=" + cachesByEntityName.keySet() +
+                ", stats=" + stats() +
+                '}';
+    }
+}
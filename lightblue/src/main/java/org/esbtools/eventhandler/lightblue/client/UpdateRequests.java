@@ -21,6 +21,7 @@ package org.esbtools.eventhandler.lightblue.client;
 import org.esbtools.eventhandler.lightblue.DocumentEventEntity;
 import org.esbtools.lightbluenotificationhook.NotificationEntity;
 
+import com.google.common.collect.Lists;
 import com.redhat.lightblue.client.Literal;
 import com.redhat.lightblue.client.Query;
 import com.redhat.lightblue.client.Query.BinOp;
@@ -34,44 +35,49 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 public abstract class UpdateRequests {
     private static Logger logger = LoggerFactory.getLogger(UpdateRequests.class);
 
+    /**
+     * Default maximum number of ids in a single {@code _id $in} query of the grouped status
+     * updates. Keeps individual update requests at a size lightblue and mongo handle comfortably.
+     */
+    public static final int DEFAULT_MAX_IDS_PER_STATUS_UPDATE = 200;
+
     public static Collection<DataUpdateRequest> notificationsStatusAndProcessedDate(
             Collection<NotificationEntity> updatedNotificationEntities) {
-        List<DataUpdateRequest> requests = new ArrayList<>(updatedNotificationEntities.size());
+        return notificationsStatusAndProcessedDate(
+                updatedNotificationEntities, DEFAULT_MAX_IDS_PER_STATUS_UPDATE);
+    }
 
-        for (NotificationEntity entity : updatedNotificationEntities) {
-            DataUpdateRequest request = new DataUpdateRequest(
-                    NotificationEntity.ENTITY_NAME,
-                    NotificationEntity.ENTITY_VERSION);
+    /**
+     * Groups entities by their status and processed date, creating one update per group (or per
+     * {@code maxIdsPerRequest} entities within a group) which matches its entities by id.
+     *
+     * <p>In a typical batch, all entities share one or two statuses and a processed date, so this
+     * is usually one or two requests regardless of the number of entities.
+     */
+    public static Collection<DataUpdateRequest> notificationsStatusAndProcessedDate(
+            Collection<NotificationEntity> updatedNotificationEntities, int maxIdsPerRequest) {
+        StatusUpdateGrouper grouper = new StatusUpdateGrouper(
+                NotificationEntity.ENTITY_NAME, NotificationEntity.ENTITY_VERSION, maxIdsPerRequest);
 
+        for (NotificationEntity entity : updatedNotificationEntities) {
             if (entity.get_id() == null) {
                 logger.warn("Tried to update an entity's status and processed date, but entity " +
                         "has no id. Entity was: " + entity);
                 continue;
             }
 
-            request.where(Query.withValue("_id", BinOp.eq, entity.get_id()));
-
-            List<Update> updates = new ArrayList<>(2);
-            updates.add(Update.set("status", entity.getStatus().toString()));
-
-            Date processedDate = entity.getProcessedDate();
-
-            if (processedDate != null) {
-                updates.add(Update.set("processedDate", processedDate));
-            }
-
-            // Work around client bug.
-            request.updates(updates.toArray(new Update[updates.size()]));
-
-            requests.add(request);
+            grouper.add(entity.get_id(), entity.getStatus().toString(), entity.getProcessedDate());
         }
 
-        return requests;
+        return grouper.toRequests();
     }
 
     /** "Status" here means status and corresponding date(s) to go along with it. */
@@ -101,38 +107,33 @@ public abstract class UpdateRequests {
 
     public static Collection<DataUpdateRequest> documentEventsStatusAndProcessedDate(
             Collection<DocumentEventEntity> updatedEventEntities) {
-        List<DataUpdateRequest> requests = new ArrayList<>(updatedEventEntities.size());
+        return documentEventsStatusAndProcessedDate(
+                updatedEventEntities, DEFAULT_MAX_IDS_PER_STATUS_UPDATE);
+    }
 
-        for (DocumentEventEntity entity : updatedEventEntities) {
-            DataUpdateRequest request = new DataUpdateRequest(
-                    DocumentEventEntity.ENTITY_NAME,
-                    DocumentEventEntity.VERSION);
+    /**
+     * Groups entities by their status and processed date, creating one update per group (or per
+     * {@code maxIdsPerRequest} entities within a group) which matches its entities by id.
+     */
+    public static Collection<DataUpdateRequest> documentEventsStatusAndProcessedDate(
+            Collection<DocumentEventEntity> updatedEventEntities, int maxIdsPerRequest) {
+        StatusUpdateGrouper grouper = new StatusUpdateGrouper(
+                DocumentEventEntity.ENTITY_NAME, DocumentEventEntity.VERSION, maxIdsPerRequest);
 
+        for (DocumentEventEntity entity : updatedEventEntities) {
             if (entity.get_id() == null) {
                 logger.warn("Tried to update an entity's status and processed date, but entity " +
                         "has no id. Entity was: " + entity);
                 continue;
             }
 
-            request.where(Query.withValue("_id", BinOp.eq, entity.get_id()));
-
-            List<Update> updates = new ArrayList<>(2);
-            updates.add(Update.set("status", entity.getStatus().toString()));
-
             ZonedDateTime processedDate = entity.getProcessedDate();
 
-            if (processedDate != null) {
-                updates.add(Update.set("processedDate", Date.from(processedDate.toInstant())));
-            }
-
-            // Work around client bug.
-            // https://github.com/lightblue-platform/lightblue-client/issues/225
-            request.updates(updates.toArray(new Update[updates.size()]));
-
-            requests.add(request);
+            grouper.add(entity.get_id(), entity.getStatus().toString(),
+                    processedDate == null ? null : Date.from(processedDate.toInstant()));
         }
 
-        return requests;
+        return grouper.toRequests();
     }
 
     /** "Status" here means status and corresponding date(s) to go along with it. */
@@ -149,6 +150,105 @@ public abstract class UpdateRequests {
 
         idStatusAndDateMatch.add(Query.withValue("_id", BinOp.eq, entity.get_id()));
 
+        addStatusAndDateMatch(idStatusAndDateMatch, originalProcessingDate);
+
+        if (processedDate != null) {
+            updateStatusDateAndSurvivorOf.add(
+                    Update.set("processedDate", Date.from(processedDate.toInstant())));
+        }
+
+        updateStatusDateAndSurvivorOf.add(
+                Update.set("status", entity.getStatus().toString()));
+        updateStatusDateAndSurvivorOf.add(
+                Update.set("processingDate", Date.from(entity.getProcessingDate().toInstant())));
+
+        if (entity.getSurvivorOfIds() != null) {
+            String[] survivorOfIds = entity.getSurvivorOfIds().stream().toArray(String[]::new);
+            updateStatusDateAndSurvivorOf.add(Update.set("survivorOfIds",
+                    // https://github.com/lightblue-platform/lightblue-client/issues/289
+                    Literal.value(Literal.toJson(Literal.values(survivorOfIds)))));
+        }
+
+        request.where(Query.and(idStatusAndDateMatch));
+        request.updates(updateStatusDateAndSurvivorOf);
+
+        return request;
+    }
+
+    /**
+     * Like {@link #documentEventStatusDatesAndSurvivorOfIfCurrent(DocumentEventEntity, ZonedDateTime)}
+     * but claims many events at once with a single {@code _id $in} update, for events which do
+     * not have survivor ids to update.
+     *
+     * <p>All entities must share the same original processing date, as well as the same status,
+     * processing date, processed date, and claim token to update to. Because the update is
+     * conditional, the response's modified count may be less than the number of entities if some
+     * were concurrently modified. It does not tell which, so callers must then check which of the
+     * entities they actually updated, by their claim token.
+     */
+    public static DataUpdateRequest documentEventsStatusAndDatesIfCurrent(
+            List<DocumentEventEntity> entities, @Nullable ZonedDateTime originalProcessingDate) {
+        if (entities.isEmpty()) {
+            throw new IllegalArgumentException("Must provide at least one entity to update.");
+        }
+
+        DocumentEventEntity first = entities.get(0);
+        String[] ids = new String[entities.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            DocumentEventEntity entity = entities.get(i);
+
+            if (entity.getStatus() != first.getStatus() ||
+                    !sameInstant(entity.getProcessingDate(), first.getProcessingDate()) ||
+                    !sameInstant(entity.getProcessedDate(), first.getProcessedDate()) ||
+                    !Objects.equals(entity.getClaimToken(), first.getClaimToken())) {
+                throw new IllegalArgumentException("Entities must share status, dates, and claim " +
+                        "token to be updated together. Expected entity like: " + first +
+                        " but got: " + entity);
+            }
+
+            ids[i] = entity.get_id();
+        }
+
+        DataUpdateRequest request = new DataUpdateRequest(
+                DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION);
+
+        List<Query> idStatusAndDateMatch = new ArrayList<>();
+        List<Update> updateStatusAndDates = new ArrayList<>(4);
+
+        idStatusAndDateMatch.add(ids.length == 1
+                ? Query.withValue("_id", BinOp.eq, ids[0])
+                : Query.withValues("_id", Query.NaryOp.in, Literal.values(ids)));
+        addStatusAndDateMatch(idStatusAndDateMatch, originalProcessingDate);
+
+        ZonedDateTime processedDate = first.getProcessedDate();
+
+        if (processedDate != null) {
+            updateStatusAndDates.add(
+                    Update.set("processedDate", Date.from(processedDate.toInstant())));
+        }
+
+        updateStatusAndDates.add(Update.set("status", first.getStatus().toString()));
+        updateStatusAndDates.add(
+                Update.set("processingDate", Date.from(first.getProcessingDate().toInstant())));
+
+        if (first.getClaimToken() != null) {
+            updateStatusAndDates.add(Update.set("claimToken", first.getClaimToken()));
+        }
+
+        request.where(Query.and(idStatusAndDateMatch));
+        request.updates(updateStatusAndDates);
+
+        return request;
+    }
+
+    /**
+     * Adds the conditions which match a document event only if it is still in the state we
+     * retrieved it in, as identified by its original processing date.
+     */
+    private static void addStatusAndDateMatch(List<Query> idStatusAndDateMatch,
+            @Nullable ZonedDateTime originalProcessingDate) {
         if (originalProcessingDate != null) {
             idStatusAndDateMatch.add(Query.withValue(
                     "processingDate", BinOp.eq,
@@ -166,27 +266,96 @@ public abstract class UpdateRequests {
             idStatusAndDateMatch.add(
                     Query.withValue("status", BinOp.eq, DocumentEventEntity.Status.unprocessed.toString()));
         }
+    }
 
-        if (processedDate != null) {
-            updateStatusDateAndSurvivorOf.add(
-                    Update.set("processedDate", Date.from(processedDate.toInstant())));
+    private static boolean sameInstant(@Nullable ZonedDateTime date1, @Nullable ZonedDateTime date2) {
+        return date1 == null ? date2 == null : date2 != null && date1.toInstant().equals(date2.toInstant());
+    }
+
+    /**
+     * Accumulates ids by the status and processed date they should be updated to, and turns each
+     * group into as few {@code _id $in} updates as {@code maxIdsPerRequest} allows.
+     */
+    private static class StatusUpdateGrouper {
+        private final String entityName;
+        private final String entityVersion;
+        private final int maxIdsPerRequest;
+        private final Map<StatusAndProcessedDate, List<String>> idsByStatusAndProcessedDate =
+                new LinkedHashMap<>();
+
+        StatusUpdateGrouper(String entityName, String entityVersion, int maxIdsPerRequest) {
+            if (maxIdsPerRequest < 1) {
+                throw new IllegalArgumentException("maxIdsPerRequest must be at least 1, but " +
+                        "was: " + maxIdsPerRequest);
+            }
+
+            this.entityName = entityName;
+            this.entityVersion = entityVersion;
+            this.maxIdsPerRequest = maxIdsPerRequest;
         }
 
-        updateStatusDateAndSurvivorOf.add(
-                Update.set("status", entity.getStatus().toString()));
-        updateStatusDateAndSurvivorOf.add(
-                Update.set("processingDate", Date.from(entity.getProcessingDate().toInstant())));
+        void add(String id, String status, @Nullable Date processedDate) {
+            idsByStatusAndProcessedDate
+                    .computeIfAbsent(new StatusAndProcessedDate(status, processedDate),
+                            k -> new ArrayList<>())
+                    .add(id);
+        }
 
-        if (entity.getSurvivorOfIds() != null) {
-            String[] survivorOfIds = entity.getSurvivorOfIds().stream().toArray(String[]::new);
-            updateStatusDateAndSurvivorOf.add(Update.set("survivorOfIds",
-                    // https://github.com/lightblue-platform/lightblue-client/issues/289
-                    Literal.value(Literal.toJson(Literal.values(survivorOfIds)))));
+        List<DataUpdateRequest> toRequests() {
+            List<DataUpdateRequest> requests = new ArrayList<>();
+
+            for (Map.Entry<StatusAndProcessedDate, List<String>> group
+                    : idsByStatusAndProcessedDate.entrySet()) {
+                StatusAndProcessedDate statusAndProcessedDate = group.getKey();
+
+                for (List<String> ids : Lists.partition(group.getValue(), maxIdsPerRequest)) {
+                    DataUpdateRequest request = new DataUpdateRequest(entityName, entityVersion);
+
+                    request.where(ids.size() == 1
+                            ? Query.withValue("_id", BinOp.eq, ids.get(0))
+                            : Query.withValues("_id", Query.NaryOp.in,
+                                    Literal.values(ids.toArray(new String[ids.size()]))));
+
+                    List<Update> updates = new ArrayList<>(2);
+                    updates.add(Update.set("status", statusAndProcessedDate.status));
+
+                    if (statusAndProcessedDate.processedDate != null) {
+                        updates.add(Update.set("processedDate", statusAndProcessedDate.processedDate));
+                    }
+
+                    // Work around client bug.
+                    // https://github.com/lightblue-platform/lightblue-client/issues/225
+                    request.updates(updates.toArray(new Update[updates.size()]));
+
+                    requests.add(request);
+                }
+            }
+
+            return requests;
         }
+    }
 
-        request.where(Query.and(idStatusAndDateMatch));
-        request.updates(updateStatusDateAndSurvivorOf);
+    private static final class StatusAndProcessedDate {
+        final String status;
+        final @Nullable Date processedDate;
 
-        return request;
+        StatusAndProcessedDate(String status, @Nullable Date processedDate) {
+            this.status = status;
+            this.processedDate = processedDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            StatusAndProcessedDate that = (StatusAndProcessedDate) o;
+            return Objects.equals(status, that.status) &&
+                    Objects.equals(processedDate, that.processedDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(status, processedDate);
+        }
     }
 }
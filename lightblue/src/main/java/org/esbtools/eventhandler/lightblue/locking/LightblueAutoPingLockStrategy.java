@@ -24,14 +24,20 @@ import com.redhat.lightblue.client.response.lock.InvalidLockException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Uses lightblue's locking APIs with TTL, automatically pinging the lock in the background until it
@@ -41,13 +47,38 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * However, locks with TTLs may expire prematurely. By pinging the lock in a separate thread
  * periodically, we can substantially lesson the likelihood of unintentionally losing the lock.
  *
+ * <p>All locks acquired from the same strategy are kept in one registry and renewed together by a
+ * single scheduler. Each tick, live locks which have not been confirmed recently are split among
+ * at most {@code maxConcurrentPings} worker tasks. The number of threads is therefore fixed per
+ * strategy regardless of how many locks are held. Lightblue does not offer a bulk ping, so each
+ * lock is still pinged individually, but never more than once per interval: locks confirmed within
+ * the last half interval (for instance by {@link LockedResource#ensureAcquiredOrThrow(String)}) are
+ * skipped.
+ *
  * <p>Consumers are expected to check the lock at critical points to ensure it did not expire by
- * calling {@link LockedResource#ensureAcquiredOrThrow(String)}.
+ * calling {@link LockedResource#ensureAcquiredOrThrow(String)}. By default this always pings
+ * lightblue. If a {@code confirmationFreshness} is configured, a successful ping (automatic or
+ * not) within that window is accepted as proof the lock is still held, and the check is answered
+ * without a round trip.
+ *
+ * <p>Call {@link #close()} to stop the scheduler once the strategy is no longer used. Scheduler
+ * threads are daemons, so this is not required for the JVM to exit.
  */
-public class LightblueAutoPingLockStrategy implements LockStrategy {
+public class LightblueAutoPingLockStrategy implements LockStrategy, Closeable {
     private final Locking locking;
     private final Duration autoPingInterval;
     private final Duration timeToLive;
+    private final int maxConcurrentPings;
+    private final Duration confirmationFreshness;
+
+    private final Set<AutoPingingLock<?>> liveLocks = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService autoPingScheduler;
+    private final ScheduledFuture<?> autoPinger;
+
+    public static final int DEFAULT_MAX_CONCURRENT_PINGS = 4;
+
+    private static final AtomicInteger strategyCounter = new AtomicInteger(0);
+    private static final Logger logger = LoggerFactory.getLogger(LightblueAutoPingLockStrategy.class);
 
     /**
      * Same as {@link #LightblueAutoPingLockStrategy(Locking, Duration, Duration)}
@@ -58,23 +89,74 @@ public class LightblueAutoPingLockStrategy implements LockStrategy {
     }
 
     /**
-     * Validates {@code timeToLive} is greater than the {@code autoPingInterval}.
+     * Same as {@link #LightblueAutoPingLockStrategy(Locking, Duration, Duration, int)} except
+     * {@code maxConcurrentPings} defaults to {@link #DEFAULT_MAX_CONCURRENT_PINGS}.
+     */
+    public LightblueAutoPingLockStrategy(Locking locking, Duration autoPingInterval,
+            Duration timeToLive) {
+        this(locking, autoPingInterval, timeToLive, DEFAULT_MAX_CONCURRENT_PINGS);
+    }
+
+    /**
+     * Same as {@link #LightblueAutoPingLockStrategy(Locking, Duration, Duration, int, Duration)}
+     * except {@code confirmationFreshness} is zero: every check of a lock pings lightblue.
+     */
+    public LightblueAutoPingLockStrategy(Locking locking, Duration autoPingInterval,
+            Duration timeToLive, int maxConcurrentPings) {
+        this(locking, autoPingInterval, timeToLive, maxConcurrentPings, Duration.ZERO);
+    }
+
+    /**
+     * Validates {@code timeToLive} is greater than the {@code autoPingInterval} and the
+     * {@code confirmationFreshness}.
      * @param locking The locking client to use which holds knowledge of the locking domain to use.
      *                The default clientId is ignored.
      * @param autoPingInterval Amount of time in between automatic pings of acquired locks.
      * @param timeToLive Time until locks automatically expire. Should be [much] larger than the
      *                   {@code autoPingInterval} to ensure locks do not accidentally expire.
+     * @param maxConcurrentPings Upper bound of ping requests in flight at once, and therefore of
+     *                           threads used to ping, no matter how many locks are held.
+     * @param confirmationFreshness How recently a lock must have been successfully pinged for
+     *                              {@link LockedResource#ensureAcquiredOrThrow(String)} to trust
+     *                              it without pinging again. Zero to always ping.
      */
     public LightblueAutoPingLockStrategy(Locking locking, Duration autoPingInterval,
-            Duration timeToLive) {
+            Duration timeToLive, int maxConcurrentPings, Duration confirmationFreshness) {
         this.locking = locking;
         this.autoPingInterval = autoPingInterval;
         this.timeToLive = timeToLive;
+        this.maxConcurrentPings = maxConcurrentPings;
+        this.confirmationFreshness = confirmationFreshness;
 
         if (timeToLive.compareTo(autoPingInterval) <= 0) {
             throw new IllegalArgumentException("Time to live should be greater than auto ping " +
                     "interval, otherwise the lock will likely be lost.");
         }
+
+        if (confirmationFreshness.isNegative() || timeToLive.compareTo(confirmationFreshness) <= 0) {
+            throw new IllegalArgumentException("Confirmation freshness should be between zero " +
+                    "and time to live, otherwise a lock may be trusted after it expired.");
+        }
+
+        if (maxConcurrentPings < 1) {
+            throw new IllegalArgumentException("maxConcurrentPings must be at least 1, but was " +
+                    maxConcurrentPings);
+        }
+
+        String threadNamePrefix = "lightblue-lock-pinger-" + strategyCounter.incrementAndGet() + "-";
+        AtomicInteger threadCounter = new AtomicInteger(0);
+
+        this.autoPingScheduler = Executors.newScheduledThreadPool(maxConcurrentPings, runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.autoPinger = autoPingScheduler.scheduleWithFixedDelay(
+                this::pingLiveLocks,
+                /* initial delay*/ autoPingInterval.toMillis(),
+                /* delay */ autoPingInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -82,51 +164,97 @@ public class LightblueAutoPingLockStrategy implements LockStrategy {
         try {
             // TODO: May want to include hostname and/or thread information in clientId
             String callerId = UUID.randomUUID().toString();
-            return new AutoPingingLock<>(locking, callerId, resourceId, resource, autoPingInterval,
-                    timeToLive);
+            return new AutoPingingLock<>(callerId, resourceId, resource);
         } catch (LightblueException e) {
             throw new LockNotAvailableException(resourceId, resource, e);
         }
     }
 
-    static final class AutoPingingLock<T> implements LockedResource<T> {
+    /**
+     * Stops automatically pinging locks. Locks are not released; they will expire after their
+     * time to live unless closed.
+     */
+    @Override
+    public void close() {
+        autoPinger.cancel(false);
+        autoPingScheduler.shutdownNow();
+        liveLocks.clear();
+    }
+
+    /**
+     * One tick of the scheduler: splits locks due for a ping among at most
+     * {@link #maxConcurrentPings} tasks, each of which pings its share of locks in turn.
+     */
+    private void pingLiveLocks() {
+        try {
+            long dueIfConfirmedBefore = System.nanoTime() - autoPingInterval.toNanos() / 2;
+            List<AutoPingingLock<?>> due = new ArrayList<>(liveLocks.size());
+
+            for (AutoPingingLock<?> lock : liveLocks) {
+                if (lock.lastConfirmedNanos - dueIfConfirmedBefore <= 0) {
+                    due.add(lock);
+                }
+            }
+
+            if (due.isEmpty()) {
+                return;
+            }
+
+            int tasks = Math.min(maxConcurrentPings, due.size());
+            int locksPerTask = (int) Math.ceil((double) due.size() / tasks);
+
+            for (int i = 0; i < due.size(); i += locksPerTask) {
+                List<AutoPingingLock<?>> share = due.subList(i, Math.min(i + locksPerTask, due.size()));
+                autoPingScheduler.execute(() -> share.forEach(AutoPingingLock::periodicPing));
+            }
+        } catch (Exception e) {
+            // Never let an exception escape, or the scheduler will stop pinging altogether.
+            logger.error("Unexpected failure scheduling lock pings. Will try again next interval.", e);
+        }
+    }
+
+    final class AutoPingingLock<T> implements LockedResource<T> {
         private final String callerId;
         private final T resource;
         private final String resourceId;
-        private final Locking locking;
-        private final ScheduledExecutorService autoPingScheduler =
-                Executors.newSingleThreadScheduledExecutor();
-        private final ScheduledFuture<?> autoPinger;
         private final AtomicBoolean isClosed = new AtomicBoolean(false);
+        private final AtomicBoolean isPinging = new AtomicBoolean(false);
 
-        private static final Logger logger = LoggerFactory.getLogger(AutoPingingLock.class);
+        /** {@link System#nanoTime()} of the last time lightblue confirmed we hold this lock. */
+        private volatile long lastConfirmedNanos;
 
-        AutoPingingLock(Locking locking, String callerId, String resourceId, T resource,
-                Duration autoPingInterval, Duration ttl) throws LightblueException,
+        AutoPingingLock(String callerId, String resourceId, T resource) throws LightblueException,
                 LockNotAvailableException {
             this.callerId = callerId;
             this.resource = resource;
-            this.locking = locking;
             this.resourceId = resourceId;
 
-            if (!locking.acquire(callerId, resourceId, ttl.toMillis())) {
+            if (!locking.acquire(callerId, resourceId, timeToLive.toMillis())) {
                 throw new LockNotAvailableException(resourceId, resource);
             }
 
-            this.autoPinger = autoPingScheduler.scheduleWithFixedDelay(
-                    new PingTask(this),
-                    /* initial delay*/ autoPingInterval.toMillis(),
-                    /* delay */ autoPingInterval.toMillis(),
-                    TimeUnit.MILLISECONDS);
+            lastConfirmedNanos = System.nanoTime();
+            liveLocks.add(this);
         }
 
         @Override
         public void ensureAcquiredOrThrow(String lostLockMessage) throws LostLockException {
+            if (isClosed.get()) {
+                throw new LostLockException(this, "Lock is closed or was found lost. " +
+                        lostLockMessage);
+            }
+
+            if (System.nanoTime() - lastConfirmedNanos < confirmationFreshness.toNanos()) {
+                return;
+            }
+
             try {
                 if (!locking.ping(callerId, resourceId)) {
                     stopPinging();
                     throw new LostLockException(this, lostLockMessage);
                 }
+
+                lastConfirmedNanos = System.nanoTime();
             } catch (LightblueException e) {
                 try {
                     close();
@@ -153,8 +281,7 @@ public class LightblueAutoPingLockStrategy implements LockStrategy {
             }
 
             try {
-                autoPinger.cancel(true);
-                autoPingScheduler.shutdownNow();
+                liveLocks.remove(this);
                 locking.release(callerId, resourceId);
                 isClosed.set(true);
             } catch (LightblueException e) {
@@ -177,37 +304,42 @@ public class LightblueAutoPingLockStrategy implements LockStrategy {
          * and you are not okay with it expiring on its own, use {@link #close()}.
          */
         private void stopPinging() {
-            autoPinger.cancel(true);
-            autoPingScheduler.shutdownNow();
+            liveLocks.remove(this);
             isClosed.set(true);
         }
 
-        static class PingTask implements Runnable {
-            final AutoPingingLock lock;
-
-            PingTask(AutoPingingLock lock) {
-                this.lock = lock;
+        /**
+         * Called from the scheduler. Skips the ping if a previous ping of this lock is still in
+         * flight, so a slow lightblue never results in overlapping pings of the same lock.
+         */
+        private void periodicPing() {
+            if (isClosed.get() || !isPinging.compareAndSet(false, true)) {
+                return;
             }
 
-            @Override
-            public void run() {
-                try {
-                    if (!lock.locking.ping(lock.callerId, lock.resourceId)) {
-                        lock.stopPinging();
-                        throw new RuntimeException("Lost lock. Will stop pinging. Lock was: " + lock);
-                    }
-
-                    logger.debug("Periodic lock ping successful. callerId={} resourceId={}",
-                            lock.callerId, lock.resourceId);
-                } catch (InvalidLockException e) {
-                    logger.error("Tried to ping an invalid lock. Will stop pinging. Lock was: " +
-                            lock, e);
-                    lock.stopPinging();
-                    throw new RuntimeException(e);
-                } catch (LightblueException e) {
-                    logger.error("Periodic lock ping failed for callerId <{}> and " +
-                            "resourceId <{}>. Will keep trying.", lock.callerId, lock.resourceId, e);
+            try {
+                if (!locking.ping(callerId, resourceId)) {
+                    logger.error("Lost lock. Will stop pinging. Lock was: {}", this);
+                    stopPinging();
+                    return;
                 }
+
+                lastConfirmedNanos = System.nanoTime();
+
+                logger.debug("Periodic lock ping successful. callerId={} resourceId={}",
+                        callerId, resourceId);
+            } catch (InvalidLockException e) {
+                logger.error("Tried to ping an invalid lock. Will stop pinging. Lock was: " +
+                        this, e);
+                stopPinging();
+            } catch (LightblueException e) {
+                logger.error("Periodic lock ping failed for callerId <{}> and " +
+                        "resourceId <{}>. Will keep trying.", callerId, resourceId, e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected failure pinging lock for callerId <{}> and " +
+                        "resourceId <{}>. Will keep trying.", callerId, resourceId, e);
+            } finally {
+                isPinging.set(false);
             }
         }
     }
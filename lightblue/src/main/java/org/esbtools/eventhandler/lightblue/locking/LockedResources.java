@@ -19,12 +19,48 @@
 package org.esbtools.eventhandler.lightblue.locking;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface LockedResources<T> extends Closeable {
     Collection<LockedResource<T>> getLocks();
 
+    /**
+     * Checks every lock in one sweep, as if by calling
+     * {@link LockedResource#ensureAcquiredOrThrow(String)} on each, except that lost locks are
+     * returned rather than thrown. Implementations may check locks concurrently.
+     *
+     * <p>As with {@code ensureAcquiredOrThrow}, no further clean up is necessary for lost locks.
+     *
+     * @return An exception for each lost lock, whose {@link LostLockException#lostLocks()}
+     * identifies the lock. Empty if all locks are still acquired.
+     */
+    default List<LostLockException> ensureAllAcquiredOrGetLost(String lostLockMessage) {
+        List<LostLockException> lost = new ArrayList<>(0);
+
+        for (LockedResource<T> lock : getLocks()) {
+            try {
+                lock.ensureAcquiredOrThrow(lostLockMessage);
+            } catch (LostLockException e) {
+                lost.add(e);
+            }
+        }
+
+        return lost;
+    }
+
     static <T> LockedResources<T> fromLocks(Collection<LockedResource<T>> locks) {
         return new WrappedLockedResources<>(locks);
     }
+
+    /**
+     * Like {@link #fromLocks(Collection)}, except {@link #ensureAllAcquiredOrGetLost(String)}
+     * checks locks concurrently on the provided {@code executor}.
+     */
+    static <T> LockedResources<T> fromLocks(Collection<LockedResource<T>> locks,
+            Executor executor) {
+        return new WrappedLockedResources<>(locks, executor);
+    }
 }
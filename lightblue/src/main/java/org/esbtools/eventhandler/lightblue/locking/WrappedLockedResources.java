@@ -18,17 +18,28 @@
 
 package org.esbtools.eventhandler.lightblue.locking;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 class WrappedLockedResources<T> implements LockedResources<T> {
     private final Collection<LockedResource<T>> locks;
+    private final @Nullable Executor executor;
 
     public WrappedLockedResources(Collection<LockedResource<T>> locks) {
+        this(locks, null);
+    }
+
+    public WrappedLockedResources(Collection<LockedResource<T>> locks, @Nullable Executor executor) {
         this.locks = locks;
+        this.executor = executor;
     }
 
     @Override
@@ -36,6 +47,27 @@ class WrappedLockedResources<T> implements LockedResources<T> {
         return Collections.unmodifiableCollection(locks);
     }
 
+    @Override
+    public List<LostLockException> ensureAllAcquiredOrGetLost(String lostLockMessage) {
+        if (executor == null || locks.size() <= 1) {
+            return LockedResources.super.ensureAllAcquiredOrGetLost(lostLockMessage);
+        }
+
+        List<CompletableFuture<Optional<LostLockException>>> checks = locks.stream()
+                .map(lock -> CompletableFuture.supplyAsync(
+                        () -> checkLock(lock, lostLockMessage), executor))
+                .collect(Collectors.toList());
+
+        List<LostLockException> lost = new ArrayList<>(0);
+
+        for (CompletableFuture<Optional<LostLockException>> check : checks) {
+            // checkLock never throws, so neither does join.
+            check.join().ifPresent(lost::add);
+        }
+
+        return lost;
+    }
+
     @Override
     public void close() throws IOException {
         if (locks.isEmpty()) {
@@ -60,4 +92,17 @@ class WrappedLockedResources<T> implements LockedResources<T> {
             throw new MultipleIOExceptions(exceptions);
         }
     }
+
+    private static Optional<LostLockException> checkLock(LockedResource<?> lock,
+            String lostLockMessage) {
+        try {
+            lock.ensureAcquiredOrThrow(lostLockMessage);
+            return Optional.empty();
+        } catch (LostLockException e) {
+            return Optional.of(e);
+        } catch (RuntimeException e) {
+            return Optional.of(new LostLockException(lock, "Unexpected failure checking lock, " +
+                    "assuming lost. " + lostLockMessage, e));
+        }
+    }
 }
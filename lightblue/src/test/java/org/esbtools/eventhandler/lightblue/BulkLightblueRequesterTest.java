@@ -16,10 +16,14 @@ import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.esbtools.eventhandler.EventHandlerMetrics;
 import org.esbtools.eventhandler.TransformableFuture;
 import org.esbtools.eventhandler.lightblue.client.BulkLightblueRequester;
 import org.esbtools.eventhandler.lightblue.client.LightblueDataResponses;
@@ -440,6 +444,68 @@ public class BulkLightblueRequesterTest {
         }
     }
     
+    @Test
+    public void shouldShareOneResponseAmongEquivalentFindsQueuedInTheSameBatch() throws Exception {
+        insertUser("cooltester2000");
+
+        DataFindRequest findTester = findUserByUsername("cooltester2000");
+        DataFindRequest findTesterAgain = findUserByUsername("cooltester2000");
+
+        Future<TestUser> futureTester = requester.request(findTester).transformSync((responses -> {
+            return responses.forRequest(findTester).parseProcessed(TestUser.class);
+        }));
+
+        Future<TestUser> futureTesterAgain = requester.tryRequest(findTesterAgain).transformSync((responses -> {
+            return responses.forRequest(findTesterAgain).getSuccess().parseProcessed(TestUser.class);
+        }));
+
+        assertEquals("cooltester2000", futureTester.get().getUsername());
+        assertEquals("cooltester2000", futureTesterAgain.get().getUsername());
+    }
+
+    @Test
+    public void shouldSendEquivalentFindsAsOneBulkEntryButNotWrites() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        BulkLightblueRequester unorderedRequester = new BulkLightblueRequester(mockClient, false);
+
+        DataInsertRequest insertTester = new DataInsertRequest(TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION);
+        TestUser tester = new TestUser();
+        tester.setUsername("cooltester2000");
+        insertTester.create(tester);
+
+        unorderedRequester.request(findUserByUsername("cooltester2000"), insertTester);
+        unorderedRequester.request(findUserByUsername("cooltester2000"), insertTester);
+        unorderedRequester.request(findUserByUsername("aw3som3cod3r")).get();
+
+        Mockito.verify(mockClient).bulkData(Mockito.argThat(new ArgumentMatcher<DataBulkRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((DataBulkRequest) argument).getRequests().size() == 4;
+            }
+        }));
+    }
+
+    @Test
+    public void shouldCountQueuedRequestsNotSentBecauseAnEquivalentOneWas() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        EventHandlerMetrics metrics = Mockito.mock(EventHandlerMetrics.class);
+        BulkLightblueRequester countingRequester =
+                new BulkLightblueRequester(mockClient, metrics, "requester");
+
+        countingRequester.request(findUserByUsername("cooltester2000"));
+        countingRequester.request(findUserByUsername("cooltester2000"));
+        countingRequester.request(findUserByUsername("cooltester2000"),
+                findUserByUsername("aw3som3cod3r")).get();
+
+        Mockito.verify(metrics).increment("requester", EventHandlerMetrics.DEDUPLICATED, 2);
+    }
+
     @Test
     public void shouldBeOrderedIfRequested() throws Exception {
 
@@ -474,6 +540,175 @@ public class BulkLightblueRequesterTest {
         }));
     }
    
+    @Test
+    public void shouldBeOrderedByDefault() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        BulkLightblueRequester defaultRequester = new BulkLightblueRequester(mockClient);
+        defaultRequester.request(new DataFindRequest("foo"), new DataFindRequest("bar")).get();
+
+        Mockito.verify(mockClient).bulkData(Mockito.argThat(new ArgumentMatcher<DataBulkRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((DataBulkRequest) argument).isOrdered();
+            }
+        }));
+    }
+
+    @Test
+    public void shouldBeUnorderedWhenSplittingUnlessThereAreWrites() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        BulkLightblueRequester defaultRequester = new BulkLightblueRequester(mockClient,
+                BulkLightblueRequester.UNLIMITED, BulkLightblueRequester.UNLIMITED, 1);
+        defaultRequester.request(new DataFindRequest("foo"), new DataFindRequest("bar")).get();
+
+        Mockito.verify(mockClient).bulkData(Mockito.argThat(new ArgumentMatcher<DataBulkRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                return !((DataBulkRequest) argument).isOrdered();
+            }
+        }));
+
+        defaultRequester.request(new DataFindRequest("foo"),
+                new DataInsertRequest(TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION)).get();
+
+        Mockito.verify(mockClient).bulkData(Mockito.argThat(new ArgumentMatcher<DataBulkRequest>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((DataBulkRequest) argument).isOrdered();
+            }
+        }));
+    }
+
+    @Test(timeout = 10000L)
+    public void shouldSplitBatchIntoBulkRequestsOfNoMoreThanMaxRequests() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        BulkLightblueRequester splittingRequester = new BulkLightblueRequester(mockClient,
+                /* maxRequestsPerBulk */ 2, BulkLightblueRequester.UNLIMITED,
+                /* bulkParallelism */ 2);
+
+        List<Future<LightblueDataResponses>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            futures.add(splittingRequester.request(new DataFindRequest("foo" + i)));
+        }
+
+        for (Future<LightblueDataResponses> future : futures) {
+            future.get();
+        }
+
+        Mockito.verify(mockClient, Mockito.times(3)).bulkData(any(DataBulkRequest.class));
+        Mockito.verify(mockClient, Mockito.never()).bulkData(
+                Mockito.argThat(new ArgumentMatcher<DataBulkRequest>() {
+                    @Override
+                    public boolean matches(Object argument) {
+                        return ((DataBulkRequest) argument).getRequests().size() > 2;
+                    }
+                }));
+    }
+
+    @Test(timeout = 10000L)
+    public void shouldOnlyFailFuturesWhoseBulkRequestFailed() throws Exception {
+        DataFindRequest goodRequest = new DataFindRequest("good");
+        DataFindRequest badRequest = new DataFindRequest("bad");
+
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenAnswer(invocation -> {
+            DataBulkRequest bulkRequest = (DataBulkRequest) invocation.getArguments()[0];
+
+            if (bulkRequest.getRequests().contains(badRequest)) {
+                throw new IllegalStateException("Simulated failure");
+            }
+
+            return lightblueDataResponse;
+        });
+
+        BulkLightblueRequester splittingRequester = new BulkLightblueRequester(mockClient,
+                /* maxRequestsPerBulk */ 1, BulkLightblueRequester.UNLIMITED,
+                /* bulkParallelism */ 2);
+
+        Future<LightblueDataResponses> goodFuture = splittingRequester.request(goodRequest);
+        Future<LightblueDataResponses> badFuture = splittingRequester.request(badRequest);
+
+        goodFuture.get();
+
+        expectedException.expectCause(Matchers.instanceOf(IllegalStateException.class));
+        badFuture.get();
+    }
+
+    @Test(timeout = 10000L)
+    public void shouldNotSendLaterOrderedBulkRequestsAfterOneFails() throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class)))
+                .thenThrow(new IllegalStateException("Simulated failure"));
+
+        BulkLightblueRequester orderedRequester = new BulkLightblueRequester(mockClient, true,
+                Executors.newSingleThreadExecutor(), /* maxRequestsPerBulk */ 1,
+                BulkLightblueRequester.UNLIMITED, /* bulkParallelism */ 2,
+                Executors.newSingleThreadExecutor());
+
+        List<Future<LightblueDataResponses>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            futures.add(orderedRequester.request(
+                    new DataInsertRequest(TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION)));
+        }
+
+        for (Future<LightblueDataResponses> future : futures) {
+            try {
+                future.get();
+                fail("Expected every future of the ordered batch to fail");
+            } catch (ExecutionException expected) {
+                assertThat(expected.getCause()).isInstanceOf(IllegalStateException.class);
+            }
+        }
+
+        Mockito.verify(mockClient, Mockito.times(1)).bulkData(any(DataBulkRequest.class));
+    }
+
+    @Test(timeout = 10000L)
+    public void shouldShareOneCompletionAmongFuturesResolvedWithTimeoutsWithoutCreatingThreadsPerCall()
+            throws Exception {
+        LightblueClient mockClient = Mockito.mock(LightblueClient.class);
+        LightblueBulkDataResponse lightblueDataResponse = Mockito.mock(LightblueBulkDataResponse.class);
+        when(mockClient.bulkData(any(DataBulkRequest.class))).thenReturn(lightblueDataResponse);
+
+        AtomicInteger threadsCreated = new AtomicInteger(0);
+        ExecutorService completionExecutor = Executors.newFixedThreadPool(2, runnable -> {
+            threadsCreated.incrementAndGet();
+            return new Thread(runnable);
+        });
+
+        try {
+            BulkLightblueRequester sharedExecutorRequester =
+                    new BulkLightblueRequester(mockClient, true, completionExecutor);
+
+            List<Future<LightblueDataResponses>> futures = new ArrayList<>(500);
+
+            for (int i = 0; i < 500; i++) {
+                futures.add(sharedExecutorRequester.request(new DataFindRequest("foo" + i)));
+            }
+
+            for (Future<LightblueDataResponses> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+
+            Mockito.verify(mockClient, Mockito.times(1)).bulkData(any(DataBulkRequest.class));
+            assertThat(threadsCreated.get()).isAtMost(1);
+        } finally {
+            completionExecutor.shutdownNow();
+        }
+    }
+
     private void insertUser(String username) throws LightblueException {
         DataInsertRequest insertRequest = new DataInsertRequest(TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION);
         TestUser user = new TestUser();
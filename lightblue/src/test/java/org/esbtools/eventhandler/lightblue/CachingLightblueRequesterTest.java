@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import org.esbtools.eventhandler.lightblue.client.BulkLightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.CachingLightblueRequester;
+import org.esbtools.eventhandler.lightblue.client.LightblueLookupCache;
+import org.esbtools.eventhandler.lightblue.testing.TestUser;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.request.CRUDRequest;
+import com.redhat.lightblue.client.request.DataBulkRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.response.LightblueBulkDataResponse;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class CachingLightblueRequesterTest {
+    LightblueClient client = Mockito.mock(LightblueClient.class);
+    LightblueBulkDataResponse bulkResponse = Mockito.mock(LightblueBulkDataResponse.class);
+    LightblueDataResponse dataResponse = Mockito.mock(LightblueDataResponse.class);
+
+    LightblueLookupCache cache = new LightblueLookupCache(
+            ImmutableMap.of(TestUser.ENTITY_NAME, Duration.ofMinutes(1)), 100);
+
+    @Before
+    public void stubLightblue() throws Exception {
+        when(client.bulkData(any(DataBulkRequest.class))).thenReturn(bulkResponse);
+        when(bulkResponse.getResponse(any(CRUDRequest.class))).thenReturn(dataResponse);
+    }
+
+    @Test
+    public void shouldAnswerEquivalentFindsFromCacheInLaterBatches() throws Exception {
+        CachingLightblueRequester firstBatch = newRequester(Collections.emptySet());
+        DataFindRequest firstFind = findUserByUsername("cooltester2000");
+
+        assertThat(firstBatch.request(firstFind).get().forRequest(firstFind))
+                .isSameAs(dataResponse);
+
+        CachingLightblueRequester secondBatch = newRequester(Collections.emptySet());
+        DataFindRequest secondFind = findUserByUsername("cooltester2000");
+
+        assertThat(secondBatch.request(secondFind).get().forRequest(secondFind))
+                .isSameAs(dataResponse);
+
+        Mockito.verify(client, Mockito.times(1)).bulkData(any(DataBulkRequest.class));
+        assertThat(cache.stats().hitCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldAlwaysGoToLightblueForBypassedEntities() throws Exception {
+        newRequester(Collections.emptySet())
+                .request(findUserByUsername("cooltester2000")).get();
+
+        newRequester(ImmutableSet.of(TestUser.ENTITY_NAME))
+                .request(findUserByUsername("cooltester2000")).get();
+
+        Mockito.verify(client, Mockito.times(2)).bulkData(any(DataBulkRequest.class));
+        assertThat(cache.stats().hitCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldNotCacheEntitiesWithoutTimeToLive() throws Exception {
+        DataFindRequest findOther = new DataFindRequest("other", "1.0.0");
+        findOther.where(Query.withValue("_id", Query.BinOp.eq, "1"));
+        findOther.select(Projection.includeFieldRecursively("*"));
+
+        newRequester(Collections.emptySet()).request(findOther).get();
+        newRequester(Collections.emptySet()).request(findOther).get();
+
+        Mockito.verify(client, Mockito.times(2)).bulkData(any(DataBulkRequest.class));
+    }
+
+    private CachingLightblueRequester newRequester(Set<String> bypassedEntityNames) {
+        return new CachingLightblueRequester(new BulkLightblueRequester(client), cache,
+                bypassedEntityNames);
+    }
+
+    private static DataFindRequest findUserByUsername(String username) {
+        DataFindRequest findUser = new DataFindRequest(TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION);
+        findUser.where(Query.withValue("username", Query.BinOp.eq, username));
+        findUser.select(Projection.includeFieldRecursively("*"));
+        return findUser;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.esbtools.eventhandler.lightblue;
+
+import org.esbtools.eventhandler.EventHandlerMetrics;
+
+import com.google.common.truth.Truth;
+import com.jayway.awaitility.Awaitility;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs the same tests with a notifications deleter which deletes in chunks, plus tests of
+ * chunking itself.
+ */
+public class ChunkedPeriodicDeleteOldEntitiesRouteTest extends PeriodicDeleteOldEntitiesRouteTest {
+    static final int NOTIFICATIONS_CHUNK_SIZE = 3;
+
+    /** Chunk sizes recorded by the notifications deleter. */
+    List<Long> notificationChunkSizes = new CopyOnWriteArrayList<>();
+
+    EventHandlerMetrics recordsChunkSizes = new EventHandlerMetrics() {
+        @Override
+        public void increment(String source, String metric, long delta) {
+        }
+
+        @Override
+        public void recordValue(String source, String metric, long value) {
+            if (EventHandlerMetrics.BATCH_SIZE.equals(metric)) {
+                notificationChunkSizes.add(value);
+            }
+        }
+
+        @Override
+        public void recordDuration(String source, String metric, Duration duration) {
+        }
+    };
+
+    @Override
+    PeriodicDeleteOldEntitiesRoute newNotificationsDeleterRoute() {
+        return PeriodicDeleteOldEntitiesRoute.deletingNotificationsOlderThan(DELETE_OLDER_THAN,
+                DELETE_INTERVAL, NOTIFICATIONS_CHUNK_SIZE, /*maxDeletesPerSecond:*/ 1000, client,
+                lockStrategy, recordsChunkSizes, fixedClock);
+    }
+
+    @Test
+    public void shouldDeleteOldNotificationsInChunksOfChunkSize() throws Exception {
+        Instant tooOld = fixedClock.instant()
+                .minus(DELETE_OLDER_THAN)
+                .minus(1, ChronoUnit.SECONDS);
+
+        insertNotificationsForRequestsAt(tooOld, 10);
+
+        lockStrategy.releaseAll();
+
+        Awaitility.await().until(this::findAllNotifications, Matchers.hasSize(0));
+
+        Truth.assertThat(notificationChunkSizes).containsExactly(3L, 3L, 3L, 1L).inOrder();
+    }
+}
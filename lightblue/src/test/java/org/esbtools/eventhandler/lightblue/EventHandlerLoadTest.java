@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.esbtools.eventhandler.lightblue.testing.LightblueClientConfigurations;
+import org.esbtools.eventhandler.lightblue.testing.LightblueClients;
+import org.esbtools.eventhandler.lightblue.testing.LoadHarness;
+import org.esbtools.eventhandler.lightblue.testing.TestMetadataJson;
+import org.esbtools.lightbluenotificationhook.NotificationEntity;
+
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.integration.test.LightblueExternalResource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Measures throughput and latency of the whole pipeline against lightblue with injected latency
+ * and errors. Excluded from the default build; run with {@code mvn -Pload-tests test}.
+ *
+ * <p>Tune with system properties: {@code load.notifications}, {@code load.notificationBatchSize},
+ * {@code load.documentEventBatchSize}, {@code load.latencyMillis}, {@code load.jitterMillis},
+ * {@code load.errorRate}, {@code load.seed}, and {@code load.timeoutSeconds}. Runs with the same
+ * properties inject the same latencies and errors, though threads may still interleave
+ * differently.
+ */
+@RunWith(JUnit4.class)
+public class EventHandlerLoadTest {
+    @ClassRule
+    public static LightblueExternalResource lightblueExternalResource = new LightblueExternalResource(
+            TestMetadataJson.forEntities(NotificationEntity.class, DocumentEventEntity.class));
+
+    static final Logger log = LoggerFactory.getLogger(EventHandlerLoadTest.class);
+
+    LightblueClient client;
+
+    @Before
+    public void initializeLightblueClientAndCleanUpCollections() throws Exception {
+        client = LightblueClients.withJavaTimeSerializationSupport(
+                LightblueClientConfigurations.fromLightblueExternalResource(lightblueExternalResource));
+
+        lightblueExternalResource.cleanupMongoCollections(NotificationEntity.ENTITY_NAME);
+        lightblueExternalResource.cleanupMongoCollections(DocumentEventEntity.ENTITY_NAME);
+    }
+
+    @Test
+    public void shouldPublishAllNotificationsUnderInjectedLatencyAndErrors() throws Exception {
+        int notifications = Integer.getInteger("load.notifications", 1000);
+
+        LoadHarness harness = new LoadHarness(client,
+                Integer.getInteger("load.notificationBatchSize", 50),
+                Integer.getInteger("load.documentEventBatchSize", 50),
+                Duration.ofMillis(Long.getLong("load.latencyMillis", 10)),
+                Duration.ofMillis(Long.getLong("load.jitterMillis", 5)),
+                Double.parseDouble(System.getProperty("load.errorRate", "0.01")),
+                Long.getLong("load.seed", 1));
+
+        LoadHarness.Report report = harness.run(notifications,
+                Duration.ofSeconds(Long.getLong("load.timeoutSeconds", 300)));
+
+        log.info("{}: {}", harness, report);
+
+        assertThat(report.published()).isEqualTo(notifications);
+    }
+}
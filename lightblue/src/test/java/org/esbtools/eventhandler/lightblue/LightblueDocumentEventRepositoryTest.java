@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 
 import org.esbtools.eventhandler.FailedDocumentEvent;
+import org.esbtools.eventhandler.lightblue.client.LightblueLookupCache;
 import org.esbtools.eventhandler.lightblue.config.MutableLightblueDocumentEventRepositoryConfig;
 import org.esbtools.eventhandler.lightblue.testing.InMemoryLockStrategy;
 import org.esbtools.eventhandler.lightblue.testing.LightblueClientConfigurations;
@@ -31,6 +32,7 @@ import org.esbtools.eventhandler.lightblue.testing.SlowDataLightblueClient;
 import org.esbtools.eventhandler.lightblue.testing.StringDocumentEvent;
 import org.esbtools.eventhandler.lightblue.testing.TestLogger;
 import org.esbtools.eventhandler.lightblue.testing.TestMetadataJson;
+import org.esbtools.eventhandler.lightblue.testing.TestUser;
 
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueClientConfiguration;
@@ -66,6 +68,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -79,7 +82,8 @@ import java.util.stream.Collectors;
 public class LightblueDocumentEventRepositoryTest {
     @ClassRule
     public static LightblueExternalResource lightblueExternalResource =
-            new LightblueExternalResource(TestMetadataJson.forEntity(DocumentEventEntity.class));
+            new LightblueExternalResource(TestMetadataJson.forEntities(
+                    DocumentEventEntity.class, TestUser.class));
 
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
@@ -464,6 +468,56 @@ public class LightblueDocumentEventRepositoryTest {
                         .collect(Collectors.toList()));
     }
 
+    @Test
+    public void shouldReturnNoMoreThanMaxEventsWhenAcquiringLocksConcurrently() throws Exception {
+        repository = new LightblueDocumentEventRepository(client, lockStrategy, config,
+                documentEventFactoriesByType,
+                new LightblueDocumentEventRepositoryOptions().setLockingParallelism(4), fixedClock);
+
+        insertDocumentEventEntities(randomNewDocumentEventEntities(DOCUMENT_EVENT_BATCH_SIZE));
+
+        List<LightblueDocumentEvent> returnedEvents = repository.retrievePriorityDocumentEventsUpTo(6);
+
+        List<DocumentEventEntity> unprocessedEntities = findDocumentEventEntitiesWhere(
+                Query.withValue("status", Query.BinOp.eq, DocumentEventEntity.Status.unprocessed));
+
+        assertThat(returnedEvents).hasSize(6);
+        assertThat(unprocessedEntities).hasSize(DOCUMENT_EVENT_BATCH_SIZE - 6);
+        assertThat(lockStrategy.getAcquired()).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepSurvivorOfIdsOfOptimizedEventsWithTwoPhaseRetrieval() throws Exception {
+        repository = new LightblueDocumentEventRepository(client, lockStrategy, config,
+                documentEventFactoriesByType,
+                new LightblueDocumentEventRepositoryOptions().setTwoPhaseRetrieval(true), fixedClock);
+
+        Clock creationTimeClock = Clock.offset(fixedClock, Duration.ofHours(1).negated());
+
+        DocumentEventEntity previousSurvivor =
+                newStringDocumentEventEntity("duplicate", creationTimeClock);
+        previousSurvivor.addSurvivorOfIds("previously-superseded");
+
+        insertDocumentEventEntities(
+                previousSurvivor,
+                newStringDocumentEventEntity("duplicate", creationTimeClock));
+
+        List<LightblueDocumentEvent> retrieved = repository.retrievePriorityDocumentEventsUpTo(5);
+
+        List<DocumentEventEntity> supersededEntities = findDocumentEventEntitiesWhere(
+                Query.withValue("status", Query.BinOp.eq, DocumentEventEntity.Status.superseded));
+        List<DocumentEventEntity> survivorEntities = findDocumentEventEntitiesWhere(
+                Query.withValue("status", Query.BinOp.eq, DocumentEventEntity.Status.processing));
+
+        assertThat(retrieved).hasSize(1);
+        assertThat(supersededEntities).hasSize(1);
+        assertThat(survivorEntities).hasSize(1);
+        assertThat(survivorEntities.get(0).getSurvivorOfIds()).contains("previously-superseded");
+        assertThat(survivorEntities.get(0).getSurvivorOfIds())
+                .contains(supersededEntities.get(0).get_id());
+        assertThat(lockStrategy.getAcquired()).isEmpty();
+    }
+
     @Test
     public void shouldSearchThroughNoMoreThanBatchSize() throws Exception {
         insertDocumentEventEntities(randomNewDocumentEventEntities(DOCUMENT_EVENT_BATCH_SIZE + 1));
@@ -892,6 +946,53 @@ public class LightblueDocumentEventRepositoryTest {
         }
     }
 
+    @Test
+    public void shouldClaimOnlyEventsNotUpdatedByAnotherThreadAmongEventsClaimedTogether()
+            throws Exception {
+        lockStrategy.pauseAfterLock();
+
+        Instant timedout = fixedClock.instant()
+                .minus(PROCESSING_TIMEOUT)
+                .minus(Duration.ofMillis(1));
+
+        DocumentEventEntity[] inserted = insertDocumentEventEntities(
+                newDocumentEventThatStartedProcessingAt(timedout, "claimed")
+                        .wrappedDocumentEventEntity(),
+                newDocumentEventThatStartedProcessingAt(timedout, "updatedByAnotherThread")
+                        .wrappedDocumentEventEntity());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<List<LightblueDocumentEvent>> futureEvents =
+                    executor.submit(() -> repository.retrievePriorityDocumentEventsUpTo(2));
+
+            lockStrategy.waitForLock();
+
+            // Update one event's timestamp while lock strategy is paused
+            DocumentEventEntity updatedByAnotherThread = inserted[1];
+            updatedByAnotherThread.setProcessingDate(
+                    ZonedDateTime.now(fixedClock).plus(1, ChronoUnit.SECONDS));
+            saveDocumentEventEntity(updatedByAnotherThread);
+
+            lockStrategy.unpause();
+
+            List<LightblueDocumentEvent> claimed = futureEvents.get();
+
+            assertThat(claimed.stream()
+                    .map(e -> e.wrappedDocumentEventEntity().get_id())
+                    .collect(Collectors.toList()))
+                    .containsExactly(inserted[0].get_id());
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
     @Test(expected = Exception.class)
     public void shouldRecognizeUpdatesToProvidedTimeoutsConfiguration() throws Exception {
         Duration newProcessingTimeout = PROCESSING_TIMEOUT.dividedBy(2);
@@ -965,6 +1066,118 @@ public class LightblueDocumentEventRepositoryTest {
         retrieved.get(0).lookupDocument().get();
     }
 
+    @Test
+    public void shouldNotClaimEventsClaimedByAnotherClaimerWithTheSameProcessingDate()
+            throws Exception {
+        lockStrategy.pauseAfterLock();
+
+        Instant timedout = fixedClock.instant()
+                .minus(PROCESSING_TIMEOUT)
+                .minus(Duration.ofMillis(1));
+
+        DocumentEventEntity[] inserted = insertDocumentEventEntities(
+                newDocumentEventThatStartedProcessingAt(timedout, "claimed")
+                        .wrappedDocumentEventEntity(),
+                newDocumentEventThatStartedProcessingAt(timedout, "claimedByAnotherClaimer")
+                        .wrappedDocumentEventEntity());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<List<LightblueDocumentEvent>> futureEvents =
+                    executor.submit(() -> repository.retrievePriorityDocumentEventsUpTo(2));
+
+            lockStrategy.waitForLock();
+
+            // Claim one event while lock strategy is paused, as of the same instant we will.
+            DocumentEventEntity claimedByAnotherClaimer = inserted[1];
+            claimedByAnotherClaimer.setProcessingDate(ZonedDateTime.now(fixedClock));
+            claimedByAnotherClaimer.setClaimToken("anotherClaimer");
+            saveDocumentEventEntity(claimedByAnotherClaimer);
+
+            lockStrategy.unpause();
+
+            List<LightblueDocumentEvent> claimed = futureEvents.get();
+
+            assertThat(claimed.stream()
+                    .map(e -> e.wrappedDocumentEventEntity().get_id())
+                    .collect(Collectors.toList()))
+                    .containsExactly(inserted[0].get_id());
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void shouldAnswerLookupsOfLaterBatchesFromLookupCache() throws Exception {
+        LightblueLookupCache lookupCache = new LightblueLookupCache(
+                Collections.singletonMap(TestUser.ENTITY_NAME, Duration.ofMinutes(1)), 100);
+        repository = newUserLookupRepository(lookupCache, Collections.singleton("account"));
+
+        insertDocumentEventEntities(newUserLookupDocumentEventEntity("foo"));
+        repository.retrievePriorityDocumentEventsUpTo(1);
+
+        insertDocumentEventEntities(newUserLookupDocumentEventEntity("bar"));
+        repository.retrievePriorityDocumentEventsUpTo(1);
+
+        assertThat(lookupCache.stats(TestUser.ENTITY_NAME).get().missCount()).isEqualTo(1L);
+        assertThat(lookupCache.stats(TestUser.ENTITY_NAME).get().hitCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldNotAnswerLookupsOfChangedEntitiesFromLookupCache() throws Exception {
+        LightblueLookupCache lookupCache = new LightblueLookupCache(
+                Collections.singletonMap(TestUser.ENTITY_NAME, Duration.ofMinutes(1)), 100);
+        repository = newUserLookupRepository(lookupCache,
+                Collections.singleton(TestUser.ENTITY_NAME));
+
+        insertDocumentEventEntities(newUserLookupDocumentEventEntity("foo"));
+        repository.retrievePriorityDocumentEventsUpTo(1);
+
+        insertDocumentEventEntities(newUserLookupDocumentEventEntity("bar"));
+        repository.retrievePriorityDocumentEventsUpTo(1);
+
+        assertThat(lookupCache.stats(TestUser.ENTITY_NAME).get().hitCount()).isEqualTo(0L);
+    }
+
+    /**
+     * A repository of "UserLookup" events, each of which finds the same user while being parsed.
+     */
+    private LightblueDocumentEventRepository newUserLookupRepository(
+            LightblueLookupCache lookupCache, Set<String> changedEntityNames) {
+        Map<String, DocumentEventFactory> factories = Collections.singletonMap("UserLookup",
+                (entity, requester) -> {
+                    DataFindRequest findUser = new DataFindRequest(
+                            TestUser.ENTITY_NAME, TestUser.ENTITY_VERSION);
+                    findUser.where(Query.withValue("username", Query.BinOp.eq, "cooltester2000"));
+                    findUser.select(Projection.includeFieldRecursively("*"));
+
+                    try {
+                        requester.request(findUser).get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    return new StringDocumentEvent(entity);
+                });
+
+        return new LightblueDocumentEventRepository(client, lockStrategy,
+                new MutableLightblueDocumentEventRepositoryConfig(factories.keySet(),
+                        DOCUMENT_EVENT_BATCH_SIZE, PROCESSING_TIMEOUT, EXPIRE_THRESHOLD),
+                factories, new LightblueDocumentEventRepositoryOptions().setLookupCache(lookupCache,
+                        Collections.singletonMap("UserLookup", changedEntityNames)), fixedClock);
+    }
+
+    private DocumentEventEntity newUserLookupDocumentEventEntity(String value) {
+        return DocumentEventEntity.newlyCreated(null, "UserLookup", 50,
+                ZonedDateTime.now(fixedClock), new DocumentEventEntity.KeyAndValue("value", value));
+    }
+
     private List<DocumentEventEntity> findDocumentEventEntitiesWhere(@Nullable Query query)
             throws LightblueException {
         DataFindRequest find = new DataFindRequest(
@@ -1017,7 +1230,12 @@ public class LightblueDocumentEventRepositoryTest {
     }
 
     private LightblueDocumentEvent newDocumentEventThatStartedProcessingAt(Instant processingDate) {
-        LightblueDocumentEvent event = new StringDocumentEvent(null, "processing", fixedClock);
+        return newDocumentEventThatStartedProcessingAt(processingDate, "processing");
+    }
+
+    private LightblueDocumentEvent newDocumentEventThatStartedProcessingAt(Instant processingDate,
+            String value) {
+        LightblueDocumentEvent event = new StringDocumentEvent(null, value, fixedClock);
         DocumentEventEntity expiredEntity = event.wrappedDocumentEventEntity();
         expiredEntity.setStatus(DocumentEventEntity.Status.processing);
         expiredEntity.setProcessingDate(ZonedDateTime.ofInstant(processingDate, fixedClock.getZone()));
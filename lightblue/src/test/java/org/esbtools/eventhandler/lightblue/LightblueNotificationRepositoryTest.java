@@ -193,6 +193,62 @@ public class LightblueNotificationRepositoryTest {
                 .containsExactly("processing", "processing", "processing", "processing");
     }
 
+    @Test
+    public void shouldRetrieveFullNotificationsOldestFirstAndMarkThemProcessingWithTwoPhaseRetrieval()
+            throws Exception {
+        LightblueNotificationRepository twoPhaseRepository = new LightblueNotificationRepository(
+                client, config, notificationFactoryByEntityName, true, fixedClock);
+
+        NotificationEntity entity1 = notificationEntityForStringInsert("1", fixedClock.instant());
+        NotificationEntity entity2 = notificationEntityForStringInsert("2", fixedClock.instant().plus(1, ChronoUnit.MINUTES));
+        NotificationEntity entity3 = notificationEntityForStringInsert("3", fixedClock.instant().plus(2, ChronoUnit.MINUTES));
+
+        insertNotificationEntities(entity3, entity1, entity2);
+
+        List<LightblueNotification> retrieved = twoPhaseRepository.retrieveOldestNotificationsUpTo(2);
+
+        assertThat(retrieved.stream()
+                .map(notification -> notification
+                        .wrappedNotificationEntity()
+                        .getEntityDataForField("value"))
+                .collect(Collectors.toList()))
+                .containsExactly("1", "2");
+
+        List<NotificationEntity> processing = findNotificationEntitiesWhere(
+                Query.withValue("status", Query.BinOp.eq, NotificationEntity.Status.processing));
+
+        assertThat(processing.stream()
+                .map(entity -> entity.getEntityDataForField("value"))
+                .collect(Collectors.toList()))
+                .containsExactly("1", "2");
+    }
+
+    @Test
+    public void shouldKeepOldestFirstOrderOfFullNotificationsWithTwoPhaseRetrieval()
+            throws Exception {
+        LightblueNotificationRepository twoPhaseRepository = new LightblueNotificationRepository(
+                client, config, notificationFactoryByEntityName, true, fixedClock);
+
+        List<NotificationEntity> newestFirst = new ArrayList<>();
+
+        for (int i = 5; i >= 1; i--) {
+            newestFirst.add(notificationEntityForStringInsert(Integer.toString(i),
+                    fixedClock.instant().plus(i, ChronoUnit.MINUTES)));
+        }
+
+        // Inserted newest first, so the $in refetch would naturally return them newest first.
+        insertNotificationEntities(newestFirst.toArray(new NotificationEntity[newestFirst.size()]));
+
+        List<LightblueNotification> retrieved = twoPhaseRepository.retrieveOldestNotificationsUpTo(5);
+
+        assertThat(retrieved.stream()
+                .map(notification -> notification
+                        .wrappedNotificationEntity()
+                        .getEntityDataForField("value"))
+                .collect(Collectors.toList()))
+                .containsExactly("1", "2", "3", "4", "5").inOrder();
+    }
+
     @Test
     public void shouldRetrieveNonOverlappingSetsOfNotificationsIfCalledByMultipleThreads()
             throws LightblueException, InterruptedException, TimeoutException, ExecutionException {
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import org.esbtools.eventhandler.EventHandlerMetrics;
+import org.esbtools.eventhandler.lightblue.testing.InMemoryLockStrategy;
+import org.esbtools.eventhandler.lightblue.testing.LightblueClientConfigurations;
+import org.esbtools.eventhandler.lightblue.testing.LightblueClients;
+import org.esbtools.eventhandler.lightblue.testing.StringDocumentEvent;
+import org.esbtools.eventhandler.lightblue.testing.StringNotification;
+import org.esbtools.eventhandler.lightblue.testing.TestMetadataJson;
+import org.esbtools.lightbluenotificationhook.NotificationEntity;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.truth.Truth;
+import com.jayway.awaitility.Awaitility;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueClientConfiguration;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.integration.test.LightblueExternalResource;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataInsertRequest;
+import org.apache.camel.RoutesBuilder;
+import org.apache.camel.test.junit4.CamelTestSupport;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class PeriodicArchiveProcessedEntitiesRouteTest extends CamelTestSupport {
+    @ClassRule
+    public static LightblueExternalResource lightblueExternalResource = new LightblueExternalResource(
+            TestMetadataJson.forEntities(DocumentEventEntity.class, DocumentEventArchiveEntity.class,
+                    NotificationEntity.class, NotificationArchiveEntity.class));
+
+    LightblueClient client;
+    Clock fixedClock = Clock.fixed(Instant.now(), ZoneId.of("GMT"));
+    InMemoryLockStrategy lockStrategy = new InMemoryLockStrategy();
+
+    PeriodicArchiveProcessedEntitiesRoute docEventsArchiverRoute;
+    PeriodicArchiveProcessedEntitiesRoute notificationsArchiverRoute;
+
+    static final Duration ARCHIVE_OLDER_THAN = Duration.ofHours(1);
+    static final Duration ARCHIVE_INTERVAL = Duration.ofSeconds(2);
+    static final int CHUNK_SIZE = 3;
+
+    Instant tooOld;
+    Instant notOldEnough;
+
+    @Before
+    public void dropEntities() throws UnknownHostException {
+        lightblueExternalResource.cleanupMongoCollections(
+                DocumentEventEntity.ENTITY_NAME, DocumentEventArchiveEntity.ENTITY_NAME,
+                NotificationEntity.ENTITY_NAME, NotificationArchiveEntity.ENTITY_NAME);
+    }
+
+    @Override
+    public void doPreSetup() {
+        LightblueClientConfiguration lbClientConfig = LightblueClientConfigurations
+                .fromLightblueExternalResource(lightblueExternalResource);
+        client = LightblueClients.withJavaTimeSerializationSupport(lbClientConfig);
+
+        docEventsArchiverRoute = PeriodicArchiveProcessedEntitiesRoute
+                .archivingDocumentEventsProcessedOlderThan(ARCHIVE_OLDER_THAN, ARCHIVE_INTERVAL,
+                        CHUNK_SIZE, /*maxArchivesPerSecond:*/ 1000, client, lockStrategy,
+                        EventHandlerMetrics.none(), fixedClock);
+        notificationsArchiverRoute = PeriodicArchiveProcessedEntitiesRoute
+                .archivingNotificationsProcessedOlderThan(ARCHIVE_OLDER_THAN, ARCHIVE_INTERVAL,
+                        CHUNK_SIZE, /*maxArchivesPerSecond:*/ 1000, client, lockStrategy,
+                        EventHandlerMetrics.none(), fixedClock);
+
+        tooOld = fixedClock.instant().minus(ARCHIVE_OLDER_THAN).minus(1, ChronoUnit.SECONDS);
+        notOldEnough = fixedClock.instant().minus(ARCHIVE_OLDER_THAN).plus(1, ChronoUnit.SECONDS);
+
+        // Reset locks, start with lock taken
+        lockStrategy.releaseAll();
+        lockStrategy.forceAcquire(docEventsArchiverRoute.archiverLockResourceId);
+        lockStrategy.forceAcquire(notificationsArchiverRoute.archiverLockResourceId);
+    }
+
+    @Override
+    protected RoutesBuilder[] createRouteBuilders() throws Exception {
+        return new PeriodicArchiveProcessedEntitiesRoute[]{
+                docEventsArchiverRoute, notificationsArchiverRoute};
+    }
+
+    @Test
+    public void shouldMoveOldTerminalDocumentEventsToArchive() throws Exception {
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.published, 4);
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.superseded, 2);
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.merged, 2);
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.failed, 2);
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.processing, 2);
+        insertDocumentEventsProcessedAt(notOldEnough, DocumentEventEntity.Status.published, 3);
+
+        lockStrategy.releaseAll();
+
+        List<DocumentEventEntity> archived = Awaitility.await()
+                .until(this::findAllArchivedDocumentEvents, Matchers.hasSize(10));
+        List<DocumentEventEntity> remaining = findAllDocumentEvents();
+
+        Truth.assertThat(remaining).hasSize(5);
+        Truth.assertThat(remaining.stream()
+                .filter(e -> e.getStatus() == DocumentEventEntity.Status.published)
+                .map(e -> e.getProcessedDate().toInstant())
+                .distinct()
+                .collect(Collectors.toList()))
+                .containsExactly(notOldEnough);
+        Truth.assertThat(archived.stream()
+                .map(DocumentEventEntity::getStatus)
+                .distinct()
+                .collect(Collectors.toList()))
+                .containsExactly(
+                        DocumentEventEntity.Status.published,
+                        DocumentEventEntity.Status.superseded,
+                        DocumentEventEntity.Status.merged,
+                        DocumentEventEntity.Status.failed);
+    }
+
+    @Test
+    public void shouldKeepSurvivorOfIdsOfArchivedDocumentEvents() throws Exception {
+        DocumentEventEntity survivor = newDocumentEventProcessedAt(tooOld,
+                DocumentEventEntity.Status.published);
+        survivor.setSurvivorOfIds(ImmutableSet.of("merged1", "superseded1"));
+        insert(survivor);
+
+        lockStrategy.releaseAll();
+
+        List<DocumentEventEntity> archived = Awaitility.await()
+                .until(this::findAllArchivedDocumentEvents, Matchers.hasSize(1));
+
+        Truth.assertThat(archived.get(0).getSurvivorOfIds())
+                .containsExactly("merged1", "superseded1");
+    }
+
+    @Test
+    public void shouldMoveOldProcessedNotificationsToArchive() throws Exception {
+        insertNotificationsProcessedAt(tooOld, NotificationEntity.Status.processed, 10);
+        insertNotificationsProcessedAt(tooOld, NotificationEntity.Status.failed, 2);
+        insertNotificationsProcessedAt(notOldEnough, NotificationEntity.Status.processed, 3);
+
+        lockStrategy.releaseAll();
+
+        Awaitility.await().until(this::findAllArchivedNotifications, Matchers.hasSize(10));
+
+        List<NotificationEntity> remaining = findAllNotifications();
+
+        Truth.assertThat(remaining).hasSize(5);
+        Truth.assertThat(remaining.stream()
+                .filter(n -> n.getStatus() == NotificationEntity.Status.processed)
+                .map(NotificationEntity::getProcessedDate)
+                .map(Date::toInstant)
+                .distinct()
+                .collect(Collectors.toList()))
+                .containsExactly(notOldEnough);
+    }
+
+    @Test
+    public void shouldNotArchiveIfCannotAcquireLock() throws Exception {
+        insertDocumentEventsProcessedAt(tooOld, DocumentEventEntity.Status.published, 5);
+        insertNotificationsProcessedAt(tooOld, NotificationEntity.Status.processed, 5);
+
+        Thread.sleep(ARCHIVE_INTERVAL.multipliedBy(3).toMillis());
+
+        Truth.assertThat(findAllDocumentEvents()).hasSize(5);
+        Truth.assertThat(findAllNotifications()).hasSize(5);
+        Truth.assertThat(findAllArchivedDocumentEvents()).isEmpty();
+        Truth.assertThat(findAllArchivedNotifications()).isEmpty();
+    }
+
+    List<DocumentEventEntity> findAllDocumentEvents() throws LightblueException {
+        return findAll(DocumentEventEntity.ENTITY_NAME, DocumentEventEntity.VERSION,
+                DocumentEventEntity[].class);
+    }
+
+    List<DocumentEventEntity> findAllArchivedDocumentEvents() throws LightblueException {
+        return findAll(DocumentEventArchiveEntity.ENTITY_NAME, DocumentEventArchiveEntity.VERSION,
+                DocumentEventEntity[].class);
+    }
+
+    List<NotificationEntity> findAllNotifications() throws LightblueException {
+        return findAll(NotificationEntity.ENTITY_NAME, NotificationEntity.ENTITY_VERSION,
+                NotificationEntity[].class);
+    }
+
+    List<NotificationEntity> findAllArchivedNotifications() throws LightblueException {
+        return findAll(NotificationArchiveEntity.ENTITY_NAME,
+                NotificationArchiveEntity.ENTITY_VERSION, NotificationEntity[].class);
+    }
+
+    <T> List<T> findAll(String entityName, String entityVersion, Class<T[]> type)
+            throws LightblueException {
+        DataFindRequest find = new DataFindRequest(entityName, entityVersion);
+        find.select(Projection.includeFieldRecursively("*"));
+        return Arrays.asList(client.data(find, type));
+    }
+
+    DocumentEventEntity newDocumentEventProcessedAt(Instant processedDate,
+            DocumentEventEntity.Status status) {
+        StringDocumentEvent event = new StringDocumentEvent(null, UUID.randomUUID().toString(),
+                Clock.fixed(processedDate, fixedClock.getZone()));
+
+        DocumentEventEntity entity = event.wrappedDocumentEventEntity();
+        entity.setStatus(status);
+        entity.setProcessedDate(ZonedDateTime.ofInstant(processedDate, fixedClock.getZone()));
+        return entity;
+    }
+
+    void insertDocumentEventsProcessedAt(Instant processedDate, DocumentEventEntity.Status status,
+            int count) throws LightblueException {
+        for (int i = 0; i < count; i++) {
+            insert(newDocumentEventProcessedAt(processedDate, status));
+        }
+    }
+
+    void insert(DocumentEventEntity entity) throws LightblueException {
+        DataInsertRequest insert = new DataInsertRequest(
+                DocumentEventEntity.ENTITY_NAME,
+                DocumentEventEntity.VERSION);
+        insert.create(entity);
+
+        client.data(insert);
+    }
+
+    void insertNotificationsProcessedAt(Instant processedDate, NotificationEntity.Status status,
+            int count) throws LightblueException {
+        for (int i = 0; i < count; i++) {
+            StringNotification notification = new StringNotification(
+                    UUID.randomUUID().toString(), NotificationEntity.Operation.insert, null,
+                    Clock.fixed(processedDate, fixedClock.getZone()));
+
+            NotificationEntity entity = notification.wrappedNotificationEntity();
+            entity.setStatus(status);
+            entity.setProcessedDate(Date.from(processedDate));
+
+            DataInsertRequest insert = new DataInsertRequest(
+                    NotificationEntity.ENTITY_NAME,
+                    NotificationEntity.ENTITY_VERSION);
+            insert.create(entity);
+
+            client.data(insert);
+        }
+    }
+}
@@ -86,9 +86,7 @@ public class PeriodicDeleteOldEntitiesRouteTest extends CamelTestSupport {
         docEventsDeleterRoute = PeriodicDeleteOldEntitiesRoute
                 .deletingDocumentEventsOlderThan(DELETE_OLDER_THAN, DELETE_INTERVAL,
                         client, lockStrategy, fixedClock);
-        notificationsDeleterRoute = PeriodicDeleteOldEntitiesRoute
-                .deletingNotificationsOlderThan(DELETE_OLDER_THAN, DELETE_INTERVAL,
-                        client, lockStrategy, fixedClock);
+        notificationsDeleterRoute = newNotificationsDeleterRoute();
 
         // Reset locks, start with lock taken
         lockStrategy.releaseAll();
@@ -96,6 +94,11 @@ public class PeriodicDeleteOldEntitiesRouteTest extends CamelTestSupport {
         lockStrategy.forceAcquire(notificationsDeleterRoute.deleterLockResourceId);
     }
 
+    PeriodicDeleteOldEntitiesRoute newNotificationsDeleterRoute() {
+        return PeriodicDeleteOldEntitiesRoute.deletingNotificationsOlderThan(DELETE_OLDER_THAN,
+                DELETE_INTERVAL, client, lockStrategy, fixedClock);
+    }
+
     @Override
     protected RoutesBuilder[] createRouteBuilders() throws Exception {
         return new PeriodicDeleteOldEntitiesRoute[]{docEventsDeleterRoute, notificationsDeleterRoute};
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.esbtools.eventhandler.lightblue.client.UpdateRequests;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.redhat.lightblue.client.request.data.DataUpdateRequest;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class UpdateRequestsTest {
+    static final ObjectMapper mapper = new ObjectMapper();
+
+    static final ZonedDateTime processedAt =
+            ZonedDateTime.ofInstant(Instant.parse("2016-06-01T12:00:00Z"), ZoneId.of("GMT"));
+    static final ZonedDateTime processedLater = processedAt.plusSeconds(1);
+
+    @Test
+    public void shouldGroupUpdatesByStatusAndProcessedDate() throws Exception {
+        Collection<DataUpdateRequest> requests = UpdateRequests.documentEventsStatusAndProcessedDate(
+                Arrays.asList(
+                        event("1", DocumentEventEntity.Status.published, processedAt),
+                        event("2", DocumentEventEntity.Status.failed, processedAt),
+                        event("3", DocumentEventEntity.Status.published, processedAt),
+                        event("4", DocumentEventEntity.Status.published, processedLater),
+                        event("5", DocumentEventEntity.Status.failed, processedAt)),
+                100);
+
+        List<JsonNode> bodies = bodiesOf(requests);
+
+        assertThat(bodies).hasSize(3);
+
+        assertThat(idsMatchedBy(bodies.get(0))).containsExactly("1", "3").inOrder();
+        assertThat(bodies.get(0).get("update").toString()).contains("published");
+
+        assertThat(idsMatchedBy(bodies.get(1))).containsExactly("2", "5").inOrder();
+        assertThat(bodies.get(1).get("update").toString()).contains("failed");
+
+        assertThat(idsMatchedBy(bodies.get(2))).containsExactly("4");
+        assertThat(bodies.get(2).get("update").toString()).contains("published");
+        assertThat(bodies.get(2).get("update").toString())
+                .isNotEqualTo(bodies.get(0).get("update").toString());
+    }
+
+    @Test
+    public void shouldPartitionGroupsLargerThanMaxIdsPerRequest() throws Exception {
+        List<DocumentEventEntity> events = new ArrayList<>();
+
+        for (int i = 0; i < 7; i++) {
+            events.add(event(Integer.toString(i), DocumentEventEntity.Status.published, processedAt));
+        }
+
+        List<JsonNode> bodies = bodiesOf(
+                UpdateRequests.documentEventsStatusAndProcessedDate(events, 3));
+
+        assertThat(bodies).hasSize(3);
+        assertThat(idsMatchedBy(bodies.get(0))).containsExactly("0", "1", "2").inOrder();
+        assertThat(idsMatchedBy(bodies.get(1))).containsExactly("3", "4", "5").inOrder();
+        assertThat(idsMatchedBy(bodies.get(2))).containsExactly("6");
+    }
+
+    @Test
+    public void shouldMatchManyIdsWithInQueryAndSingleIdWithEqualsQuery() throws Exception {
+        List<JsonNode> bodies = bodiesOf(UpdateRequests.documentEventsStatusAndProcessedDate(
+                Arrays.asList(
+                        event("1", DocumentEventEntity.Status.published, processedAt),
+                        event("2", DocumentEventEntity.Status.published, processedAt),
+                        event("3", DocumentEventEntity.Status.failed, processedAt)),
+                100));
+
+        JsonNode inQuery = bodies.get(0).get("query");
+        JsonNode eqQuery = bodies.get(1).get("query");
+
+        assertThat(inQuery.get("op").asText()).isEqualTo("$in");
+        assertThat(inQuery.has("values")).isTrue();
+
+        assertThat(eqQuery.get("op").asText()).isEqualTo("=");
+        assertThat(eqQuery.get("rvalue").asText()).isEqualTo("3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMaxIdsPerRequestLessThanOne() {
+        UpdateRequests.documentEventsStatusAndProcessedDate(
+                Arrays.asList(event("1", DocumentEventEntity.Status.published, processedAt)), 0);
+    }
+
+    static DocumentEventEntity event(String id, DocumentEventEntity.Status status,
+            ZonedDateTime processedDate) {
+        DocumentEventEntity entity = new DocumentEventEntity();
+        entity.set_id(id);
+        entity.setStatus(status);
+        entity.setProcessingDate(processedDate);
+        entity.setProcessedDate(processedDate);
+        return entity;
+    }
+
+    static List<JsonNode> bodiesOf(Collection<DataUpdateRequest> requests) throws IOException {
+        List<JsonNode> bodies = new ArrayList<>(requests.size());
+
+        for (DataUpdateRequest request : requests) {
+            bodies.add(mapper.readTree(request.getBody()));
+        }
+
+        return bodies;
+    }
+
+    static List<String> idsMatchedBy(JsonNode body) {
+        JsonNode query = body.get("query");
+        List<String> ids = new ArrayList<>();
+
+        if (query.has("values")) {
+            query.get("values").forEach(id -> ids.add(id.asText()));
+        } else {
+            ids.add(query.get("rvalue").asText());
+        }
+
+        return ids;
+    }
+}
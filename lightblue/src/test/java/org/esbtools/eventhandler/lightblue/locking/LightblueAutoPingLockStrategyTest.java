@@ -18,6 +18,7 @@
 
 package org.esbtools.eventhandler.lightblue.locking;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -35,6 +36,7 @@ import org.junit.runners.JUnit4;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -65,6 +67,8 @@ public class LightblueAutoPingLockStrategyTest {
     @After
     public void shutdownExecutorAndReleaseLocks() {
         executor.shutdown();
+        lockStrategy2SecondPing.close();
+        lockStrategy100MsPing500msTtl.close();
 
         lockedResources.forEach((lockedResource) -> {
             try {
@@ -168,6 +172,64 @@ public class LightblueAutoPingLockStrategyTest {
         lockedResources.add(lockStrategy2SecondPing.tryAcquire("resource2"));
     }
 
+    @Test
+    public void shouldMaintainManyLocksWithBoundedNumberOfPingThreads() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            lockedResources.add(lockStrategy100MsPing500msTtl.tryAcquire("resource" + i));
+        }
+
+        // Sleep past TTL.
+        Thread.sleep(2000);
+
+        for (int i = 0; i < 50; i++) {
+            assertFalse("The lock expired!", inMemoryLocking.acquire("resource" + i));
+        }
+
+        long pingThreads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("lightblue-lock-pinger-"))
+                .count();
+
+        // Other strategies from this test class may also have started threads.
+        assertTrue("Expected bounded ping threads but found " + pingThreads,
+                pingThreads <= 2 * LightblueAutoPingLockStrategy.DEFAULT_MAX_CONCURRENT_PINGS);
+    }
+
+    @Test
+    public void shouldTrustRecentlyConfirmedLockWithoutPingingWithinConfirmationFreshness()
+            throws Exception {
+        LightblueAutoPingLockStrategy trustingStrategy = new LightblueAutoPingLockStrategy(
+                inMemoryLocking, Duration.ofSeconds(2), Duration.ofSeconds(10), 1,
+                Duration.ofSeconds(5));
+
+        try {
+            LockedResource<String> lock = trustingStrategy.tryAcquire("resourceAbc");
+            lockedResources.add(lock);
+
+            // Lightblue no longer has the lock, but we pinged (acquired) it too recently to check.
+            InMemoryLocking.releaseAll();
+
+            lock.ensureAcquiredOrThrow("should be trusted");
+        } finally {
+            trustingStrategy.close();
+        }
+    }
+
+    @Test
+    public void shouldReturnOnlyLostLocksFromConcurrentCheckOfAllLocks() throws Exception {
+        LockedResource<String> kept = lockStrategy2SecondPing.tryAcquire("resource1");
+        LockedResource<String> lost = lockStrategy2SecondPing.tryAcquire("resource2");
+        lockedResources.add(kept);
+        lockedResources.add(lost);
+
+        InMemoryLocking.releaseResource("resource2");
+
+        List<LostLockException> lostLocks = LockedResources.fromLocks(Arrays.asList(kept, lost), executor)
+                .ensureAllAcquiredOrGetLost("should be lost");
+
+        assertThat(lostLocks).hasSize(1);
+        assertThat(lostLocks.get(0).lostLocks()).containsExactly(lost);
+    }
+
     @Test
     public void shouldStopAutoPingingIfLockLost() throws Exception {
         LockedResource<String> lock = lockStrategy100MsPing500msTtl.tryAcquire("resource1");
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.testing;
+
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.Locking;
+import com.redhat.lightblue.client.request.DataBulkRequest;
+import com.redhat.lightblue.client.request.LightblueDataRequest;
+import com.redhat.lightblue.client.request.LightblueMetadataRequest;
+import com.redhat.lightblue.client.response.LightblueBulkDataResponse;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
+import com.redhat.lightblue.client.response.LightblueMetadataResponse;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes a fast, in process lightblue behave more like one across a network: every data request
+ * waits {@code latency} plus up to {@code jitter} before it is performed, and fails with a
+ * {@link LightblueException} at {@code errorRate} instead of being performed at all.
+ *
+ * <p>Jitter and errors are drawn from a {@link Random} seeded with {@code seed}, so the same
+ * sequence of requests always gets the same delays and failures.
+ *
+ * <p>Counts data requests, including bulk requests, as round trips. Metadata and locking requests
+ * are passed straight through and not counted.
+ *
+ * @see SlowDataLightblueClient
+ */
+public class LatencyInjectingLightblueClient implements LightblueClient {
+    private final LightblueClient delegate;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double errorRate;
+    private final Random random;
+
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    public LatencyInjectingLightblueClient(LightblueClient delegate, Duration latency,
+            Duration jitter, double errorRate, long seed) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("errorRate must be between 0 and 1, but was " +
+                    errorRate);
+        }
+
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        this.errorRate = errorRate;
+        this.random = new Random(seed);
+    }
+
+    public long roundTrips() {
+        return roundTrips.get();
+    }
+
+    public long injectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public void resetCounts() {
+        roundTrips.set(0);
+        injectedErrors.set(0);
+    }
+
+    @Override
+    public Locking getLocking(String domain) {
+        return delegate.getLocking(domain);
+    }
+
+    @Override
+    public LightblueMetadataResponse metadata(LightblueMetadataRequest request)
+            throws LightblueException {
+        return delegate.metadata(request);
+    }
+
+    @Override
+    public LightblueDataResponse data(LightblueDataRequest request) throws LightblueException {
+        return afterLatency(() -> delegate.data(request));
+    }
+
+    @Override
+    public LightblueBulkDataResponse bulkData(DataBulkRequest request) throws LightblueException {
+        return afterLatency(() -> delegate.bulkData(request));
+    }
+
+    @Override
+    public <T> T data(LightblueDataRequest request, Class<T> type) throws LightblueException {
+        return afterLatency(() -> delegate.data(request, type));
+    }
+
+    private <T> T afterLatency(Callable<T> request) throws LightblueException {
+        roundTrips.incrementAndGet();
+
+        long delayNanos;
+        boolean fail;
+
+        synchronized (random) {
+            delayNanos = latencyNanos +
+                    (jitterNanos == 0 ? 0 : (long) (random.nextDouble() * jitterNanos));
+            fail = errorRate > 0 && random.nextDouble() < errorRate;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LightblueException("Interrupted while simulating latency.");
+        }
+
+        if (fail) {
+            injectedErrors.incrementAndGet();
+            throw new LightblueException("Injected failure.");
+        }
+
+        try {
+            return request.call();
+        } catch (LightblueException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyInjectingLightblueClient{" +
+                "latencyNanos=" + latencyNanos +
+                ", jitterNanos=" + jitterNanos +
+                ", errorRate=" + errorRate +
+                ", roundTrips=" + roundTrips +
+                ", injectedErrors=" + injectedErrors +
+                '}';
+    }
+}
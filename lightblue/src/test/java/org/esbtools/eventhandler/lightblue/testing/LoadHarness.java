@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2016 esbtools Contributors and/or its affiliates.
+ *
+ *  This file is part of esbtools.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.esbtools.eventhandler.lightblue.testing;
+
+import org.esbtools.eventhandler.PollingDocumentEventProcessorRoute;
+import org.esbtools.eventhandler.PollingNotificationProcessorRoute;
+import org.esbtools.eventhandler.lightblue.DocumentEventFactory;
+import org.esbtools.eventhandler.lightblue.LightblueDocumentEventRepository;
+import org.esbtools.eventhandler.lightblue.LightblueNotificationRepository;
+import org.esbtools.eventhandler.lightblue.NotificationFactory;
+import org.esbtools.eventhandler.lightblue.config.MutableLightblueDocumentEventRepositoryConfig;
+import org.esbtools.eventhandler.lightblue.config.MutableLightblueNotificationRepositoryConfig;
+import org.esbtools.lightbluenotificationhook.NotificationEntity;
+
+import com.google.common.collect.ImmutableMap;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.request.data.DataInsertRequest;
+import org.apache.camel.CamelContext;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole pipeline, from notifications through document events to published documents,
+ * against lightblue as seen through a {@link LatencyInjectingLightblueClient}, and reports how it
+ * did.
+ *
+ * <p>Notifications are inserted directly, without injected latency, all at once. Each becomes one
+ * document event and then one published document with a unique value, so end to end latency is
+ * measured per document, from just before its notification was inserted until it is first
+ * published. Locks are {@link InMemoryLockStrategy in memory}, so lock round trips do not
+ * count towards lightblue round trips.
+ *
+ * <p>Lightblue is expected to have the notification and document event entities, with no
+ * unprocessed notifications or document events left over from before the run.
+ */
+public class LoadHarness {
+    private final LightblueClient lightblue;
+    private final int notificationBatchSize;
+    private final int documentEventBatchSize;
+    private final Duration latency;
+    private final Duration jitter;
+    private final double errorRate;
+    private final long seed;
+
+    private static final Clock systemUtc = Clock.systemUTC();
+    private static final int MAX_NOTIFICATIONS_PER_INSERT = 1000;
+    private static final String DOCUMENTS_ENDPOINT = "direct:loadHarnessDocuments";
+    private static final String FAILURES_ENDPOINT = "direct:loadHarnessFailures";
+
+    /**
+     * @param lightblue A client to lightblue without any latency of its own, such as one to a
+     *                  {@link com.redhat.lightblue.client.integration.test.LightblueExternalResource}.
+     * @see LatencyInjectingLightblueClient
+     */
+    public LoadHarness(LightblueClient lightblue, int notificationBatchSize,
+            int documentEventBatchSize, Duration latency, Duration jitter, double errorRate,
+            long seed) {
+        this.lightblue = Objects.requireNonNull(lightblue, "lightblue");
+        this.notificationBatchSize = notificationBatchSize;
+        this.documentEventBatchSize = documentEventBatchSize;
+        this.latency = Objects.requireNonNull(latency, "latency");
+        this.jitter = Objects.requireNonNull(jitter, "jitter");
+        this.errorRate = errorRate;
+        this.seed = seed;
+    }
+
+    /**
+     * Inserts {@code notifications} notifications and waits until they are all published as
+     * documents, or until {@code timeout}, whichever is first.
+     */
+    public Report run(int notifications, Duration timeout) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        LatencyInjectingLightblueClient slowLightblue = new LatencyInjectingLightblueClient(
+                lightblue, latency, jitter, errorRate, seed);
+
+        Map<String, NotificationFactory> notificationFactoriesByEntityName =
+                ImmutableMap.of("String", StringNotification::new);
+        Map<String, DocumentEventFactory> documentEventFactoriesByType =
+                ImmutableMap.of("String", StringDocumentEvent::new);
+
+        LightblueNotificationRepository notificationRepository =
+                new LightblueNotificationRepository(slowLightblue,
+                        new MutableLightblueNotificationRepositoryConfig(
+                                Collections.singleton("String"),
+                                /* processingTimeout */ Duration.ofSeconds(30),
+                                /* expireThreshold */ Duration.ofSeconds(5)),
+                        notificationFactoriesByEntityName, systemUtc);
+        LightblueDocumentEventRepository documentEventRepository =
+                new LightblueDocumentEventRepository(slowLightblue, new InMemoryLockStrategy(),
+                        new MutableLightblueDocumentEventRepositoryConfig(
+                                Collections.singleton("String"), documentEventBatchSize,
+                                /* processingTimeout */ Duration.ofSeconds(30),
+                                /* expireThreshold */ Duration.ofSeconds(5)),
+                        documentEventFactoriesByType, systemUtc);
+
+        ConcurrentMap<String, Long> insertedNanosByValue = new ConcurrentHashMap<>(notifications);
+        ConcurrentMap<String, Long> latencyNanosByValue = new ConcurrentHashMap<>(notifications);
+        CountDownLatch allPublished = new CountDownLatch(notifications);
+
+        CamelContext camel = new DefaultCamelContext();
+        camel.addRoutes(new PollingNotificationProcessorRoute(notificationRepository,
+                documentEventRepository, Duration.ofMillis(10), Duration.ofSeconds(1),
+                /* processTimeout */ Duration.ofSeconds(30), notificationBatchSize));
+        camel.addRoutes(new PollingDocumentEventProcessorRoute(documentEventRepository,
+                Duration.ofMillis(10), Duration.ofSeconds(1),
+                /* processTimeout */ Duration.ofSeconds(30), documentEventBatchSize,
+                DOCUMENTS_ENDPOINT, FAILURES_ENDPOINT, "loadHarnessDocumentEventProcessor",
+                documentEventBatchSize));
+        camel.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(DOCUMENTS_ENDPOINT).process(exchange -> {
+                    long publishedNanos = System.nanoTime();
+                    String value = exchange.getIn().getMandatoryBody(String.class);
+                    Long insertedNanos = insertedNanosByValue.get(value);
+
+                    if (insertedNanos != null && latencyNanosByValue.putIfAbsent(
+                            value, publishedNanos - insertedNanos) == null) {
+                        allPublished.countDown();
+                    }
+                });
+
+                from(FAILURES_ENDPOINT).stop();
+            }
+        });
+
+        long threadsStartedBefore = threads.getTotalStartedThreadCount();
+        long start = System.nanoTime();
+
+        camel.start();
+
+        try {
+            insertNotifications(notifications, insertedNanosByValue);
+            allPublished.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            camel.stop();
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+
+        return new Report(notifications, new ArrayList<>(latencyNanosByValue.values()),
+                elapsedNanos, slowLightblue.roundTrips(), slowLightblue.injectedErrors(),
+                threads.getTotalStartedThreadCount() - threadsStartedBefore);
+    }
+
+    private void insertNotifications(int notifications,
+            ConcurrentMap<String, Long> insertedNanosByValue) throws LightblueException {
+        for (int from = 0; from < notifications; from += MAX_NOTIFICATIONS_PER_INSERT) {
+            int to = Math.min(notifications, from + MAX_NOTIFICATIONS_PER_INSERT);
+            NotificationEntity[] entities = new NotificationEntity[to - from];
+
+            for (int i = from; i < to; i++) {
+                String value = "load-" + i;
+                entities[i - from] = new StringNotification(value,
+                        NotificationEntity.Operation.insert, "loadHarness", systemUtc)
+                        .wrappedNotificationEntity();
+                insertedNanosByValue.put(value, System.nanoTime());
+            }
+
+            DataInsertRequest insert = new DataInsertRequest(
+                    NotificationEntity.ENTITY_NAME, NotificationEntity.ENTITY_VERSION);
+            insert.create(entities);
+            lightblue.data(insert);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LoadHarness{" +
+                "notificationBatchSize=" + notificationBatchSize +
+                ", documentEventBatchSize=" + documentEventBatchSize +
+                ", latency=" + latency +
+                ", jitter=" + jitter +
+                ", errorRate=" + errorRate +
+                ", seed=" + seed +
+                '}';
+    }
+
+    public static final class Report {
+        private final int notifications;
+        private final long[] sortedLatencyNanos;
+        private final long elapsedNanos;
+        private final long roundTrips;
+        private final long injectedErrors;
+        private final long threadsCreated;
+
+        Report(int notifications, List<Long> latencyNanos, long elapsedNanos, long roundTrips,
+                long injectedErrors, long threadsCreated) {
+            this.notifications = notifications;
+            this.sortedLatencyNanos = latencyNanos.stream().mapToLong(Long::longValue).toArray();
+            this.elapsedNanos = elapsedNanos;
+            this.roundTrips = roundTrips;
+            this.injectedErrors = injectedErrors;
+            this.threadsCreated = threadsCreated;
+
+            Arrays.sort(sortedLatencyNanos);
+        }
+
+        public int notifications() {
+            return notifications;
+        }
+
+        public int published() {
+            return sortedLatencyNanos.length;
+        }
+
+        public boolean allPublished() {
+            return published() == notifications;
+        }
+
+        public double eventsPerSecond() {
+            return published() / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         */
+        public Duration latencyPercentile(double percentile) {
+            if (sortedLatencyNanos.length == 0) {
+                return Duration.ZERO;
+            }
+
+            int rank = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length);
+            return Duration.ofNanos(sortedLatencyNanos[Math.max(0, rank - 1)]);
+        }
+
+        public double roundTripsPerDocument() {
+            return published() == 0 ? 0 : (double) roundTrips / published();
+        }
+
+        public long roundTrips() {
+            return roundTrips;
+        }
+
+        public long injectedErrors() {
+            return injectedErrors;
+        }
+
+        public long threadsCreated() {
+            return threadsCreated;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("published %d/%d in %.1fs: %.1f events/s, latency p50 %dms " +
+                    "p99 %dms, %d lightblue round trips (%.3f per document, %d injected " +
+                    "errors), %d threads created",
+                    published(), notifications, elapsedNanos / 1e9, eventsPerSecond(),
+                    latencyPercentile(50).toMillis(), latencyPercentile(99).toMillis(),
+                    roundTrips, roundTripsPerDocument(), injectedErrors, threadsCreated);
+        }
+    }
+}